@@ -0,0 +1,44 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import java.util.function.Consumer;
+
+/**
+ * A bounded multi-producer/single-consumer buffer of an {@link AsyncShard}, see {@link AsyncBufferType}.
+ * <p>
+ * Only a single thread may call {@link #drain(Consumer, int)} and {@link #awaitNotEmpty(long)}.
+ */
+interface AsyncBuffer<E> {
+
+    /**
+     * @return false if the buffer is full
+     */
+    boolean offer(E element);
+
+    /**
+     * Passes up to <code>limit</code> elements to the <code>action</code>.
+     *
+     * @return the number of elements passed to the action
+     */
+    int drain(Consumer<? super E> action, int limit);
+
+    /**
+     * Waits using the {@link ConsumerWaitStrategy} until an element can be drained, at most for
+     * <code>timeoutNanos</code> or until the consumer is woken up by {@link #wakeUpConsumer()}.
+     *
+     * @return true if an element is available
+     */
+    boolean awaitNotEmpty(long timeoutNanos);
+
+    /**
+     * Returns the consumer from {@link #awaitNotEmpty(long)}, i.e. when stopping
+     */
+    void wakeUpConsumer();
+
+    boolean isEmpty();
+
+    int size();
+
+    int remainingCapacity();
+
+    int capacity();
+}
@@ -1,10 +1,25 @@
 package ch.admin.bag.covidcertificate.log.async;
 
 import ch.admin.bag.covidcertificate.log.metrics.LoggingMetrics;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.core.AsyncAppenderBase;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import lombok.Getter;
 import lombok.Setter;
 
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * Async appender with a reference to a fallback appender to use if the async logging event buffer is nearing capacity.
  * Compared to the {@link ch.qos.logback.classic.AsyncAppender} from logback, the {@link AsyncBufferFullFallbackAppender}
@@ -12,68 +27,806 @@ import lombok.Setter;
  * <p>
  * The fallback is used if less than fallbackThreshold (default: 20%) of the buffer size is available.
  * <p>
+ * Events below <code>reservedCapacityLevel</code> (default: WARN) are kept out of an additional
+ * <code>reservedCapacity</code> (default: 10% of the buffer size) above the fallback threshold, so that warnings and
+ * errors are still buffered while lower priority events already use the fallback. With
+ * <code>lowPriorityFallbackSampling</code> set to N &gt; 1, only one in N of these lower priority events is appended to
+ * the fallback appender and the others are dropped, to protect the (slow) fallback appender during overload.
+ * <p>
  * Typical use case: Spill over log events to a faster appender if the appender logged to by the async appender cannot
  * keep up with the amount of logged events.
  * <p>
+ * If an attached appender is a {@link SpillingAppender}, events are spilled to it (i.e. to its disk-backed spill store)
+ * before resorting to the fallback appender.
+ * <p>
  * The fallback appender can be disabled using {@link #setUseFallbackAppender(boolean)}, which is useful to allow for
  * configuratively disabling the fallback mechanism via a property. In this case the appender behaves just like the
- * {@link ch.qos.logback.classic.AsyncAppender} from logback.
+ * {@link ch.qos.logback.classic.AsyncAppender} from logback, blocking while the buffer is full unless
+ * <code>neverBlock</code> is set.
+ * <p>
+ * Events are buffered in the single-lock <code>ArrayBlockingQueue</code> of logback's <code>AsyncAppenderBase</code>,
+ * or with <code>bufferType</code> set to {@link AsyncBufferType#RING_BUFFER} in a lock-free {@link MpscRingBuffer}, in
+ * which producers do not contend on a lock and the fallback threshold check does not block. The ring buffer scales
+ * better with many concurrently logging threads, but is slower with few. The worker waits for events using the
+ * configured {@link ConsumerWaitStrategy}.
+ * <p>
+ * The worker drains up to <code>maxBatchSize</code> events at once. Attached appenders implementing
+ * {@link BatchAppender} receive them as a single batch, i.e. to transmit them using a single write.
+ * <p>
+ * With <code>shards</code> greater than 1, the appender keeps multiple buffers of <code>queueSize</code> events, each
+ * drained by its own worker. Producing threads are assigned to a shard by thread id, so events of a thread are still
+ * appended in order. Batches are passed to {@link BatchAppender}s along with the shard index, which the
+ * {@link ch.admin.bag.covidcertificate.log.syslog.TLSSyslogAppender} uses to select a connection, i.e. each shard
+ * transmits using its own connection if <code>connections</code> is at least <code>shards</code>. The fallback
+ * thresholds apply per shard, the fallback is deactivated once no shard is overflowing anymore.
+ * <p>
+ * With <code>preEncode</code> enabled and a single attached {@link PreEncodingAppender}, events are encoded by the
+ * logging thread into a pooled {@link EncodedEvent} buffer before being buffered, so the workers only concatenate and
+ * transmit the encoded messages. The encoded messages waiting in the buffers are limited to
+ * <code>maxInFlightBytes</code> (default: 16 MiB), the fallback is used (or the logging thread blocks if the fallback
+ * is disabled) if this budget is exhausted.
+ * <p>
+ * With <code>arenaBytes</code> set in addition to <code>preEncode</code>, the encoded messages are not buffered as
+ * objects but copied into a preallocated off-heap {@link EncodedEventArena} per shard, splitting
+ * <code>arenaBytes</code> evenly across the shards (rounded down to a power of two). The memory of the async buffers
+ * is thus fixed and does not add to the garbage collection cost however many events are queued. The fallback
+ * thresholds then apply to the free bytes of an arena, scaled to <code>queueSize</code>, i.e. with the defaults the
+ * fallback is used if less than 20% of the arena is free. The queued bytes are exposed by {@link #getQueuedBytes()}.
+ * The records only carry the level and timestamp of the original event: the fallback appenders of this appender and
+ * of the pre-encoding appender must thus implement {@link EncodedFallbackAppender}, or the appender fails to start.
+ * <p>
+ * On {@link #stop()}, the workers flush the remaining events in batches without waiting, within
+ * <code>maxFlushTime</code>. Events still queued at the
+ * deadline, i.e. because a worker is blocked writing to an unavailable server, are not discarded but spilled to the
+ * {@link SpillingAppender} (i.e. its disk-backed spill store, replayed on the next start) or else written to the
+ * fallback appender, unless <code>spillOnFlushTimeout</code> is disabled. The number of drained, spilled and lost
+ * events is logged and reported as metrics.
+ * <p>
+ * The workers run on platform threads, or on virtual threads with <code>threadMode</code> set to
+ * {@link ThreadMode#VIRTUAL} (Java 21 or later), so that workers blocking on socket writes do not occupy a platform
+ * thread each.
  */
-public class AsyncBufferFullFallbackAppender extends AsyncAppenderBase<ILoggingEvent> {
+public class AsyncBufferFullFallbackAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+        implements AppenderAttachable<ILoggingEvent> {
+
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+    public static final int DEFAULT_MAX_FLUSH_TIME = 1000;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 128;
+    public static final int DEFAULT_SHARDS = 1;
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 16L * 1024 * 1024;
 
     private static final int UNDEFINED = -1;
+    private static final int SPILL_DRAIN_TRIES = 100;
+    private static final int MIN_ARENA_BYTES = 4096;
+    private static final int MAX_ARENA_BYTES = 1 << 30;
+    private static final long WORKER_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long PRODUCER_PARK_NANOS = 50_000;
+    private static final int PRODUCER_SPIN_TRIES = 100;
+    private static final int PRODUCER_YIELD_TRIES = 1000;
+
+    @Getter
+    @Setter
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+
+    @Getter
+    @Setter
+    private int maxFlushTime = DEFAULT_MAX_FLUSH_TIME;
+
+    @Getter
+    @Setter
+    private boolean neverBlock;
+
+    @Getter
+    @Setter
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    @Getter
+    @Setter
+    private int shards = DEFAULT_SHARDS;
+
+    @Getter
+    @Setter
+    private boolean preEncode;
+
+    @Getter
+    @Setter
+    private long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+
+    @Getter
+    @Setter
+    private long arenaBytes;
+
+    @Getter
+    @Setter
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+
+    @Setter
+    private ConsumerWaitStrategy waitStrategy = ConsumerWaitStrategy.BLOCKING;
+
+    @Getter
+    @Setter
+    private AsyncBufferType bufferType = AsyncBufferType.BLOCKING_QUEUE;
 
     @Setter
     private boolean useFallbackAppender = true;
 
+    @Getter
+    @Setter
+    private boolean spillOnFlushTimeout = true;
+
     @Setter
     private int fallbackThreshold = UNDEFINED;
 
+    @Setter
+    private int reservedCapacity = UNDEFINED;
+
+    @Setter
+    private Level reservedCapacityLevel = Level.WARN;
+
+    @Setter
+    private int lowPriorityFallbackSampling = 1;
+
     @Setter
     private FallbackAppenderRef fallback;
 
-    public AsyncBufferFullFallbackAppender() {
-        // This appender uses a fallback instead of discarding messages silently,
-        // the discarding threshold is thus defaulted to 0 to avoid discarding any messages
-        setDiscardingThreshold(0);
-    }
+    /**
+     * Events of level INFO and below are discarded if the remaining capacity is below this threshold, as with logback's
+     * <code>AsyncAppenderBase</code>, which this appender extended before. Defaults to 0, i.e. events are passed to the
+     * fallback appender rather than being discarded.
+     *
+     * @deprecated use <code>reservedCapacity</code> and <code>lowPriorityFallbackSampling</code> instead
+     */
+    @Deprecated
+    @Getter
+    @Setter
+    private int discardingThreshold;
+
+    private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+    private AsyncShard[] asyncShards;
+    private final AtomicInteger overflowingShards = new AtomicInteger();
+    // The workers and the stopping thread, the last one to finish stops the attached appenders
+    private final AtomicInteger runningWorkers = new AtomicInteger();
+    private volatile long flushDeadlineNanos;
+    private final AtomicLong shutdownDrained = new AtomicLong();
+    @Getter
+    private long shutdownSpilled;
+    @Getter
+    private long shutdownLost;
+    private PreEncodingAppender preEncodingAppender;
+    private EncodedEventPool encodedEventPool;
+    private int arenaCapacity;
 
     /**
      * Append a log event asynchronously, falling back to the fallback appender if
-     * <code>getRemainingCapacity() &lt;= fallbackThreshold</code>
+     * <code>getRemainingCapacity() &lt;= fallbackThreshold</code>, or
+     * <code>getRemainingCapacity() &lt;= fallbackThreshold + reservedCapacity</code> for low priority events, or if
+     * the pre-encoded messages exceed <code>maxInFlightBytes</code>
      */
     @Override
     protected void append(ILoggingEvent eventObject) {
-        if (useFallbackAppender && isBufferNearlyFull()) {
-            LoggingMetrics.incrementAsyncBufferFullFallback();
-            fallback.appendToFallbackAppender(eventObject, "Async buffer full");
-        } else {
+        AsyncShard shard = selectShard();
+        int remainingCapacity = remainingCapacity(shard);
+        if (remainingCapacity < discardingThreshold && eventObject.getLevel().toInt() <= Level.INFO_INT) {
+            LoggingMetrics.incrementAsyncBufferFullDropped(eventObject.getLevel().levelStr);
+            return;
+        }
+        boolean priority = eventObject.getLevel().isGreaterOrEqual(reservedCapacityLevel);
+        if (useFallbackAppender && (isBufferNearlyFull(remainingCapacity, priority) || isInFlightBytesExhausted())) {
+            appendToOverflow(shard, eventObject, priority);
+            return;
+        }
+        if (shard.getArena() != null) {
+            // The event is encoded right away and not retained
+            if (!putRecord(shard.getArena(), eventObject)) {
+                appendToOverflow(shard, eventObject, priority);
+                return;
+            }
+        } else if (preEncodingAppender == null) {
+            eventObject.prepareForDeferredProcessing();
+            put(shard.getBuffer(), eventObject);
+        } else if (!putEncoded(shard.getBuffer(), prepared(eventObject))) {
+            appendToOverflow(shard, eventObject, priority);
+            return;
+        }
+        // Priority events using the reserved capacity do not end the fallback for low priority events
+        if (remainingCapacity > fallbackThreshold + reservedCapacity) {
+            markNotOverflowing(shard);
+        }
+    }
+
+    private void appendToOverflow(AsyncShard shard, ILoggingEvent eventObject, boolean priority) {
+        if (spill(eventObject)) {
+            return;
+        }
+        markOverflowing(shard);
+        appendToFallback(eventObject, priority);
+    }
+
+    private AsyncShard selectShard() {
+        AsyncShard[] currentShards = asyncShards;
+        if (currentShards.length == 1) {
+            return currentShards[0];
+        }
+        return currentShards[(int) (Thread.currentThread().getId() % currentShards.length)];
+    }
+
+    private void markOverflowing(AsyncShard shard) {
+        AtomicBoolean overflowing = shard.getOverflowing();
+        if (!overflowing.get() && overflowing.compareAndSet(false, true)) {
+            overflowingShards.incrementAndGet();
+        }
+    }
+
+    /**
+     * Deactivates the fallback once the last overflowing shard has recovered
+     */
+    private void markNotOverflowing(AsyncShard shard) {
+        AtomicBoolean overflowing = shard.getOverflowing();
+        if (overflowing.get() && overflowing.compareAndSet(true, false)) {
+            overflowingShards.decrementAndGet();
+        }
+        if (overflowingShards.get() == 0) {
             fallback.notifyFallbackDeactivated();
-            super.append(eventObject);
         }
     }
 
-    private boolean isBufferNearlyFull() {
-        return getRemainingCapacity() <= fallbackThreshold;
+    private void appendToFallback(ILoggingEvent eventObject, boolean priority) {
+        String level = eventObject.getLevel().levelStr;
+        if (!priority && lowPriorityFallbackSampling > 1
+                && ThreadLocalRandom.current().nextInt(lowPriorityFallbackSampling) != 0) {
+            LoggingMetrics.incrementAsyncBufferFullDropped(level);
+            return;
+        }
+        LoggingMetrics.incrementAsyncBufferFullFallback(level);
+        fallback.appendToFallbackAppender(eventObject, "Async buffer full");
     }
 
-    @Override
-    protected void preprocess(ILoggingEvent eventObject) {
+    /**
+     * @return false if the event has been discarded, i.e. if the buffer is full and <code>neverBlock</code> is set
+     */
+    private boolean put(AsyncBuffer<Object> buffer, Object element) {
+        if (buffer.offer(element)) {
+            return true;
+        }
+        if (neverBlock) {
+            return false;
+        }
+        for (int tries = 0; isStarted(); tries++) {
+            if (buffer.offer(element)) {
+                return true;
+            }
+            backOff(tries);
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the event using the {@link PreEncodingAppender} and buffers the encoded event.
+     *
+     * @return false if the encoded message exceeds <code>maxInFlightBytes</code> and the fallback is to be used
+     */
+    private boolean putEncoded(AsyncBuffer<Object> buffer, ILoggingEvent eventObject) {
+        EncodedEvent encodedEvent = encodedEventPool.acquire(eventObject);
+        if (!preEncode(eventObject, encodedEvent)) {
+            encodedEventPool.recycle(encodedEvent);
+            return true;
+        }
+        if (!reserveInFlightBytes(encodedEvent)) {
+            encodedEventPool.recycle(encodedEvent);
+            return !useFallbackAppender;
+        }
+        if (!put(buffer, encodedEvent)) {
+            encodedEventPool.release(encodedEvent);
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the event using the {@link PreEncodingAppender} into a scratch buffer and copies the encoded message
+     * into the arena, blocking while the arena is full if the fallback is disabled.
+     *
+     * @return false if the arena is full, or the message does not fit into the arena, and the fallback is to be used
+     */
+    private boolean putRecord(EncodedEventArena arena, ILoggingEvent eventObject) {
+        EncodedEvent encodedEvent = encodedEventPool.acquire(eventObject);
+        try {
+            if (!preEncode(eventObject, encodedEvent)) {
+                return true;
+            }
+            int level = eventObject.getLevel().toInt();
+            long timestamp = eventObject.getTimeStamp();
+            if (arena.offer(level, timestamp, encodedEvent.array(), encodedEvent.length())) {
+                return true;
+            }
+            if (EncodedEventArena.recordSize(encodedEvent.length()) > arena.capacity()) {
+                addWarn("Encoded message of " + encodedEvent.length() + " bytes exceeds the async arena");
+                return false;
+            }
+            if (useFallbackAppender || neverBlock) {
+                return !useFallbackAppender;
+            }
+            for (int tries = 0; isStarted(); tries++) {
+                if (arena.offer(level, timestamp, encodedEvent.array(), encodedEvent.length())) {
+                    return true;
+                }
+                backOff(tries);
+            }
+            return true;
+        } finally {
+            encodedEventPool.recycle(encodedEvent);
+        }
+    }
+
+    /**
+     * @return false if the event is not to be appended, i.e. filtered by the {@link PreEncodingAppender}
+     */
+    private boolean preEncode(ILoggingEvent eventObject, EncodedEvent encodedEvent) {
+        try {
+            return preEncodingAppender.preEncode(eventObject, encodedEvent);
+        } catch (RuntimeException e) {
+            addError("Failed to pre-encode event", e);
+            return false;
+        }
+    }
+
+    private static ILoggingEvent prepared(ILoggingEvent eventObject) {
         eventObject.prepareForDeferredProcessing();
+        return eventObject;
+    }
+
+    /**
+     * Blocks until the encoded message fits into <code>maxInFlightBytes</code> if the fallback is disabled.
+     */
+    private boolean reserveInFlightBytes(EncodedEvent encodedEvent) {
+        if (encodedEventPool.reserve(encodedEvent)) {
+            return true;
+        }
+        if (useFallbackAppender || neverBlock) {
+            return false;
+        }
+        for (int tries = 0; isStarted(); tries++) {
+            if (encodedEventPool.reserve(encodedEvent)) {
+                return true;
+            }
+            backOff(tries);
+        }
+        return false;
+    }
+
+    private static void backOff(int tries) {
+        if (tries < PRODUCER_SPIN_TRIES) {
+            Thread.onSpinWait();
+        } else if (tries < PRODUCER_SPIN_TRIES + PRODUCER_YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+        }
+    }
+
+    private boolean spill(ILoggingEvent eventObject) {
+        Iterator<Appender<ILoggingEvent>> attachedAppenders = iteratorForAppenders();
+        while (attachedAppenders.hasNext()) {
+            if (attachedAppenders.next() instanceof SpillingAppender spillingAppender && spillingAppender.spill(eventObject)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isBufferNearlyFull(int remainingCapacity, boolean priority) {
+        return remainingCapacity <= (priority ? fallbackThreshold : fallbackThreshold + reservedCapacity);
+    }
+
+    private boolean isInFlightBytesExhausted() {
+        return encodedEventPool != null && encodedEventPool.isExhausted();
+    }
+
+    /**
+     * Wait-free with the {@link AsyncBufferType#RING_BUFFER ring buffer}, does not contend with producers or the
+     * worker then
+     *
+     * @return the remaining capacity summed across all shards
+     */
+    public int getRemainingCapacity() {
+        int remainingCapacity = 0;
+        for (AsyncShard shard : asyncShards) {
+            remainingCapacity += remainingCapacity(shard);
+        }
+        return remainingCapacity;
+    }
+
+    /**
+     * @return the remaining capacity of the shard with index <code>shard</code>, which the fallback thresholds apply to
+     */
+    public int getRemainingCapacity(int shard) {
+        return remainingCapacity(asyncShards[shard]);
+    }
+
+    /**
+     * @return the number of queued events, not including events queued in arenas
+     */
+    public int getNumberOfElementsInQueue() {
+        int elements = 0;
+        for (AsyncShard shard : asyncShards) {
+            if (shard.getBuffer() != null) {
+                elements += shard.getBuffer().size();
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * @return the bytes of the pre-encoded events waiting in the buffers or arenas, including record headers in arenas
+     */
+    public long getQueuedBytes() {
+        AsyncShard[] currentShards = asyncShards;
+        if (currentShards == null || encodedEventPool == null) {
+            return 0;
+        }
+        if (arenaCapacity == 0) {
+            return encodedEventPool.inFlightBytes();
+        }
+        long bytes = 0;
+        for (AsyncShard shard : currentShards) {
+            bytes += shard.getArena().usedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * The free bytes of an arena are scaled to <code>queueSize</code>, so that the thresholds apply proportionally.
+     */
+    private int remainingCapacity(AsyncShard shard) {
+        EncodedEventArena arena = shard.getArena();
+        if (arena == null) {
+            return shard.getBuffer().remainingCapacity();
+        }
+        return (int) ((long) arena.remainingBytes() * queueSize / arena.capacity());
+    }
+
+    private void processEvents(AsyncShard shard) {
+        while (isStarted()) {
+            if (shard.drainToBatch(maxBatchSize) > 0) {
+                appendBatch(shard);
+            } else {
+                shard.awaitNotEmpty(WORKER_WAIT_NANOS);
+            }
+        }
+        addInfo("Worker thread will flush remaining events before exiting. ");
+        flushRemaining(shard);
+        finishWorker();
+    }
+
+    /**
+     * Flushes the remaining events in batches until the flush deadline, leaving the events still queued at the
+     * deadline to be spilled by the stopping thread.
+     */
+    private void flushRemaining(AsyncShard shard) {
+        while (!shard.isEmpty() && System.nanoTime() - flushDeadlineNanos < 0) {
+            int drained = shard.drainToBatch(maxBatchSize);
+            if (drained < 0) {
+                // Taken over by the stopping thread
+                return;
+            }
+            if (drained > 0) {
+                appendBatch(shard);
+                shutdownDrained.addAndGet(drained);
+            } else {
+                // Waiting for a producer to publish an event in a claimed slot
+                Thread.yield();
+            }
+        }
+    }
+
+    private void finishWorker() {
+        if (runningWorkers.decrementAndGet() == 0) {
+            appenders.detachAndStopAllAppenders();
+        }
+    }
+
+    private void appendBatch(AsyncShard shard) {
+        if (!shard.getEncodedBatch().isEmpty()) {
+            appendEncodedBatch(shard);
+        }
+        if (!shard.getBatch().isEmpty()) {
+            appendEventBatch(shard);
+        }
+    }
+
+    private void appendEncodedBatch(AsyncShard shard) {
+        List<EncodedEvent> encodedBatch = shard.getEncodedBatch();
+        try {
+            preEncodingAppender.appendEncodedBatch(encodedBatch, shard.getIndex());
+        } catch (RuntimeException e) {
+            addError("Failed to append batch of " + encodedBatch.size() + " pre-encoded events", e);
+        }
+        // Events read from an arena are owned by the shard
+        if (shard.getArena() == null) {
+            for (EncodedEvent encodedEvent : encodedBatch) {
+                encodedEventPool.release(encodedEvent);
+            }
+        }
+        encodedBatch.clear();
+    }
+
+    private void appendEventBatch(AsyncShard shard) {
+        List<ILoggingEvent> batch = shard.getBatch();
+        Iterator<Appender<ILoggingEvent>> attachedAppenders = appenders.iteratorForAppenders();
+        while (attachedAppenders.hasNext()) {
+            Appender<ILoggingEvent> appender = attachedAppenders.next();
+            if (appender instanceof BatchAppender batchAppender) {
+                try {
+                    batchAppender.appendBatch(batch, shard.getIndex());
+                } catch (RuntimeException e) {
+                    addError("Failed to append batch of " + batch.size() + " events to [" + appender.getName() + "]", e);
+                }
+            } else {
+                for (ILoggingEvent event : batch) {
+                    appender.doAppend(event);
+                }
+            }
+        }
+        batch.clear();
     }
 
     @Override
     public void start() {
+        if (isStarted()) {
+            return;
+        }
+        if (!appenders.iteratorForAppenders().hasNext()) {
+            addError("No attached appenders found.");
+            return;
+        }
+        if (maxBatchSize < 1) {
+            addError("Invalid max batch size [" + maxBatchSize + "]");
+            return;
+        }
+        if (queueSize < 1) {
+            addError("Invalid queue size [" + queueSize + "]");
+            return;
+        }
+        if (shards < 1) {
+            addError("Invalid number of shards [" + shards + "]");
+            return;
+        }
         if (fallbackThreshold == UNDEFINED) {
-            fallbackThreshold = getQueueSize() / 5;
+            fallbackThreshold = queueSize / 5;
+        }
+        if (reservedCapacity == UNDEFINED) {
+            reservedCapacity = queueSize / 10;
+        }
+        if (preEncode && maxInFlightBytes < 1) {
+            addError("Invalid max in-flight bytes [" + maxInFlightBytes + "]");
+            return;
+        }
+        preEncodingAppender = preEncode ? findPreEncodingAppender() : null;
+        encodedEventPool = preEncodingAppender != null ? new EncodedEventPool(maxInFlightBytes) : null;
+        arenaCapacity = 0;
+        if (arenaBytes > 0) {
+            if (preEncodingAppender == null) {
+                addWarn("The async arena requires pre-encoding, events are buffered on the heap");
+            } else {
+                arenaCapacity = Integer.highestOneBit((int) Math.min(MAX_ARENA_BYTES, arenaBytes / shards));
+                if (arenaCapacity < MIN_ARENA_BYTES) {
+                    addError("Invalid arena bytes [" + arenaBytes + "], at least " + MIN_ARENA_BYTES + " per shard");
+                    return;
+                }
+                if (!fallback.isEncodedFallbackSupported() || !preEncodingAppender.isEncodedFallbackSupported()) {
+                    addError("The async arena requires fallback appenders implementing EncodedFallbackAppender, "
+                            + "as its events only carry the encoded message");
+                    return;
+                }
+            }
         }
+        if (discardingThreshold > 0) {
+            addWarn("discardingThreshold is deprecated, use reservedCapacity and lowPriorityFallbackSampling instead");
+        }
+        if (threadMode == ThreadMode.VIRTUAL && !ThreadMode.isVirtualThreadSupported()) {
+            addWarn("Virtual threads are not supported by this Java runtime, using platform threads");
+        }
+        AsyncShard[] newShards = new AsyncShard[shards];
+        for (int i = 0; i < newShards.length; i++) {
+            AsyncShard shard = newShard(i);
+            String workerName = "AsyncAppender-Worker-" + getName() + (shards > 1 ? "-" + i : "");
+            shard.setWorker(threadMode.newThread(workerName, () -> processEvents(shard)));
+            newShards[i] = shard;
+        }
+        asyncShards = newShards;
+        overflowingShards.set(0);
+        runningWorkers.set(newShards.length + 1);
+        shutdownDrained.set(0);
+        shutdownSpilled = 0;
+        shutdownLost = 0;
         fallback.start();
+        fallback.registerMetrics(getName());
         super.start();
+        for (AsyncShard shard : newShards) {
+            shard.getWorker().start();
+        }
+        if (encodedEventPool != null && getName() != null) {
+            LoggingMetrics.registerAsyncBufferBytes(getName(), this::getQueuedBytes);
+        }
+    }
+
+    private AsyncShard newShard(int index) {
+        if (arenaCapacity == 0) {
+            return new AsyncShard(index, bufferType == AsyncBufferType.RING_BUFFER ?
+                    new MpscRingBuffer<>(queueSize, waitStrategy) : new BlockingQueueBuffer<>(queueSize, waitStrategy));
+        }
+        LoggerContext loggerContext = getContext() instanceof LoggerContext lc ? lc : null;
+        return new AsyncShard(index, new EncodedEventArena(arenaCapacity, waitStrategy), loggerContext);
+    }
+
+    /**
+     * Events can only be pre-encoded for a single attached appender, as they are no longer passed to other appenders.
+     */
+    private PreEncodingAppender findPreEncodingAppender() {
+        Iterator<Appender<ILoggingEvent>> attachedAppenders = appenders.iteratorForAppenders();
+        Appender<ILoggingEvent> appender = attachedAppenders.next();
+        if (attachedAppenders.hasNext() || !(appender instanceof PreEncodingAppender preEncodingAppender)) {
+            addWarn("Pre-encoding requires a single attached appender supporting it, events are encoded by the worker");
+            return null;
+        }
+        return preEncodingAppender;
     }
 
     @Override
     public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        flushDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxFlushTime);
         super.stop();
+        for (AsyncShard shard : asyncShards) {
+            shard.wakeUpWorker();
+        }
+        boolean workersFinished = awaitWorkers();
+        // Takes over the shards of workers that did not finish in time and spills their remaining events
+        for (AsyncShard shard : asyncShards) {
+            shard.takeOver();
+            spillRemaining(shard);
+        }
+        long drained = shutdownDrained.get();
+        LoggingMetrics.asyncShutdown(drained, shutdownSpilled, shutdownLost);
+        if (workersFinished && shutdownSpilled == 0 && shutdownLost == 0) {
+            addInfo("Queue flush finished successfully within timeout, " + drained + " events drained.");
+        } else {
+            addWarn("Max queue flush timeout (" + maxFlushTime + " ms) exceeded. " + drained + " queued events were " +
+                    "drained, " + shutdownSpilled + " spilled and " + shutdownLost + " lost" +
+                    (workersFinished ? "." : ", events appended by blocked workers are possibly discarded."));
+        }
+        finishWorker();
         fallback.stop();
     }
+
+    /**
+     * All workers flush in parallel, within a common deadline
+     *
+     * @return true if all workers have finished
+     */
+    private boolean awaitWorkers() {
+        try {
+            for (AsyncShard shard : asyncShards) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(flushDeadlineNanos - System.nanoTime());
+                shard.getWorker().join(Math.max(1, remainingMillis));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            addError("Failed to join worker thread, remaining events are spilled.", e);
+        }
+        for (AsyncShard shard : asyncShards) {
+            if (shard.getWorker().isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void spillRemaining(AsyncShard shard) {
+        for (int tries = 0; tries < SPILL_DRAIN_TRIES && !shard.isEmpty(); tries++) {
+            shard.drainRemaining(element -> {
+                if (spillOnFlushTimeout && spillOnShutdown(element)) {
+                    shutdownSpilled++;
+                } else {
+                    shutdownLost++;
+                }
+                if (element instanceof EncodedEvent encodedEvent && shard.getArena() == null) {
+                    encodedEventPool.release(encodedEvent);
+                }
+            });
+            // Waiting for a producer to publish an event in a claimed slot
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Spills an event to the {@link SpillingAppender}, encoded events as they are, or else appends it to the fallback
+     * appender.
+     *
+     * @return false if the event could not be spilled
+     */
+    private boolean spillOnShutdown(Object element) {
+        ILoggingEvent event;
+        if (element instanceof EncodedEvent encodedEvent) {
+            if (spillEncoded(encodedEvent)) {
+                return true;
+            }
+            if (arenaCapacity > 0) {
+                return spillRecordToFallback(encodedEvent);
+            }
+            event = encodedEvent.getEvent();
+        } else {
+            event = (ILoggingEvent) element;
+        }
+        if (spill(event)) {
+            return true;
+        }
+        if (!fallback.isStarted() || !fallback.iteratorForAppenders().hasNext()) {
+            return false;
+        }
+        fallback.appendToFallbackAppender(event, "Async buffer flush timeout");
+        return true;
+    }
+
+    /**
+     * Appends the payload of an arena record to the fallback appender, as the record does not carry the original
+     * event.
+     */
+    private boolean spillRecordToFallback(EncodedEvent encodedEvent) {
+        int payloadOffset = preEncodingAppender.payloadOffset(encodedEvent.array(), 0, encodedEvent.length());
+        if (payloadOffset < 0 || !fallback.isStarted() || !fallback.iteratorForAppenders().hasNext()) {
+            return false;
+        }
+        fallback.appendEncodedToFallbackAppender(encodedEvent.getEvent(), encodedEvent.array(), payloadOffset,
+                encodedEvent.length() - payloadOffset, "Async buffer flush timeout");
+        return true;
+    }
+
+    private boolean spillEncoded(EncodedEvent encodedEvent) {
+        Iterator<Appender<ILoggingEvent>> attachedAppenders = iteratorForAppenders();
+        while (attachedAppenders.hasNext()) {
+            if (attachedAppenders.next() instanceof SpillingAppender spillingAppender
+                    && spillingAppender.spillEncoded(encodedEvent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void addAppender(Appender<ILoggingEvent> newAppender) {
+        addInfo("Attaching appender named [" + newAppender.getName() + "] to " + getClass().getSimpleName());
+        appenders.addAppender(newAppender);
+    }
+
+    @Override
+    public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+        return appenders.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<ILoggingEvent> getAppender(String name) {
+        return appenders.getAppender(name);
+    }
+
+    @Override
+    public boolean isAttached(Appender<ILoggingEvent> appender) {
+        return appenders.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders() {
+        appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(Appender<ILoggingEvent> appender) {
+        return appenders.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(String name) {
+        return appenders.detachAppender(name);
+    }
 }
@@ -0,0 +1,18 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+/**
+ * The buffer an {@link AsyncBufferFullFallbackAppender} queues log events in, unless they are stored in an
+ * {@link EncodedEventArena}.
+ */
+public enum AsyncBufferType {
+    /**
+     * The <code>ArrayBlockingQueue</code> of logback's <code>AsyncAppenderBase</code>. Producers and the worker take
+     * a single lock, which is cheapest with few concurrently logging threads (default).
+     */
+    BLOCKING_QUEUE,
+    /**
+     * The lock-free {@link MpscRingBuffer}. Producers claim slots by a CAS and never block each other, which scales
+     * better with many concurrently logging threads, but retries the CAS under moderate contention.
+     */
+    RING_BUFFER
+}
@@ -0,0 +1,151 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A buffer of the {@link AsyncBufferFullFallbackAppender} together with the worker draining it. Producing threads are
+ * assigned to a shard by thread id, events of a thread are thus appended in order. The buffer holds logging events,
+ * or {@link EncodedEvent}s if the events are pre-encoded by the logging threads. Alternatively, pre-encoded events
+ * are stored off-heap in an {@link EncodedEventArena}, and are read into encoded events owned by the shard.
+ * <p>
+ * If the worker does not finish flushing in time on shutdown, the stopping thread {@link #takeOver() takes over} the
+ * shard to spill the remaining events. Draining is guarded by a lock, so that the buffer or arena always has a single
+ * consumer.
+ */
+@Getter
+class AsyncShard {
+    private final int index;
+    private final AsyncBuffer<Object> buffer;
+    private final EncodedEventArena arena;
+    // Only accessed by the worker
+    private final List<ILoggingEvent> batch = new ArrayList<>();
+    private final List<EncodedEvent> encodedBatch = new ArrayList<>();
+    // Set while events of this shard are appended to the fallback appender
+    private final AtomicBoolean overflowing = new AtomicBoolean();
+    @Setter
+    private Thread worker;
+
+    @Getter(AccessLevel.NONE)
+    private final Consumer<Object> bufferConsumer = this::addToBatch;
+    @Getter(AccessLevel.NONE)
+    private final EncodedEventArena.RecordConsumer arenaConsumer = this::addRecordToBatch;
+    @Getter(AccessLevel.NONE)
+    private final List<EncodedEvent> recordEvents = new ArrayList<>();
+    @Getter(AccessLevel.NONE)
+    private final LoggerContext loggerContext;
+    @Getter(AccessLevel.NONE)
+    private final ReentrantLock drainLock = new ReentrantLock();
+    @Getter(AccessLevel.NONE)
+    private boolean takenOver;
+
+    AsyncShard(int index, AsyncBuffer<Object> buffer) {
+        this(index, buffer, null, null);
+    }
+
+    AsyncShard(int index, EncodedEventArena arena, LoggerContext loggerContext) {
+        this(index, null, arena, loggerContext);
+    }
+
+    private AsyncShard(int index, AsyncBuffer<Object> buffer, EncodedEventArena arena, LoggerContext loggerContext) {
+        this.index = index;
+        this.buffer = buffer;
+        this.arena = arena;
+        this.loggerContext = loggerContext;
+    }
+
+    /**
+     * Moves up to <code>limit</code> events from the buffer or arena to the batches.
+     *
+     * @return the number of events drained, or -1 if the shard has been taken over
+     */
+    int drainToBatch(int limit) {
+        drainLock.lock();
+        try {
+            if (takenOver) {
+                return -1;
+            }
+            return arena != null ? arena.drain(arenaConsumer, limit) : buffer.drain(bufferConsumer, limit);
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the worker from draining any further events, it finishes appending its current batch though.
+     */
+    void takeOver() {
+        drainLock.lock();
+        try {
+            takenOver = true;
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * Passes the remaining events to the action after the shard has been {@link #takeOver() taken over}, without
+     * using the batches of the worker. Events read from an arena are passed as new {@link EncodedEvent}s.
+     *
+     * @return the number of events drained
+     */
+    int drainRemaining(Consumer<Object> action) {
+        drainLock.lock();
+        try {
+            if (arena == null) {
+                return buffer.drain(action, Integer.MAX_VALUE);
+            }
+            return arena.drain((level, timestamp, source, offset, length) -> {
+                EncodedEvent encodedEvent = new EncodedEvent(length);
+                encodedEvent.resetToRecord(level, timestamp, loggerContext, source, offset, length);
+                action.accept(encodedEvent);
+            }, Integer.MAX_VALUE);
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    boolean awaitNotEmpty(long timeoutNanos) {
+        return arena != null ? arena.awaitNotEmpty(timeoutNanos) : buffer.awaitNotEmpty(timeoutNanos);
+    }
+
+    void wakeUpWorker() {
+        if (arena != null) {
+            arena.wakeUpConsumer();
+        } else {
+            buffer.wakeUpConsumer();
+        }
+    }
+
+    boolean isEmpty() {
+        return arena != null ? arena.isEmpty() : buffer.isEmpty();
+    }
+
+    private void addToBatch(Object element) {
+        if (element instanceof EncodedEvent encodedEvent) {
+            encodedBatch.add(encodedEvent);
+        } else {
+            batch.add((ILoggingEvent) element);
+        }
+    }
+
+    private void addRecordToBatch(int level, long timestamp, ByteBuffer source, int offset, int length) {
+        int recordIndex = encodedBatch.size();
+        if (recordIndex == recordEvents.size()) {
+            recordEvents.add(new EncodedEvent(length));
+        }
+        EncodedEvent encodedEvent = recordEvents.get(recordIndex);
+        encodedEvent.resetToRecord(level, timestamp, loggerContext, source, offset, length);
+        encodedBatch.add(encodedEvent);
+    }
+}
@@ -0,0 +1,22 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.List;
+
+/**
+ * An appender able to append multiple events at once, i.e. encoding them into a single buffer and transmitting them
+ * using a single write. Used by the {@link AsyncBufferFullFallbackAppender} to pass on the events drained from its
+ * buffer, other appenders are invoked once per event.
+ */
+public interface BatchAppender {
+
+    /**
+     * Appends the events in order. Implementations are responsible for the checks done by
+     * {@link ch.qos.logback.core.Appender#doAppend(Object)}, i.e. whether the appender is started. The list is reused
+     * by the caller and must not be retained.
+     *
+     * @param shard index of the async worker appending the batch, batches of a shard are appended sequentially
+     */
+    void appendBatch(List<ILoggingEvent> events, int shard);
+}
@@ -0,0 +1,74 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * An {@link AsyncBuffer} backed by an <code>ArrayBlockingQueue</code>, like the queue of logback's
+ * <code>AsyncAppenderBase</code>. The worker waits using the {@link ConsumerWaitStrategy} instead of blocking on the
+ * queue, so that it can be woken up when stopping.
+ */
+final class BlockingQueueBuffer<E> implements AsyncBuffer<E> {
+
+    private final int capacity;
+    private final ArrayBlockingQueue<E> queue;
+    private final ConsumerSignal consumerSignal;
+    private final BooleanSupplier emptyCheck = this::isEmpty;
+
+    BlockingQueueBuffer(int capacity, ConsumerWaitStrategy waitStrategy) {
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.consumerSignal = new ConsumerSignal(waitStrategy);
+    }
+
+    @Override
+    public boolean offer(E element) {
+        if (!queue.offer(element)) {
+            return false;
+        }
+        consumerSignal.signal();
+        return true;
+    }
+
+    @Override
+    public int drain(Consumer<? super E> action, int limit) {
+        int drained = 0;
+        E element;
+        while (drained < limit && (element = queue.poll()) != null) {
+            drained++;
+            action.accept(element);
+        }
+        return drained;
+    }
+
+    @Override
+    public boolean awaitNotEmpty(long timeoutNanos) {
+        return consumerSignal.awaitNotEmpty(emptyCheck, timeoutNanos);
+    }
+
+    @Override
+    public void wakeUpConsumer() {
+        consumerSignal.wakeUpConsumer();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+}
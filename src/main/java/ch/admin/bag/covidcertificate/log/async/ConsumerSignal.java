@@ -0,0 +1,95 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Lets the single consumer of a multi-producer buffer wait for elements using a {@link ConsumerWaitStrategy}, and
+ * producers signal a consumer blocked waiting. Shared by the {@link AsyncBuffer}s and the {@link EncodedEventArena}.
+ */
+final class ConsumerSignal {
+
+    // 128 bytes, covers adjacent cache line prefetching
+    private static final int PADDING = 16;
+    private static final int CONSUMER_WAITING = PADDING;
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long SLEEP_NANOS = 100_000;
+
+    // The waiting flag is read by every producer, padded so that it does not share a cache line with other fields
+    private final AtomicLongArray waiting = new AtomicLongArray(CONSUMER_WAITING + PADDING);
+    private final ConsumerWaitStrategy waitStrategy;
+    private volatile Thread consumer;
+    private volatile boolean wakeUpRequested;
+
+    ConsumerSignal(ConsumerWaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Called by producers after publishing an element, unparks the consumer if it is blocked waiting
+     */
+    void signal() {
+        if (waiting.get(CONSUMER_WAITING) != 0) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Waits using the {@link ConsumerWaitStrategy} while <code>isEmpty</code> holds, at most for
+     * <code>timeoutNanos</code> or until the consumer is woken up by {@link #wakeUpConsumer()}.
+     *
+     * @return true if an element is available
+     */
+    boolean awaitNotEmpty(BooleanSupplier isEmpty, long timeoutNanos) {
+        consumer = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutNanos;
+        int idleCount = 0;
+        while (isEmpty.getAsBoolean()) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0 || wakeUpRequested || Thread.currentThread().isInterrupted()) {
+                wakeUpRequested = false;
+                return false;
+            }
+            switch (waitStrategy) {
+                case BLOCKING -> park(isEmpty, remainingNanos);
+                case SLEEPING -> idle(idleCount++, true);
+                case YIELDING -> idle(idleCount++, false);
+                case BUSY_SPIN -> Thread.onSpinWait();
+            }
+        }
+        return true;
+    }
+
+    private void park(BooleanSupplier isEmpty, long nanos) {
+        waiting.set(CONSUMER_WAITING, 1);
+        // Re-checked after announcing the wait, a producer publishing in between will see the flag
+        if (isEmpty.getAsBoolean()) {
+            LockSupport.parkNanos(this, nanos);
+        }
+        waiting.set(CONSUMER_WAITING, 0);
+    }
+
+    private static void idle(int idleCount, boolean sleep) {
+        if (idleCount < SPIN_TRIES) {
+            Thread.onSpinWait();
+        } else if (!sleep || idleCount < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(SLEEP_NANOS);
+        }
+    }
+
+    /**
+     * Returns the consumer from {@link #awaitNotEmpty(BooleanSupplier, long)}, i.e. when stopping
+     */
+    void wakeUpConsumer() {
+        wakeUpRequested = true;
+        Thread waitingConsumer = consumer;
+        if (waitingConsumer != null) {
+            LockSupport.unpark(waitingConsumer);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+/**
+ * How the worker of the {@link AsyncBufferFullFallbackAppender} waits for log events if its buffer is empty. Trades
+ * CPU usage of an idle worker against the latency until a log event is picked up.
+ */
+public enum ConsumerWaitStrategy {
+    /**
+     * Parks the worker until a producer signals a new event, no CPU usage while idle (default)
+     */
+    BLOCKING,
+    /**
+     * Spins, then yields, then parks the worker for short intervals. Producers never have to signal the worker.
+     */
+    SLEEPING,
+    /**
+     * Spins, then yields the CPU to other threads while waiting
+     */
+    YIELDING,
+    /**
+     * Spins on a CPU core while waiting, for the lowest latency if a core can be dedicated to the worker
+     */
+    BUSY_SPIN
+}
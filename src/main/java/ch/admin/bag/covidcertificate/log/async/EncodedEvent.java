@@ -0,0 +1,138 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A logging event together with its encoded message, written by a {@link PreEncodingAppender} on the logging thread.
+ * The byte buffer is pooled by the {@link AsyncBufferFullFallbackAppender} and reused once the event has been
+ * appended, it must thus not be retained by the appender. Bytes written beyond the maximum length are discarded,
+ * which truncates the message without copying it.
+ * <p>
+ * Not thread-safe, the event is written by the logging thread and read by the async worker after being handed over
+ * by the async buffer.
+ * <p>
+ * Events read from an {@link EncodedEventArena} only carry the level and timestamp of the original event. A logging
+ * event holding the encoded message is created on demand, i.e. for the filters of an {@link EncodedFallbackAppender}
+ * writing the payload of the record.
+ */
+public final class EncodedEvent extends OutputStream {
+
+    private ILoggingEvent event;
+    private Level level;
+    private long timestamp;
+    private LoggerContext loggerContext;
+    private byte[] buffer;
+    private int length;
+    private int limit = Integer.MAX_VALUE;
+
+    EncodedEvent(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Prepares the buffer for encoding the next event.
+     */
+    void reset(ILoggingEvent loggingEvent) {
+        this.event = loggingEvent;
+        this.level = null;
+        this.length = 0;
+        this.limit = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Sets the event to a record read from an {@link EncodedEventArena}.
+     */
+    void resetToRecord(int recordLevel, long recordTimestamp, LoggerContext context, ByteBuffer source,
+                       int offset, int recordLength) {
+        reset(null);
+        this.level = Level.toLevel(recordLevel);
+        this.timestamp = recordTimestamp;
+        this.loggerContext = context;
+        ensureCapacity(recordLength);
+        source.get(offset, buffer, 0, recordLength);
+        this.length = recordLength;
+    }
+
+    /**
+     * Discards the bytes written so far and truncates the message to <code>maxLength</code> bytes.
+     */
+    public void beginMessage(int maxLength) {
+        length = 0;
+        limit = maxLength;
+    }
+
+    public ILoggingEvent getEvent() {
+        if (event == null && level != null) {
+            event = new RecordLoggingEvent(level, timestamp, loggerContext,
+                    new String(buffer, 0, length, StandardCharsets.UTF_8).strip());
+        }
+        return event;
+    }
+
+    /**
+     * @return the internal buffer, holding {@link #length()} bytes of the encoded message
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+
+    @Override
+    public void write(int b) {
+        if (length < limit) {
+            ensureCapacity(length + 1);
+            buffer[length++] = (byte) b;
+        }
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        int writeLength = Math.min(len, limit - length);
+        if (writeLength > 0) {
+            ensureCapacity(length + writeLength);
+            System.arraycopy(b, off, buffer, length, writeLength);
+            length += writeLength;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+    /**
+     * A logging event recreated from an arena record, with the encoded message as its message
+     */
+    private static final class RecordLoggingEvent extends LoggingEvent {
+        RecordLoggingEvent(Level level, long timestamp, LoggerContext loggerContext, String message) {
+            setLoggerName(EncodedEventArena.class.getName());
+            setLevel(level);
+            setTimeStamp(timestamp);
+            setMessage(message);
+            if (loggerContext != null) {
+                setLoggerContext(loggerContext);
+            }
+        }
+    }
+}
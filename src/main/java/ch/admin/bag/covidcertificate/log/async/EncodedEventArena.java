@@ -0,0 +1,185 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A bounded multi-producer/single-consumer queue of encoded events, stored as variable length records in a
+ * preallocated off-heap buffer. Unlike a queue of logging events, the arena does not retain any objects, the cost of
+ * garbage collection thus does not depend on the number of queued events, and its memory is fixed at
+ * <code>capacity</code> bytes.
+ * <p>
+ * A record consists of a header, the level and timestamp of the event and the encoded message, aligned to 8 bytes.
+ * Producers claim the bytes of a record by a CAS on the producer position, write the record and publish it by a
+ * volatile store of the record size into its header. The consumer waits for the next header to be published rather than
+ * claimed, so that it does not spin while a producer is writing its record. A record never wraps around the end of the
+ * arena: if it does not fit, the remaining bytes are claimed as padding, which the consumer skips. The consumer zeroes
+ * the bytes of consumed records before advancing the consumer position, so that an unpublished header reads as 0.
+ * <p>
+ * Only a single thread may call {@link #drain(RecordConsumer, int)} and {@link #awaitNotEmpty(long)}.
+ */
+final class EncodedEventArena {
+
+    private static final VarHandle HEADER = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private static final int LENGTH_OFFSET = 4;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int LEVEL_OFFSET = 16;
+    private static final int PAYLOAD_OFFSET = 20;
+    private static final int ALIGNMENT = 8;
+
+    // 128 bytes, covers adjacent cache line prefetching
+    private static final int PADDING = 16;
+    private static final int PRODUCER_POSITION = PADDING;
+    private static final int CONSUMER_POSITION = PRODUCER_POSITION + PADDING;
+
+    private final ByteBuffer arena;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray positions = new AtomicLongArray(CONSUMER_POSITION + PADDING);
+    private final ConsumerSignal consumerSignal;
+    private final BooleanSupplier unpublishedCheck = this::isNextUnpublished;
+
+    /**
+     * Receives a record drained from the arena. The payload is only valid until the consumer returns.
+     */
+    @FunctionalInterface
+    interface RecordConsumer {
+        void accept(int level, long timestamp, ByteBuffer arena, int payloadOffset, int payloadLength);
+    }
+
+    /**
+     * @param capacity size of the arena in bytes, a power of two
+     */
+    EncodedEventArena(int capacity, ConsumerWaitStrategy waitStrategy) {
+        if (capacity < PAYLOAD_OFFSET || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Invalid arena capacity " + capacity);
+        }
+        this.arena = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.consumerSignal = new ConsumerSignal(waitStrategy);
+    }
+
+    /**
+     * @return false if the arena is full, or if the record exceeds the capacity of the arena
+     */
+    boolean offer(int level, long timestamp, byte[] payload, int payloadLength) {
+        if (payloadLength > capacity - PAYLOAD_OFFSET) {
+            return false;
+        }
+        int recordSize = recordSize(payloadLength);
+        while (true) {
+            long position = positions.get(PRODUCER_POSITION);
+            int offset = (int) position & mask;
+            int remainingUntilEnd = capacity - offset;
+            int claim = Math.min(recordSize, remainingUntilEnd);
+            if (position + claim - positions.get(CONSUMER_POSITION) > capacity) {
+                return false;
+            }
+            if (!positions.compareAndSet(PRODUCER_POSITION, position, position + claim)) {
+                continue;
+            }
+            if (claim < recordSize) {
+                // Skipped by the consumer, the record is claimed at the start of the arena
+                HEADER.setRelease(arena, offset, -claim);
+                continue;
+            }
+            arena.putInt(offset + LENGTH_OFFSET, payloadLength);
+            arena.putLong(offset + TIMESTAMP_OFFSET, timestamp);
+            arena.putInt(offset + LEVEL_OFFSET, level);
+            arena.put(offset + PAYLOAD_OFFSET, payload, 0, payloadLength);
+            // Not a release store, the consumer parks after checking the header, and must not miss the signal below
+            HEADER.setVolatile(arena, offset, recordSize);
+            consumerSignal.signal();
+            return true;
+        }
+    }
+
+    /**
+     * Passes up to <code>limit</code> published records to the <code>action</code>, freeing their bytes once the
+     * action has returned.
+     *
+     * @return the number of records passed to the action
+     */
+    int drain(RecordConsumer action, int limit) {
+        long position = positions.getPlain(CONSUMER_POSITION);
+        int drained = 0;
+        while (drained < limit) {
+            int offset = (int) position & mask;
+            int header = (int) HEADER.getAcquire(arena, offset);
+            if (header == 0) {
+                // Empty, or claimed but not yet published by its producer
+                break;
+            }
+            int size = Math.abs(header);
+            if (header > 0) {
+                action.accept(arena.getInt(offset + LEVEL_OFFSET), arena.getLong(offset + TIMESTAMP_OFFSET),
+                        arena, offset + PAYLOAD_OFFSET, arena.getInt(offset + LENGTH_OFFSET));
+                drained++;
+            }
+            for (int i = 0; i < size; i += ALIGNMENT) {
+                arena.putLong(offset + i, 0L);
+            }
+            position += size;
+            positions.setRelease(CONSUMER_POSITION, position);
+        }
+        return drained;
+    }
+
+    /**
+     * Waits using the {@link ConsumerWaitStrategy} until the next record has been published, at most for
+     * <code>timeoutNanos</code> or until the consumer is woken up by {@link #wakeUpConsumer()}.
+     *
+     * @return true if a record is available
+     */
+    boolean awaitNotEmpty(long timeoutNanos) {
+        return consumerSignal.awaitNotEmpty(unpublishedCheck, timeoutNanos);
+    }
+
+    /**
+     * @return true if the header at the consumer position is empty, or claimed but not yet published by its producer
+     */
+    private boolean isNextUnpublished() {
+        return (int) HEADER.getVolatile(arena, (int) positions.getPlain(CONSUMER_POSITION) & mask) == 0;
+    }
+
+    /**
+     * Returns the consumer from {@link #awaitNotEmpty(long)}, i.e. when stopping
+     */
+    void wakeUpConsumer() {
+        consumerSignal.wakeUpConsumer();
+    }
+
+    boolean isEmpty() {
+        return positions.get(CONSUMER_POSITION) == positions.get(PRODUCER_POSITION);
+    }
+
+    /**
+     * @return the number of claimed bytes, including record headers and padding
+     */
+    int usedBytes() {
+        long consumerPosition = positions.get(CONSUMER_POSITION);
+        long used = positions.get(PRODUCER_POSITION) - consumerPosition;
+        return (int) Math.max(0, Math.min(capacity, used));
+    }
+
+    int remainingBytes() {
+        return capacity - usedBytes();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the bytes used by a record with a payload of <code>payloadLength</code> bytes
+     */
+    static int recordSize(int payloadLength) {
+        return (PAYLOAD_OFFSET + payloadLength + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+}
@@ -0,0 +1,88 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the {@link EncodedEvent} buffers used by the {@link AsyncBufferFullFallbackAppender} to hand over events
+ * pre-encoded by the logging threads to its workers. Bounds the bytes of encoded messages waiting in the async buffers
+ * to <code>maxInFlightBytes</code>, and the capacity of the buffers retained for reuse to the same amount.
+ * <p>
+ * Thread-safe, buffers are acquired by the logging threads and released by the workers.
+ */
+final class EncodedEventPool {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final long maxInFlightBytes;
+    private final Queue<EncodedEvent> pooled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    EncodedEventPool(long maxInFlightBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    EncodedEvent acquire(ILoggingEvent event) {
+        EncodedEvent encodedEvent = pooled.poll();
+        if (encodedEvent == null) {
+            encodedEvent = new EncodedEvent(INITIAL_BUFFER_SIZE);
+        } else {
+            pooledBytes.addAndGet(-encodedEvent.capacity());
+        }
+        encodedEvent.reset(event);
+        return encodedEvent;
+    }
+
+    /**
+     * @return true if no more encoded messages can be reserved
+     */
+    boolean isExhausted() {
+        return inFlightBytes.get() >= maxInFlightBytes;
+    }
+
+    /**
+     * Reserves the length of the encoded message until the event is {@link #release(EncodedEvent) released}. A single
+     * message is always accepted, so that messages longer than <code>maxInFlightBytes</code> are not rejected forever.
+     *
+     * @return false if the message would exceed <code>maxInFlightBytes</code>
+     */
+    boolean reserve(EncodedEvent encodedEvent) {
+        int length = encodedEvent.length();
+        long current;
+        do {
+            current = inFlightBytes.get();
+            if (current > 0 && current + length > maxInFlightBytes) {
+                return false;
+            }
+        } while (!inFlightBytes.compareAndSet(current, current + length));
+        return true;
+    }
+
+    /**
+     * Releases the reservation of a transmitted event and returns its buffer to the pool.
+     */
+    void release(EncodedEvent encodedEvent) {
+        inFlightBytes.addAndGet(-encodedEvent.length());
+        recycle(encodedEvent);
+    }
+
+    /**
+     * Returns the buffer of an event that has not been reserved to the pool.
+     */
+    void recycle(EncodedEvent encodedEvent) {
+        encodedEvent.reset(null);
+        if (pooledBytes.addAndGet(encodedEvent.capacity()) <= maxInFlightBytes) {
+            pooled.offer(encodedEvent);
+        } else {
+            pooledBytes.addAndGet(-encodedEvent.capacity());
+        }
+    }
+
+    long inFlightBytes() {
+        return inFlightBytes.get();
+    }
+}
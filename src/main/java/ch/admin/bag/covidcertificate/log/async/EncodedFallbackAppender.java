@@ -0,0 +1,17 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * A fallback appender able to write a payload already encoded by the failing appender, i.e. the JSON document of a
+ * syslog message, instead of encoding the event again. Used by the {@link FallbackAppenderRef}.
+ */
+public interface EncodedFallbackAppender {
+
+    /**
+     * Writes the encoded payload unless the event is denied by the filters of the appender.
+     *
+     * @return false if the payload has not been written and the event has to be appended instead
+     */
+    boolean appendEncoded(ILoggingEvent event, byte[] payload, int offset, int length);
+}
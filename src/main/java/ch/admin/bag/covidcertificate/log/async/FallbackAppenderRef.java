@@ -1,5 +1,6 @@
 package ch.admin.bag.covidcertificate.log.async;
 
+import ch.admin.bag.covidcertificate.log.metrics.LoggingMetrics;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.LoggingEvent;
@@ -7,21 +8,72 @@ import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.spi.AppenderAttachableImpl;
 import ch.qos.logback.core.spi.LifeCycle;
 import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
 
 /**
  * An appender reference holder for configuring a fallback appender in the logback configuration:
  * <pre>
  *     &lt;fallback&gt;
  *         &lt;appender-ref name="my-appender"/&gt;
+ *         &lt;recoveryThreshold&gt;10&lt;/recoveryThreshold&gt;
+ *         &lt;minFallbackMillis&gt;1000&lt;/minFallbackMillis&gt;
  *     &lt;/fallback&gt;
  * </pre>
+ * The fallback is activated by the first event appended to the fallback appender. It is only deactivated once
+ * <code>recoveryThreshold</code> (default: 10) consecutive events have been appended by the standard appender without
+ * an event being appended to the fallback appender in between, and the fallback has been active for at least
+ * <code>minFallbackMillis</code> (default: 1000 ms). An appender hovering around its fallback threshold thus does not
+ * flap between both modes.
+ * <p>
+ * The state is lock-free: the fallback may be activated and deactivated concurrently (i.e. by multiple shards of the
+ * {@link AsyncBufferFullFallbackAppender}), each transition is applied and logged exactly once by a CAS of the
+ * current fallback period. A fallback append interrupting the recovery replaces the period by one with the next
+ * generation, so that a concurrent deactivation based on the successes counted before that append fails. Notifying a
+ * successful append while the fallback is inactive only reads the state. The total time spent in fallback mode is
+ * reported as a metric.
+ * <p>
+ * Events already encoded by the failing appender can be appended using
+ * {@link #appendEncodedToFallbackAppender(ILoggingEvent, byte[], int, int, String)}, fallback appenders implementing
+ * {@link EncodedFallbackAppender} (i.e. the {@link FallbackConsoleAppender}) then write the encoded payload instead of
+ * encoding the event again.
  */
 public final class FallbackAppenderRef extends AppenderAttachableImpl<ILoggingEvent> implements LifeCycle {
 
+    public static final int DEFAULT_RECOVERY_THRESHOLD = 10;
+    public static final long DEFAULT_MIN_FALLBACK_MILLIS = 1000;
+
     @Getter
     private boolean started;
 
-    private boolean fallbackActive;
+    @Getter
+    @Setter
+    private int recoveryThreshold = DEFAULT_RECOVERY_THRESHOLD;
+
+    @Getter
+    @Setter
+    private long minFallbackMillis = DEFAULT_MIN_FALLBACK_MILLIS;
+
+    private final LongSupplier nanoClock;
+    // The current fallback period, null while the standard appender is used
+    private final AtomicReference<FallbackPeriod> period = new AtomicReference<>();
+    private final AtomicInteger consecutiveSuccesses = new AtomicInteger();
+    // Time spent in completed fallback periods
+    private final AtomicLong fallbackNanos = new AtomicLong();
+
+    public FallbackAppenderRef() {
+        this(System::nanoTime);
+    }
+
+    FallbackAppenderRef(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
 
     @Override
     public void start() {
@@ -35,19 +87,105 @@ public final class FallbackAppenderRef extends AppenderAttachableImpl<ILoggingEv
         detachAndStopAllAppenders();
     }
 
-    public void appendToFallbackAppender(ILoggingEvent loggingEvent, String reason) {
-        if (!fallbackActive) {
-            fallbackActive = true;
-            logFallback(Level.WARN, "Activating fallback appender: " + reason);
+    /**
+     * Reports the time spent in fallback mode as a metric tagged with the name of the appender using the fallback.
+     */
+    public void registerMetrics(String appenderName) {
+        if (appenderName != null) {
+            LoggingMetrics.registerFallbackTime(appenderName, this::getTimeInFallbackNanos);
         }
+    }
+
+    public void appendToFallbackAppender(ILoggingEvent loggingEvent, String reason) {
+        activate(reason);
         appendLoopOnAppenders(loggingEvent);
     }
 
+    /**
+     * Appends an event whose payload has already been encoded, i.e. the JSON document of a syslog message.
+     */
+    public void appendEncodedToFallbackAppender(ILoggingEvent loggingEvent, byte[] payload, int offset, int length,
+                                                String reason) {
+        activate(reason);
+        Iterator<Appender<ILoggingEvent>> appenders = iteratorForAppenders();
+        while (appenders.hasNext()) {
+            Appender<ILoggingEvent> appender = appenders.next();
+            if (!(appender instanceof EncodedFallbackAppender encodedFallbackAppender)
+                    || !encodedFallbackAppender.appendEncoded(loggingEvent, payload, offset, length)) {
+                appender.doAppend(loggingEvent);
+            }
+        }
+    }
+
+    private void activate(String reason) {
+        while (true) {
+            FallbackPeriod current = period.get();
+            if (current == null) {
+                if (period.compareAndSet(null, new FallbackPeriod(nanoClock.getAsLong(), 0))) {
+                    consecutiveSuccesses.set(0);
+                    logFallback(Level.WARN, "Activating fallback appender: " + reason);
+                    return;
+                }
+            } else if (consecutiveSuccesses.get() == 0) {
+                return;
+            } else {
+                consecutiveSuccesses.set(0);
+                // Invalidates a deactivation based on the successes counted before the reset
+                if (period.compareAndSet(current, current.interrupted())) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if all fallback appenders implement {@link EncodedFallbackAppender}, so that encoded events are
+     * appended as their payload rather than as the event
+     */
+    public boolean isEncodedFallbackSupported() {
+        Iterator<Appender<ILoggingEvent>> appenders = iteratorForAppenders();
+        while (appenders.hasNext()) {
+            if (!(appenders.next() instanceof EncodedFallbackAppender)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Notifies an event appended by the standard appender, deactivates the fallback once the recovery threshold and
+     * the minimum fallback duration have been reached.
+     */
     public void notifyFallbackDeactivated() {
-        if (fallbackActive) {
-            fallbackActive = false;
-            logFallback(Level.INFO, "Switching back from fallback to standard appender");
+        FallbackPeriod current = period.get();
+        if (current == null || consecutiveSuccesses.incrementAndGet() < recoveryThreshold) {
+            return;
+        }
+        long now = nanoClock.getAsLong();
+        long fallbackDuration = now - current.since();
+        if (fallbackDuration < TimeUnit.MILLISECONDS.toNanos(minFallbackMillis)) {
+            return;
         }
+        // Fails if a fallback append has interrupted the recovery in the meantime
+        if (period.compareAndSet(current, null)) {
+            fallbackNanos.addAndGet(fallbackDuration);
+            consecutiveSuccesses.set(0);
+            logFallback(Level.INFO, "Switching back from fallback to standard appender after " +
+                    TimeUnit.NANOSECONDS.toMillis(fallbackDuration) + " ms");
+        }
+    }
+
+    public boolean isFallbackActive() {
+        return period.get() != null;
+    }
+
+    /**
+     * @return the total time spent in fallback mode, including the current fallback period
+     */
+    public long getTimeInFallbackNanos() {
+        FallbackPeriod current = period.get();
+        long completed = fallbackNanos.get();
+        return current == null ? completed : completed + Math.max(0, nanoClock.getAsLong() - current.since());
     }
 
     private void logFallback(Level level, String message) {
@@ -59,4 +197,14 @@ public final class FallbackAppenderRef extends AppenderAttachableImpl<ILoggingEv
         loggingEvent.prepareForDeferredProcessing();
         appendLoopOnAppenders(loggingEvent);
     }
+
+    /**
+     * A period in fallback mode, activated at <code>since</code>. The generation is incremented by each fallback
+     * append interrupting the recovery.
+     */
+    private record FallbackPeriod(long since, long generation) {
+        FallbackPeriod interrupted() {
+            return new FallbackPeriod(since, generation + 1);
+        }
+    }
 }
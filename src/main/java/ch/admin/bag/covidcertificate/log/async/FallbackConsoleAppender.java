@@ -0,0 +1,45 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.ConsoleAppender;
+import ch.qos.logback.core.spi.FilterReply;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link ConsoleAppender} writing payloads already encoded by a failing appender as they are, i.e. the JSON documents
+ * of syslog messages which could not be transmitted, so that events are only encoded once. Other events are encoded
+ * using the configured encoder. A line separator is added to payloads not ending with a line feed.
+ */
+public class FallbackConsoleAppender extends ConsoleAppender<ILoggingEvent> implements EncodedFallbackAppender {
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    @Override
+    public boolean appendEncoded(ILoggingEvent event, byte[] payload, int offset, int length) {
+        if (!isStarted()) {
+            return false;
+        }
+        if (getFilterChainDecision(event) == FilterReply.DENY) {
+            return true;
+        }
+        lock.lock();
+        try {
+            OutputStream outputStream = getOutputStream();
+            outputStream.write(payload, offset, length);
+            if (length == 0 || payload[offset + length - 1] != '\n') {
+                outputStream.write(LINE_SEPARATOR);
+            }
+            if (isImmediateFlush()) {
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            addError("Failed to write encoded event", e);
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,138 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, preallocated multi-producer/single-consumer ring buffer.
+ * <p>
+ * Producers claim a slot by a CAS on the producer sequence and publish the element by a volatile store into the slot,
+ * the consumer frees a slot by advancing the consumer sequence. The consumer waits for the next slot to be published
+ * rather than claimed, so that it does not spin while a producer is between claiming and publishing a slot. Both
+ * sequences are kept in one array, separated by padding so that producers claiming slots and the consumer freeing slots
+ * do not invalidate each other's cache line. {@link #size()} and {@link #remainingCapacity()} read both sequences
+ * without retrying and are thus wait-free.
+ * <p>
+ * Only a single thread may call {@link #drain(Consumer, int)} and {@link #awaitNotEmpty(long)}.
+ */
+final class MpscRingBuffer<E> implements AsyncBuffer<E> {
+
+    // 128 bytes, covers adjacent cache line prefetching
+    private static final int PADDING = 16;
+    private static final int PRODUCER_SEQUENCE = PADDING;
+    private static final int CONSUMER_SEQUENCE = PRODUCER_SEQUENCE + PADDING;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences = new AtomicLongArray(CONSUMER_SEQUENCE + PADDING);
+    private final ConsumerSignal consumerSignal;
+    private final BooleanSupplier unpublishedCheck = this::isNextUnpublished;
+
+    MpscRingBuffer(int capacity, ConsumerWaitStrategy waitStrategy) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.capacity = capacity;
+        int slotCount = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.mask = slotCount - 1;
+        this.slots = new AtomicReferenceArray<>(slotCount);
+        this.consumerSignal = new ConsumerSignal(waitStrategy);
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    @Override
+    public boolean offer(E element) {
+        long sequence;
+        do {
+            sequence = sequences.get(PRODUCER_SEQUENCE);
+            if (sequence - sequences.get(CONSUMER_SEQUENCE) >= capacity) {
+                return false;
+            }
+        } while (!sequences.compareAndSet(PRODUCER_SEQUENCE, sequence, sequence + 1));
+        // Not a release store, the consumer parks after checking the slot, and must not miss the signal below
+        slots.set((int) sequence & mask, element);
+        consumerSignal.signal();
+        return true;
+    }
+
+    /**
+     * Passes up to <code>limit</code> published elements to the <code>action</code>. A slot is freed before its element
+     * is passed on, producers can thus reuse it while the action is running.
+     *
+     * @return the number of elements passed to the action
+     */
+    @Override
+    public int drain(Consumer<? super E> action, int limit) {
+        long sequence = sequences.getPlain(CONSUMER_SEQUENCE);
+        int drained = 0;
+        while (drained < limit) {
+            int index = (int) sequence & mask;
+            E element = slots.getAcquire(index);
+            if (element == null) {
+                // Empty, or claimed but not yet published by its producer
+                break;
+            }
+            slots.setPlain(index, null);
+            sequences.setRelease(CONSUMER_SEQUENCE, ++sequence);
+            drained++;
+            action.accept(element);
+        }
+        return drained;
+    }
+
+    /**
+     * Waits using the {@link ConsumerWaitStrategy} until the next element has been published, at most for
+     * <code>timeoutNanos</code> or until the consumer is woken up by {@link #wakeUpConsumer()}.
+     *
+     * @return true if an element is available
+     */
+    @Override
+    public boolean awaitNotEmpty(long timeoutNanos) {
+        return consumerSignal.awaitNotEmpty(unpublishedCheck, timeoutNanos);
+    }
+
+    /**
+     * @return true if the next slot to be drained is empty, or claimed but not yet published by its producer
+     */
+    private boolean isNextUnpublished() {
+        return slots.get((int) sequences.getPlain(CONSUMER_SEQUENCE) & mask) == null;
+    }
+
+    /**
+     * Returns the consumer from {@link #awaitNotEmpty(long)}, i.e. when stopping
+     */
+    @Override
+    public void wakeUpConsumer() {
+        consumerSignal.wakeUpConsumer();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return sequences.get(CONSUMER_SEQUENCE) == sequences.get(PRODUCER_SEQUENCE);
+    }
+
+    /**
+     * @return the number of claimed slots, including slots being published by a producer
+     */
+    @Override
+    public int size() {
+        long consumerSequence = sequences.get(CONSUMER_SEQUENCE);
+        long size = sequences.get(PRODUCER_SEQUENCE) - consumerSequence;
+        return (int) Math.max(0, Math.min(capacity, size));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,49 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.List;
+
+/**
+ * An appender able to encode events on the logging thread, so that the {@link AsyncBufferFullFallbackAppender}
+ * buffers encoded messages and its worker only has to transmit them. Spreads the cost of encoding over all logging
+ * threads instead of a single worker.
+ */
+public interface PreEncodingAppender {
+
+    /**
+     * Encodes the event into the target as it would be transmitted by {@link #appendEncodedBatch(List, int)}. Called
+     * concurrently by the logging threads, implementations are responsible for the checks done by
+     * {@link ch.qos.logback.core.Appender#doAppend(Object)}.
+     *
+     * @return false if the event is not appended by this appender, i.e. denied by a filter
+     */
+    boolean preEncode(ILoggingEvent event, EncodedEvent target);
+
+    /**
+     * Appends the encoded events in order. The list and the encoded events are reused by the caller and must not be
+     * retained.
+     *
+     * @param shard index of the async worker appending the batch, batches of a shard are appended sequentially
+     */
+    void appendEncodedBatch(List<EncodedEvent> events, int shard);
+
+    /**
+     * @return the offset of the payload within the encoded message, i.e. after the syslog header, or -1 if the
+     * payload cannot be passed to an {@link EncodedFallbackAppender}
+     */
+    default int payloadOffset(byte[] message, int offset, int length) {
+        return -1;
+    }
+
+    /**
+     * Events read from an {@link EncodedEventArena} only carry the level and timestamp of the original event, their
+     * fallback appenders must thus write the encoded payload rather than the event.
+     *
+     * @return true if this appender passes encoded events to its fallback appenders as their payload, and all of them
+     * implement {@link EncodedFallbackAppender}
+     */
+    default boolean isEncodedFallbackSupported() {
+        return false;
+    }
+}
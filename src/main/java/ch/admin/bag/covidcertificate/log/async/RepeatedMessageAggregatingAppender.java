@@ -0,0 +1,267 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.admin.bag.covidcertificate.log.metrics.LoggingMetrics;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import lombok.Setter;
+import net.logstash.logback.marker.Markers;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses log storms of identical messages (same logger, level and message template, i.e. connection retry warnings)
+ * before they reach the attached appenders, typically the {@link AsyncBufferFullFallbackAppender}:
+ * <pre>
+ *     &lt;appender name="AGGREGATE" class="...RepeatedMessageAggregatingAppender"&gt;
+ *         &lt;windowMillis&gt;1000&lt;/windowMillis&gt;
+ *         &lt;appender-ref ref="ASYNC_LOGRELAY"/&gt;
+ *     &lt;/appender&gt;
+ * </pre>
+ * The first occurrence of a message is appended immediately and opens a window of <code>windowMillis</code>. Repeats
+ * within the window are only counted. Once the window has expired, a single summary event is appended for the
+ * repeats, carrying the arguments, MDC and exception of the last repeat and the fields <code>repeat_count</code>,
+ * <code>first_seen</code> and <code>last_seen</code>. The next occurrence after the window opens a new one.
+ * <p>
+ * Open windows are kept in a {@link ConcurrentHashMap} (lock-free lookups, per-bin locking on insert), repeats are
+ * counted using a CAS on the window, so threads logging different messages never contend. If more than
+ * <code>maxKeys</code> distinct messages are in an open window, further messages are passed through unaggregated.
+ * <p>
+ * A <code>windowMillis</code> of 0 disables the aggregation, all events are passed through.
+ */
+public class RepeatedMessageAggregatingAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+        implements AppenderAttachable<ILoggingEvent> {
+
+    static final String REPEAT_COUNT_FIELD = "repeat_count";
+    static final String FIRST_SEEN_FIELD = "first_seen";
+    static final String LAST_SEEN_FIELD = "last_seen";
+
+    @Setter
+    private long windowMillis = 1000;
+
+    @Setter
+    private int maxKeys = 10_000;
+
+    private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+    private final Map<RepeatKey, RepeatWindow> windows = new ConcurrentHashMap<>();
+    private ScheduledExecutorService summaryFlusher;
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        if (windowMillis <= 0 || event.getMessage() == null) {
+            appenders.appendLoopOnAppenders(event);
+            return;
+        }
+        RepeatKey key = new RepeatKey(event.getLoggerName(), event.getLevel(), event.getMessage());
+        long timestamp = event.getTimeStamp();
+        while (true) {
+            RepeatWindow window = windows.get(key);
+            if (window == null) {
+                if (windows.size() >= maxKeys || windows.putIfAbsent(key, new RepeatWindow(event)) == null) {
+                    appenders.appendLoopOnAppenders(event);
+                    return;
+                }
+            } else if (window.recordRepeat(event, timestamp, windowMillis)) {
+                return;
+            } else if (windows.replace(key, window, new RepeatWindow(event))) {
+                // The window has expired before the flusher got to it
+                appendSummary(window);
+                appenders.appendLoopOnAppenders(event);
+                return;
+            }
+            // Lost a race with another thread or the flusher, retry
+        }
+    }
+
+    /**
+     * Appends the summaries of all windows expired at <code>nowMillis</code>
+     */
+    void flushExpiredWindows(long nowMillis) {
+        windows.forEach((key, window) -> {
+            if (window.isExpired(nowMillis, windowMillis) && windows.remove(key, window)) {
+                appendSummary(window);
+            }
+        });
+    }
+
+    private void flushAllWindows() {
+        windows.forEach((key, window) -> {
+            if (windows.remove(key, window)) {
+                appendSummary(window);
+            }
+        });
+    }
+
+    private void appendSummary(RepeatWindow window) {
+        long repeatCount = window.close();
+        if (repeatCount <= 0) {
+            return;
+        }
+        LoggingMetrics.incrementRepeatedMessagesAggregated(repeatCount);
+        appenders.appendLoopOnAppenders(createSummaryEvent(window.lastEvent, repeatCount, window.firstSeen,
+                window.lastSeen.get()));
+    }
+
+    private static ILoggingEvent createSummaryEvent(ILoggingEvent lastEvent, long repeatCount, long firstSeen,
+                                                    long lastSeen) {
+        LoggingEvent summary = new LoggingEvent();
+        summary.setLoggerName(lastEvent.getLoggerName());
+        summary.setLoggerContextRemoteView(lastEvent.getLoggerContextVO());
+        summary.setLevel(lastEvent.getLevel());
+        summary.setMessage(lastEvent.getMessage());
+        summary.setArgumentArray(lastEvent.getArgumentArray());
+        summary.setThreadName(lastEvent.getThreadName());
+        summary.setMDCPropertyMap(lastEvent.getMDCPropertyMap());
+        summary.setTimeStamp(lastSeen);
+        if (lastEvent.getThrowableProxy() instanceof ThrowableProxy throwableProxy) {
+            summary.setThrowableProxy(throwableProxy);
+        }
+        if (lastEvent.getMarkerList() != null) {
+            lastEvent.getMarkerList().forEach(summary::addMarker);
+        }
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put(REPEAT_COUNT_FIELD, repeatCount);
+        fields.put(FIRST_SEEN_FIELD, Instant.ofEpochMilli(firstSeen).toString());
+        fields.put(LAST_SEEN_FIELD, Instant.ofEpochMilli(lastSeen).toString());
+        summary.addMarker(Markers.appendEntries(fields));
+        return summary;
+    }
+
+    @Override
+    public void start() {
+        if (windowMillis > 0) {
+            summaryFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, getClass().getSimpleName() + "-summary-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long flushIntervalMillis = Math.max(1, windowMillis / 2);
+            summaryFlusher.scheduleWithFixedDelay(() -> flushExpiredWindows(System.currentTimeMillis()),
+                    flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        super.stop();
+        if (summaryFlusher != null) {
+            summaryFlusher.shutdownNow();
+            summaryFlusher = null;
+        }
+        flushAllWindows();
+        appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public void addAppender(Appender<ILoggingEvent> newAppender) {
+        addInfo("Attaching appender named [" + newAppender.getName() + "] to " + getClass().getSimpleName());
+        appenders.addAppender(newAppender);
+    }
+
+    @Override
+    public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+        return appenders.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<ILoggingEvent> getAppender(String name) {
+        return appenders.getAppender(name);
+    }
+
+    @Override
+    public boolean isAttached(Appender<ILoggingEvent> appender) {
+        return appenders.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders() {
+        appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(Appender<ILoggingEvent> appender) {
+        return appenders.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(String name) {
+        return appenders.detachAppender(name);
+    }
+
+    private record RepeatKey(String loggerName, Level level, String message) {
+    }
+
+    /**
+     * Repeats of a message within a window. The count is set to {@link #CLOSED} once the summary is appended, repeats
+     * recorded before are guaranteed to be included in the summary.
+     */
+    private static final class RepeatWindow {
+
+        private static final long CLOSED = -1;
+
+        private final long firstSeen;
+        private final AtomicLong repeatCount = new AtomicLong();
+        private final AtomicLong lastSeen;
+        private volatile ILoggingEvent lastEvent;
+
+        /**
+         * @param firstEvent the event opening the window, from which the summary is created until a repeat is recorded
+         */
+        private RepeatWindow(ILoggingEvent firstEvent) {
+            firstEvent.prepareForDeferredProcessing();
+            this.firstSeen = firstEvent.getTimeStamp();
+            this.lastSeen = new AtomicLong(firstSeen);
+            this.lastEvent = firstEvent;
+        }
+
+        boolean isExpired(long nowMillis, long windowMillis) {
+            return nowMillis - firstSeen >= windowMillis;
+        }
+
+        /**
+         * @return false if the window has expired or is closed, and the event thus has not been recorded
+         */
+        boolean recordRepeat(ILoggingEvent event, long timestamp, long windowMillis) {
+            if (isExpired(timestamp, windowMillis) || repeatCount.get() == CLOSED) {
+                return false;
+            }
+            long count;
+            do {
+                count = repeatCount.get();
+                if (count == CLOSED) {
+                    return false;
+                }
+            } while (!repeatCount.compareAndSet(count, count + 1));
+            // Only published once recorded, so that an event passed on after losing against close() is not also
+            // summarized. A summary racing with this repeat is created from the previous event of the same message.
+            event.prepareForDeferredProcessing();
+            lastEvent = event;
+            lastSeen.accumulateAndGet(timestamp, Math::max);
+            return true;
+        }
+
+        /**
+         * @return the number of repeats recorded, or {@link #CLOSED} if the window has been closed already
+         */
+        long close() {
+            return repeatCount.getAndSet(CLOSED);
+        }
+    }
+}
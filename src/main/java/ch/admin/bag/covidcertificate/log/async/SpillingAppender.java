@@ -0,0 +1,25 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * An appender able to store events it cannot accept right now for later delivery, i.e. in a disk-backed spill store.
+ * Used by the {@link AsyncBufferFullFallbackAppender} before resorting to its fallback appender if the async buffer is
+ * full, and for the events still queued when flushing on shutdown times out.
+ */
+public interface SpillingAppender {
+
+    /**
+     * @return true if the event has been stored for later delivery, false if it has to be handled by the caller
+     */
+    boolean spill(ILoggingEvent event);
+
+    /**
+     * Spills an event pre-encoded by a {@link PreEncodingAppender}, by default by spilling the logging event.
+     *
+     * @return true if the event has been stored for later delivery, false if it has to be handled by the caller
+     */
+    default boolean spillEncoded(EncodedEvent event) {
+        return spill(event.getEvent());
+    }
+}
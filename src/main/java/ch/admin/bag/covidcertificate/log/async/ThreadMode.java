@@ -0,0 +1,97 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The kind of threads started by the appenders for their background work, i.e. the workers of the
+ * {@link AsyncBufferFullFallbackAppender} and the reconnectors of the syslog connections. All threads are daemon
+ * threads.
+ * <p>
+ * Virtual threads are created via reflection, as the library is built for Java 17. If they are not supported by the
+ * runtime (before Java 21), platform threads are used instead.
+ * <p>
+ * A virtual thread blocking while holding a monitor pins its carrier thread. Locks held while blocking, i.e. on socket
+ * or file I/O, on a connection attempt or for an acknowledgement, are therefore <code>ReentrantLock</code>s rather than
+ * monitors, both for the threads started by the appenders and for virtual logging threads.
+ */
+public enum ThreadMode {
+    /**
+     * A platform thread per worker (default)
+     */
+    PLATFORM,
+    /**
+     * A virtual thread per worker, so that workers blocking on socket I/O do not occupy a platform thread
+     */
+    VIRTUAL;
+
+    /**
+     * @return a new, unstarted thread running the task
+     */
+    public Thread newThread(String name, Runnable task) {
+        if (this == VIRTUAL && VirtualThreads.SUPPORTED) {
+            return VirtualThreads.newThread(name, task);
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * @return a factory for threads of this mode named <code>name</code>, i.e. for a single threaded executor
+     */
+    public ThreadFactory threadFactory(String name) {
+        return task -> newThread(name, task);
+    }
+
+    /**
+     * @return true if the runtime supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreads.SUPPORTED;
+    }
+
+    /**
+     * Reflective access to <code>Thread.ofVirtual().name(name).unstarted(task)</code>
+     */
+    private static final class VirtualThreads {
+        private static final Method OF_VIRTUAL;
+        private static final Method NAME;
+        private static final Method UNSTARTED;
+        private static final boolean SUPPORTED;
+
+        static {
+            Method ofVirtual = null;
+            Method name = null;
+            Method unstarted = null;
+            boolean supported;
+            try {
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                name = builder.getMethod("name", String.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+                // Throws on Java 19 and 20 unless preview features are enabled
+                ofVirtual.invoke(null);
+                supported = true;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                supported = false;
+            }
+            OF_VIRTUAL = ofVirtual;
+            NAME = name;
+            UNSTARTED = unstarted;
+            SUPPORTED = supported;
+        }
+
+        private VirtualThreads() {
+        }
+
+        static Thread newThread(String name, Runnable task) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Failed to create virtual thread " + name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package ch.admin.bag.covidcertificate.log.cloudfoundry;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.json.JsonParser;
+import org.springframework.boot.json.JsonParserFactory;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Cloud foundry app coordinates (org, space, app, instance) of the running application, as provided by the
+ * <code>VCAP_APPLICATION</code>, <code>CF_INSTANCE_GUID</code> and <code>CF_INSTANCE_INDEX</code> environment
+ * variables.
+ */
+@Getter
+@RequiredArgsConstructor
+public class CloudFoundryCoordinates {
+    private final String spaceId;
+    private final String spaceName;
+    private final String organizationId;
+    private final String organizationName;
+    private final String applicationId;
+    private final String applicationName;
+    private final String instanceId;
+    private final String instanceIndex;
+
+    /**
+     * @return the coordinates of the running application, or empty if not running on cloud foundry
+     */
+    public static Optional<CloudFoundryCoordinates> fromEnvironment() {
+        String vcapApplication = System.getenv("VCAP_APPLICATION");
+        if (vcapApplication == null) {
+            return Optional.empty();
+        }
+        JsonParser jsonParser = JsonParserFactory.getJsonParser();
+        Map<String, Object> map = jsonParser.parseMap(vcapApplication);
+        return Optional.of(new CloudFoundryCoordinates(
+                (String) map.get("space_id"),
+                (String) map.get("space_name"),
+                (String) map.get("organization_id"),
+                (String) map.get("organization_name"),
+                (String) map.get("application_id"),
+                (String) map.get("application_name"),
+                System.getenv("CF_INSTANCE_GUID"),
+                System.getenv("CF_INSTANCE_INDEX")));
+    }
+}
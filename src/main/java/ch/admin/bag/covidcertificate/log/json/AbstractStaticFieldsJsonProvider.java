@@ -0,0 +1,78 @@
+package ch.admin.bag.covidcertificate.log.json;
+
+import ch.qos.logback.core.spi.DeferredProcessingAware;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import net.logstash.logback.composite.AbstractJsonProvider;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Base class for JSON providers writing fields whose values do not change after {@link #start()}, i.e. the cloud
+ * foundry app coordinates, context properties, the app version or the region. The fields written by
+ * {@link #writeStaticFields(JsonGenerator)} are rendered once on start and then written as a pre-serialized raw
+ * fragment for every event, avoiding the escaping and encoding of the field names and values.
+ * <p>
+ * To keep the generator's output context consistent with the fields written by other providers, the name of the
+ * first field is written as a field name, followed by the rest of the fragment as a raw value. The raw fragment is
+ * not formatted by a pretty printer configured on the generator.
+ */
+public abstract class AbstractStaticFieldsJsonProvider<Event extends DeferredProcessingAware>
+        extends AbstractJsonProvider<Event> {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private SerializableString firstFieldName;
+    private SerializableString rawFragment;
+
+    /**
+     * Writes the static fields, called once on {@link #start()}.
+     */
+    protected abstract void writeStaticFields(JsonGenerator generator) throws IOException;
+
+    @Override
+    public void start() {
+        try {
+            renderStaticFields();
+        } catch (IOException e) {
+            addError("Failed to render static fields of " + getClass().getSimpleName(), e);
+            return;
+        }
+        super.start();
+    }
+
+    private void renderStaticFields() throws IOException {
+        StringWriter fields = new StringWriter();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(fields)) {
+            generator.writeStartObject();
+            writeStaticFields(generator);
+            generator.writeEndObject();
+        }
+        String object = fields.toString();
+        try (JsonParser parser = JSON_FACTORY.createParser(object)) {
+            parser.nextToken();
+            if (parser.nextToken() != JsonToken.FIELD_NAME) {
+                firstFieldName = null;
+                rawFragment = null;
+                return;
+            }
+            firstFieldName = new SerializedString(parser.getCurrentName());
+        }
+        // {"name":<raw fragment>}
+        int fragmentStart = 1 + firstFieldName.asQuotedChars().length + 3;
+        rawFragment = new SerializedString(object.substring(fragmentStart, object.length() - 1));
+    }
+
+    @Override
+    public final void writeTo(JsonGenerator generator, Event event) throws IOException {
+        if (firstFieldName != null) {
+            generator.writeFieldName(firstFieldName);
+            generator.writeRawValue(rawFragment);
+        }
+    }
+}
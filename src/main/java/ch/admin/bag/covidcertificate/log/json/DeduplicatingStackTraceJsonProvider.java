@@ -0,0 +1,85 @@
+package ch.admin.bag.covidcertificate.log.json;
+
+import ch.qos.logback.classic.pattern.ThrowableHandlingConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import com.fasterxml.jackson.core.JsonGenerator;
+import lombok.Setter;
+import net.logstash.logback.composite.AbstractFieldJsonProvider;
+import net.logstash.logback.composite.JsonWritingUtils;
+import net.logstash.logback.stacktrace.ShortenedThrowableConverter;
+import net.logstash.logback.stacktrace.StackHasher;
+
+import java.io.IOException;
+import java.util.function.LongSupplier;
+
+/**
+ * Replaces the logstash <code>&lt;stackHash/&gt;</code> and <code>&lt;stackTrace/&gt;</code> providers, writing the
+ * stack trace of an exception only the first time its stack hash is seen within
+ * {@link #setWindowMillis(long) windowMillis}. Later occurrences within the window carry the stack hash and the number
+ * of occurrences so far instead of the stack trace:
+ * <pre>
+ * {"exception-hash":"4b0fd2d8","exception":"java.lang.IllegalStateException: ..."}
+ * {"exception-hash":"4b0fd2d8","exception-occurrences":2}
+ * </pre>
+ * This keeps the same exception thrown thousands of times per second during an incident from saturating the log
+ * relay. Hashes are tracked in a bounded, lock-free {@link StackHashCache} of <code>cacheSize</code> slots.
+ * Stack traces of events without a stack hash (i.e. deserialized events) are always written.
+ */
+public class DeduplicatingStackTraceJsonProvider extends AbstractFieldJsonProvider<ILoggingEvent> {
+
+    private static final long DEFAULT_WINDOW_MILLIS = 60_000;
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+
+    @Setter
+    private String hashFieldName = "exception-hash";
+    @Setter
+    private String occurrencesFieldName = "exception-occurrences";
+    @Setter
+    private long windowMillis = DEFAULT_WINDOW_MILLIS;
+    @Setter
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    @Setter
+    private ThrowableHandlingConverter throwableConverter = new ShortenedThrowableConverter();
+    @Setter
+    private LongSupplier clock = System::currentTimeMillis;
+
+    private final StackHasher stackHasher = new StackHasher();
+    private StackHashCache stackHashCache;
+
+    public DeduplicatingStackTraceJsonProvider() {
+        setFieldName("exception");
+    }
+
+    @Override
+    public void start() {
+        stackHashCache = new StackHashCache(cacheSize, windowMillis);
+        throwableConverter.start();
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        throwableConverter.stop();
+        super.stop();
+    }
+
+    @Override
+    public void writeTo(JsonGenerator generator, ILoggingEvent event) throws IOException {
+        IThrowableProxy throwableProxy = event.getThrowableProxy();
+        if (throwableProxy == null) {
+            return;
+        }
+        if (throwableProxy instanceof ThrowableProxy proxy) {
+            String stackHash = stackHasher.hexHash(proxy.getThrowable());
+            JsonWritingUtils.writeStringField(generator, hashFieldName, stackHash);
+            long occurrences = stackHashCache.recordOccurrence(stackHash, clock.getAsLong());
+            if (occurrences > 1) {
+                JsonWritingUtils.writeNumberField(generator, occurrencesFieldName, occurrences);
+                return;
+            }
+        }
+        JsonWritingUtils.writeStringField(generator, getFieldName(), throwableConverter.convert(event));
+    }
+}
@@ -0,0 +1,53 @@
+package ch.admin.bag.covidcertificate.log.json;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free cache counting the occurrences of stack hashes within a time window. The cache is a fixed size
+ * array of slots indexed by the stack hash, a hash occupying the slot of another hash replaces it. Replaced hashes
+ * are counted as first occurrence again when seen the next time, which bounds the memory used during incidents with
+ * many distinct exceptions at the cost of emitting some stack traces more than once.
+ */
+class StackHashCache {
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final long windowMillis;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    StackHashCache(int capacity, long windowMillis) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Records an occurrence of the stack hash.
+     *
+     * @return the number of occurrences of the hash within the current window, 1 if the hash has not been seen
+     * within the window
+     */
+    long recordOccurrence(String stackHash, long nowMillis) {
+        int h = stackHash.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (true) {
+            Entry entry = slots.get(slot);
+            if (entry != null && entry.stackHash.equals(stackHash) && nowMillis - entry.windowStartMillis < windowMillis) {
+                return entry.occurrences.incrementAndGet();
+            }
+            if (slots.compareAndSet(slot, entry, new Entry(stackHash, nowMillis))) {
+                return 1;
+            }
+        }
+    }
+
+    private record Entry(String stackHash, long windowStartMillis, AtomicLong occurrences) {
+        Entry(String stackHash, long windowStartMillis) {
+            this(stackHash, windowStartMillis, new AtomicLong(1));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ch.admin.bag.covidcertificate.log.json;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.fasterxml.jackson.core.JsonGenerator;
+import lombok.Setter;
+import net.logstash.logback.composite.JsonWritingUtils;
+
+import java.io.IOException;
+
+/**
+ * Drop-in replacement for the logstash <code>&lt;context/&gt;</code> provider writing the logback context properties,
+ * rendered once on start. Properties added to the context after the provider has been started are not written.
+ */
+public class StaticContextJsonProvider extends AbstractStaticFieldsJsonProvider<ILoggingEvent> {
+
+    /**
+     * If set, the properties are nested in an object with this field name
+     */
+    @Setter
+    private String fieldName;
+
+    @Override
+    protected void writeStaticFields(JsonGenerator generator) throws IOException {
+        if (getContext() == null) {
+            return;
+        }
+        if (fieldName != null) {
+            generator.writeObjectFieldStart(fieldName);
+        }
+        JsonWritingUtils.writeMapEntries(generator, getContext().getCopyOfPropertyMap());
+        if (fieldName != null) {
+            generator.writeEndObject();
+        }
+    }
+}
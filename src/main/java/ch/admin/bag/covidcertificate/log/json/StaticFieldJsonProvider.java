@@ -0,0 +1,42 @@
+package ch.admin.bag.covidcertificate.log.json;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.fasterxml.jackson.core.JsonGenerator;
+import lombok.Setter;
+import net.logstash.logback.composite.JsonWritingUtils;
+
+import java.io.IOException;
+
+/**
+ * Writes a configured string field, i.e. the app version, region or instance index:
+ * <pre>
+ * &lt;provider class="ch.admin.bag.covidcertificate.log.json.StaticFieldJsonProvider"&gt;
+ *     &lt;fieldName&gt;region&lt;/fieldName&gt;
+ *     &lt;value&gt;${REGION}&lt;/value&gt;
+ * &lt;/provider&gt;
+ * </pre>
+ * The field is not written if the value is empty.
+ */
+public class StaticFieldJsonProvider extends AbstractStaticFieldsJsonProvider<ILoggingEvent> {
+
+    @Setter
+    private String fieldName;
+    @Setter
+    private String value;
+
+    @Override
+    public void start() {
+        if (fieldName == null || fieldName.isBlank()) {
+            addError("fieldName must be configured for " + getClass().getSimpleName());
+            return;
+        }
+        super.start();
+    }
+
+    @Override
+    protected void writeStaticFields(JsonGenerator generator) throws IOException {
+        if (value != null && !value.isEmpty()) {
+            JsonWritingUtils.writeStringField(generator, fieldName, value);
+        }
+    }
+}
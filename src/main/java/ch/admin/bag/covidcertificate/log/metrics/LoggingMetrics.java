@@ -7,8 +7,13 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
 import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 /**
  * Records logging metrics using a {@link LoggingMetricsProvider} (using Micrometer if available, otherwise NOP)
@@ -31,11 +36,22 @@ public class LoggingMetrics {
      */
     static LoggingMetricsProvider staticLoggingMetricsProvider = null;
 
-    private static final AtomicInteger asyncBufferFull = new AtomicInteger(0);
-    private static final AtomicInteger distributedLogConnectionEstablished = new AtomicInteger(0);
-    private static final AtomicInteger distributedLogConnectionError = new AtomicInteger(0);
-    private static final AtomicInteger distributedLogTransmitError = new AtomicInteger(0);
+    private static final Map<String, AtomicInteger> asyncBufferFull = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicInteger> asyncBufferFullDropped = new ConcurrentHashMap<>();
     private static final AtomicInteger distributedLogFallback = new AtomicInteger(0);
+    private static final AtomicLong repeatedMessagesAggregated = new AtomicLong(0);
+    private static final Map<String, AtomicLong> asyncShutdownEvents = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicInteger> distributedLogConnectionEstablished = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicInteger> distributedLogConnectionError = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicInteger> distributedLogTransmitError = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicInteger> distributedLogBackpressure = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicInteger> distributedLogWindowOccupancy = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicReference<LongSupplier>> asyncBufferBytes = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicReference<LongSupplier>> fallbackTime = new ConcurrentHashMap<>();
+    // Spill store state, reported using gauges
+    private static final AtomicLong distributedLogSpillFrames = new AtomicLong(0);
+    private static final AtomicLong distributedLogSpillBytes = new AtomicLong(0);
+    private static final AtomicLong distributedLogSpillOldestMillis = new AtomicLong(0);
 
     @EventListener
     public void onApplicationStartedEvent(ApplicationStartedEvent event) {
@@ -45,6 +61,9 @@ public class LoggingMetrics {
             // Micrometer is on the classpath, and a meter registry is available in the spring context
             staticLoggingMetricsProvider = new MicrometerLoggingMetricsProvider(meterRegistry); //NOSONAR
             flushCounters();
+            distributedLogWindowOccupancy.forEach(staticLoggingMetricsProvider::registerDistributedLogWindowOccupancy);
+            asyncBufferBytes.forEach(staticLoggingMetricsProvider::registerAsyncBufferBytes);
+            fallbackTime.forEach(staticLoggingMetricsProvider::registerFallbackTime);
         } catch (Throwable t) {
             // Micrometer is not on the classpath, or no meter registry bean available -> don't provide logging metrics
             staticLoggingMetricsProvider = new NopLoggingMetricsProvider(); //NOSONAR
@@ -55,49 +74,71 @@ public class LoggingMetrics {
      * Flush any cached counter values that have been counted before the spring context has finished initialization.
      */
     private synchronized void flushCounters() {
-        flushCounter(asyncBufferFull, LoggingMetrics::incrementAsyncBufferFullFallback);
-        flushCounter(distributedLogConnectionEstablished, LoggingMetrics::incrementDistributedLogConnectionEstablished);
-        flushCounter(distributedLogConnectionError, LoggingMetrics::incrementDistributedLogConnectionError);
-        flushCounter(distributedLogTransmitError, LoggingMetrics::incrementDistributedLogTransmitError);
+        flushTaggedCounters(asyncBufferFull, LoggingMetrics::incrementAsyncBufferFullFallback);
+        flushTaggedCounters(asyncBufferFullDropped, LoggingMetrics::incrementAsyncBufferFullDropped);
         flushCounter(distributedLogFallback, LoggingMetrics::incrementDistributedLogFallback);
+        flushTaggedCounters(distributedLogConnectionEstablished, LoggingMetrics::incrementDistributedLogConnectionEstablished);
+        flushTaggedCounters(distributedLogConnectionError, LoggingMetrics::incrementDistributedLogConnectionError);
+        flushTaggedCounters(distributedLogTransmitError, LoggingMetrics::incrementDistributedLogTransmitError);
+        flushTaggedCounters(distributedLogBackpressure, LoggingMetrics::incrementDistributedLogBackpressure);
+        long repeats = repeatedMessagesAggregated.getAndSet(0);
+        if (repeats > 0) {
+            incrementRepeatedMessagesAggregated(repeats);
+        }
+        asyncShutdownEvents.forEach((outcome, counter) -> incrementAsyncShutdownEvents(outcome, counter.getAndSet(0)));
     }
 
     private static void flushCounter(AtomicInteger counter, Runnable action) {
-        for (int i = 0; i < counter.getAndSet(0); i++) {
+        int count = counter.getAndSet(0);
+        for (int i = 0; i < count; i++) {
             action.run();
         }
     }
 
+    private static void flushTaggedCounters(Map<String, AtomicInteger> counters, Consumer<String> action) {
+        counters.forEach((tag, counter) -> flushCounter(counter, () -> action.accept(tag)));
+    }
+
     @PreDestroy
     synchronized void preDestroy() {
         staticLoggingMetricsProvider = null;
     }
 
-    public static void incrementAsyncBufferFullFallback() {
+    /**
+     * Counts events appended to the fallback appender because the async buffer is full, tagged with the event level.
+     */
+    public static void incrementAsyncBufferFullFallback(String level) {
         withMetricsProviderOrFallback(
-                LoggingMetricsProvider::incrementAsyncBufferFullFallback,
-                asyncBufferFull);
-
+                metricsProvider -> metricsProvider.incrementAsyncBufferFullFallback(level),
+                asyncBufferFull, level);
     }
 
-    public static void incrementDistributedLogConnectionEstablished() {
+    /**
+     * Counts low priority events dropped by sampling instead of being appended to the fallback appender because the
+     * async buffer is full, tagged with the event level.
+     */
+    public static void incrementAsyncBufferFullDropped(String level) {
         withMetricsProviderOrFallback(
-                LoggingMetricsProvider::incrementDistributedLogConnectionEstablished,
-                distributedLogConnectionEstablished);
-
+                metricsProvider -> metricsProvider.incrementAsyncBufferFullDropped(level),
+                asyncBufferFullDropped, level);
     }
 
-    public static void incrementDistributedLogConnectionError() {
+    public static void incrementDistributedLogConnectionEstablished(String connection) {
         withMetricsProviderOrFallback(
-                LoggingMetricsProvider::incrementDistributedLogConnectionError,
-                distributedLogConnectionError);
+                metricsProvider -> metricsProvider.incrementDistributedLogConnectionEstablished(connection),
+                distributedLogConnectionEstablished, connection);
+    }
 
+    public static void incrementDistributedLogConnectionError(String connection) {
+        withMetricsProviderOrFallback(
+                metricsProvider -> metricsProvider.incrementDistributedLogConnectionError(connection),
+                distributedLogConnectionError, connection);
     }
 
-    public static void incrementDistributedLogTransmitError() {
+    public static void incrementDistributedLogTransmitError(String connection) {
         withMetricsProviderOrFallback(
-                LoggingMetricsProvider::incrementDistributedLogTransmitError,
-                distributedLogTransmitError);
+                metricsProvider -> metricsProvider.incrementDistributedLogTransmitError(connection),
+                distributedLogTransmitError, connection);
     }
 
     public static void incrementDistributedLogFallback() {
@@ -106,13 +147,147 @@ public class LoggingMetrics {
                 distributedLogFallback);
     }
 
-    public static void distributedLogTransmitTime(Duration duration) {
+    public static void incrementDistributedLogBackpressure(String connection) {
+        withMetricsProviderOrFallback(
+                metricsProvider -> metricsProvider.incrementDistributedLogBackpressure(connection),
+                distributedLogBackpressure, connection);
+    }
+
+    /**
+     * Counts repeated log messages collapsed into a summary event instead of being logged individually.
+     */
+    public static void incrementRepeatedMessagesAggregated(long repeats) {
         LoggingMetricsProvider metricsProvider = staticLoggingMetricsProvider;
         if (metricsProvider != null) {
-            metricsProvider.distributedLogTransmitTime(duration);
+            metricsProvider.incrementRepeatedMessagesAggregated(repeats);
+        } else {
+            repeatedMessagesAggregated.addAndGet(repeats);
         }
     }
 
+    /**
+     * Counts the events still queued when an async appender is stopped: flushed by the workers, spilled to the spill
+     * store or fallback appender after the flush timeout, or lost.
+     */
+    public static void asyncShutdown(long drained, long spilled, long lost) {
+        incrementAsyncShutdownEvents("drained", drained);
+        incrementAsyncShutdownEvents("spilled", spilled);
+        incrementAsyncShutdownEvents("lost", lost);
+    }
+
+    private static void incrementAsyncShutdownEvents(String outcome, long events) {
+        if (events == 0) {
+            return;
+        }
+        LoggingMetricsProvider metricsProvider = staticLoggingMetricsProvider;
+        if (metricsProvider != null) {
+            metricsProvider.incrementAsyncShutdownEvents(outcome, events);
+        } else {
+            asyncShutdownEvents.computeIfAbsent(outcome, o -> new AtomicLong()).addAndGet(events);
+        }
+    }
+
+    public static void distributedLogTransmitTime(String connection, Duration duration) {
+        LoggingMetricsProvider metricsProvider = staticLoggingMetricsProvider;
+        if (metricsProvider != null) {
+            metricsProvider.distributedLogTransmitTime(connection, duration);
+        }
+    }
+
+    public static void distributedLogBatchSize(String connection, int events, int bytes) {
+        LoggingMetricsProvider metricsProvider = staticLoggingMetricsProvider;
+        if (metricsProvider != null) {
+            metricsProvider.distributedLogBatchSize(connection, events, bytes);
+        }
+    }
+
+    public static void distributedLogAckLatency(String connection, Duration duration) {
+        LoggingMetricsProvider metricsProvider = staticLoggingMetricsProvider;
+        if (metricsProvider != null) {
+            metricsProvider.distributedLogAckLatency(connection, duration);
+        }
+    }
+
+    /**
+     * Records the number of frames of a connection waiting to be acknowledged. The gauge is registered once the
+     * metrics provider is available.
+     */
+    public static void distributedLogWindowOccupancy(String connection, int frames) {
+        AtomicInteger occupancy = distributedLogWindowOccupancy.get(connection);
+        if (occupancy == null) {
+            occupancy = distributedLogWindowOccupancy.computeIfAbsent(connection, c -> new AtomicInteger());
+            LoggingMetricsProvider metricsProvider = staticLoggingMetricsProvider;
+            if (metricsProvider != null) {
+                metricsProvider.registerDistributedLogWindowOccupancy(connection, occupancy);
+            }
+        }
+        occupancy.set(frames);
+    }
+
+    /**
+     * Reports the bytes queued by an async appender using the supplier, which replaces the supplier of a previous
+     * start of the appender. The gauge is registered once the metrics provider is available.
+     */
+    public static void registerAsyncBufferBytes(String appender, LongSupplier queuedBytes) {
+        registerSupplier(asyncBufferBytes, appender, queuedBytes, LoggingMetricsProvider::registerAsyncBufferBytes);
+    }
+
+    /**
+     * Reports the total time the fallback of an appender has been active, in nanoseconds, using the supplier. Replaces
+     * the supplier of a previous start of the appender.
+     */
+    public static void registerFallbackTime(String appender, LongSupplier fallbackNanos) {
+        registerSupplier(fallbackTime, appender, fallbackNanos, LoggingMetricsProvider::registerFallbackTime);
+    }
+
+    private static void registerSupplier(Map<String, AtomicReference<LongSupplier>> suppliers, String appender,
+                                         LongSupplier value, SupplierRegistration registration) {
+        AtomicReference<LongSupplier> supplier = suppliers.get(appender);
+        if (supplier == null) {
+            supplier = suppliers.computeIfAbsent(appender, a -> new AtomicReference<>(value));
+            LoggingMetricsProvider metricsProvider = staticLoggingMetricsProvider;
+            if (metricsProvider != null) {
+                registration.register(metricsProvider, appender, supplier);
+            }
+        }
+        supplier.set(value);
+    }
+
+    @FunctionalInterface
+    private interface SupplierRegistration {
+        void register(LoggingMetricsProvider metricsProvider, String appender, AtomicReference<LongSupplier> supplier);
+    }
+
+    /**
+     * Records the current state of the distributed log spill store.
+     *
+     * @param oldestSpilledAtMillis time the oldest frame not yet replayed has been spilled, 0 if the store is empty
+     */
+    public static void distributedLogSpill(long frames, long bytes, long oldestSpilledAtMillis) {
+        distributedLogSpillFrames.set(frames);
+        distributedLogSpillBytes.set(bytes);
+        distributedLogSpillOldestMillis.set(oldestSpilledAtMillis);
+    }
+
+    static long getDistributedLogSpillFrames() {
+        return distributedLogSpillFrames.get();
+    }
+
+    static long getDistributedLogSpillBytes() {
+        return distributedLogSpillBytes.get();
+    }
+
+    /**
+     * @return the age of the oldest spilled frame not yet replayed in seconds, 0 if the spill store is empty
+     */
+    static double getDistributedLogSpillReplayLagSeconds() {
+        long oldestSpilledAtMillis = distributedLogSpillOldestMillis.get();
+        if (oldestSpilledAtMillis == 0) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - oldestSpilledAtMillis) / 1000.0;
+    }
+
     /**
      * If a {@link LoggingMetricsProvider} is set, invoke a counter increment method on it. Otherwise, buffer the
      * counter increment in a local atomic integer until a metrics provider has been initialized.
@@ -125,4 +300,14 @@ public class LoggingMetrics {
             fallback.getAndIncrement();
         }
     }
+
+    private static void withMetricsProviderOrFallback(Consumer<LoggingMetricsProvider> withMetricsProvider,
+                                                      Map<String, AtomicInteger> fallback, String tag) {
+        LoggingMetricsProvider metricsProvider = staticLoggingMetricsProvider;
+        if (metricsProvider != null) {
+            withMetricsProvider.accept(metricsProvider);
+        } else {
+            fallback.computeIfAbsent(tag, t -> new AtomicInteger()).getAndIncrement();
+        }
+    }
 }
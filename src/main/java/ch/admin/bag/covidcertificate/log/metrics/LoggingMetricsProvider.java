@@ -1,17 +1,51 @@
 package ch.admin.bag.covidcertificate.log.metrics;
 
 import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
 
+/**
+ * Distributed log metrics are tagged with the name of the syslog connection they relate to, async buffer metrics with
+ * the level of the log event.
+ */
 interface LoggingMetricsProvider {
-    void incrementAsyncBufferFullFallback();
+    void incrementAsyncBufferFullFallback(String level);
 
-    void incrementDistributedLogConnectionEstablished();
+    void incrementAsyncBufferFullDropped(String level);
 
-    void incrementDistributedLogConnectionError();
+    void incrementDistributedLogConnectionEstablished(String connection);
 
-    void incrementDistributedLogTransmitError();
+    void incrementDistributedLogConnectionError(String connection);
+
+    void incrementDistributedLogTransmitError(String connection);
 
     void incrementDistributedLogFallback();
 
-    void distributedLogTransmitTime(Duration duration);
+    void incrementDistributedLogBackpressure(String connection);
+
+    void incrementRepeatedMessagesAggregated(long repeats);
+
+    void incrementAsyncShutdownEvents(String outcome, long events);
+
+    void distributedLogTransmitTime(String connection, Duration duration);
+
+    void distributedLogBatchSize(String connection, int events, int bytes);
+
+    void distributedLogAckLatency(String connection, Duration duration);
+
+    /**
+     * Registers a gauge reporting the number of unacknowledged frames of a connection
+     */
+    void registerDistributedLogWindowOccupancy(String connection, AtomicInteger occupancy);
+
+    /**
+     * Registers a gauge reporting the bytes of pre-encoded events queued by an async appender
+     */
+    void registerAsyncBufferBytes(String appender, AtomicReference<LongSupplier> queuedBytes);
+
+    /**
+     * Registers a counter reporting the total time the fallback appender of an appender has been active
+     */
+    void registerFallbackTime(String appender, AtomicReference<LongSupplier> fallbackNanos);
 }
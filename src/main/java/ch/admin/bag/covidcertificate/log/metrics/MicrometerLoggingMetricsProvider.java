@@ -1,68 +1,152 @@
 package ch.admin.bag.covidcertificate.log.metrics;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
 
 import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 class MicrometerLoggingMetricsProvider implements LoggingMetricsProvider {
 
     private static final String ASYNC_BUFFER_FULL_METRIC = "logging_async_buffer_full_fallback";
+    private static final String ASYNC_BUFFER_FULL_DROPPED_METRIC = "logging_async_buffer_full_dropped";
     private static final String DIST_LOG_CONNECTION_ERROR = "logging_distlog_connection_error";
     private static final String DIST_LOG_CONNECTION_ESTABLISHED = "logging_distlog_connection_established";
     private static final String DIST_LOG_TRANSMIT_ERROR = "logging_distlog_transmit_error";
     private static final String DIST_LOG_TRANSMIT_TIME = "logging_distlog_transmit_time";
     private static final String DIST_LOG_FALLBACK = "logging_distlog_fallback";
+    private static final String DIST_LOG_BACKPRESSURE = "logging_distlog_backpressure";
+    private static final String DIST_LOG_BATCH_EVENTS = "logging_distlog_batch_events";
+    private static final String DIST_LOG_BATCH_BYTES = "logging_distlog_batch_bytes";
+    private static final String DIST_LOG_ACK_LATENCY = "logging_distlog_ack_latency";
+    private static final String DIST_LOG_WINDOW_OCCUPANCY = "logging_distlog_window_occupancy";
+    private static final String DIST_LOG_SPILL_DEPTH = "logging_distlog_spill_depth";
+    private static final String DIST_LOG_SPILL_BYTES = "logging_distlog_spill_bytes";
+    private static final String DIST_LOG_SPILL_REPLAY_LAG = "logging_distlog_spill_replay_lag";
+    private static final String REPEATED_MESSAGES_AGGREGATED = "logging_repeated_messages_aggregated";
+    private static final String ASYNC_BUFFER_BYTES = "logging_async_buffer_bytes";
+    private static final String ASYNC_SHUTDOWN_EVENTS = "logging_async_shutdown_events";
+    private static final String FALLBACK_TIME = "logging_fallback_time";
+    private static final String CONNECTION_TAG = "connection";
+    private static final String APPENDER_TAG = "appender";
+    private static final String LEVEL_TAG = "level";
+    private static final String OUTCOME_TAG = "outcome";
 
-    private final Counter asyncBufferFullFallback;
-    private final Counter distLogConnectionError;
-    private final Counter distLogConnectionEstablished;
-    private final Counter distLogTransmitError;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Counter> asyncBufferFullFallback = new ConcurrentHashMap<>();
+    private final Map<String, Counter> asyncBufferFullDropped = new ConcurrentHashMap<>();
     private final Counter distLogFallback;
-    private final Timer logTransmitTimer;
+    private final Counter repeatedMessagesAggregated;
+    private final Map<String, ConnectionMeters> connectionMeters = new ConcurrentHashMap<>();
+    private final Function<String, ConnectionMeters> connectionMetersFactory = this::createConnectionMeters;
 
     MicrometerLoggingMetricsProvider(Object meterRegistryBean) {
-        MeterRegistry meterRegistry = (MeterRegistry) meterRegistryBean;
-        // Async logging buffer full, logged to fallback logger
-        asyncBufferFullFallback = Counter.builder(ASYNC_BUFFER_FULL_METRIC)
-                .register(meterRegistry);
-        // Failed to connect to distributed logging server
-        distLogConnectionError = Counter.builder(DIST_LOG_CONNECTION_ERROR)
+        meterRegistry = (MeterRegistry) meterRegistryBean;
+        // Logged to fallback logger instead of distributed logging server
+        distLogFallback = Counter.builder(DIST_LOG_FALLBACK)
                 .register(meterRegistry);
-        // Connected to distributed log server
-        distLogConnectionEstablished = Counter.builder(DIST_LOG_CONNECTION_ESTABLISHED)
+        // Repeated log messages collapsed into a summary event
+        repeatedMessagesAggregated = Counter.builder(REPEATED_MESSAGES_AGGREGATED)
                 .register(meterRegistry);
-        // Failed to transmit log entry to distributed logging server
-        distLogTransmitError = Counter.builder(DIST_LOG_TRANSMIT_ERROR)
+        // Frames held by the spill store, waiting to be replayed to the distributed logging server
+        Gauge.builder(DIST_LOG_SPILL_DEPTH, LoggingMetrics::getDistributedLogSpillFrames)
                 .register(meterRegistry);
-        // Logged to fallback logger instead of distributed logging server
-        distLogFallback = Counter.builder(DIST_LOG_FALLBACK)
+        Gauge.builder(DIST_LOG_SPILL_BYTES, LoggingMetrics::getDistributedLogSpillBytes)
+                .baseUnit("bytes")
                 .register(meterRegistry);
-        logTransmitTimer = Timer.builder(DIST_LOG_TRANSMIT_TIME)
-                .publishPercentiles(0.5, 0.95, 0.99)
-                .distributionStatisticExpiry(Duration.ofHours(24))
+        // Age of the oldest frame in the spill store
+        Gauge.builder(DIST_LOG_SPILL_REPLAY_LAG, LoggingMetrics::getDistributedLogSpillReplayLagSeconds)
+                .baseUnit("seconds")
                 .register(meterRegistry);
     }
 
+    private ConnectionMeters createConnectionMeters(String connection) {
+        return new ConnectionMeters(
+                // Connected to distributed log server
+                Counter.builder(DIST_LOG_CONNECTION_ESTABLISHED)
+                        .tag(CONNECTION_TAG, connection)
+                        .register(meterRegistry),
+                // Failed to connect to distributed logging server
+                Counter.builder(DIST_LOG_CONNECTION_ERROR)
+                        .tag(CONNECTION_TAG, connection)
+                        .register(meterRegistry),
+                // Failed to transmit log entry to distributed logging server
+                Counter.builder(DIST_LOG_TRANSMIT_ERROR)
+                        .tag(CONNECTION_TAG, connection)
+                        .register(meterRegistry),
+                // Outbound buffer of a non-blocking connection full, logged to fallback logger
+                Counter.builder(DIST_LOG_BACKPRESSURE)
+                        .tag(CONNECTION_TAG, connection)
+                        .register(meterRegistry),
+                Timer.builder(DIST_LOG_TRANSMIT_TIME)
+                        .tag(CONNECTION_TAG, connection)
+                        .publishPercentiles(0.5, 0.95, 0.99)
+                        .distributionStatisticExpiry(Duration.ofHours(24))
+                        .register(meterRegistry),
+                // Number of log events and bytes transmitted to the distributed logging server in a single write
+                DistributionSummary.builder(DIST_LOG_BATCH_EVENTS)
+                        .tag(CONNECTION_TAG, connection)
+                        .publishPercentiles(0.5, 0.95, 0.99)
+                        .distributionStatisticExpiry(Duration.ofHours(24))
+                        .register(meterRegistry),
+                DistributionSummary.builder(DIST_LOG_BATCH_BYTES)
+                        .tag(CONNECTION_TAG, connection)
+                        .baseUnit("bytes")
+                        .publishPercentiles(0.5, 0.95, 0.99)
+                        .distributionStatisticExpiry(Duration.ofHours(24))
+                        .register(meterRegistry),
+                // Time until a RELP frame has been acknowledged by the distributed logging server
+                Timer.builder(DIST_LOG_ACK_LATENCY)
+                        .tag(CONNECTION_TAG, connection)
+                        .publishPercentiles(0.5, 0.95, 0.99)
+                        .distributionStatisticExpiry(Duration.ofHours(24))
+                        .register(meterRegistry));
+    }
+
+    private ConnectionMeters connectionMeters(String connection) {
+        return connectionMeters.computeIfAbsent(connection, connectionMetersFactory);
+    }
+
+    @Override
+    public void incrementAsyncBufferFullFallback(String level) {
+        // Async logging buffer full, logged to fallback logger
+        asyncBufferFullFallback.computeIfAbsent(level, l -> Counter.builder(ASYNC_BUFFER_FULL_METRIC)
+                        .tag(LEVEL_TAG, l)
+                        .register(meterRegistry))
+                .increment();
+    }
+
     @Override
-    public void incrementAsyncBufferFullFallback() {
-        asyncBufferFullFallback.increment();
+    public void incrementAsyncBufferFullDropped(String level) {
+        // Async logging buffer full, low priority event dropped by sampling
+        asyncBufferFullDropped.computeIfAbsent(level, l -> Counter.builder(ASYNC_BUFFER_FULL_DROPPED_METRIC)
+                        .tag(LEVEL_TAG, l)
+                        .register(meterRegistry))
+                .increment();
     }
 
     @Override
-    public void incrementDistributedLogConnectionEstablished() {
-        distLogConnectionEstablished.increment();
+    public void incrementDistributedLogConnectionEstablished(String connection) {
+        connectionMeters(connection).connectionEstablished.increment();
     }
 
     @Override
-    public void incrementDistributedLogConnectionError() {
-        distLogConnectionError.increment();
+    public void incrementDistributedLogConnectionError(String connection) {
+        connectionMeters(connection).connectionError.increment();
     }
 
     @Override
-    public void incrementDistributedLogTransmitError() {
-        distLogTransmitError.increment();
+    public void incrementDistributedLogTransmitError(String connection) {
+        connectionMeters(connection).transmitError.increment();
     }
 
     @Override
@@ -71,7 +155,68 @@ class MicrometerLoggingMetricsProvider implements LoggingMetricsProvider {
     }
 
     @Override
-    public void distributedLogTransmitTime(Duration duration) {
-        logTransmitTimer.record(duration);
+    public void incrementDistributedLogBackpressure(String connection) {
+        connectionMeters(connection).backpressure.increment();
+    }
+
+    @Override
+    public void incrementRepeatedMessagesAggregated(long repeats) {
+        repeatedMessagesAggregated.increment(repeats);
+    }
+
+    @Override
+    public void incrementAsyncShutdownEvents(String outcome, long events) {
+        // Events queued when stopping an async appender, by outcome (drained, spilled or lost)
+        Counter.builder(ASYNC_SHUTDOWN_EVENTS)
+                .tag(OUTCOME_TAG, outcome)
+                .register(meterRegistry)
+                .increment(events);
+    }
+
+    @Override
+    public void distributedLogTransmitTime(String connection, Duration duration) {
+        connectionMeters(connection).transmitTime.record(duration);
+    }
+
+    @Override
+    public void distributedLogBatchSize(String connection, int events, int bytes) {
+        ConnectionMeters meters = connectionMeters(connection);
+        meters.batchEvents.record(events);
+        meters.batchBytes.record(bytes);
+    }
+
+    @Override
+    public void distributedLogAckLatency(String connection, Duration duration) {
+        connectionMeters(connection).ackLatency.record(duration);
+    }
+
+    @Override
+    public void registerDistributedLogWindowOccupancy(String connection, AtomicInteger occupancy) {
+        // Unacknowledged RELP frames
+        Gauge.builder(DIST_LOG_WINDOW_OCCUPANCY, occupancy, AtomicInteger::get)
+                .tag(CONNECTION_TAG, connection)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void registerAsyncBufferBytes(String appender, AtomicReference<LongSupplier> queuedBytes) {
+        Gauge.builder(ASYNC_BUFFER_BYTES, queuedBytes, supplier -> supplier.get().getAsLong())
+                .tag(APPENDER_TAG, appender)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void registerFallbackTime(String appender, AtomicReference<LongSupplier> fallbackNanos) {
+        // Total time in fallback mode, the rate is the fraction of time spent in fallback mode
+        FunctionCounter.builder(FALLBACK_TIME, fallbackNanos, supplier -> supplier.get().getAsLong() / 1e9)
+                .tag(APPENDER_TAG, appender)
+                .baseUnit("seconds")
+                .register(meterRegistry);
+    }
+
+    private record ConnectionMeters(Counter connectionEstablished, Counter connectionError, Counter transmitError,
+                                    Counter backpressure, Timer transmitTime, DistributionSummary batchEvents,
+                                    DistributionSummary batchBytes, Timer ackLatency) {
     }
 }
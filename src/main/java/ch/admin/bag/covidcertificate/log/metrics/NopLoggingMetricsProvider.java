@@ -1,6 +1,9 @@
 package ch.admin.bag.covidcertificate.log.metrics;
 
 import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
 
 /**
  * Used when micrometer is not on the classpath, does not produce any metrics
@@ -8,22 +11,27 @@ import java.time.Duration;
 class NopLoggingMetricsProvider implements LoggingMetricsProvider {
 
     @Override
-    public void incrementAsyncBufferFullFallback() {
+    public void incrementAsyncBufferFullFallback(String level) {
         // nop
     }
 
     @Override
-    public void incrementDistributedLogConnectionEstablished() {
+    public void incrementAsyncBufferFullDropped(String level) {
         // nop
     }
 
     @Override
-    public void incrementDistributedLogConnectionError() {
+    public void incrementDistributedLogConnectionEstablished(String connection) {
         // nop
     }
 
     @Override
-    public void incrementDistributedLogTransmitError() {
+    public void incrementDistributedLogConnectionError(String connection) {
+        // nop
+    }
+
+    @Override
+    public void incrementDistributedLogTransmitError(String connection) {
         // nop
     }
 
@@ -33,7 +41,47 @@ class NopLoggingMetricsProvider implements LoggingMetricsProvider {
     }
 
     @Override
-    public void distributedLogTransmitTime(Duration duration) {
+    public void incrementDistributedLogBackpressure(String connection) {
+        // nop
+    }
+
+    @Override
+    public void incrementRepeatedMessagesAggregated(long repeats) {
+        // nop
+    }
+
+    @Override
+    public void incrementAsyncShutdownEvents(String outcome, long events) {
+        // nop
+    }
+
+    @Override
+    public void distributedLogTransmitTime(String connection, Duration duration) {
+        // nop
+    }
+
+    @Override
+    public void distributedLogBatchSize(String connection, int events, int bytes) {
+        // nop
+    }
+
+    @Override
+    public void distributedLogAckLatency(String connection, Duration duration) {
+        // nop
+    }
+
+    @Override
+    public void registerDistributedLogWindowOccupancy(String connection, AtomicInteger occupancy) {
+        // nop
+    }
+
+    @Override
+    public void registerAsyncBufferBytes(String appender, AtomicReference<LongSupplier> queuedBytes) {
+        // nop
+    }
+
+    @Override
+    public void registerFallbackTime(String appender, AtomicReference<LongSupplier> fallbackNanos) {
         // nop
     }
 }
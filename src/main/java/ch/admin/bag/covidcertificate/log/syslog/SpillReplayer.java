@@ -0,0 +1,75 @@
+package ch.admin.bag.covidcertificate.log.syslog;
+
+import ch.admin.bag.covidcertificate.log.syslog.connection.SyslogConnection;
+import ch.admin.bag.covidcertificate.log.syslog.spill.SpillStore;
+import lombok.RequiredArgsConstructor;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Replays the frames held by the {@link SpillStore} to the syslog server once connected, at a rate limited to
+ * <code>framesPerSecond</code> to avoid overloading the syslog server after an outage. Frames are distributed over
+ * the appender lanes, holding the lane lock while transmitting.
+ */
+@RequiredArgsConstructor
+class SpillReplayer {
+
+    private static final long REPLAY_INTERVAL_MILLIS = 100;
+
+    private final SpillStore spillStore;
+    private final SyslogLane[] lanes;
+    private final int framesPerSecond;
+    private final ThreadFactory threadFactory;
+    private ScheduledExecutorService executor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int nextLane;
+
+    void start() {
+        lock.lock();
+        try {
+            if (executor == null) {
+                executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+                executor.scheduleWithFixedDelay(this::replay,
+                        REPLAY_INTERVAL_MILLIS, REPLAY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void stop() {
+        lock.lock();
+        try {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replays up to the number of frames allowed per interval, stopping at the first frame that cannot be transmitted.
+     */
+    void replay() {
+        long budget = Math.max(1, framesPerSecond * REPLAY_INTERVAL_MILLIS / 1000);
+        for (long i = 0; i < budget && !spillStore.isEmpty(); i++) {
+            SyslogLane lane = lanes[nextLane];
+            nextLane = (nextLane + 1) % lanes.length;
+            lane.lock();
+            try {
+                SyslogConnection connection = lane.getConnection();
+                if (!connection.isConnected() || !spillStore.replayNext(connection::transmit)) {
+                    return;
+                }
+            } finally {
+                lane.unlock();
+            }
+        }
+    }
+}
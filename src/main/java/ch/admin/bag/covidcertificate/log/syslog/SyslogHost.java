@@ -0,0 +1,78 @@
+package ch.admin.bag.covidcertificate.log.syslog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A syslog host and port, parsed from the <code>host:port</code> entries of the comma separated
+ * {@link TLSSyslogAppender#setSyslogHosts(String) syslogHosts} configuration. IPv6 addresses are given in brackets,
+ * i.e. <code>[::1]:6514</code>, or without brackets and port to use the default port. A Unix domain socket is
+ * represented by its path as host and port 0.
+ */
+record SyslogHost(String host, int port) {
+
+    /**
+     * Parses the entries, skipping entries with a malformed port after reporting them to <code>errorHandler</code>.
+     */
+    static List<SyslogHost> parseList(String syslogHosts, int defaultPort, Consumer<String> errorHandler) {
+        List<SyslogHost> hosts = new ArrayList<>();
+        for (String entry : syslogHosts.split(",")) {
+            String trimmed = entry.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            try {
+                hosts.add(parse(trimmed, defaultPort));
+            } catch (IllegalArgumentException e) {
+                errorHandler.accept("Skipping syslogHosts entry [" + trimmed + "]: " + e.getMessage());
+            }
+        }
+        return hosts;
+    }
+
+    private static SyslogHost parse(String entry, int defaultPort) {
+        if (entry.startsWith("[")) {
+            int closingBracket = entry.indexOf(']');
+            if (closingBracket < 0) {
+                throw new IllegalArgumentException("missing closing bracket of IPv6 address");
+            }
+            String host = entry.substring(1, closingBracket);
+            String rest = entry.substring(closingBracket + 1);
+            if (rest.isEmpty()) {
+                return new SyslogHost(host, defaultPort);
+            }
+            if (!rest.startsWith(":")) {
+                throw new IllegalArgumentException("expected ':' after IPv6 address");
+            }
+            return new SyslogHost(host, parsePort(rest.substring(1)));
+        }
+        int separator = entry.indexOf(':');
+        if (separator < 0 || separator != entry.lastIndexOf(':')) {
+            // No port, or an IPv6 address without brackets
+            return new SyslogHost(entry, defaultPort);
+        }
+        return new SyslogHost(entry.substring(0, separator), parsePort(entry.substring(separator + 1)));
+    }
+
+    private static int parsePort(String port) {
+        int parsed;
+        try {
+            parsed = Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("malformed port '" + port + "'");
+        }
+        if (parsed < 1 || parsed > 65535) {
+            throw new IllegalArgumentException("port " + parsed + " out of range");
+        }
+        return parsed;
+    }
+
+    @Override
+    public String toString() {
+        if (port == 0) {
+            return host;
+        }
+        return host.indexOf(':') >= 0 ? "[" + host + "]:" + port : host + ":" + port;
+    }
+}
@@ -0,0 +1,19 @@
+package ch.admin.bag.covidcertificate.log.syslog;
+
+/**
+ * Strategy used by the {@link TLSSyslogAppender} to select one of multiple configured syslog hosts.
+ */
+public enum SyslogHostSelection {
+    /**
+     * Messages are distributed evenly over all connected hosts
+     */
+    ROUND_ROBIN,
+    /**
+     * Messages are sent to the connected host with the lowest average transmit time
+     */
+    LEAST_LATENCY,
+    /**
+     * Messages are sent to the first connected host in configuration order
+     */
+    PRIMARY_SECONDARY
+}
@@ -0,0 +1,29 @@
+package ch.admin.bag.covidcertificate.log.syslog;
+
+import ch.admin.bag.covidcertificate.log.syslog.connection.SyslogConnection;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A syslog connection together with its message batch, whose buffer messages are encoded to. The
+ * {@link TLSSyslogAppender} stripes appending threads over its lanes, access to a lane is guarded by the lane lock.
+ */
+@Getter
+@RequiredArgsConstructor
+class SyslogLane {
+    private final SyslogConnection connection;
+    private final SyslogMessageBatch batch;
+    @Getter(AccessLevel.NONE)
+    private final ReentrantLock lock = new ReentrantLock();
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+}
@@ -0,0 +1,114 @@
+package ch.admin.bag.covidcertificate.log.syslog;
+
+import ch.admin.bag.covidcertificate.log.async.EncodedEvent;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects encoded syslog messages in a single contiguous {@link SyslogMessageBuffer} so that they can be transmitted
+ * using a single write to the syslog connection. Messages are encoded directly into the batch buffer. The logging
+ * events and the offsets of their messages are retained to be able to append them to the fallback appender if the
+ * batch cannot be transmitted. For pre-encoded messages, the {@link EncodedEvent} is retained instead, so that the
+ * logging event of an arena record is only created if it is actually needed.
+ * <p>
+ * Not thread-safe, access is synchronized by the {@link TLSSyslogAppender}.
+ */
+class SyslogMessageBatch {
+
+    // Logging events, or encoded events
+    private final List<Object> events = new ArrayList<>();
+    private final LongSupplier clock;
+    private final SyslogMessageBuffer buffer;
+    private int[] messageOffsets = new int[16];
+    private boolean[] messagesTruncated = new boolean[16];
+    private long firstEventMillis;
+
+    SyslogMessageBatch(int initialCapacity, LongSupplier clock) {
+        this.buffer = new SyslogMessageBuffer(initialCapacity);
+        this.clock = clock;
+    }
+
+    /**
+     * Adds the event whose message has been written to the {@link #buffer()} as its current message.
+     *
+     * @param event the {@link ILoggingEvent}, or the {@link EncodedEvent} whose message has been copied
+     */
+    void commit(Object event) {
+        if (events.isEmpty()) {
+            firstEventMillis = clock.getAsLong();
+        }
+        if (events.size() == messageOffsets.length) {
+            messageOffsets = Arrays.copyOf(messageOffsets, messageOffsets.length * 2);
+            messagesTruncated = Arrays.copyOf(messagesTruncated, messagesTruncated.length * 2);
+        }
+        messageOffsets[events.size()] = buffer.committedSize();
+        messagesTruncated[events.size()] = buffer.isMessageTruncated();
+        buffer.commitMessage();
+        events.add(event);
+    }
+
+    boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    int eventCount() {
+        return events.size();
+    }
+
+    /**
+     * @return the size of the committed messages in bytes
+     */
+    int sizeInBytes() {
+        return buffer.committedSize();
+    }
+
+    SyslogMessageBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the logging event of the message at <code>index</code>
+     */
+    ILoggingEvent event(int index) {
+        Object event = events.get(index);
+        return event instanceof EncodedEvent encodedEvent ? encodedEvent.getEvent() : (ILoggingEvent) event;
+    }
+
+    /**
+     * @return the offset of the message of the event at <code>index</code> in the {@link #buffer()}
+     */
+    int messageOffset(int index) {
+        return messageOffsets[index];
+    }
+
+    int messageLength(int index) {
+        int end = index + 1 < events.size() ? messageOffsets[index + 1] : buffer.committedSize();
+        return end - messageOffsets[index];
+    }
+
+    /**
+     * @return true if the message of the event at <code>index</code> has been truncated by the {@link #buffer()}
+     */
+    boolean isMessageTruncated(int index) {
+        return messagesTruncated[index];
+    }
+
+    /**
+     * @return true if the oldest message in the batch has been waiting for at least <code>lingerMillis</code>
+     */
+    boolean isLingerExpired(long lingerMillis) {
+        return !events.isEmpty() && clock.getAsLong() - firstEventMillis >= lingerMillis;
+    }
+
+    /**
+     * Removes the committed messages, keeping a message currently being written.
+     */
+    void clear() {
+        events.clear();
+        buffer.removeCommitted();
+    }
+}
@@ -0,0 +1,134 @@
+package ch.admin.bag.covidcertificate.log.syslog;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A reusable buffer the encoder writes syslog messages to, owned by a {@link SyslogLane}. The buffer holds committed
+ * messages followed by the message currently being written. Bytes written beyond the maximum length of the current
+ * message are discarded, which truncates the message without copying it, and is reported by
+ * {@link #isMessageTruncated()}.
+ * <p>
+ * Not thread-safe, access is synchronized by the {@link TLSSyslogAppender}.
+ */
+class SyslogMessageBuffer extends OutputStream {
+
+    private byte[] buffer;
+    private int size;
+    private int committedSize;
+    private int limit;
+    private boolean truncated;
+
+    SyslogMessageBuffer(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+        this.limit = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Starts a new message after the committed messages, truncated to <code>maxLength</code> bytes.
+     */
+    void beginMessage(int maxLength) {
+        size = committedSize;
+        limit = (int) Math.min(Integer.MAX_VALUE, (long) committedSize + maxLength);
+        truncated = false;
+    }
+
+    /**
+     * Adds the current message to the committed messages.
+     */
+    void commitMessage() {
+        committedSize = size;
+        limit = Integer.MAX_VALUE;
+        truncated = false;
+    }
+
+    /**
+     * Discards the bytes written for the current message.
+     */
+    void discardMessage() {
+        size = committedSize;
+        limit = Integer.MAX_VALUE;
+        truncated = false;
+    }
+
+    /**
+     * @return the number of bytes written for the current message, after truncation
+     */
+    int messageLength() {
+        return size - committedSize;
+    }
+
+    /**
+     * @return true if bytes written for the current message have been discarded, as it exceeds its maximum length
+     */
+    boolean isMessageTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Removes the committed messages, keeping the current message (if any) at the start of the buffer.
+     */
+    void removeCommitted() {
+        int messageLength = size - committedSize;
+        if (messageLength > 0) {
+            System.arraycopy(buffer, committedSize, buffer, 0, messageLength);
+        }
+        if (limit != Integer.MAX_VALUE) {
+            limit -= committedSize;
+        }
+        size = messageLength;
+        committedSize = 0;
+    }
+
+    void clear() {
+        size = 0;
+        committedSize = 0;
+        limit = Integer.MAX_VALUE;
+        truncated = false;
+    }
+
+    /**
+     * @return the internal buffer, holding {@link #committedSize()} bytes of committed messages
+     */
+    byte[] array() {
+        return buffer;
+    }
+
+    int committedSize() {
+        return committedSize;
+    }
+
+    @Override
+    public void write(int b) {
+        if (size < limit) {
+            ensureCapacity(size + 1);
+            buffer[size++] = (byte) b;
+        } else {
+            truncated = true;
+        }
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        int length = Math.min(len, limit - size);
+        if (length < len) {
+            truncated = true;
+        }
+        if (length > 0) {
+            ensureCapacity(size + length);
+            System.arraycopy(b, off, buffer, size, length);
+            size += length;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+}
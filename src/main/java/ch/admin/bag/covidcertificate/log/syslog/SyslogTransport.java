@@ -0,0 +1,27 @@
+package ch.admin.bag.covidcertificate.log.syslog;
+
+/**
+ * Transport used by the {@link TLSSyslogAppender} to send messages to the syslog server.
+ */
+public enum SyslogTransport {
+    /**
+     * Blocking TLS socket, messages are written on the appending thread
+     */
+    BLOCKING,
+    /**
+     * Non-blocking TLS channel, messages are written by a dedicated selector thread
+     */
+    NIO,
+    /**
+     * RELP over TLS, messages are acknowledged by the syslog server and retransmitted after reconnecting
+     */
+    RELP,
+    /**
+     * Unencrypted Unix domain socket to a local log relay, configured using <code>socketPath</code>
+     */
+    UNIX,
+    /**
+     * Unencrypted plain TCP connection to a local log relay, only connects to loopback addresses
+     */
+    TCP
+}
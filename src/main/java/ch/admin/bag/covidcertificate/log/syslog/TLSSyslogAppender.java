@@ -1,33 +1,126 @@
 package ch.admin.bag.covidcertificate.log.syslog;
 
+import ch.admin.bag.covidcertificate.log.async.BatchAppender;
+import ch.admin.bag.covidcertificate.log.async.EncodedEvent;
 import ch.admin.bag.covidcertificate.log.async.FallbackAppenderRef;
+import ch.admin.bag.covidcertificate.log.async.PreEncodingAppender;
+import ch.admin.bag.covidcertificate.log.async.SpillingAppender;
+import ch.admin.bag.covidcertificate.log.async.ThreadMode;
 import ch.admin.bag.covidcertificate.log.metrics.LoggingMetrics;
+import ch.admin.bag.covidcertificate.log.syslog.connection.FailoverSyslogConnection;
+import ch.admin.bag.covidcertificate.log.syslog.connection.LocalSyslogConnection;
+import ch.admin.bag.covidcertificate.log.syslog.connection.NioTLSSyslogConnection;
+import ch.admin.bag.covidcertificate.log.syslog.connection.RelpSyslogConnection;
+import ch.admin.bag.covidcertificate.log.syslog.connection.SyslogConnection;
+import ch.admin.bag.covidcertificate.log.syslog.connection.SyslogConnectionSelector;
 import ch.admin.bag.covidcertificate.log.syslog.connection.TLSSyslogConnection;
+import ch.admin.bag.covidcertificate.log.syslog.encoder.SyslogPayloadEncoder;
+import ch.admin.bag.covidcertificate.log.syslog.spill.SpillStore;
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import ch.qos.logback.core.encoder.Encoder;
 import ch.qos.logback.core.net.ssl.SSLComponent;
 import ch.qos.logback.core.net.ssl.SSLConfiguration;
 import ch.qos.logback.core.spi.ContextAware;
+import ch.qos.logback.core.spi.FilterReply;
 import lombok.Getter;
 import lombok.Setter;
+import net.logstash.logback.encoder.StreamingEncoder;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.String.format;
 
 /**
- * A logback appender sending messages using a {@link TLSSyslogConnection} via TCP/SSL to a syslog server. The
+ * A logback appender sending messages using a {@link SyslogConnection} via TCP/SSL to a syslog server. The
  * {@link #setEncoder(Encoder) encoder} is responsible for providing the message payload understood by the receiving
  * syslog server. When the syslog message transfer is observed to fail, a {@link #setFallback(FallbackAppenderRef) fallback}
  * appender is used to append messages to the log (i.e. a console or file fallback).
+ * <p>
+ * If {@link #setBatchMaxEvents(int) batchMaxEvents} is greater than 1, encoded messages are collected and transmitted
+ * using a single write once the batch holds <code>batchMaxEvents</code> messages, reaches <code>batchMaxBytes</code>
+ * or the oldest message has been waiting for <code>batchLingerMillis</code>. If a batch cannot be transmitted, all of
+ * its events are appended to the fallback appender.
+ * <p>
+ * The {@link #setTransport(SyslogTransport) transport} selects between a blocking {@link TLSSyslogConnection} (default)
+ * and a non-blocking {@link NioTLSSyslogConnection}, which buffers up to <code>outboundBufferSize</code> bytes and
+ * uses the fallback appender if the syslog server does not keep up. The {@link RelpSyslogConnection} waits for the
+ * syslog server to acknowledge messages, keeping up to <code>relpWindowSize</code> unacknowledged messages to be
+ * retransmitted if the connection is lost. Messages rejected by the server are appended to the fallback appender. For
+ * a log relay running next to the application, the unencrypted {@link LocalSyslogConnection} transports
+ * <code>UNIX</code> (Unix domain socket at <code>socketPath</code>) and <code>TCP</code> avoid the cost of TLS.
+ * <p>
+ * With {@link #setConnections(int) connections} greater than 1, the appender keeps multiple parallel connections to
+ * the syslog server, each with its own connection state and back off. Appending threads are striped over the
+ * connections by thread id, which allows encryption and socket writes of different threads to proceed in parallel
+ * while the messages of a thread are transmitted in order. Connections are left idle if fewer threads (or async
+ * shards, see below) append than there are connections.
+ * Metrics are tagged with the connection name <code>host:port#index</code>.
+ * <p>
+ * Instead of a single <code>syslogHost</code>, a comma separated list of <code>host:port</code> entries can be
+ * configured as {@link #setSyslogHosts(String) syslogHosts}. Each connection then uses a
+ * {@link FailoverSyslogConnection} which selects a host according to the {@link #setHostSelection(SyslogHostSelection)
+ * hostSelection} strategy, and fails over to the other connected hosts before resorting to the fallback appender.
+ * <p>
+ * If a {@link #setSpillDirectory(String) spillDirectory} is configured, encoded messages that cannot be transmitted
+ * are stored in a disk-backed {@link SpillStore} of at most <code>spillMaxBytes</code> instead of being appended to
+ * the fallback appender, and are replayed at up to <code>spillReplayFramesPerSecond</code> once the connection has
+ * been re-established. A frame is a single message, or a batch of messages if batching is enabled. Replayed messages
+ * may be received out of order with messages transmitted in the mean time. The fallback appender is only used if the
+ * spill store is full.
+ * <p>
+ * Messages are encoded into a reusable buffer of the connection's lane (the batch buffer if batching is enabled). If
+ * the encoder implements {@link StreamingEncoder}, it writes directly into that buffer, and messages longer than
+ * <code>maxMessageSize</code> are truncated by discarding the excess bytes while writing, so no intermediate copies
+ * of the message are made. Encoding therefore happens while holding the lane lock. A {@link SyslogPayloadEncoder}
+ * truncates messages itself, so that the octet count or the terminating line feed of a truncated message is kept.
+ * <p>
+ * As a {@link BatchAppender}, the appender accepts the events drained by the
+ * {@link ch.admin.bag.covidcertificate.log.async.AsyncBufferFullFallbackAppender} at once, encodes them into the lane
+ * buffer and transmits them using a single write (or one write per <code>batchMaxBytes</code>), regardless of
+ * <code>batchMaxEvents</code>. Batches are assigned to a lane by the index of the async worker's shard instead of
+ * the thread id, each shard thus uses its own connection if there are at least as many connections as shards.
+ * <p>
+ * As a {@link PreEncodingAppender}, events can also be encoded by the logging threads before being buffered by the
+ * async appender, in which case the worker only copies the encoded messages into the lane buffer and transmits them.
+ * This requires the encoder to be thread-safe, which the encoders of this library and of logstash are.
+ * <p>
+ * If the encoder is a {@link SyslogPayloadEncoder}, messages that cannot be transmitted are passed to the fallback
+ * appender together with their encoded payload (the message without the syslog header), which a
+ * {@link ch.admin.bag.covidcertificate.log.async.FallbackConsoleAppender} writes as it is instead of encoding the
+ * event again.
+ * <p>
+ * The background threads of the appender and its connections (reconnectors, batch flusher, spill replayer) are
+ * virtual threads if <code>threadMode</code> is {@link ThreadMode#VIRTUAL} and the runtime supports them.
  */
-public class TLSSyslogAppender extends AppenderBase<ILoggingEvent> implements SSLComponent {
+public class TLSSyslogAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements SSLComponent,
+        SpillingAppender, BatchAppender, PreEncodingAppender {
 
     private static final int DEFAULT_PORT = 6514;
     private static final int DEFAULT_TIMEOUT_MILLIS = 5000;
     private static final int MAX_MESSAGE_SIZE_LIMIT = 65000;
+    private static final int DEFAULT_BATCH_MAX_EVENTS = 1;
+    private static final int DEFAULT_BATCH_MAX_BYTES = 64 * 1024;
+    private static final int DEFAULT_BATCH_LINGER_MILLIS = 50;
+    private static final int DEFAULT_OUTBOUND_BUFFER_SIZE = 1024 * 1024;
+    private static final int DEFAULT_RELP_WINDOW_SIZE = 128;
+    private static final int DEFAULT_CONNECTIONS = 1;
+    private static final long DEFAULT_SPILL_MAX_BYTES = 256L * 1024 * 1024;
+    private static final int DEFAULT_SPILL_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int DEFAULT_SPILL_REPLAY_FRAMES_PER_SECOND = 1000;
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
 
     @Setter
     private String syslogHost;
@@ -42,35 +135,332 @@ public class TLSSyslogAppender extends AppenderBase<ILoggingEvent> implements SS
     @Setter
     private FallbackAppenderRef fallback;
     @Setter
+    private int batchMaxEvents = DEFAULT_BATCH_MAX_EVENTS;
+    @Setter
+    private int batchMaxBytes = DEFAULT_BATCH_MAX_BYTES;
+    @Setter
+    private int batchLingerMillis = DEFAULT_BATCH_LINGER_MILLIS;
+    @Setter
+    private SyslogTransport transport = SyslogTransport.BLOCKING;
+    @Setter
+    private int outboundBufferSize = DEFAULT_OUTBOUND_BUFFER_SIZE;
+    @Setter
+    private int relpWindowSize = DEFAULT_RELP_WINDOW_SIZE;
+    @Setter
+    private String socketPath;
+    @Setter
+    private int connections = DEFAULT_CONNECTIONS;
+    @Setter
+    private String syslogHosts;
+    @Setter
+    private SyslogHostSelection hostSelection = SyslogHostSelection.PRIMARY_SECONDARY;
+    @Setter
+    private String spillDirectory;
+    @Setter
+    private long spillMaxBytes = DEFAULT_SPILL_MAX_BYTES;
+    @Setter
+    private int spillSegmentBytes = DEFAULT_SPILL_SEGMENT_BYTES;
+    @Setter
+    private int spillReplayFramesPerSecond = DEFAULT_SPILL_REPLAY_FRAMES_PER_SECOND;
+    @Setter
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    @Setter
     @Getter
     private SSLConfiguration ssl = new SSLConfiguration();
 
-    private TLSSyslogConnection syslogConnection;
+    private SyslogLane[] lanes;
+    private StreamingEncoder<ILoggingEvent> streamingEncoder;
+    private SyslogPayloadEncoder payloadEncoder;
+    private ScheduledExecutorService batchFlusher;
+    private volatile SpillStore spillStore;
+    private SpillReplayer spillReplayer;
 
     @Override
     protected void append(ILoggingEvent eventObject) {
-        byte[] syslogMessage = encoder.encode(eventObject);
+        SyslogLane lane = selectLane();
+
+        lane.lock();
+        try {
+            if (batchMaxEvents > 1) {
+                appendToBatch(lane, eventObject, batchMaxEvents);
+                return;
+            }
+            SyslogMessageBuffer buffer = lane.getBatch().buffer();
+            buffer.clear();
+            encode(eventObject, buffer);
+            boolean truncated = buffer.isMessageTruncated();
+            buffer.commitMessage();
+            if (!lane.getConnection().transmit(buffer.array(), 0, buffer.committedSize())
+                    && !spill(buffer.array(), buffer.committedSize())) {
+                appendToFallback(eventObject, buffer.array(), 0, buffer.committedSize(), truncated,
+                        "TLSSyslogAppender: " + lane.getConnection().getLastTransmitError());
+            } else {
+                fallback.notifyFallbackDeactivated();
+            }
+            // Clears the lane's shared batch buffer, so that a later batch on this lane does not resend this message
+            buffer.clear();
+        } finally {
+            lane.unlock();
+        }
+    }
+
+    /**
+     * Encodes the event as the current message of the buffer, truncated to <code>maxMessageSize</code>. Uses the
+     * {@link StreamingEncoder} contract if supported by the encoder to avoid an intermediate byte array.
+     */
+    private void encode(ILoggingEvent eventObject, SyslogMessageBuffer buffer) {
+        buffer.beginMessage(maxMessageSize);
+        try {
+            encode(eventObject, (OutputStream) buffer);
+        } catch (IOException e) {
+            // Not thrown by the buffer, only by misbehaving encoders
+            buffer.discardMessage();
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            buffer.discardMessage();
+            throw e;
+        }
+    }
+
+    private void encode(ILoggingEvent eventObject, OutputStream outputStream) throws IOException {
+        if (streamingEncoder != null) {
+            streamingEncoder.encode(eventObject, outputStream);
+        } else {
+            outputStream.write(encoder.encode(eventObject));
+        }
+    }
+
+    private SyslogLane selectLane() {
+        SyslogLane[] currentLanes = lanes;
+        if (currentLanes.length == 1) {
+            return currentLanes[0];
+        }
+        return currentLanes[(int) (Thread.currentThread().getId() % currentLanes.length)];
+    }
+
+    private SyslogLane selectLane(int shard) {
+        SyslogLane[] currentLanes = lanes;
+        return currentLanes[shard % currentLanes.length];
+    }
+
+    /**
+     * Encodes all events into the lane's batch and transmits it once, together with messages already waiting in the
+     * batch. Events denied by the filters of this appender are skipped.
+     */
+    @Override
+    public void appendBatch(List<ILoggingEvent> events, int shard) {
+        if (!isStarted()) {
+            return;
+        }
+        SyslogLane lane = selectLane(shard);
+
+        lane.lock();
+        try {
+            for (ILoggingEvent event : events) {
+                if (getFilterChainDecision(event) == FilterReply.DENY) {
+                    continue;
+                }
+                try {
+                    appendToBatch(lane, event, Integer.MAX_VALUE);
+                } catch (RuntimeException e) {
+                    addError("Appender [" + getName() + "] failed to append.", e);
+                }
+            }
+            flushBatch(lane);
+        } finally {
+            lane.unlock();
+        }
+    }
+
+    /**
+     * Encodes the event on the calling thread, truncated to <code>maxMessageSize</code>. Events denied by the filters
+     * of this appender are not encoded.
+     */
+    @Override
+    public boolean preEncode(ILoggingEvent event, EncodedEvent target) {
+        if (!isStarted() || getFilterChainDecision(event) == FilterReply.DENY) {
+            return false;
+        }
+        target.beginMessage(maxMessageSize);
+        try {
+            encode(event, target);
+        } catch (IOException e) {
+            // Not thrown by the target, only by misbehaving encoders
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public int payloadOffset(byte[] message, int offset, int length) {
+        return payloadEncoder != null ? payloadEncoder.payloadOffset(message, offset, length) : -1;
+    }
+
+    /**
+     * Encoded events are passed as their payload if the encoder is a {@link SyslogPayloadEncoder}.
+     */
+    @Override
+    public boolean isEncodedFallbackSupported() {
+        return encoder instanceof SyslogPayloadEncoder && fallback != null && fallback.isEncodedFallbackSupported();
+    }
+
+    /**
+     * Copies the encoded messages into the lane's batch and transmits it once, together with messages already
+     * waiting in the batch.
+     */
+    @Override
+    public void appendEncodedBatch(List<EncodedEvent> events, int shard) {
+        if (!isStarted()) {
+            return;
+        }
+        SyslogLane lane = selectLane(shard);
+
+        lane.lock();
+        try {
+            for (EncodedEvent event : events) {
+                SyslogMessageBuffer buffer = lane.getBatch().buffer();
+                buffer.beginMessage(maxMessageSize);
+                buffer.write(event.array(), 0, event.length());
+                commitToBatch(lane, event, Integer.MAX_VALUE);
+            }
+            flushBatch(lane);
+        } finally {
+            lane.unlock();
+        }
+    }
+
+    private void appendToBatch(SyslogLane lane, ILoggingEvent eventObject, int maxEvents) {
+        encode(eventObject, lane.getBatch().buffer());
+        commitToBatch(lane, eventObject, maxEvents);
+    }
 
-        if (!transmit(syslogMessage)) {
-            LoggingMetrics.incrementDistributedLogFallback();
-            fallback.appendToFallbackAppender(eventObject, "TLSSyslogAppender: " + syslogConnection.getLastTransmitError());
+    /**
+     * Commits the message just written to the lane's batch buffer, transmitting the batch if it is full.
+     *
+     * @param eventObject the {@link ILoggingEvent}, or the {@link EncodedEvent} whose message has been copied
+     */
+    private void commitToBatch(SyslogLane lane, Object eventObject, int maxEvents) {
+        SyslogMessageBatch batch = lane.getBatch();
+        if (!batch.isEmpty() && batch.sizeInBytes() + batch.buffer().messageLength() > batchMaxBytes) {
+            // Transmits the committed messages, retaining the message just encoded for the next batch
+            flushBatch(lane);
+        }
+        batch.commit(eventObject);
+        if (batch.eventCount() >= maxEvents || batch.sizeInBytes() >= batchMaxBytes) {
+            flushBatch(lane);
+        }
+    }
+
+    /**
+     * Transmits all messages in the lane's current batch using a single write. Must be called while holding the lane
+     * lock.
+     */
+    private void flushBatch(SyslogLane lane) {
+        SyslogMessageBatch batch = lane.getBatch();
+        if (batch.isEmpty()) {
+            return;
+        }
+        SyslogConnection connection = lane.getConnection();
+        LoggingMetrics.distributedLogBatchSize(connection.getName(), batch.eventCount(), batch.sizeInBytes());
+        byte[] buffer = batch.buffer().array();
+        if (!connection.transmit(buffer, 0, batch.sizeInBytes()) && !spill(buffer, batch.sizeInBytes())) {
+            String reason = "TLSSyslogAppender: " + connection.getLastTransmitError();
+            for (int i = 0; i < batch.eventCount(); i++) {
+                appendToFallback(batch.event(i), buffer, batch.messageOffset(i), batch.messageLength(i),
+                        batch.isMessageTruncated(i), reason);
+            }
         } else {
             fallback.notifyFallbackDeactivated();
         }
+        batch.clear();
     }
 
-    protected boolean transmit(byte[] syslogMessage) {
-        byte[] maxLengthSyslogMessage = syslogMessage;
-        if (syslogMessage.length > maxMessageSize) {
-            maxLengthSyslogMessage = Arrays.copyOfRange(syslogMessage, 0, maxMessageSize);
+    /**
+     * Appends the payload of the encoded message to the fallback appender if the encoder provides its offset, so
+     * that the event is not encoded again. Messages truncated by the buffer, rather than by the payload encoder itself,
+     * are appended as events.
+     */
+    private void appendToFallback(ILoggingEvent event, byte[] message, int offset, int length, boolean truncated,
+                                  String reason) {
+        LoggingMetrics.incrementDistributedLogFallback();
+        int payloadOffset = payloadEncoder != null && !truncated ?
+                payloadEncoder.payloadOffset(message, offset, length) : -1;
+        if (payloadOffset < 0) {
+            fallback.appendToFallbackAppender(event, reason);
+        } else {
+            fallback.appendEncodedToFallbackAppender(event, message, offset + payloadOffset, length - payloadOffset,
+                    reason);
         }
-        return syslogConnection.transmit(maxLengthSyslogMessage);
+    }
+
+    /**
+     * Appends a message the syslog server has rejected to the fallback appender. Rejected messages are not spilled, as
+     * the server would reject them again when replayed. The event of the message is not known anymore at this point:
+     * fallback appenders writing the encoded payload receive the message, others a warning event containing it.
+     */
+    private void appendRejectedToFallback(byte[] message, int offset, int length, String reason) {
+        LoggingMetrics.incrementDistributedLogFallback();
+        String fallbackReason = "TLSSyslogAppender: " + reason;
+        LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.WARN);
+        event.setLoggerName(getClass().getName());
+        event.setMessage(reason + ": " + new String(message, offset, length, StandardCharsets.UTF_8).strip());
+        event.setTimeStamp(System.currentTimeMillis());
+        event.prepareForDeferredProcessing();
+        int payloadOffset = payloadEncoder != null ? payloadEncoder.payloadOffset(message, offset, length) : -1;
+        if (payloadOffset < 0) {
+            fallback.appendToFallbackAppender(event, fallbackReason);
+        } else {
+            fallback.appendEncodedToFallbackAppender(event, message, offset + payloadOffset, length - payloadOffset,
+                    fallbackReason);
+        }
+    }
+
+    private void flushBatchesIfLingerExpired() {
+        for (SyslogLane lane : lanes) {
+            lane.lock();
+            try {
+                if (lane.getBatch().isLingerExpired(batchLingerMillis)) {
+                    flushBatch(lane);
+                }
+            } finally {
+                lane.unlock();
+            }
+        }
+    }
+
+    /**
+     * Spills an event the async appender cannot buffer to the spill store, if configured.
+     */
+    @Override
+    public boolean spill(ILoggingEvent event) {
+        if (!isStarted() || spillStore == null) {
+            return false;
+        }
+        byte[] syslogMessage = encoder.encode(event);
+        return spill(syslogMessage, Math.min(syslogMessage.length, maxMessageSize));
+    }
+
+    /**
+     * Spills a message pre-encoded by {@link #preEncode(ILoggingEvent, EncodedEvent)} without encoding it again.
+     */
+    @Override
+    public boolean spillEncoded(EncodedEvent event) {
+        return isStarted() && spill(event.array(), event.length());
+    }
+
+    private boolean spill(byte[] frame, int length) {
+        SpillStore store = spillStore;
+        return store != null && store.offer(frame, 0, length);
     }
 
     @Override
     public void start() {
-        if (syslogHost == null) {
-            throw new IllegalArgumentException("syslogHost must be configured for " + getClass().getSimpleName());
+        List<SyslogHost> hosts = resolveSyslogHosts();
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException(transport == SyslogTransport.UNIX ?
+                    "socketPath must be configured for " + getClass().getSimpleName() :
+                    "syslogHost or syslogHosts must be configured for " + getClass().getSimpleName());
         }
         if (fallback == null) {
             throw new IllegalArgumentException("fallback must be configured for " + getClass().getSimpleName());
@@ -78,30 +468,148 @@ public class TLSSyslogAppender extends AppenderBase<ILoggingEvent> implements SS
         if (encoder == null) {
             throw new IllegalArgumentException("an encoder must be configured for " + getClass().getSimpleName());
         }
+        // The streaming contract of the encoder encodes the same logging events
+        @SuppressWarnings("unchecked")
+        StreamingEncoder<ILoggingEvent> streaming = encoder instanceof StreamingEncoder<?> ?
+                (StreamingEncoder<ILoggingEvent>) encoder : null;
+        streamingEncoder = streaming;
+        payloadEncoder = encoder instanceof SyslogPayloadEncoder syslogPayloadEncoder ? syslogPayloadEncoder : null;
+        if (payloadEncoder != null) {
+            payloadEncoder.setMaxMessageSize(maxMessageSize);
+        }
 
+        if (threadMode == ThreadMode.VIRTUAL && !ThreadMode.isVirtualThreadSupported()) {
+            addWarn("Virtual threads are not supported by this Java runtime, using platform threads");
+        }
         try {
             ContextAware contextAware = this;
-            syslogConnection = createSyslogConnection(contextAware);
+            boolean batching = batchMaxEvents > 1;
+            SyslogLane[] newLanes = new SyslogLane[Math.max(1, connections)];
+            for (int i = 0; i < newLanes.length; i++) {
+                SyslogConnection connection = createLaneConnection(contextAware, hosts, i);
+                connection.setThreadMode(threadMode);
+                connection.setRejectedFrameHandler(this::appendRejectedToFallback);
+                // Batches are used by appendBatch() even if batching of single events is disabled
+                SyslogMessageBatch batch = new SyslogMessageBatch(batching ?
+                        batchMaxBytes : Math.min(maxMessageSize, INITIAL_BUFFER_SIZE), System::currentTimeMillis);
+                newLanes[i] = new SyslogLane(connection, batch);
+            }
+            lanes = newLanes;
+            if (batching) {
+                startBatchFlusher();
+            }
+            if (spillDirectory != null && !spillDirectory.isBlank()) {
+                startSpillStore();
+            }
+            fallback.registerMetrics(getName());
             super.start();
 
             // This will not fail if unable to connect - avoids blocking the application from starting if the syslog
             // host is not available.
-            syslogConnection.attemptConnection();
+            for (SyslogLane lane : lanes) {
+                lane.getConnection().attemptConnection();
+            }
         } catch (Exception e) {
-            addError(format("Error starting " + getClass().getSimpleName() + " using syslog host %s:%d", syslogHost, port), e);
+            addError(format("Error starting " + getClass().getSimpleName() + " using syslog hosts %s", hosts), e);
         }
     }
 
+    private void startBatchFlusher() {
+        batchFlusher = Executors.newSingleThreadScheduledExecutor(
+                threadMode.threadFactory(getClass().getSimpleName() + "-batch-flusher"));
+        long flushIntervalMillis = Math.max(1, batchLingerMillis / 2);
+        batchFlusher.scheduleWithFixedDelay(this::flushBatchesIfLingerExpired,
+                flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void startSpillStore() throws IOException {
+        spillStore = SpillStore.open(Path.of(spillDirectory), spillMaxBytes, spillSegmentBytes);
+        spillReplayer = new SpillReplayer(spillStore, lanes, spillReplayFramesPerSecond,
+                threadMode.threadFactory(getClass().getSimpleName() + "-spill-replayer"));
+        spillReplayer.start();
+    }
+
     @Override
     public void stop() {
         super.stop();
-        if (syslogConnection != null) {
-            syslogConnection.disconnect();
-            syslogConnection = null;
+        if (batchFlusher != null) {
+            batchFlusher.shutdownNow();
+            batchFlusher = null;
+        }
+        if (spillReplayer != null) {
+            spillReplayer.stop();
+            spillReplayer = null;
+        }
+        if (lanes != null) {
+            for (SyslogLane lane : lanes) {
+                lane.lock();
+                try {
+                    flushBatch(lane);
+                    lane.getConnection().disconnect();
+                } finally {
+                    lane.unlock();
+                }
+            }
+        }
+        closeSpillStore();
+    }
+
+    private void closeSpillStore() {
+        if (spillStore != null) {
+            try {
+                spillStore.close();
+            } catch (IOException e) {
+                addError("Error closing spill store in " + spillDirectory, e);
+            }
+            spillStore = null;
+        }
+    }
+
+    private List<SyslogHost> resolveSyslogHosts() {
+        if (transport == SyslogTransport.UNIX) {
+            return socketPath == null || socketPath.isBlank() ? List.of() : List.of(new SyslogHost(socketPath, 0));
+        }
+        if (syslogHosts != null && !syslogHosts.isBlank()) {
+            return SyslogHost.parseList(syslogHosts, port, this::addError);
+        }
+        if (syslogHost == null) {
+            return List.of();
         }
+        return List.of(new SyslogHost(syslogHost, port));
+    }
+
+    private SyslogConnection createLaneConnection(ContextAware contextAware, List<SyslogHost> hosts, int lane)
+            throws GeneralSecurityException {
+        if (hosts.size() == 1) {
+            SyslogHost host = hosts.get(0);
+            return createSyslogConnection(contextAware, host + "#" + lane, host.host(), host.port());
+        }
+        List<SyslogConnection> hostConnections = new ArrayList<>(hosts.size());
+        for (SyslogHost host : hosts) {
+            hostConnections.add(createSyslogConnection(contextAware, host + "#" + lane, host.host(), host.port()));
+        }
+        return new FailoverSyslogConnection("failover#" + lane, hostConnections, createSelector());
+    }
+
+    private SyslogConnectionSelector createSelector() {
+        return switch (hostSelection) {
+            case ROUND_ROBIN -> SyslogConnectionSelector.roundRobin();
+            case LEAST_LATENCY -> SyslogConnectionSelector.leastLatency();
+            case PRIMARY_SECONDARY -> SyslogConnectionSelector.primarySecondary();
+        };
     }
 
-    protected TLSSyslogConnection createSyslogConnection(ContextAware contextAware) throws GeneralSecurityException {
-        return TLSSyslogConnection.create(syslogHost, port, getSsl(), contextAware, timeoutMillis);
+    protected SyslogConnection createSyslogConnection(ContextAware contextAware, String connectionName,
+                                                      String host, int port) throws GeneralSecurityException {
+        return switch (transport) {
+            case NIO -> NioTLSSyslogConnection.create(connectionName, host, port, getSsl(), contextAware,
+                    timeoutMillis, Math.max(outboundBufferSize, maxMessageSize));
+            case RELP -> RelpSyslogConnection.create(connectionName, host, port, getSsl(), contextAware,
+                    timeoutMillis, relpWindowSize);
+            case UNIX -> LocalSyslogConnection.unixDomainSocket(connectionName, host, timeoutMillis);
+            case TCP -> LocalSyslogConnection.tcp(connectionName, host, port, timeoutMillis);
+            case BLOCKING -> TLSSyslogConnection.create(connectionName, host, port, getSsl(), contextAware,
+                    timeoutMillis);
+        };
     }
 }
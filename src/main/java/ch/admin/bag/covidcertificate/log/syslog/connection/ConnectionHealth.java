@@ -0,0 +1,63 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+/**
+ * Health score of a {@link SyslogConnection}, fed by the measured transmit times. Used by a
+ * {@link SyslogConnectionSelector} to prefer the fastest syslog host.
+ * <p>
+ * Transmit times of a connection are recorded by a single thread at a time (the thread holding the appender lane lock,
+ * or the selector thread of a non-blocking connection), readers may see a slightly outdated average.
+ */
+public class ConnectionHealth {
+
+    /**
+     * Weight of the most recent transmit time in the exponentially weighted moving average
+     */
+    private static final double ALPHA = 0.2;
+
+    private volatile long averageTransmitNanos;
+    private volatile long transmitStartNanos;
+
+    void recordTransmitTime(long nanos) {
+        long average = averageTransmitNanos;
+        averageTransmitNanos = average == 0 ? nanos : (long) (ALPHA * nanos + (1 - ALPHA) * average);
+    }
+
+    /**
+     * Marks the start of a transmit completing asynchronously, i.e. of the drain of a non-blocking connection's buffer.
+     */
+    void transmitStarted() {
+        transmitStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Records the time since {@link #transmitStarted()} as transmit time.
+     *
+     * @return the transmit time in nanoseconds
+     */
+    long transmitCompleted() {
+        long nanos = System.nanoTime() - transmitStartNanos;
+        transmitStartNanos = 0;
+        recordTransmitTime(nanos);
+        return nanos;
+    }
+
+    /**
+     * Resets the score once a connection has been (re-)established or lost, so that a recovered host is considered
+     * again.
+     */
+    void reset() {
+        averageTransmitNanos = 0;
+        transmitStartNanos = 0;
+    }
+
+    /**
+     * @return the moving average of the transmit time in nanoseconds, or the time the current asynchronous transmit is
+     * taking if that is longer, so that a stalled host is avoided before its transmit completes. 0 if no message has
+     * been transmitted since the connection has been established
+     */
+    public long getAverageTransmitNanos() {
+        long average = averageTransmitNanos;
+        long start = transmitStartNanos;
+        return start == 0 ? average : Math.max(average, System.nanoTime() - start);
+    }
+}
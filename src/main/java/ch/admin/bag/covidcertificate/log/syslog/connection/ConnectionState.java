@@ -1,7 +1,6 @@
 package ch.admin.bag.covidcertificate.log.syslog.connection;
 
 import lombok.AccessLevel;
-import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.springframework.util.backoff.BackOff;
 import org.springframework.util.backoff.BackOffExecution;
@@ -10,6 +9,16 @@ import org.springframework.util.backoff.ExponentialBackOff;
 import java.time.Duration;
 import java.util.function.Supplier;
 
+/**
+ * Connection state shared between threads transmitting messages and the thread re-establishing the connection in the
+ * background:
+ * <ul>
+ *     <li>{@link Status#CONNECTED}: messages are transmitted</li>
+ *     <li>{@link Status#DISCONNECTED}: messages are logged to the fallback, a reconnect is due once the exponential
+ *     back off has expired</li>
+ *     <li>{@link Status#HALF_OPEN}: a connection probe is in progress, messages are still logged to the fallback</li>
+ * </ul>
+ */
 @RequiredArgsConstructor(access = AccessLevel.PACKAGE)
 class ConnectionState {
     private final static BackOff BACK_OFF;
@@ -20,8 +29,11 @@ class ConnectionState {
         BACK_OFF = exponentialBackOff;
     }
 
-    @Getter
-    private boolean connected = false;
+    enum Status {
+        DISCONNECTED, HALF_OPEN, CONNECTED
+    }
+
+    private volatile Status status = Status.DISCONNECTED;
 
     private final Supplier<Long> clock;
     private long nextRetryMillis;
@@ -31,28 +43,56 @@ class ConnectionState {
         return new ConnectionState(System::currentTimeMillis);
     }
 
-    void notifyConnected() {
-        connected = true;
+    boolean isConnected() {
+        return status == Status.CONNECTED;
+    }
+
+    boolean isHalfOpen() {
+        return status == Status.HALF_OPEN;
+    }
+
+    synchronized void notifyConnected() {
+        status = Status.CONNECTED;
         backOffExecution = null;
         nextRetryMillis = 0;
     }
 
-    void notifyDisconnected() {
-        connected = false;
+    synchronized void notifyDisconnected() {
+        status = Status.DISCONNECTED;
     }
 
-    void notifyError() {
+    /**
+     * Starts or continues the exponential back off. A failed connection probe moves the connection back to
+     * {@link Status#DISCONNECTED}.
+     */
+    synchronized void notifyError() {
         if (backOffExecution == null) {
             backOffExecution = BACK_OFF.start();
         }
         nextRetryMillis = clock.get() + backOffExecution.nextBackOff();
+        if (status == Status.HALF_OPEN) {
+            status = Status.DISCONNECTED;
+        }
     }
 
-    boolean shouldReconnect() {
-        if (connected) {
+    synchronized boolean shouldReconnect() {
+        if (status != Status.DISCONNECTED) {
             return false;
         }
         return clock.get() > nextRetryMillis;
     }
 
+    /**
+     * Moves the connection to {@link Status#HALF_OPEN} if a reconnect is due.
+     *
+     * @return true if the caller is expected to probe the connection, and to report the outcome using
+     * {@link #notifyConnected()} or {@link #notifyError()}
+     */
+    synchronized boolean startProbe() {
+        if (shouldReconnect()) {
+            status = Status.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
 }
@@ -0,0 +1,123 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import ch.admin.bag.covidcertificate.log.async.ThreadMode;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Syslog connection to multiple syslog hosts. Each message is transmitted using the host chosen by the
+ * {@link SyslogConnectionSelector}, and is transmitted using the next connected host if that fails. Failover never
+ * blocks: hosts that are not connected are skipped, and are re-established in the background by their own connection.
+ * Once a host has been reconnected, the selector considers it again, i.e. traffic returns to a preferred host when it
+ * comes back.
+ */
+public class FailoverSyslogConnection implements SyslogConnection {
+
+    @Getter
+    private final String name;
+    private final SyslogConnection[] connections;
+    private final SyslogConnectionSelector selector;
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    @Getter
+    private volatile String lastTransmitError;
+
+    public FailoverSyslogConnection(String name, List<? extends SyslogConnection> connections,
+                                    SyslogConnectionSelector selector) {
+        if (connections.isEmpty()) {
+            throw new IllegalArgumentException("At least one syslog connection is required");
+        }
+        this.name = name;
+        this.connections = connections.toArray(new SyslogConnection[0]);
+        this.selector = selector;
+    }
+
+    @Override
+    public boolean transmit(byte[] buffer, int offset, int length) {
+        int selected = selector.select(connections);
+        if (selected < 0) {
+            lastTransmitError = "Not connected to any syslog host: " + connections[0].getLastTransmitError();
+            return false;
+        }
+        for (int i = 0; i < connections.length; i++) {
+            SyslogConnection connection = connections[(selected + i) % connections.length];
+            if (connection.isConnected()) {
+                if (connection.transmit(buffer, offset, length)) {
+                    return true;
+                }
+                lastTransmitError = connection.getName() + ": " + connection.getLastTransmitError();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Attempts to connect to all syslog hosts in parallel, as each attempt blocks for up to the connect and handshake
+     * timeouts if a host is unreachable. Blocks until all attempts have completed or failed.
+     */
+    @Override
+    public void attemptConnection() {
+        Thread[] attempts = new Thread[connections.length - 1];
+        for (int i = 1; i < connections.length; i++) {
+            SyslogConnection connection = connections[i];
+            attempts[i - 1] = threadMode.newThread(name + "-connect-" + connection.getName(),
+                    connection::attemptConnection);
+            attempts[i - 1].start();
+        }
+        connections[0].attemptConnection();
+        for (Thread attempt : attempts) {
+            try {
+                attempt.join();
+            } catch (InterruptedException e) {
+                // The remaining attempts complete in the background
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void setThreadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+        for (SyslogConnection connection : connections) {
+            connection.setThreadMode(threadMode);
+        }
+    }
+
+    @Override
+    public void setRejectedFrameHandler(RejectedFrameHandler rejectedFrameHandler) {
+        for (SyslogConnection connection : connections) {
+            connection.setRejectedFrameHandler(rejectedFrameHandler);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        for (SyslogConnection connection : connections) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return true if connected to at least one syslog host
+     */
+    @Override
+    public boolean isConnected() {
+        for (SyslogConnection connection : connections) {
+            if (connection.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the health of the connection currently chosen by the selector, or of the first connection if none is
+     * connected
+     */
+    @Override
+    public ConnectionHealth getHealth() {
+        int selected = selector.select(connections);
+        return connections[Math.max(selected, 0)].getHealth();
+    }
+}
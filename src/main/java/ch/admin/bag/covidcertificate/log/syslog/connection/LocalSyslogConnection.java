@@ -0,0 +1,245 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import ch.admin.bag.covidcertificate.log.async.ThreadMode;
+import ch.admin.bag.covidcertificate.log.metrics.LoggingMetrics;
+import ch.qos.logback.core.util.CloseUtil;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Unencrypted syslog connection to a log relay running next to the application (i.e. a sidecar), using either a Unix
+ * domain socket or plain TCP. Avoids the TLS handshake and encryption of every message in the JVM. Like the
+ * {@link TLSSyslogConnection}, messages are written on the calling thread, and lost connections are re-established
+ * by a {@link SyslogReconnector} in the background.
+ * <p>
+ * As messages are not encrypted, TCP connections are only established to loopback addresses. Remote syslog servers
+ * require one of the TLS transports.
+ * <p>
+ * The channel is non-blocking, a write waits for the socket to become writable for at most <code>timeoutMillis</code>
+ * in total. If the relay does not keep up within this write deadline, the connection is closed (a partially written
+ * message cannot be completed later) and re-established in the background.
+ */
+public class LocalSyslogConnection implements SyslogConnection {
+
+    @Getter
+    private final String name;
+    private final SocketAddress address;
+    private final int timeoutMillis;
+    private final ConnectionState connectionState = ConnectionState.disconnected();
+    @Getter
+    private final ConnectionHealth health = new ConnectionHealth();
+    // Guards starting and stopping the reconnector
+    private final ReentrantLock lifecycleLock = new ReentrantLock();
+    private SyslogReconnector reconnector;
+    @Setter
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    private volatile LocalChannel channel;
+    /**
+     * Serializes writes, as the selector is shared by all writes to the channel
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile boolean closed;
+    private boolean connectionLoggedOnce;
+    @Getter
+    private volatile String lastTransmitError;
+
+    LocalSyslogConnection(String name, SocketAddress address, int timeoutMillis) {
+        this.name = name;
+        this.address = address;
+        this.timeoutMillis = Math.max(1, timeoutMillis);
+    }
+
+    public static LocalSyslogConnection unixDomainSocket(String name, String socketPath, int timeoutMillis) {
+        return new LocalSyslogConnection(name, UnixDomainSocketAddress.of(Path.of(socketPath)), timeoutMillis);
+    }
+
+    public static LocalSyslogConnection tcp(String name, String host, int port, int timeoutMillis) {
+        return new LocalSyslogConnection(name, InetSocketAddress.createUnresolved(host, port), timeoutMillis);
+    }
+
+    /**
+     * Writes <code>length</code> bytes starting at <code>offset</code> to the socket if connected, waiting for at most
+     * <code>timeoutMillis</code> for the socket to become writable.
+     *
+     * @return true if the bytes have been written to the socket, false if not connected, the write deadline has been
+     * exceeded or any other error occurred
+     */
+    @Override
+    public boolean transmit(byte[] buffer, int offset, int length) {
+        LocalChannel currentChannel = channel;
+        if (!connectionState.isConnected() || currentChannel == null) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            write(currentChannel, ByteBuffer.wrap(buffer, offset, length), start);
+            return true;
+        } catch (IOException ex) {
+            lastTransmitError = ex.getMessage();
+            LoggingMetrics.incrementDistributedLogTransmitError(name);
+            closeChannel(currentChannel);
+            connectionState.notifyDisconnected();
+            reconnector.reconnectNow();
+            return false;
+        } finally {
+            writeLock.unlock();
+            long nanos = System.nanoTime() - start;
+            health.recordTransmitTime(nanos);
+            LoggingMetrics.distributedLogTransmitTime(name, Duration.ofNanos(nanos));
+        }
+    }
+
+    private void write(LocalChannel currentChannel, ByteBuffer bytes, long startNanos) throws IOException {
+        long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (bytes.hasRemaining()) {
+            if (currentChannel.channel().write(bytes) > 0) {
+                continue;
+            }
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+            if (remainingMillis <= 0) {
+                throw new IOException("Write deadline of " + timeoutMillis + "ms exceeded");
+            }
+            currentChannel.selector().select(remainingMillis);
+            currentChannel.selector().selectedKeys().clear();
+        }
+    }
+
+    /**
+     * Starts the background reconnector and attempts to connect immediately if not connected yet. Does not throw if
+     * the connection cannot be established.
+     */
+    @Override
+    public void attemptConnection() {
+        lifecycleLock.lock();
+        try {
+            closed = false;
+            if (reconnector == null) {
+                reconnector = new SyslogReconnector(connectionState, this::probe, "local-syslog-reconnector-" + name,
+                        threadMode);
+            }
+            reconnector.start();
+        } finally {
+            lifecycleLock.unlock();
+        }
+        if (connectionState.startProbe()) {
+            probe();
+        }
+    }
+
+    private void probe() {
+        SocketChannel newChannel = null;
+        Selector selector = null;
+        try {
+            if (address instanceof InetSocketAddress inetAddress) {
+                InetSocketAddress resolved = new InetSocketAddress(inetAddress.getHostString(), inetAddress.getPort());
+                if (resolved.isUnresolved() || !resolved.getAddress().isLoopbackAddress()) {
+                    throw new IOException("TCP transport is unencrypted and only connects to loopback addresses, " +
+                            inetAddress.getHostString() + " is not");
+                }
+                newChannel = SocketChannel.open();
+                newChannel.socket().connect(resolved, timeoutMillis);
+                newChannel.socket().setKeepAlive(true);
+            } else {
+                newChannel = SocketChannel.open(StandardProtocolFamily.UNIX);
+                newChannel.connect(address);
+            }
+            newChannel.configureBlocking(false);
+            selector = Selector.open();
+            newChannel.register(selector, SelectionKey.OP_WRITE);
+            if (closed) {
+                CloseUtil.closeQuietly(newChannel);
+                CloseUtil.closeQuietly(selector);
+                connectionState.notifyDisconnected();
+                return;
+            }
+            channel = new LocalChannel(newChannel, selector);
+            onConnectionSuccessful();
+        } catch (Exception ex) {
+            CloseUtil.closeQuietly(newChannel);
+            CloseUtil.closeQuietly(selector);
+            onConnectionError(ex);
+        }
+    }
+
+    /**
+     * Closes the connection and stops the background reconnector.
+     */
+    @Override
+    public void disconnect() {
+        lifecycleLock.lock();
+        try {
+            closed = true;
+            if (reconnector != null) {
+                reconnector.stop();
+            }
+        } finally {
+            lifecycleLock.unlock();
+        }
+        connectionState.notifyDisconnected();
+        closeChannel(channel);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connectionState.isConnected();
+    }
+
+    private void closeChannel(LocalChannel currentChannel) {
+        if (currentChannel == null) {
+            return;
+        }
+        CloseUtil.closeQuietly(currentChannel.channel());
+        CloseUtil.closeQuietly(currentChannel.selector());
+        if (channel == currentChannel) {
+            channel = null;
+        }
+    }
+
+    private void onConnectionSuccessful() {
+        health.reset();
+        connectionState.notifyConnected();
+        LoggingMetrics.incrementDistributedLogConnectionEstablished(name);
+        if (!connectionLoggedOnce) {
+            connectionLoggedOnce = true;
+            System.out.printf("Local Syslog Appender connected to %s\n", address);
+        }
+    }
+
+    private void onConnectionError(Exception ex) {
+        lastTransmitError = "Not connected: " + ex.getMessage();
+        connectionState.notifyError();
+        LoggingMetrics.incrementDistributedLogConnectionError(name);
+        if (!connectionLoggedOnce) {
+            connectionLoggedOnce = true;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ex.printStackTrace(new PrintStream(baos, true));
+            System.err.printf("Local Syslog Appender failed to connect to %s: %s\n",
+                    address, baos.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * A non-blocking channel together with the selector used to wait for it to become writable
+     */
+    private record LocalChannel(SocketChannel channel, Selector selector) {
+    }
+}
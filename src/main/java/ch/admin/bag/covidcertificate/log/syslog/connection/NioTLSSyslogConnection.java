@@ -0,0 +1,570 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import ch.admin.bag.covidcertificate.log.async.ThreadMode;
+import ch.admin.bag.covidcertificate.log.metrics.LoggingMetrics;
+import ch.qos.logback.core.net.ssl.SSLConfiguration;
+import ch.qos.logback.core.net.ssl.SSLParametersConfiguration;
+import ch.qos.logback.core.spi.ContextAware;
+import ch.qos.logback.core.util.CloseUtil;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking syslog connection using a {@link SocketChannel} and an {@link SSLEngine}. All network I/O including
+ * connection establishment and the TLS handshake is performed by a dedicated selector thread, the thread calling
+ * {@link #transmit(byte[], int, int)} only copies the message to a bounded, direct outbound buffer and never blocks on
+ * the network:
+ * <ul>
+ *     <li>If the connection is not established, transmit fails. The selector thread re-establishes the connection in
+ *     the background as soon as the {@link ConnectionState} back off has expired</li>
+ *     <li>If the outbound buffer cannot hold the message because the syslog server does not keep up (backpressure),
+ *     transmit fails</li>
+ *     <li>If buffered data cannot be written within <code>timeoutMillis</code> (write deadline), the connection is
+ *     closed and reconnected</li>
+ * </ul>
+ * In all of these cases, the appender uses its fallback appender. Like with the blocking {@link TLSSyslogConnection},
+ * a successful transmit does not guarantee delivery - messages still in the outbound buffer when the connection is
+ * lost are discarded.
+ * <p>
+ * The outbound buffer is double-buffered: the selector thread swaps the buffer filled by the producers with a drained
+ * one while holding the lock, and encrypts the swapped out messages after releasing it. Producers thus only contend
+ * for copying their message, never for encryption. Up to twice <code>outboundBufferSize</code> bytes may be pending.
+ */
+public class NioTLSSyslogConnection implements SyslogConnection {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final long SELECT_TIMEOUT_MILLIS = 100;
+    /**
+     * Number of TLS records that fit into the network output buffer
+     */
+    private static final int NET_OUT_BUFFER_RECORDS = 4;
+
+    private final String name;
+    private final String syslogHost;
+    private final int port;
+    private final SSLContext sslContext;
+    private final SSLParametersConfiguration sslParameters;
+    private final int timeoutMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition connectionAttemptCompleted = lock.newCondition();
+    // The following fields are guarded by lock
+    private final ConnectionState connectionState = ConnectionState.disconnected();
+    private final ConnectionHealth health = new ConnectionHealth();
+    // Filled by the producers, in write mode
+    private ByteBuffer outbound;
+    private Selector selector;
+    private int completedConnectionAttempts;
+    private boolean connectionLoggedOnce;
+
+    private volatile Thread selectorThread;
+    private volatile ThreadMode threadMode = ThreadMode.PLATFORM;
+    private volatile String lastTransmitError;
+
+    // The following fields are confined to the selector thread
+    private SocketChannel channel;
+    private SSLEngine engine;
+    private boolean probing;
+    private boolean handshakeComplete;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    // Swapped out outbound buffer being encrypted, in read mode
+    private ByteBuffer sending;
+    private long connectDeadlineMillis;
+    private long pendingSinceMillis;
+    // Whether swapped out messages have not been written to the socket completely yet
+    private boolean draining;
+
+    NioTLSSyslogConnection(String name, String syslogHost, int port, SSLContext sslContext,
+                           SSLParametersConfiguration sslParameters, int timeoutMillis, int outboundBufferSize) {
+        this.name = name;
+        this.syslogHost = syslogHost;
+        this.port = port;
+        this.sslContext = sslContext;
+        this.sslParameters = sslParameters;
+        this.timeoutMillis = timeoutMillis;
+        this.outbound = ByteBuffer.allocateDirect(outboundBufferSize);
+        this.sending = ByteBuffer.allocateDirect(outboundBufferSize).limit(0);
+    }
+
+    public static NioTLSSyslogConnection create(String name, String syslogHost, int port, SSLConfiguration ssl,
+                                                ContextAware context, int timeoutMillis, int outboundBufferSize)
+            throws GeneralSecurityException {
+        SSLContext sslContext = ssl.createContext(context);
+        SSLParametersConfiguration parameters = ssl.getParameters();
+        parameters.setContext(context.getContext());
+        return new NioTLSSyslogConnection(name, syslogHost, port, sslContext, parameters, timeoutMillis,
+                outboundBufferSize);
+    }
+
+    /**
+     * Copies the message to the outbound buffer to be written by the selector thread.
+     *
+     * @return true if the message has been buffered for sending, false if not connected or the outbound buffer is full
+     */
+    @Override
+    public boolean transmit(byte[] buffer, int offset, int length) {
+        lock.lock();
+        try {
+            if (!connectionState.isConnected()) {
+                if (lastTransmitError == null) {
+                    lastTransmitError = "Not connected";
+                }
+                return false;
+            }
+            if (outbound.remaining() < length) {
+                lastTransmitError = "Outbound buffer full, syslog server does not keep up";
+                LoggingMetrics.incrementDistributedLogBackpressure(name);
+                return false;
+            }
+            boolean wasEmpty = outbound.position() == 0;
+            outbound.put(buffer, offset, length);
+            if (wasEmpty) {
+                selector.wakeup();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the selector thread if necessary, and waits up to <code>timeoutMillis</code> for a due connection attempt
+     * to complete. Does not throw if the connection cannot be established.
+     */
+    @Override
+    public void attemptConnection() {
+        lock.lock();
+        try {
+            if (selectorThread == null && !startSelectorThread()) {
+                return;
+            }
+            if (!connectionState.shouldReconnect() && !connectionState.isHalfOpen()) {
+                return;
+            }
+            int connectionAttempts = completedConnectionAttempts;
+            selector.wakeup();
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (completedConnectionAttempts == connectionAttempts && remainingNanos > 0) {
+                try {
+                    remainingNanos = connectionAttemptCompleted.awaitNanos(remainingNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection and stops the selector thread. The connection can be re-established using
+     * {@link #attemptConnection()}.
+     */
+    @Override
+    public void disconnect() {
+        Thread thread;
+        lock.lock();
+        try {
+            thread = selectorThread;
+            selectorThread = null;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (thread != null) {
+            try {
+                thread.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getLastTransmitError() {
+        return lastTransmitError;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connectionState.isConnected();
+    }
+
+    @Override
+    public ConnectionHealth getHealth() {
+        return health;
+    }
+
+    @Override
+    public void setThreadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    private boolean startSelectorThread() {
+        try {
+            selector = Selector.open();
+        } catch (IOException ex) {
+            onConnectionError(ex);
+            return false;
+        }
+        selectorThread = threadMode.newThread("nio-syslog-selector-" + name, this::runSelectorLoop);
+        selectorThread.start();
+        return true;
+    }
+
+    private void runSelectorLoop() {
+        Selector threadSelector;
+        lock.lock();
+        try {
+            threadSelector = selector;
+        } finally {
+            lock.unlock();
+        }
+        while (selectorThread == Thread.currentThread()) {
+            try {
+                threadSelector.select(SELECT_TIMEOUT_MILLIS);
+                if (channel == null && connectionState.startProbe()) {
+                    probing = true;
+                    openChannel(threadSelector);
+                }
+                processSelectedKeys(threadSelector);
+                if (channel != null && channel.isConnected()) {
+                    if (!handshakeComplete || engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                        handshake();
+                    }
+                    if (handshakeComplete) {
+                        flush();
+                    }
+                    updateInterestOps(threadSelector);
+                }
+                checkDeadlines();
+            } catch (IOException | RuntimeException ex) {
+                closeChannel(ex);
+            }
+        }
+        closeChannel(null);
+        CloseUtil.closeQuietly(threadSelector);
+    }
+
+    private void openChannel(Selector threadSelector) throws IOException {
+        engine = sslContext.createSSLEngine(syslogHost, port);
+        engine.setUseClientMode(true);
+        sslParameters.configure(new SSLConfigurableEngine(engine));
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize() * NET_OUT_BUFFER_RECORDS);
+        appIn = ByteBuffer.allocateDirect(session.getApplicationBufferSize());
+        handshakeComplete = false;
+        pendingSinceMillis = 0;
+        connectDeadlineMillis = System.currentTimeMillis() + timeoutMillis;
+
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        if (channel.connect(new InetSocketAddress(syslogHost, port))) {
+            channel.register(threadSelector, SelectionKey.OP_READ);
+            engine.beginHandshake();
+        } else {
+            channel.register(threadSelector, SelectionKey.OP_CONNECT);
+        }
+    }
+
+    private void processSelectedKeys(Selector threadSelector) throws IOException {
+        Iterator<SelectionKey> keys = threadSelector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isConnectable() && channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                engine.beginHandshake();
+            }
+            if (key.isValid() && key.isReadable() && handshakeComplete) {
+                readInbound();
+            }
+        }
+    }
+
+    private void handshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    SSLEngineResult wrapResult = engine.wrap(EMPTY, netOut);
+                    if (wrapResult.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !writeNetOut()) {
+                        return;
+                    }
+                    checkNotClosed(wrapResult);
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    if (!writeNetOut() || !unwrap()) {
+                        return;
+                    }
+                    break;
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                default:
+                    if (!handshakeComplete) {
+                        handshakeComplete = true;
+                        onConnectionSuccessful();
+                    }
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Unwraps the next TLS record received from the syslog server, reading from the channel if no complete record is
+     * buffered yet. Application data sent by the syslog server is not expected and discarded.
+     *
+     * @return true if a record has been unwrapped, false if more data needs to be received first
+     */
+    private boolean unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            appIn.clear();
+            checkNotClosed(result);
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                return true;
+            }
+            if (readChannel() == 0) {
+                return false;
+            }
+        }
+    }
+
+    private void readInbound() throws IOException {
+        readChannel();
+        while (netIn.position() > 0
+                && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            appIn.clear();
+            checkNotClosed(result);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW || result.bytesConsumed() == 0) {
+                return;
+            }
+        }
+    }
+
+    private int readChannel() throws IOException {
+        int read = channel.read(netIn);
+        if (read < 0) {
+            throw new EOFException("Connection closed by syslog server");
+        }
+        return read;
+    }
+
+    /**
+     * Encrypts the buffered outbound messages and writes them to the channel as far as the socket's write buffer allows.
+     * The messages buffered by the producers are swapped out once the previously swapped out messages have been
+     * encrypted completely.
+     * <p>
+     * The transmit time recorded in the {@link ConnectionHealth} and the metrics is the time from swapping out messages
+     * until they have been written to the socket completely, rather than the encryption time, so that it grows when the
+     * syslog server does not keep up, like the transmit time of a blocking connection.
+     */
+    private void flush() throws IOException {
+        if (!sending.hasRemaining()) {
+            swapOutbound();
+        }
+        while (sending.hasRemaining()) {
+            SSLEngineResult result = engine.wrap(sending, netOut);
+            checkNotClosed(result);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (!writeNetOut()) {
+                    break;
+                }
+            } else if (result.bytesConsumed() == 0) {
+                // Application data is held back while the server renegotiates
+                break;
+            }
+        }
+        if (writeNetOut() && !sending.hasRemaining() && draining) {
+            draining = false;
+            LoggingMetrics.distributedLogTransmitTime(name, Duration.ofNanos(health.transmitCompleted()));
+        }
+    }
+
+    /**
+     * Swaps the drained sending buffer with the outbound buffer if the producers have buffered messages.
+     */
+    private void swapOutbound() {
+        ByteBuffer drained = sending;
+        drained.clear();
+        lock.lock();
+        try {
+            if (outbound.position() == 0) {
+                drained.limit(0);
+                return;
+            }
+            sending = outbound;
+            outbound = drained;
+        } finally {
+            lock.unlock();
+        }
+        sending.flip();
+        draining = true;
+        health.transmitStarted();
+    }
+
+    /**
+     * @return true if the network output buffer has been written completely
+     */
+    private boolean writeNetOut() throws IOException {
+        if (netOut.position() == 0) {
+            pendingSinceMillis = 0;
+            return true;
+        }
+        netOut.flip();
+        int written = channel.write(netOut);
+        netOut.compact();
+        if (netOut.position() == 0) {
+            pendingSinceMillis = 0;
+            return true;
+        }
+        if (written > 0 || pendingSinceMillis == 0) {
+            pendingSinceMillis = System.currentTimeMillis();
+        }
+        return false;
+    }
+
+    private void updateInterestOps(Selector threadSelector) {
+        SelectionKey key = channel.keyFor(threadSelector);
+        if (key != null && key.isValid()) {
+            key.interestOps(netOut.position() > 0 ?
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE :
+                    SelectionKey.OP_READ);
+        }
+    }
+
+    private void checkDeadlines() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!handshakeComplete && now > connectDeadlineMillis) {
+            throw new IOException("Connect timed out after " + timeoutMillis + "ms");
+        }
+        if (pendingSinceMillis != 0 && now - pendingSinceMillis > timeoutMillis) {
+            throw new IOException("Write deadline of " + timeoutMillis + "ms exceeded");
+        }
+    }
+
+    private static void checkNotClosed(SSLEngineResult result) throws SSLException {
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new SSLException("SSL engine closed");
+        }
+    }
+
+    /**
+     * Closes the channel. If the connection has been established before, it is re-established immediately, as lost
+     * connections can usually be re-established. If the connection probe itself has failed, exponential back off is
+     * applied.
+     */
+    private void closeChannel(Exception ex) {
+        if (channel == null && !probing) {
+            return;
+        }
+        CloseUtil.closeQuietly(channel);
+        channel = null;
+        engine = null;
+        boolean wasConnected = handshakeComplete;
+        handshakeComplete = false;
+        probing = false;
+        sending.clear().limit(0);
+        draining = false;
+        health.reset();
+        lock.lock();
+        try {
+            outbound.clear();
+            if (ex != null) {
+                lastTransmitError = ex.getMessage() != null ? ex.getMessage() : ex.getClass().getName();
+            } else {
+                lastTransmitError = "Connection closed";
+            }
+            if (wasConnected || ex == null) {
+                connectionState.notifyDisconnected();
+            } else {
+                completedConnectionAttempts++;
+                onConnectionError(ex);
+            }
+            connectionAttemptCompleted.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (ex != null && wasConnected) {
+            LoggingMetrics.incrementDistributedLogTransmitError(name);
+        }
+    }
+
+    private void onConnectionSuccessful() {
+        probing = false;
+        health.reset();
+        lock.lock();
+        try {
+            connectionState.notifyConnected();
+            completedConnectionAttempts++;
+            lastTransmitError = null;
+            connectionAttemptCompleted.signalAll();
+            LoggingMetrics.incrementDistributedLogConnectionEstablished(name);
+            if (!connectionLoggedOnce) {
+                connectionLoggedOnce = true;
+                System.out.printf("NIO TLS Syslog Appender connected to %s:%d\n", syslogHost, port);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onConnectionError(Exception ex) {
+        connectionState.notifyError();
+        LoggingMetrics.incrementDistributedLogConnectionError(name);
+        if (!connectionLoggedOnce) {
+            connectionLoggedOnce = true;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ex.printStackTrace(new PrintStream(baos, true));
+            System.err.printf("NIO TLS Syslog Appender failed to connect to %s:%d: %s\n",
+                    syslogHost, port, baos.toString(StandardCharsets.UTF_8));
+        }
+    }
+}
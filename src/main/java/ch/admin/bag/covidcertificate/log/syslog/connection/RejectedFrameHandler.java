@@ -0,0 +1,20 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+/**
+ * Receives the messages a syslog server has received but rejected, i.e. answered with a RELP status other than
+ * <code>200</code>. Rejected messages are not retransmitted, as the server would reject them again. Only connections
+ * with acknowledgements ({@link RelpSyslogConnection}) reject messages, all others report errors using the return
+ * value of {@link SyslogConnection#transmit(byte[], int, int)}.
+ */
+@FunctionalInterface
+public interface RejectedFrameHandler {
+
+    RejectedFrameHandler DISCARD = (message, offset, length, reason) -> {
+    };
+
+    /**
+     * @param message the rejected message as it has been passed to transmit, i.e. including an octet-count prefix or
+     *                the terminating line feed. Must not be modified
+     */
+    void onFrameRejected(byte[] message, int offset, int length, String reason);
+}
@@ -0,0 +1,134 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes frames of the <a href="https://www.rsyslog.com/doc/relp.html">Reliable Event Logging Protocol</a>:
+ * <code>TXNR SP COMMAND SP DATALEN [SP DATA] LF</code>
+ */
+final class RelpFrames {
+
+    static final int MAX_TXNR = 999_999_999;
+    private static final int MAX_COMMAND_LENGTH = 32;
+    private static final int MAX_DATA_LENGTH = 128 * 1024 * 1024;
+    private static final byte SP = ' ';
+    private static final byte LF = '\n';
+
+    record RelpFrame(int txnr, String command, byte[] data) {
+        String dataAsString() {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    }
+
+    private RelpFrames() {
+    }
+
+    static void write(OutputStream out, int txnr, String command, byte[] data, int offset, int length)
+            throws IOException {
+        StringBuilder header = new StringBuilder(24)
+                .append(txnr).append(' ')
+                .append(command).append(' ')
+                .append(length);
+        if (length > 0) {
+            header.append(' ');
+        }
+        out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+        out.write(data, offset, length);
+        out.write(LF);
+    }
+
+    static void write(OutputStream out, int txnr, String command, String data) throws IOException {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        write(out, txnr, command, bytes, 0, bytes.length);
+    }
+
+    static RelpFrame read(InputStream in) throws IOException {
+        int txnr = (int) readNumber(in, SP, MAX_TXNR);
+        String command = readCommand(in);
+        int dataLength = 0;
+        int b = readByte(in);
+        while (b != SP && b != LF) {
+            if (b < '0' || b > '9') {
+                throw new IOException("Invalid RELP frame, unexpected character in data length " + b);
+            }
+            dataLength = dataLength * 10 + (b - '0');
+            if (dataLength > MAX_DATA_LENGTH) {
+                throw new IOException("Invalid RELP frame, data length exceeds " + MAX_DATA_LENGTH);
+            }
+            b = readByte(in);
+        }
+        byte[] data = new byte[dataLength];
+        if (b == SP) {
+            int read = 0;
+            while (read < dataLength) {
+                int n = in.read(data, read, dataLength - read);
+                if (n < 0) {
+                    throw new EOFException("Connection closed in RELP frame data");
+                }
+                read += n;
+            }
+            expect(in, LF);
+        } else if (dataLength > 0) {
+            throw new IOException("Invalid RELP frame, data missing");
+        }
+        return new RelpFrame(txnr, command, data);
+    }
+
+    /**
+     * @return the next transaction number, wrapping around after {@link #MAX_TXNR}
+     */
+    static int nextTxnr(int txnr) {
+        return txnr >= MAX_TXNR ? 1 : txnr + 1;
+    }
+
+    private static long readNumber(InputStream in, byte terminator, long max) throws IOException {
+        long value = 0;
+        int digits = 0;
+        int b = readByte(in);
+        while (b != terminator || digits == 0) {
+            if (b < '0' || b > '9') {
+                throw new IOException("Invalid RELP frame, unexpected character " + b);
+            }
+            value = value * 10 + (b - '0');
+            digits++;
+            if (value > max) {
+                throw new IOException("Invalid RELP frame, number exceeds " + max);
+            }
+            b = readByte(in);
+        }
+        return value;
+    }
+
+    private static String readCommand(InputStream in) throws IOException {
+        StringBuilder command = new StringBuilder();
+        while (true) {
+            int b = readByte(in);
+            if (b == SP && command.length() > 0) {
+                return command.toString();
+            }
+            if (b < 'a' || b > 'z' || command.length() >= MAX_COMMAND_LENGTH) {
+                throw new IOException("Invalid RELP frame, unexpected character in command " + b);
+            }
+            command.append((char) b);
+        }
+    }
+
+    private static void expect(InputStream in, byte expected) throws IOException {
+        int b = readByte(in);
+        if (b != expected) {
+            throw new IOException("Invalid RELP frame, expected " + expected + " but got " + b);
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Connection closed by RELP server");
+        }
+        return b;
+    }
+}
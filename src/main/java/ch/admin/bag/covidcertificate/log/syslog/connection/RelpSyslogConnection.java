@@ -0,0 +1,585 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import ch.admin.bag.covidcertificate.log.async.ThreadMode;
+import ch.admin.bag.covidcertificate.log.metrics.LoggingMetrics;
+import ch.admin.bag.covidcertificate.log.syslog.connection.RelpFrames.RelpFrame;
+import ch.qos.logback.core.net.ssl.SSLConfigurableSocket;
+import ch.qos.logback.core.net.ssl.SSLConfiguration;
+import ch.qos.logback.core.net.ssl.SSLParametersConfiguration;
+import ch.qos.logback.core.spi.ContextAware;
+import ch.qos.logback.core.util.CloseUtil;
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Syslog connection using the <a href="https://www.rsyslog.com/doc/relp.html">Reliable Event Logging Protocol</a>
+ * (RELP) over TLS. Unlike plain TCP syslog, a message only counts as delivered once the server has acknowledged it.
+ * <p>
+ * Messages are sent as individual RELP <code>syslog</code> commands (i.e. a batch of messages is split into multiple
+ * commands). Octet-counted messages (RFC 6587, starting with their length) are delimited by their length, other
+ * messages by the line feed terminating them. Neither the length prefix nor the line feed is part of the command.
+ * Sent messages are kept in a sliding window of at most <code>windowSize</code> unacknowledged frames, so that
+ * messages can be sent without waiting for the acknowledgement of the previous one. If the window is full,
+ * {@link #transmit(byte[], int, int)} waits for acknowledgements for up to <code>timeoutMillis</code> before failing.
+ * Room in the window is reserved before acquiring the write lock, so that producers waiting for acknowledgements do
+ * not block each other's writes.
+ * <p>
+ * If the connection is lost, the unacknowledged frames are retransmitted once the {@link SyslogReconnector} has
+ * re-established the connection, i.e. messages are delivered at least once. Frames rejected by the server are not
+ * retransmitted, but passed to the {@link RejectedFrameHandler}. Window occupancy and acknowledgement latency are
+ * reported as metrics.
+ */
+public class RelpSyslogConnection implements SyslogConnection {
+
+    private static final String OPEN_OFFER = "relp_version=0\nrelp_software=jeap-logging\ncommands=syslog";
+    private static final byte LF = '\n';
+    private static final byte SP = ' ';
+
+    @Getter
+    private final String name;
+    private final String syslogHost;
+    private final int port;
+    private final SocketFactory socketFactory;
+    private final SSLParametersConfiguration sslParameters;
+    private final int timeoutMillis;
+    private final int windowSize;
+    private final ConnectionState connectionState = ConnectionState.disconnected();
+    @Getter
+    private final ConnectionHealth health = new ConnectionHealth();
+    /**
+     * Guards the socket output stream, acquired before the window lock
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /**
+     * Guards the window and the reserved frames
+     */
+    private final ReentrantLock windowLock = new ReentrantLock();
+    private final Condition windowChanged = windowLock.newCondition();
+    private final ReentrantLock lifecycleLock = new ReentrantLock();
+    /**
+     * Unacknowledged frames in transmission order
+     */
+    private final Deque<PendingFrame> window = new ArrayDeque<>();
+    /**
+     * Frames of transmits that have room in the window but have not been added to it yet
+     */
+    private int reservedFrames;
+    private SyslogReconnector reconnector;
+    private volatile RejectedFrameHandler rejectedFrameHandler = RejectedFrameHandler.DISCARD;
+    @Setter
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    private volatile Socket socket;
+    private OutputStream out;
+    private int txnr;
+    private volatile boolean closed;
+    private boolean connectionLoggedOnce;
+    @Getter
+    private volatile String lastTransmitError;
+
+    RelpSyslogConnection(String name, String syslogHost, int port, SocketFactory socketFactory,
+                         SSLParametersConfiguration sslParameters, int timeoutMillis, int windowSize) {
+        this.name = name;
+        this.syslogHost = syslogHost;
+        this.port = port;
+        this.socketFactory = socketFactory;
+        this.sslParameters = sslParameters;
+        this.timeoutMillis = timeoutMillis;
+        this.windowSize = Math.max(1, windowSize);
+    }
+
+    public static RelpSyslogConnection create(String name, String syslogHost, int port, SSLConfiguration ssl,
+                                              ContextAware context, int timeoutMillis, int windowSize)
+            throws GeneralSecurityException {
+        SSLContext sslContext = ssl.createContext(context);
+        SSLParametersConfiguration parameters = ssl.getParameters();
+        parameters.setContext(context.getContext());
+        return new RelpSyslogConnection(name, syslogHost, port, sslContext.getSocketFactory(), parameters,
+                timeoutMillis, windowSize);
+    }
+
+    /**
+     * Sends each message as RELP <code>syslog</code> command, waiting for room in the window if necessary.
+     *
+     * @return true if all messages have been added to the window of unacknowledged frames, false if not connected or
+     * the window has not drained in time
+     */
+    @Override
+    public boolean transmit(byte[] buffer, int offset, int length) {
+        if (!connectionState.isConnected()) {
+            return false;
+        }
+        PendingFrame[] frames = splitFrames(buffer, offset, length);
+        if (!reserveWindow(frames.length)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            windowLock.lock();
+            try {
+                reservedFrames -= frames.length;
+                window.addAll(Arrays.asList(frames));
+                recordWindowOccupancy();
+            } finally {
+                windowLock.unlock();
+            }
+            if (socket == null) {
+                // Connection lost while waiting for the window, the frames are sent after reconnecting
+                return true;
+            }
+            Socket currentSocket = socket;
+            try {
+                for (PendingFrame frame : frames) {
+                    writeFrame(frame);
+                }
+                out.flush();
+            } catch (IOException ex) {
+                // Frames not acknowledged are retransmitted after reconnecting
+                onSessionLost(currentSocket, ex);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        LoggingMetrics.distributedLogTransmitTime(name, Duration.ofNanos(System.nanoTime() - start));
+        return true;
+    }
+
+    private void writeFrame(PendingFrame frame) throws IOException {
+        txnr = RelpFrames.nextTxnr(txnr);
+        frame.txnr = txnr;
+        frame.sentNanos = System.nanoTime();
+        RelpFrames.write(out, frame.txnr, "syslog", frame.message, frame.dataOffset, frame.dataLength);
+    }
+
+    /**
+     * Waits until the window has room for the given number of frames and reserves it. A transmit exceeding the
+     * window size is accepted once the window is empty.
+     */
+    private boolean reserveWindow(int frames) {
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        windowLock.lock();
+        try {
+            int pending;
+            while ((pending = window.size() + reservedFrames) > 0 && pending + frames > windowSize) {
+                if (remainingNanos <= 0 || !connectionState.isConnected()) {
+                    lastTransmitError = "RELP window of " + windowSize + " frames not acknowledged within " +
+                            timeoutMillis + "ms";
+                    LoggingMetrics.incrementDistributedLogBackpressure(name);
+                    return false;
+                }
+                try {
+                    remainingNanos = windowChanged.awaitNanos(remainingNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            reservedFrames += frames;
+            return true;
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the handler of frames rejected by the syslog server. Called by the thread reading the acknowledgements.
+     */
+    @Override
+    public void setRejectedFrameHandler(RejectedFrameHandler rejectedFrameHandler) {
+        this.rejectedFrameHandler = rejectedFrameHandler;
+    }
+
+    /**
+     * Starts the background reconnector and attempts to connect immediately if not connected yet. Blocks until the
+     * connection has been established or the attempt has failed.
+     */
+    @Override
+    public void attemptConnection() {
+        lifecycleLock.lock();
+        try {
+            closed = false;
+            if (reconnector == null) {
+                reconnector = new SyslogReconnector(connectionState, this::probe, "relp-syslog-reconnector-" + name,
+                        threadMode);
+            }
+            reconnector.start();
+        } finally {
+            lifecycleLock.unlock();
+        }
+        if (connectionState.startProbe()) {
+            probe();
+        }
+    }
+
+    /**
+     * Connects and opens a RELP session while the connection is {@link ConnectionState.Status#HALF_OPEN half-open},
+     * then retransmits all unacknowledged frames and starts reading acknowledgements.
+     */
+    private void probe() {
+        Socket newSocket = null;
+        try {
+            newSocket = socketFactory.createSocket();
+            if (newSocket instanceof SSLSocket sslSocket) {
+                sslSocket.setUseClientMode(true);
+                sslParameters.configure(new SSLConfigurableSocket(sslSocket));
+            }
+            newSocket.setSoTimeout(timeoutMillis);
+            newSocket.connect(new InetSocketAddress(syslogHost, port), timeoutMillis);
+            if (newSocket instanceof SSLSocket sslSocket) {
+                sslSocket.startHandshake();
+            }
+            newSocket.setKeepAlive(true);
+            OutputStream newOut = new BufferedOutputStream(newSocket.getOutputStream());
+            InputStream in = new BufferedInputStream(newSocket.getInputStream());
+            openSession(newOut, in);
+            // Acknowledgements are awaited without timeout, lost connections are detected by failing writes
+            newSocket.setSoTimeout(0);
+
+            writeLock.lock();
+            try {
+                if (closed) {
+                    CloseUtil.closeQuietly(newSocket);
+                    connectionState.notifyDisconnected();
+                    return;
+                }
+                socket = newSocket;
+                out = newOut;
+                txnr = 1;
+                retransmitWindow();
+                startAckReader(newSocket, in);
+                onConnectionSuccessful();
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (Exception ex) {
+            CloseUtil.closeQuietly(newSocket);
+            writeLock.lock();
+            try {
+                if (socket == newSocket) {
+                    socket = null;
+                    out = null;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            onConnectionError(ex);
+        }
+    }
+
+    private static void openSession(OutputStream out, InputStream in) throws IOException {
+        RelpFrames.write(out, 1, "open", OPEN_OFFER);
+        out.flush();
+        RelpFrame response = RelpFrames.read(in);
+        if (response.txnr() != 1 || !"rsp".equals(response.command()) || !response.dataAsString().startsWith("200")) {
+            throw new IOException("RELP session rejected: " + response.dataAsString());
+        }
+    }
+
+    private void retransmitWindow() throws IOException {
+        windowLock.lock();
+        try {
+            for (PendingFrame frame : window) {
+                writeFrame(frame);
+            }
+        } finally {
+            windowLock.unlock();
+        }
+        out.flush();
+    }
+
+    private void startAckReader(Socket sessionSocket, InputStream in) {
+        threadMode.newThread("relp-ack-reader-" + name, () -> readAcks(sessionSocket, in)).start();
+    }
+
+    private void readAcks(Socket sessionSocket, InputStream in) {
+        try {
+            while (socket == sessionSocket) {
+                RelpFrame frame = RelpFrames.read(in);
+                if ("serverclose".equals(frame.command())) {
+                    throw new IOException("RELP session closed by server");
+                }
+                if ("rsp".equals(frame.command())) {
+                    onResponse(frame);
+                }
+            }
+        } catch (IOException ex) {
+            onSessionLost(sessionSocket, ex);
+        }
+    }
+
+    private void onResponse(RelpFrame response) {
+        PendingFrame acknowledged = null;
+        windowLock.lock();
+        try {
+            Iterator<PendingFrame> frames = window.iterator();
+            while (frames.hasNext()) {
+                PendingFrame frame = frames.next();
+                if (frame.txnr == response.txnr()) {
+                    frames.remove();
+                    acknowledged = frame;
+                    break;
+                }
+            }
+            recordWindowOccupancy();
+            windowChanged.signalAll();
+        } finally {
+            windowLock.unlock();
+        }
+        if (acknowledged == null) {
+            return;
+        }
+        long latencyNanos = System.nanoTime() - acknowledged.sentNanos;
+        health.recordTransmitTime(latencyNanos);
+        LoggingMetrics.distributedLogAckLatency(name, Duration.ofNanos(latencyNanos));
+        String status = response.dataAsString();
+        if (!status.startsWith("200")) {
+            // Rejected by the server, retransmitting would be rejected again
+            lastTransmitError = "RELP frame rejected: " + status;
+            LoggingMetrics.incrementDistributedLogTransmitError(name);
+            rejectedFrameHandler.onFrameRejected(acknowledged.message, 0, acknowledged.message.length,
+                    lastTransmitError);
+        }
+    }
+
+    /**
+     * Closes the session if it is still the current one, and reconnects immediately in the background. Unacknowledged
+     * frames remain in the window to be retransmitted.
+     */
+    private void onSessionLost(Socket sessionSocket, Exception ex) {
+        writeLock.lock();
+        try {
+            if (sessionSocket == null || socket != sessionSocket) {
+                return;
+            }
+            CloseUtil.closeQuietly(sessionSocket);
+            socket = null;
+            out = null;
+            lastTransmitError = ex.getMessage() != null ? ex.getMessage() : ex.getClass().getName();
+            connectionState.notifyDisconnected();
+        } finally {
+            writeLock.unlock();
+        }
+        signalWindowChanged();
+        if (!closed) {
+            LoggingMetrics.incrementDistributedLogTransmitError(name);
+            reconnector.reconnectNow();
+        }
+    }
+
+    /**
+     * Waits up to <code>timeoutMillis</code> for outstanding acknowledgements, closes the RELP session and stops the
+     * background reconnector. Frames not acknowledged by then are lost.
+     */
+    @Override
+    public void disconnect() {
+        lifecycleLock.lock();
+        try {
+            closed = true;
+            if (reconnector != null) {
+                reconnector.stop();
+            }
+        } finally {
+            lifecycleLock.unlock();
+        }
+        awaitWindowDrained();
+        writeLock.lock();
+        try {
+            Socket currentSocket = socket;
+            if (currentSocket != null) {
+                try {
+                    RelpFrames.write(out, RelpFrames.nextTxnr(txnr), "close", new byte[0], 0, 0);
+                    out.flush();
+                } catch (IOException ex) {
+                    // Closing anyway
+                }
+            }
+            socket = null;
+            out = null;
+            CloseUtil.closeQuietly(currentSocket);
+            connectionState.notifyDisconnected();
+        } finally {
+            writeLock.unlock();
+        }
+        windowLock.lock();
+        try {
+            window.clear();
+            recordWindowOccupancy();
+            windowChanged.signalAll();
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    private void awaitWindowDrained() {
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        windowLock.lock();
+        try {
+            while (!window.isEmpty() && connectionState.isConnected() && remainingNanos > 0) {
+                remainingNanos = windowChanged.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    private void signalWindowChanged() {
+        windowLock.lock();
+        try {
+            windowChanged.signalAll();
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connectionState.isConnected();
+    }
+
+    /**
+     * @return number of frames sent but not acknowledged yet
+     */
+    int getWindowOccupancy() {
+        windowLock.lock();
+        try {
+            return window.size();
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    private void recordWindowOccupancy() {
+        LoggingMetrics.distributedLogWindowOccupancy(name, window.size());
+    }
+
+    private void onConnectionSuccessful() {
+        health.reset();
+        connectionState.notifyConnected();
+        lastTransmitError = null;
+        LoggingMetrics.incrementDistributedLogConnectionEstablished(name);
+        if (!connectionLoggedOnce) {
+            connectionLoggedOnce = true;
+            System.out.printf("RELP Syslog Appender connected to %s:%d\n", syslogHost, port);
+        }
+    }
+
+    private void onConnectionError(Exception ex) {
+        lastTransmitError = "Not connected: " + ex.getMessage();
+        connectionState.notifyError();
+        LoggingMetrics.incrementDistributedLogConnectionError(name);
+        if (!connectionLoggedOnce) {
+            connectionLoggedOnce = true;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ex.printStackTrace(new PrintStream(baos, true));
+            System.err.printf("RELP Syslog Appender failed to connect to %s:%d: %s\n",
+                    syslogHost, port, baos.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Splits the buffer into one frame per message. A message starting with a digit is octet-counted, i.e. prefixed by
+     * its length and a space, other messages are terminated by a line feed. Each frame retains the message as it has
+     * been passed to transmit (including prefix or line feed) to be passed to the {@link RejectedFrameHandler}.
+     */
+    private static PendingFrame[] splitFrames(byte[] buffer, int offset, int length) {
+        List<PendingFrame> frames = new ArrayList<>();
+        int end = offset + length;
+        int messageStart = offset;
+        while (messageStart < end) {
+            int dataStart;
+            int dataEnd;
+            int messageEnd;
+            int octetCount = parseOctetCount(buffer, messageStart, end);
+            if (octetCount >= 0) {
+                dataStart = indexOf(buffer, SP, messageStart, end) + 1;
+                dataEnd = Math.min(dataStart + octetCount, end);
+                // Octet-counted messages may still be terminated by a line feed
+                messageEnd = dataEnd < end && buffer[dataEnd] == LF ? dataEnd + 1 : dataEnd;
+                if (dataEnd > dataStart && buffer[dataEnd - 1] == LF) {
+                    dataEnd--;
+                }
+            } else {
+                dataStart = messageStart;
+                dataEnd = indexOf(buffer, LF, messageStart, end);
+                messageEnd = Math.min(dataEnd + 1, end);
+            }
+            byte[] message = Arrays.copyOfRange(buffer, messageStart, messageEnd);
+            frames.add(new PendingFrame(message, dataStart - messageStart, dataEnd - dataStart));
+            messageStart = messageEnd;
+        }
+        return frames.toArray(new PendingFrame[0]);
+    }
+
+    /**
+     * @return the length prefix of an octet-counted message starting at <code>start</code>, or -1 if the message is
+     * not octet-counted
+     */
+    private static int parseOctetCount(byte[] buffer, int start, int end) {
+        int count = 0;
+        int position = start;
+        while (position < end && buffer[position] >= '0' && buffer[position] <= '9' && position - start < 10) {
+            count = count * 10 + (buffer[position] - '0');
+            position++;
+        }
+        return position > start && position < end && buffer[position] == SP ? count : -1;
+    }
+
+    /**
+     * @return the index of the first occurrence of <code>value</code>, or <code>end</code> if not found
+     */
+    private static int indexOf(byte[] buffer, byte value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static class PendingFrame {
+        /**
+         * The message as passed to transmit
+         */
+        private final byte[] message;
+        /**
+         * The part of the message sent as RELP command data
+         */
+        private final int dataOffset;
+        private final int dataLength;
+        private int txnr;
+        private long sentNanos;
+
+        PendingFrame(byte[] message, int dataOffset, int dataLength) {
+            this.message = message;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+    }
+}
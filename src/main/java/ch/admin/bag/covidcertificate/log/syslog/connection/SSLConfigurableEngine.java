@@ -0,0 +1,68 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import ch.qos.logback.core.net.ssl.SSLConfigurable;
+import ch.qos.logback.core.net.ssl.SSLConfigurableSocket;
+import lombok.RequiredArgsConstructor;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Adapts an {@link SSLEngine} to {@link SSLConfigurable}, modelled after {@link SSLConfigurableSocket}, to allow
+ * configuring an engine using the logback SSL parameters configuration.
+ */
+@RequiredArgsConstructor
+class SSLConfigurableEngine implements SSLConfigurable {
+
+    private final SSLEngine engine;
+
+    @Override
+    public String[] getDefaultProtocols() {
+        return engine.getEnabledProtocols();
+    }
+
+    @Override
+    public String[] getSupportedProtocols() {
+        return engine.getSupportedProtocols();
+    }
+
+    @Override
+    public void setEnabledProtocols(String[] protocols) {
+        engine.setEnabledProtocols(protocols);
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return engine.getEnabledCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return engine.getSupportedCipherSuites();
+    }
+
+    @Override
+    public void setEnabledCipherSuites(String[] suites) {
+        engine.setEnabledCipherSuites(suites);
+    }
+
+    @Override
+    public void setNeedClientAuth(boolean state) {
+        engine.setNeedClientAuth(state);
+    }
+
+    @Override
+    public void setWantClientAuth(boolean state) {
+        engine.setWantClientAuth(state);
+    }
+
+    @Override
+    public void setHostnameVerification(boolean hostnameVerification) {
+        if (!hostnameVerification) {
+            return;
+        }
+        SSLParameters sslParameters = engine.getSSLParameters();
+        sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(sslParameters);
+    }
+}
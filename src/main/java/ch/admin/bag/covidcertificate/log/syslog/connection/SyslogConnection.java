@@ -0,0 +1,59 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import ch.admin.bag.covidcertificate.log.async.ThreadMode;
+
+/**
+ * A connection to a syslog server used by the {@link ch.admin.bag.covidcertificate.log.syslog.TLSSyslogAppender}.
+ * Implementations never throw on transmit errors, but report them using the return value of {@link #transmit(byte[])}
+ * to allow the appender to use its fallback appender.
+ */
+public interface SyslogConnection {
+
+    /**
+     * @return true if the message has been handed over to the transport successfully, false if any error occurred
+     */
+    default boolean transmit(byte[] syslogMessage) {
+        return transmit(syslogMessage, 0, syslogMessage.length);
+    }
+
+    /**
+     * @return true if <code>length</code> bytes starting at <code>offset</code> have been handed over to the transport
+     * successfully, false if any error occurred
+     */
+    boolean transmit(byte[] buffer, int offset, int length);
+
+    /**
+     * Attempts to connect to the syslog server. Does not throw if the connection cannot be established.
+     */
+    void attemptConnection();
+
+    void disconnect();
+
+    /**
+     * Sets the mode of the background threads started by the connection, i.e. its reconnector. Must be set before
+     * {@link #attemptConnection()}.
+     */
+    default void setThreadMode(ThreadMode threadMode) {
+    }
+
+    /**
+     * Sets the handler of messages the syslog server has rejected after they have been transmitted successfully. Must
+     * be set before {@link #attemptConnection()}.
+     */
+    default void setRejectedFrameHandler(RejectedFrameHandler rejectedFrameHandler) {
+    }
+
+    String getLastTransmitError();
+
+    boolean isConnected();
+
+    /**
+     * @return the health score fed by the transmit times measured by this connection
+     */
+    ConnectionHealth getHealth();
+
+    /**
+     * @return the name identifying this connection in metrics
+     */
+    String getName();
+}
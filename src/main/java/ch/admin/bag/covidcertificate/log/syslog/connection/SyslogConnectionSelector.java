@@ -0,0 +1,67 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects the syslog host used by a {@link FailoverSyslogConnection} to transmit a message.
+ */
+public interface SyslogConnectionSelector {
+
+    /**
+     * @return the index of the connected connection to use, or -1 if none of the connections is connected
+     */
+    int select(SyslogConnection[] connections);
+
+    /**
+     * Distributes messages evenly over all connected hosts.
+     */
+    static SyslogConnectionSelector roundRobin() {
+        AtomicInteger next = new AtomicInteger();
+        return connections -> {
+            int start = Math.floorMod(next.getAndIncrement(), connections.length);
+            for (int i = 0; i < connections.length; i++) {
+                int index = (start + i) % connections.length;
+                if (connections[index].isConnected()) {
+                    return index;
+                }
+            }
+            return -1;
+        };
+    }
+
+    /**
+     * Prefers the connected host with the lowest average transmit time. Hosts without measurements (i.e. just
+     * reconnected) are preferred until their transmit time has been measured.
+     */
+    static SyslogConnectionSelector leastLatency() {
+        return connections -> {
+            int selected = -1;
+            long selectedNanos = Long.MAX_VALUE;
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i].isConnected()) {
+                    long nanos = connections[i].getHealth().getAverageTransmitNanos();
+                    if (nanos < selectedNanos) {
+                        selected = i;
+                        selectedNanos = nanos;
+                    }
+                }
+            }
+            return selected;
+        };
+    }
+
+    /**
+     * Uses the first connected host in configuration order, i.e. messages are sent to the primary host whenever it is
+     * connected, and secondary hosts are only used while it is not.
+     */
+    static SyslogConnectionSelector primarySecondary() {
+        return connections -> {
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i].isConnected()) {
+                    return i;
+                }
+            }
+            return -1;
+        };
+    }
+}
@@ -0,0 +1,73 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import ch.admin.bag.covidcertificate.log.async.ThreadMode;
+import lombok.RequiredArgsConstructor;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Re-establishes a lost connection in the background. Periodically checks the {@link ConnectionState} and runs the
+ * connection probe once the back off has expired, so that threads transmitting messages never block on connection
+ * attempts and recovery does not depend on messages being logged. Runs on a thread of the connection's
+ * {@link ThreadMode}.
+ */
+@RequiredArgsConstructor
+class SyslogReconnector {
+
+    private static final long CHECK_INTERVAL_MILLIS = 100;
+
+    private final ConnectionState connectionState;
+    private final Runnable probe;
+    private final String threadName;
+    private final ThreadMode threadMode;
+    private ScheduledExecutorService executor;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    void start() {
+        lock.lock();
+        try {
+            if (executor == null) {
+                executor = Executors.newSingleThreadScheduledExecutor(threadMode.threadFactory(threadName));
+                executor.scheduleWithFixedDelay(this::probeIfDue,
+                        CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks for a due reconnect immediately instead of waiting for the next periodic check.
+     */
+    void reconnectNow() {
+        lock.lock();
+        try {
+            if (executor != null) {
+                executor.execute(this::probeIfDue);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void stop() {
+        lock.lock();
+        try {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void probeIfDue() {
+        if (connectionState.startProbe()) {
+            probe.run();
+        }
+    }
+}
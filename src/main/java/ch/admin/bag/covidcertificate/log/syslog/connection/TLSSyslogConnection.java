@@ -1,5 +1,6 @@
 package ch.admin.bag.covidcertificate.log.syslog.connection;
 
+import ch.admin.bag.covidcertificate.log.async.ThreadMode;
 import ch.admin.bag.covidcertificate.log.metrics.LoggingMetrics;
 import ch.qos.logback.core.net.ssl.SSLConfigurableSocket;
 import ch.qos.logback.core.net.ssl.SSLConfiguration;
@@ -8,6 +9,7 @@ import ch.qos.logback.core.spi.ContextAware;
 import ch.qos.logback.core.util.CloseUtil;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
@@ -19,87 +21,138 @@ import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.time.Duration;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Blocking syslog connection using an {@link SSLSocket}. Transmits messages on the calling thread. Lost connections are
+ * re-established by a {@link SyslogReconnector} in the background, transmitting never blocks on connection attempts.
+ */
 @RequiredArgsConstructor
-public class TLSSyslogConnection {
+public class TLSSyslogConnection implements SyslogConnection {
 
-    private SSLSocket clientSocket;
+    private volatile SSLSocket clientSocket;
 
+    @Getter
+    private final String name;
     private final String syslogHost;
     private final int port;
     private final SSLContext sslContext;
     private final SSLParametersConfiguration sslParameters;
     private final int timeoutMillis;
     private final ConnectionState connectionState = ConnectionState.disconnected();
-    private boolean connectionLoggedOnce = false;
     @Getter
-    private String lastTransmitError;
+    private final ConnectionHealth health = new ConnectionHealth();
+    // Guards starting and stopping the reconnector
+    private final ReentrantLock lifecycleLock = new ReentrantLock();
+    private SyslogReconnector reconnector;
+    @Setter
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    private volatile boolean closed;
+    private volatile boolean connectionLoggedOnce = false;
+    @Getter
+    private volatile String lastTransmitError;
 
-    public static TLSSyslogConnection create(String syslogHost, int port, SSLConfiguration ssl, ContextAware context,
-                                             int timeoutMillis) throws GeneralSecurityException {
+    public static TLSSyslogConnection create(String name, String syslogHost, int port, SSLConfiguration ssl,
+                                             ContextAware context, int timeoutMillis) throws GeneralSecurityException {
         SSLContext sslContext = ssl.createContext(context);
         SSLParametersConfiguration parameters = ssl.getParameters();
         parameters.setContext(context.getContext());
-        return new TLSSyslogConnection(syslogHost, port, sslContext, parameters, timeoutMillis);
+        return new TLSSyslogConnection(name, syslogHost, port, sslContext, parameters, timeoutMillis);
     }
 
     /**
-     * Writes the messge to the TCP socket's write buffer, attempting to reconnect if necessary
+     * Writes the messge to the TCP socket's write buffer if connected
      *
-     * @return true if the message has been successfully written to the TCP socket's write buffer, false if any error occurred
+     * @return true if the message has been successfully written to the TCP socket's write buffer, false if not
+     * connected or any error occurred
      */
+    @Override
     public boolean transmit(byte[] syslogMessage) {
-        if (connectionState.shouldReconnect()) {
-            attemptConnection();
-        }
+        return transmit(syslogMessage, 0, syslogMessage.length);
+    }
+
+    /**
+     * Writes <code>length</code> bytes starting at <code>offset</code> to the TCP socket's write buffer using a single
+     * write and flush if connected. Used to transmit a batch of syslog messages at once.
+     *
+     * @return true if the messages have been successfully written to the TCP socket's write buffer, false if not
+     * connected or any error occurred
+     */
+    @Override
+    public boolean transmit(byte[] buffer, int offset, int length) {
         if (!connectionState.isConnected()) {
             return false;
         }
 
-        boolean success = attemptTransmit(syslogMessage);
-        // Immediate single retry on error. Monitoring has shown that most transmit errors are due to 'broken pipe'
-        // errors, which means the TCP connection has been lost/reset. Connection errors do not occur however, which
-        // means that transmit errors can usually be fixed by re-establishing the TCP connection.
+        boolean success = attemptTransmit(buffer, offset, length);
+        // Monitoring has shown that most transmit errors are due to 'broken pipe' errors, which means the TCP
+        // connection has been lost/reset. Connection errors do not occur however, which means that transmit errors can
+        // usually be fixed by re-establishing the TCP connection. The reconnector does so immediately in the
+        // background, using the fallback appender in the mean time.
         if (!success) {
-            disconnect();
-            attemptConnection();
-            success = attemptTransmit(syslogMessage);
-            // If the message cannot be transmitted, start exponential back off and retry re-connect later, using
-            // the fallback appender in the mean time until connected to the syslog server again.
-            if (!success) {
-                connectionState.notifyError();
-                disconnect();
-            }
+            closeSocket();
+            connectionState.notifyDisconnected();
+            reconnector.reconnectNow();
         }
 
         return success;
     }
 
-    private boolean attemptTransmit(byte[] syslogMessage) {
+    private boolean attemptTransmit(byte[] buffer, int offset, int length) {
+        // Snapshot, the socket is closed and cleared concurrently when another transmit fails or on disconnect
+        SSLSocket socket = clientSocket;
+        if (socket == null) {
+            lastTransmitError = "Not connected";
+            return false;
+        }
         long start = System.nanoTime();
         try {
-            OutputStream outputStream = clientSocket.getOutputStream();
-            outputStream.write(syslogMessage);
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(buffer, offset, length);
             outputStream.flush();
             return true;
         } catch (IOException ex) {
             lastTransmitError = ex.getMessage();
-            LoggingMetrics.incrementDistributedLogTransmitError();
+            LoggingMetrics.incrementDistributedLogTransmitError(name);
             return false;
         } finally {
-            LoggingMetrics.distributedLogTransmitTime(Duration.ofNanos(System.nanoTime() - start));
+            long nanos = System.nanoTime() - start;
+            health.recordTransmitTime(nanos);
+            LoggingMetrics.distributedLogTransmitTime(name, Duration.ofNanos(nanos));
         }
     }
 
     /**
-     * Attempts to connect, initializes the {@link #clientSocket} connected to the syslog server and sets the connection
-     * state to connected.
+     * Starts the background reconnector and attempts to connect immediately if not connected yet. Blocks until the
+     * connection has been established or the attempt has failed.
      * <p>
      * If the connection attempt is unsuccessful, the error is logged once per application run to stderr, and the
      * connection is left in disconnected state. No exception is thrown in this case to allow logging to the fallback
-     * appender or a reconnection attempt in this case.
+     * appender until the reconnector has re-established the connection.
      */
+    @Override
     public void attemptConnection() {
+        lifecycleLock.lock();
+        try {
+            closed = false;
+            if (reconnector == null) {
+                reconnector = new SyslogReconnector(connectionState, this::probe,
+                        "tls-syslog-reconnector-" + name, threadMode);
+            }
+            reconnector.start();
+        } finally {
+            lifecycleLock.unlock();
+        }
+        if (connectionState.startProbe()) {
+            probe();
+        }
+    }
+
+    /**
+     * Connects to the syslog server while the connection is {@link ConnectionState.Status#HALF_OPEN half-open},
+     * initializes the {@link #clientSocket} and sets the connection state to connected.
+     */
+    private void probe() {
         try {
             SSLSocket clientSocket = (SSLSocket) sslContext.getSocketFactory().createSocket();
             clientSocket.setUseClientMode(true);
@@ -109,23 +162,53 @@ public class TLSSyslogConnection {
             clientSocket.connect(new InetSocketAddress(syslogHost, port), timeoutMillis);
             clientSocket.startHandshake();
             clientSocket.setKeepAlive(true);
+            if (closed) {
+                // Disconnected while the probe was in progress
+                CloseUtil.closeQuietly(clientSocket);
+                connectionState.notifyDisconnected();
+                return;
+            }
             this.clientSocket = clientSocket;
             onConnectionSuccessful();
         } catch (Exception ex) {
-            disconnect();
+            closeSocket();
             onConnectionError(ex);
         }
     }
 
+    /**
+     * Closes the connection and stops the background reconnector.
+     */
+    @Override
     public void disconnect() {
+        lifecycleLock.lock();
+        try {
+            closed = true;
+            if (reconnector != null) {
+                reconnector.stop();
+            }
+        } finally {
+            lifecycleLock.unlock();
+        }
         connectionState.notifyDisconnected();
-        CloseUtil.closeQuietly(clientSocket);
+        closeSocket();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connectionState.isConnected();
+    }
+
+    private void closeSocket() {
+        SSLSocket socket = clientSocket;
         clientSocket = null;
+        CloseUtil.closeQuietly(socket);
     }
 
     private void onConnectionSuccessful() {
+        health.reset();
         connectionState.notifyConnected();
-        LoggingMetrics.incrementDistributedLogConnectionEstablished();
+        LoggingMetrics.incrementDistributedLogConnectionEstablished(name);
         if (!connectionLoggedOnce) {
             connectionLoggedOnce = true;
             System.out.printf("TLS Syslog Appender connected to %s:%d\n", syslogHost, port);
@@ -133,8 +216,9 @@ public class TLSSyslogConnection {
     }
 
     private void onConnectionError(Exception ex) {
+        lastTransmitError = "Not connected: " + ex.getMessage();
         connectionState.notifyError();
-        LoggingMetrics.incrementDistributedLogConnectionError();
+        LoggingMetrics.incrementDistributedLogConnectionError(name);
         if (!connectionLoggedOnce) {
             connectionLoggedOnce = true;
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
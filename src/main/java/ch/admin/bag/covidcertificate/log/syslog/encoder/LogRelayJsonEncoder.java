@@ -0,0 +1,460 @@
+package ch.admin.bag.covidcertificate.log.syslog.encoder;
+
+import ch.admin.bag.covidcertificate.log.cloudfoundry.CloudFoundryAttributeProvider;
+import ch.admin.bag.covidcertificate.log.json.DeduplicatingStackTraceJsonProvider;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.pattern.Abbreviator;
+import ch.qos.logback.classic.pattern.TargetLengthBasedClassNameAbbreviator;
+import ch.qos.logback.classic.pattern.ThrowableHandlingConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.EncoderBase;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.Setter;
+import net.logstash.logback.composite.ContextJsonProvider;
+import net.logstash.logback.composite.JsonProvider;
+import net.logstash.logback.composite.loggingevent.ArgumentsJsonProvider;
+import net.logstash.logback.composite.loggingevent.LogstashMarkersJsonProvider;
+import net.logstash.logback.composite.loggingevent.MdcJsonProvider;
+import net.logstash.logback.composite.loggingevent.StackHashJsonProvider;
+import net.logstash.logback.composite.loggingevent.StackTraceJsonProvider;
+import net.logstash.logback.composite.loggingevent.TagsJsonProvider;
+import net.logstash.logback.encoder.StreamingEncoder;
+import net.logstash.logback.stacktrace.ShortenedThrowableConverter;
+import net.logstash.logback.util.SimpleObjectJsonGeneratorDelegate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A logback {@link Encoder} producing the JSON document of the <code>LOGRELAY</code> appender in a single pass, byte
+ * compatible with the <code>LoggingEventCompositeJsonEncoder</code> configured in <code>logback-spring.xml</code>:
+ * <pre>
+ * {"cf_app_id":...,"source_type":"APP/PROC/WEB","msg":{"@timestamp":...,"logger":...,"level":...,...,"message":...}}
+ * </pre>
+ * Instead of dispatching every event through the nested chain of JSON providers, the layout is fixed. The cloud
+ * foundry attributes and the logback context properties are serialized once on {@link #start()} and written as raw
+ * JSON fragments, field names are pre-serialized, and the level and the shortened logger names are serialized once
+ * per value. Only the fields with a variable structure (tags, MDC, arguments, markers and the stack trace) are written
+ * by the corresponding logstash providers. Context properties added after the encoder has been started are not
+ * included. Optionally, repeated stack traces are deduplicated by their stack hash
+ * ({@link #setStackTraceDedupWindowMillis(long) stackTraceDedupWindowMillis}).
+ * <p>
+ * Like the composite encoder, a JSON generator is reused per thread, and the syslog {@link #setPrefix(Encoder) prefix}
+ * as well as a line separator are written before and after the JSON document. Messages exceeding
+ * {@link #setMaxMessageSize(int) maxMessageSize} are truncated while writing, keeping the line separator.
+ */
+public class LogRelayJsonEncoder extends EncoderBase<ILoggingEvent>
+        implements StreamingEncoder<ILoggingEvent>, SyslogPayloadEncoder {
+
+    private static final int SHORTENED_LOGGER_NAME_LENGTH = 20;
+    private static final SerializableString MSG = new SerializedString("msg");
+    private static final SerializableString TIMESTAMP = new SerializedString("@timestamp");
+    private static final SerializableString LOGGER = new SerializedString("logger");
+    private static final SerializableString LEVEL = new SerializedString("level");
+    private static final SerializableString THREAD_NAME = new SerializedString("thread_name");
+    private static final SerializableString SEQUENCE = new SerializedString("sequence");
+    private static final SerializableString MESSAGE = new SerializedString("message");
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final DateTimeFormatter SECOND_FORMATTER = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss");
+
+    /**
+     * Encoder writing the bytes preceding the JSON document, i.e. the {@link SyslogMessagePrefixEncoder}
+     */
+    @Setter
+    private Encoder<ILoggingEvent> prefix;
+    private StreamingEncoder<ILoggingEvent> streamingPrefix;
+    @Setter
+    private String lineSeparator = System.lineSeparator();
+    /**
+     * Defaults to the {@link ShortenedThrowableConverter} configuration of <code>logback-spring.xml</code>
+     */
+    @Setter
+    private ThrowableHandlingConverter throwableConverter;
+    /**
+     * If greater than 0, the stack trace of an exception is only written the first time its stack hash is seen within
+     * this window, see {@link DeduplicatingStackTraceJsonProvider}
+     */
+    @Setter
+    private long stackTraceDedupWindowMillis;
+    /**
+     * Maximum length of a message including the prefix and the line separator, set by the appender
+     */
+    @Setter
+    private int maxMessageSize = Integer.MAX_VALUE;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, SerializableString> loggerNames = new ConcurrentHashMap<>();
+    private final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(this::createThreadState);
+    private JsonFactory jsonFactory;
+    private Map<Level, SerializableString> levels;
+    private Abbreviator loggerNameAbbreviator;
+    private ZoneId zoneId;
+    private JsonProvider<ILoggingEvent> tagsProvider;
+    private JsonProvider<ILoggingEvent> mdcProvider;
+    private JsonProvider<ILoggingEvent> argumentsProvider;
+    private JsonProvider<ILoggingEvent> markersProvider;
+    /**
+     * The stack hash and stack trace providers, or the deduplicating stack trace provider
+     */
+    private List<JsonProvider<ILoggingEvent>> exceptionProviders;
+    private List<JsonProvider<ILoggingEvent>> eventProviders;
+    /**
+     * Cloud foundry attributes followed by a comma, or empty if not running on cloud foundry
+     */
+    private String cloudFoundryFragment;
+    /**
+     * Context properties preceded by a comma, or empty if the context has no properties
+     */
+    private String contextFragment;
+    private byte[] lineSeparatorBytes;
+
+    @Override
+    public void start() {
+        jsonFactory = createJsonFactory();
+        loggerNameAbbreviator = new TargetLengthBasedClassNameAbbreviator(SHORTENED_LOGGER_NAME_LENGTH);
+        zoneId = ZoneId.systemDefault();
+        levels = new IdentityHashMap<>();
+        for (Level level : List.of(Level.ALL, Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR, Level.OFF)) {
+            levels.put(level, new SerializedString(level.toString()));
+        }
+        createEventProviders();
+        try {
+            CloudFoundryAttributeProvider cloudFoundryAttributes = startProvider(new CloudFoundryAttributeProvider());
+            String cloudFoundryFields = renderFields(cloudFoundryAttributes);
+            cloudFoundryFragment = cloudFoundryFields.isEmpty() ? "" : cloudFoundryFields + ",";
+            String contextFields = renderFields(startProvider(new ContextJsonProvider<>()));
+            contextFragment = contextFields.isEmpty() ? "" : "," + contextFields;
+        } catch (IOException e) {
+            addError("Failed to serialize constant fields", e);
+            return;
+        }
+        lineSeparatorBytes = lineSeparator == null ? new byte[0] : lineSeparator.getBytes(StandardCharsets.UTF_8);
+        if (prefix != null && !prefix.isStarted()) {
+            prefix.start();
+        }
+        // A streaming encoder configured as the prefix encodes logging events like the prefix
+        @SuppressWarnings("unchecked")
+        StreamingEncoder<ILoggingEvent> streaming = prefix instanceof StreamingEncoder<?> ?
+                (StreamingEncoder<ILoggingEvent>) prefix : null;
+        streamingPrefix = streaming;
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (eventProviders != null) {
+            eventProviders.forEach(JsonProvider::stop);
+        }
+        if (prefix != null) {
+            prefix.stop();
+        }
+    }
+
+    private JsonFactory createJsonFactory() {
+        JsonFactory factory = JsonFactory.builder()
+                .disable(JsonFactory.Feature.USE_THREAD_LOCAL_FOR_BUFFER_RECYCLING)
+                .build();
+        ObjectMapper objectMapper = new ObjectMapper(factory).disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+        try {
+            objectMapper.findAndRegisterModules();
+        } catch (ServiceConfigurationError e) {
+            addError("Error occurred while dynamically loading jackson modules", e);
+        }
+        return objectMapper.getFactory();
+    }
+
+    private void createEventProviders() {
+        tagsProvider = startProvider(new TagsJsonProvider());
+        mdcProvider = startProvider(new MdcJsonProvider());
+        argumentsProvider = startProvider(new ArgumentsJsonProvider());
+        markersProvider = startProvider(new LogstashMarkersJsonProvider());
+        ThrowableHandlingConverter converter = throwableConverter != null ? throwableConverter : defaultThrowableConverter();
+        if (stackTraceDedupWindowMillis > 0) {
+            DeduplicatingStackTraceJsonProvider stackTrace = new DeduplicatingStackTraceJsonProvider();
+            stackTrace.setWindowMillis(stackTraceDedupWindowMillis);
+            stackTrace.setThrowableConverter(converter);
+            exceptionProviders = List.of(startProvider(stackTrace));
+        } else {
+            StackHashJsonProvider stackHash = new StackHashJsonProvider();
+            stackHash.setFieldName("exception-hash");
+            StackTraceJsonProvider stackTrace = new StackTraceJsonProvider();
+            stackTrace.setFieldName("exception");
+            stackTrace.setThrowableConverter(converter);
+            exceptionProviders = List.of(startProvider(stackHash), startProvider(stackTrace));
+        }
+        List<JsonProvider<ILoggingEvent>> providers = new ArrayList<>(
+                List.of(tagsProvider, mdcProvider, argumentsProvider, markersProvider));
+        providers.addAll(exceptionProviders);
+        eventProviders = providers;
+    }
+
+    private static ThrowableHandlingConverter defaultThrowableConverter() {
+        ShortenedThrowableConverter converter = new ShortenedThrowableConverter();
+        converter.setMaxDepthPerThrowable(40);
+        converter.setMaxLength(4096);
+        converter.setShortenedClassNameLength(20);
+        converter.setRootCauseFirst(true);
+        converter.addExclude("sun\\.reflect\\..*\\.invoke.*");
+        return converter;
+    }
+
+    private <P extends JsonProvider<ILoggingEvent>> P startProvider(P provider) {
+        provider.setContext(getContext());
+        provider.start();
+        return provider;
+    }
+
+    /**
+     * Renders the fields written by a provider that does not depend on the event, without the enclosing braces.
+     */
+    private String renderFields(JsonProvider<ILoggingEvent> provider) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonGenerator generator = createGenerator(bytes)) {
+            generator.writeStartObject();
+            provider.writeTo(generator, null);
+            generator.writeEndObject();
+        }
+        String object = bytes.toString(StandardCharsets.UTF_8);
+        return object.substring(1, object.length() - 1);
+    }
+
+    private JsonGenerator createGenerator(OutputStream outputStream) throws IOException {
+        JsonGenerator generator = jsonFactory.createGenerator(outputStream, JsonEncoding.UTF8)
+                .disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .setRootValueSeparator(new SerializedString(""));
+        return new SimpleObjectJsonGeneratorDelegate(generator);
+    }
+
+    private ThreadState createThreadState() {
+        try {
+            return new ThreadState();
+        } catch (IOException e) {
+            // Not thrown when creating a generator
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public byte[] headerBytes() {
+        return null;
+    }
+
+    @Override
+    public byte[] encode(ILoggingEvent event) {
+        ThreadState state = threadState.get();
+        state.buffer.reset();
+        try {
+            encode(event, state.buffer);
+        } catch (IOException e) {
+            addWarn("Error encountered while encoding log event. Event: " + event, e);
+            return null;
+        }
+        return Arrays.copyOf(state.buffer.buffer(), state.buffer.size());
+    }
+
+    @Override
+    public void encode(ILoggingEvent event, OutputStream outputStream) throws IOException {
+        if (!isStarted()) {
+            throw new IllegalStateException("Encoder is not started");
+        }
+        event.prepareForDeferredProcessing();
+        ThreadState state = threadState.get();
+        state.target.connect(outputStream, Math.max(0, maxMessageSize - lineSeparatorBytes.length));
+        try {
+            if (streamingPrefix != null) {
+                streamingPrefix.encode(event, state.target);
+            } else if (prefix != null) {
+                state.target.write(prefix.encode(event));
+            }
+            writeDocument(state, event);
+            state.generator.flush();
+        } catch (IOException | RuntimeException e) {
+            // The generator is left in an inconsistent state, a new one is created for the next event
+            threadState.remove();
+            throw e;
+        } finally {
+            state.target.disconnect();
+        }
+        outputStream.write(lineSeparatorBytes);
+    }
+
+    /**
+     * The JSON document starts at the first opening brace, as the syslog prefix does not contain any.
+     */
+    @Override
+    public int payloadOffset(byte[] message, int offset, int length) {
+        if (prefix == null) {
+            return 0;
+        }
+        for (int i = 0; i < length; i++) {
+            if (message[offset + i] == '{') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void writeDocument(ThreadState state, ILoggingEvent event) throws IOException {
+        JsonGenerator generator = state.generator;
+        generator.writeStartObject();
+        generator.writeRaw(cloudFoundryFragment);
+        generator.writeFieldName(MSG);
+        generator.writeStartObject();
+
+        generator.writeFieldName(TIMESTAMP);
+        state.writeTimestamp(generator, event.getTimeStamp());
+        generator.writeRaw(contextFragment);
+        if (event.getLoggerName() != null) {
+            generator.writeFieldName(LOGGER);
+            generator.writeString(loggerNames.computeIfAbsent(event.getLoggerName(), this::shortenedLoggerName));
+        }
+        generator.writeFieldName(LEVEL);
+        generator.writeString(level(event.getLevel()));
+        tagsProvider.writeTo(generator, event);
+        if (event.getThreadName() != null) {
+            generator.writeFieldName(THREAD_NAME);
+            generator.writeString(event.getThreadName());
+        }
+        mdcProvider.writeTo(generator, event);
+        argumentsProvider.writeTo(generator, event);
+        generator.writeFieldName(SEQUENCE);
+        generator.writeNumber(sequence.incrementAndGet());
+        markersProvider.writeTo(generator, event);
+        for (int i = 0; i < exceptionProviders.size(); i++) {
+            exceptionProviders.get(i).writeTo(generator, event);
+        }
+        if (event.getFormattedMessage() != null) {
+            generator.writeFieldName(MESSAGE);
+            generator.writeString(event.getFormattedMessage());
+        }
+
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    private SerializableString shortenedLoggerName(String loggerName) {
+        return new SerializedString(loggerNameAbbreviator.abbreviate(loggerName));
+    }
+
+    private SerializableString level(Level level) {
+        SerializableString serializedLevel = levels.get(level);
+        return serializedLevel != null ? serializedLevel : new SerializedString(level.toString());
+    }
+
+    @Override
+    public byte[] footerBytes() {
+        return null;
+    }
+
+    /**
+     * The thread's JSON generator writing to the output stream the event is currently encoded to, a buffer for
+     * {@link #encode(ILoggingEvent)} and the cached timestamp second
+     */
+    private class ThreadState {
+        private final ConnectableOutputStream target = new ConnectableOutputStream();
+        private final JsonGenerator generator;
+        private final ReusableByteArrayOutputStream buffer = new ReusableByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+        private final char[] timestamp = new char[64];
+        private long cachedEpochSecond = Long.MIN_VALUE;
+        private int secondLength;
+        private String offset;
+
+        ThreadState() throws IOException {
+            this.generator = createGenerator(target);
+        }
+
+        /**
+         * Writes the timestamp formatted like {@link DateTimeFormatter#ISO_OFFSET_DATE_TIME} in the system time zone,
+         * i.e. <code>2020-05-29T12:47:17.653+02:00</code>. The fraction omits trailing zeros.
+         */
+        void writeTimestamp(JsonGenerator generator, long timestamp) throws IOException {
+            long epochSecond = Math.floorDiv(timestamp, 1000);
+            if (epochSecond != cachedEpochSecond) {
+                ZonedDateTime second = Instant.ofEpochSecond(epochSecond).atZone(zoneId);
+                String formattedSecond = SECOND_FORMATTER.format(second);
+                formattedSecond.getChars(0, formattedSecond.length(), this.timestamp, 0);
+                secondLength = formattedSecond.length();
+                offset = second.getOffset().getId();
+                cachedEpochSecond = epochSecond;
+            }
+            int length = secondLength;
+            int millis = Math.floorMod(timestamp, 1000);
+            if (millis != 0) {
+                this.timestamp[length++] = '.';
+                this.timestamp[length++] = (char) ('0' + millis / 100);
+                if (millis % 100 != 0) {
+                    this.timestamp[length++] = (char) ('0' + millis / 10 % 10);
+                    if (millis % 10 != 0) {
+                        this.timestamp[length++] = (char) ('0' + millis % 10);
+                    }
+                }
+            }
+            offset.getChars(0, offset.length(), this.timestamp, length);
+            generator.writeString(this.timestamp, 0, length + offset.length());
+        }
+    }
+
+    /**
+     * Delegates to the output stream an event is currently encoded to, allowing to reuse the JSON generator. Bytes
+     * beyond the limit of the current event are discarded.
+     */
+    private static class ConnectableOutputStream extends OutputStream {
+        private OutputStream delegate;
+        private int remaining;
+
+        void connect(OutputStream outputStream, int limit) {
+            this.delegate = outputStream;
+            this.remaining = limit;
+        }
+
+        void disconnect() {
+            this.delegate = null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (remaining > 0) {
+                remaining--;
+                delegate.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int length = Math.min(len, remaining);
+            if (length > 0) {
+                remaining -= length;
+                delegate.write(b, off, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+    }
+}
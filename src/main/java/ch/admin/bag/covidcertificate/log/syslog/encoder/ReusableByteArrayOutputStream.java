@@ -0,0 +1,69 @@
+package ch.admin.bag.covidcertificate.log.syslog.encoder;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A {@link ByteArrayOutputStream} which exposes its buffer, allowing to reuse the buffer for multiple messages without
+ * copying the written bytes. Not thread-safe, unlike {@link ByteArrayOutputStream} its write methods are not
+ * synchronized.
+ */
+class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+    ReusableByteArrayOutputStream(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    /**
+     * @return the internal buffer, holding {@link #size()} valid bytes
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * Removes the last byte if it equals <code>value</code>.
+     */
+    void trimTrailing(byte value) {
+        if (count > 0 && buf[count - 1] == value) {
+            count--;
+        }
+    }
+
+    /**
+     * Discards the bytes beyond <code>length</code>.
+     */
+    void truncate(int length) {
+        count = Math.max(0, Math.min(count, length));
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    @Override
+    public void writeBytes(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void reset() {
+        count = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            byte[] newBuffer = new byte[Math.max(capacity, buf.length * 2)];
+            System.arraycopy(buf, 0, newBuffer, 0, count);
+            buf = newBuffer;
+        }
+    }
+}
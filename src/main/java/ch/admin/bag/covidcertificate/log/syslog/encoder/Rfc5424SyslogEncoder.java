@@ -0,0 +1,415 @@
+package ch.admin.bag.covidcertificate.log.syslog.encoder;
+
+import ch.admin.bag.covidcertificate.log.cloudfoundry.CloudFoundryCoordinates;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LevelToSyslogSeverity;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.EncoderBase;
+import ch.qos.logback.core.net.SyslogConstants;
+import lombok.Setter;
+import net.logstash.logback.encoder.StreamingEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A logback {@link Encoder} producing syslog messages according to
+ * <a href="https://datatracker.ietf.org/doc/html/rfc5424">RFC5424</a>, with the payload provided by the
+ * {@link #setBody(Encoder) body} encoder (i.e. a JSON encoder):
+ * <pre>
+ * &lt;14&gt;1 2024-01-01T12:00:00.123Z host app 123 - [cf@32473 app_id="..." ...][log@32473 level="INFO" logger="..." trace_id="..."] {"json":"body"}
+ * </pre>
+ * The cloud foundry app coordinates, level, logger and trace ids are provided as SD-ELEMENTs, allowing the log relay to
+ * route and index messages without parsing the body. Messages are framed using octet counting as specified in
+ * <a href="https://datatracker.ietf.org/doc/html/rfc6587#section-3.4.1">RFC6587</a> (<code>LENGTH SP MESSAGE</code>),
+ * or terminated by a line feed if {@link #setOctetCounting(boolean) octetCounting} is disabled. Messages exceeding
+ * {@link #setMaxMessageSize(int) maxMessageSize} are truncated before being framed, so that the octet count matches
+ * the truncated message, and the line feed is kept.
+ * <p>
+ * All constant parts of the header are precomputed. The timestamp is cached per second and thread, and only the
+ * milliseconds are patched for each event.
+ */
+public class Rfc5424SyslogEncoder extends EncoderBase<ILoggingEvent>
+        implements StreamingEncoder<ILoggingEvent>, SyslogPayloadEncoder {
+
+    /**
+     * Private enterprise number reserved for documentation (RFC5612), to be replaced by a registered number
+     */
+    private static final int DEFAULT_ENTERPRISE_NUMBER = 32473;
+    private static final int SEVERITIES = 8;
+    private static final String NILVALUE = "-";
+    private static final int TIMESTAMP_SECOND_LENGTH = "yyyy-MM-ddTHH:mm:ss".length();
+    private static final DateTimeFormatter TIMESTAMP_SECOND_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+    private static final byte[] LOGGER_PARAM = " logger=\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRACE_ID_PARAM = " trace_id=\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SPAN_ID_PARAM = " span_id=\"".getBytes(StandardCharsets.US_ASCII);
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    @Setter
+    private Encoder<ILoggingEvent> body;
+    @Setter
+    private String appName;
+    @Setter
+    private int enterpriseNumber = DEFAULT_ENTERPRISE_NUMBER;
+    @Setter
+    private String traceIdMdcKey = "traceId";
+    @Setter
+    private String spanIdMdcKey = "spanId";
+    @Setter
+    private boolean octetCounting = true;
+    /**
+     * Maximum length of a message including its framing, set by the appender
+     */
+    @Setter
+    private int maxMessageSize = Integer.MAX_VALUE;
+    @Setter
+    private CloudFoundryCoordinates cloudFoundryCoordinates;
+
+    private final byte[][] priAndVersionBytes = new byte[SEVERITIES][];
+    private final Map<Level, byte[]> levelSdBytes = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> loggerNameBytes = new ConcurrentHashMap<>();
+    private final ThreadLocal<EncodingState> encodingState = ThreadLocal.withInitial(EncodingState::new);
+    /**
+     * <code> HOSTNAME APP-NAME PROCID MSGID [cf@...]</code>
+     */
+    private byte[] headerBytes;
+    private String logSdId;
+    private StreamingEncoder<ILoggingEvent> streamingBody;
+
+    @Override
+    public void start() {
+        if (body == null) {
+            addError("A body encoder must be configured for " + getClass().getSimpleName());
+            return;
+        }
+        if (!body.isStarted()) {
+            body.start();
+        }
+        // A streaming encoder configured as the body encodes logging events like the body
+        @SuppressWarnings("unchecked")
+        StreamingEncoder<ILoggingEvent> streaming = body instanceof StreamingEncoder<?> ?
+                (StreamingEncoder<ILoggingEvent>) body : null;
+        streamingBody = streaming;
+        if (cloudFoundryCoordinates == null) {
+            cloudFoundryCoordinates = CloudFoundryCoordinates.fromEnvironment().orElse(null);
+        }
+        for (int severity = 0; severity < SEVERITIES; severity++) {
+            priAndVersionBytes[severity] = ("<" + (SyslogConstants.LOG_USER + severity) + ">1 ")
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+        logSdId = "log@" + enterpriseNumber;
+        headerBytes = buildHeader().getBytes(StandardCharsets.UTF_8);
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        body.stop();
+    }
+
+    private String buildHeader() {
+        String applicationName = appName;
+        if (applicationName == null && cloudFoundryCoordinates != null) {
+            applicationName = cloudFoundryCoordinates.getApplicationName();
+        }
+        StringBuilder header = new StringBuilder()
+                .append(' ').append(headerField(getLocalHostname(), 255))
+                .append(' ').append(headerField(applicationName, 48))
+                .append(' ').append(ProcessHandle.current().pid())
+                .append(' ').append(NILVALUE)
+                .append(' ');
+        if (cloudFoundryCoordinates != null) {
+            header.append("[cf@").append(enterpriseNumber);
+            appendParam(header, "app_id", cloudFoundryCoordinates.getApplicationId());
+            appendParam(header, "app_name", cloudFoundryCoordinates.getApplicationName());
+            appendParam(header, "space_id", cloudFoundryCoordinates.getSpaceId());
+            appendParam(header, "space_name", cloudFoundryCoordinates.getSpaceName());
+            appendParam(header, "org_id", cloudFoundryCoordinates.getOrganizationId());
+            appendParam(header, "org_name", cloudFoundryCoordinates.getOrganizationName());
+            appendParam(header, "instance_id", cloudFoundryCoordinates.getInstanceId());
+            appendParam(header, "source_instance", cloudFoundryCoordinates.getInstanceIndex());
+            header.append(']');
+        }
+        return header.toString();
+    }
+
+    private static void appendParam(StringBuilder sd, String name, String value) {
+        if (value != null) {
+            sd.append(' ').append(name).append("=\"").append(escapeParamValue(value)).append('"');
+        }
+    }
+
+    /**
+     * Header fields are printable US-ASCII characters without spaces, limited in length
+     */
+    private static String headerField(String value, int maxLength) {
+        if (value == null || value.isEmpty()) {
+            return NILVALUE;
+        }
+        StringBuilder field = new StringBuilder(Math.min(value.length(), maxLength));
+        for (int i = 0; i < value.length() && field.length() < maxLength; i++) {
+            char c = value.charAt(i);
+            field.append(c > 32 && c < 127 ? c : '_');
+        }
+        return field.toString();
+    }
+
+    /**
+     * <a href="https://datatracker.ietf.org/doc/html/rfc5424#section-6.3.3">RFC5424</a>: '"', '\' and ']' MUST be
+     * escaped in PARAM-VALUE
+     */
+    static String escapeParamValue(String value) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\' || c == ']') {
+                if (escaped == null) {
+                    escaped = new StringBuilder(value.length() + 8).append(value, 0, i);
+                }
+                escaped.append('\\');
+            }
+            if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped != null ? escaped.toString() : value;
+    }
+
+    private static String getLocalHostname() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException uhe) {
+            return NILVALUE;
+        }
+    }
+
+    @Override
+    public byte[] headerBytes() {
+        return null;
+    }
+
+    @Override
+    public byte[] encode(ILoggingEvent event) {
+        ReusableByteArrayOutputStream message = encodeMessage(event);
+        EncodingState state = encodingState.get();
+        if (!octetCounting) {
+            return Arrays.copyOf(message.buffer(), message.size());
+        }
+        int lengthDigits = state.writeLength(message.size());
+        byte[] frame = new byte[lengthDigits + 1 + message.size()];
+        System.arraycopy(state.lengthBuffer, state.lengthBuffer.length - lengthDigits, frame, 0, lengthDigits);
+        frame[lengthDigits] = ' ';
+        System.arraycopy(message.buffer(), 0, frame, lengthDigits + 1, message.size());
+        return frame;
+    }
+
+    @Override
+    public void encode(ILoggingEvent event, OutputStream outputStream) throws IOException {
+        ReusableByteArrayOutputStream message = encodeMessage(event);
+        if (octetCounting) {
+            EncodingState state = encodingState.get();
+            int lengthDigits = state.writeLength(message.size());
+            outputStream.write(state.lengthBuffer, state.lengthBuffer.length - lengthDigits, lengthDigits);
+            outputStream.write(' ');
+        }
+        outputStream.write(message.buffer(), 0, message.size());
+    }
+
+    /**
+     * @return the syslog message without framing, in the calling thread's reusable buffer
+     */
+    private ReusableByteArrayOutputStream encodeMessage(ILoggingEvent event) {
+        EncodingState state = encodingState.get();
+        ReusableByteArrayOutputStream message = state.message;
+        message.reset();
+
+        message.writeBytes(priAndVersionBytes[LevelToSyslogSeverity.convert(event)]);
+        state.writeTimestamp(event.getTimeStamp(), message);
+        message.writeBytes(headerBytes);
+
+        message.writeBytes(levelSdBytes.computeIfAbsent(event.getLevel(), this::levelSd));
+        message.writeBytes(LOGGER_PARAM);
+        message.writeBytes(loggerNameBytes.computeIfAbsent(event.getLoggerName(), Rfc5424SyslogEncoder::paramValueBytes));
+        message.write('"');
+        Map<String, String> mdc = event.getMDCPropertyMap();
+        if (mdc != null) {
+            writeParam(message, TRACE_ID_PARAM, mdc.get(traceIdMdcKey));
+            writeParam(message, SPAN_ID_PARAM, mdc.get(spanIdMdcKey));
+        }
+        message.write(']');
+        message.write(' ');
+
+        writeBody(event, message);
+        if (octetCounting) {
+            message.trimTrailing((byte) '\n');
+        }
+        truncate(message);
+        return message;
+    }
+
+    /**
+     * Truncates the message, so that the framed message does not exceed <code>maxMessageSize</code>. The octet count
+     * is written afterwards for the truncated message, without octet counting the line feed is retained.
+     */
+    private void truncate(ReusableByteArrayOutputStream message) {
+        int size = message.size();
+        if (octetCounting) {
+            if ((long) decimalDigits(size) + 1 + size > maxMessageSize) {
+                message.truncate(maxOctetCountedLength(maxMessageSize));
+            }
+        } else if (size > maxMessageSize) {
+            message.truncate(maxMessageSize - 1);
+            message.write('\n');
+        }
+    }
+
+    /**
+     * @return the maximum length of a message framed as <code>LENGTH SP MESSAGE</code> in <code>frameLength</code> bytes
+     */
+    static int maxOctetCountedLength(int frameLength) {
+        int length = frameLength - 1 - decimalDigits(frameLength);
+        // A shorter length may have less digits, leaving room for one more byte
+        while (length + 2 + decimalDigits(length + 1) <= frameLength) {
+            length++;
+        }
+        return Math.max(0, length);
+    }
+
+    private static int decimalDigits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * The body follows the length (if octet counting), the six header fields and the SD-ELEMENTs, in which
+     * <code>]</code> is only contained in escaped param values.
+     */
+    @Override
+    public int payloadOffset(byte[] message, int offset, int length) {
+        int end = offset + length;
+        int position = offset;
+        for (int fields = octetCounting ? 7 : 6; fields > 0; fields--) {
+            while (position < end && message[position] != ' ') {
+                position++;
+            }
+            position++;
+        }
+        boolean quoted = false;
+        for (; position < end; position++) {
+            byte b = message[position];
+            if (quoted && b == '\\') {
+                position++;
+            } else if (b == '"') {
+                quoted = !quoted;
+            } else if (!quoted && b == ']' && position + 1 < end && message[position + 1] == ' ') {
+                return position + 2 - offset;
+            }
+        }
+        return -1;
+    }
+
+    private void writeBody(ILoggingEvent event, ReusableByteArrayOutputStream message) {
+        if (streamingBody != null) {
+            try {
+                streamingBody.encode(event, message);
+            } catch (IOException e) {
+                // Not thrown when writing to a byte array
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            message.writeBytes(body.encode(event));
+        }
+    }
+
+    private byte[] levelSd(Level level) {
+        return ("[" + logSdId + " level=\"" + level + "\"").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void writeParam(ReusableByteArrayOutputStream message, byte[] param, String value) {
+        if (value == null) {
+            return;
+        }
+        message.writeBytes(param);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 128) {
+                // Trace ids are ASCII, fall back to encoding non-ASCII values
+                message.writeBytes(paramValueBytes(value.substring(i)));
+                break;
+            }
+            if (c == '"' || c == '\\' || c == ']') {
+                message.write('\\');
+            }
+            message.write(c);
+        }
+        message.write('"');
+    }
+
+    private static byte[] paramValueBytes(String value) {
+        return escapeParamValue(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] footerBytes() {
+        return null;
+    }
+
+    /**
+     * Reusable buffers of a thread
+     */
+    private static class EncodingState {
+        private final ReusableByteArrayOutputStream message = new ReusableByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+        private final byte[] timestampSecond = new byte[TIMESTAMP_SECOND_LENGTH];
+        private final byte[] lengthBuffer = new byte[10];
+        private long cachedEpochSecond = Long.MIN_VALUE;
+
+        /**
+         * Writes the timestamp in UTC with millisecond precision, i.e. <code>2024-01-01T12:00:00.123Z</code>
+         */
+        void writeTimestamp(long timestamp, ReusableByteArrayOutputStream message) {
+            long epochSecond = Math.floorDiv(timestamp, 1000);
+            if (epochSecond != cachedEpochSecond) {
+                String second = TIMESTAMP_SECOND_FORMATTER.format(LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC));
+                System.arraycopy(second.getBytes(StandardCharsets.US_ASCII), 0, timestampSecond, 0, TIMESTAMP_SECOND_LENGTH);
+                cachedEpochSecond = epochSecond;
+            }
+            int millis = Math.floorMod(timestamp, 1000);
+            message.write(timestampSecond, 0, TIMESTAMP_SECOND_LENGTH);
+            message.write('.');
+            message.write('0' + millis / 100);
+            message.write('0' + millis / 10 % 10);
+            message.write('0' + millis % 10);
+            message.write('Z');
+        }
+
+        /**
+         * Writes the decimal digits of the length right-aligned into the length buffer
+         *
+         * @return the number of digits
+         */
+        int writeLength(int length) {
+            int position = lengthBuffer.length;
+            do {
+                lengthBuffer[--position] = (byte) ('0' + length % 10);
+                length /= 10;
+            } while (length > 0);
+            return lengthBuffer.length - position;
+        }
+    }
+}
@@ -1,34 +1,58 @@
 package ch.admin.bag.covidcertificate.log.syslog.encoder;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LevelToSyslogSeverity;
 import ch.qos.logback.core.encoder.EncoderBase;
+import ch.qos.logback.core.net.SyslogConstants;
+import net.logstash.logback.encoder.StreamingEncoder;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 
 /**
  * A logback {@link ch.qos.logback.core.encoder.Encoder} providing a message prefix according to the syslog BSD format
  * as specified in <a href="https://datatracker.ietf.org/doc/html/rfc3164#page-8">RFC3164</a>.
+ * <p>
+ * Streaming encoding does not allocate: the PRI part per severity and the constant hostname and tag part are
+ * precomputed, and each thread writes the prefix into its own reusable buffer, in which the formatted second is cached
+ * and only the milliseconds are patched for each event. {@link #encode(ILoggingEvent, OutputStream)} writes that buffer
+ * directly, whereas {@link #encode(ILoggingEvent)} returns a copy the caller may keep.
  */
-public class SyslogMessagePrefixEncoder extends EncoderBase<ILoggingEvent> {
+public class SyslogMessagePrefixEncoder extends EncoderBase<ILoggingEvent> implements StreamingEncoder<ILoggingEvent> {
+
+    private static final int SEVERITIES = 8;
+
     /**
      * <code>doppler[123]: </code> is mandatory for the logrelay to forward logs to Splunk
      */
     private final String tag = "doppler[" + ProcessHandle.current().pid() + "]:";
     private final SyslogMillisecondsPrefix sysloogPrefix;
+    private final ThreadLocal<PrefixBuffers> prefixBuffers = ThreadLocal.withInitial(PrefixBuffers::new);
+    private final byte[][] priBytes = new byte[SEVERITIES][];
+    /**
+     * <code> hostname doppler[123]: </code>
+     */
+    private byte[] hostnameAndTagBytes;
 
     public SyslogMessagePrefixEncoder() {
         sysloogPrefix = new SyslogMillisecondsPrefix();
+        for (int severity = 0; severity < SEVERITIES; severity++) {
+            priBytes[severity] = ("<" + (SyslogConstants.LOG_USER + severity) + ">").getBytes(StandardCharsets.US_ASCII);
+        }
     }
 
     @Override
     public void start() {
         sysloogPrefix.start();
+        hostnameAndTagBytes = (' ' + sysloogPrefix.getLocalHostName() + ' ' + tag + " ").getBytes(StandardCharsets.UTF_8);
         super.start();
     }
 
     @Override
     public void stop() {
         super.stop();
+        prefixBuffers.remove();
     }
 
     @Override
@@ -38,13 +62,53 @@ public class SyslogMessagePrefixEncoder extends EncoderBase<ILoggingEvent> {
 
     @Override
     public byte[] encode(ILoggingEvent event) {
-        String prefix = sysloogPrefix.getPrefix(event);
-        String prefixWithTag = prefix + tag + " ";
-        return prefixWithTag.getBytes(StandardCharsets.UTF_8);
+        return prefixBuffers.get().prefix(event).clone();
+    }
+
+    @Override
+    public void encode(ILoggingEvent event, OutputStream outputStream) throws IOException {
+        outputStream.write(prefixBuffers.get().prefix(event));
     }
 
     @Override
     public byte[] footerBytes() {
         return null;
     }
+
+    /**
+     * Prefix buffers of a thread, one per severity as the length of the PRI part depends on the severity
+     */
+    private class PrefixBuffers {
+        private final byte[][] buffers = new byte[SEVERITIES][];
+        private final long[] bufferSeconds = new long[SEVERITIES];
+
+        byte[] prefix(ILoggingEvent event) {
+            int severity = LevelToSyslogSeverity.convert(event);
+            long timestamp = event.getTimeStamp();
+            long epochSecond = Math.floorDiv(timestamp, 1000);
+            int millis = Math.floorMod(timestamp, 1000);
+
+            byte[] pri = priBytes[severity];
+            byte[] buffer = buffers[severity];
+            if (buffer == null) {
+                buffer = createBuffer(pri);
+                buffers[severity] = buffer;
+                bufferSeconds[severity] = Long.MIN_VALUE;
+            }
+            if (bufferSeconds[severity] != epochSecond) {
+                sysloogPrefix.writeSecond(epochSecond, buffer, pri.length);
+                bufferSeconds[severity] = epochSecond;
+            }
+            SyslogMillisecondsPrefix.writeMillis(millis, buffer, pri.length + SyslogMillisecondsPrefix.SECOND_LENGTH);
+            return buffer;
+        }
+
+        private byte[] createBuffer(byte[] pri) {
+            byte[] buffer = new byte[pri.length + SyslogMillisecondsPrefix.TIMESTAMP_LENGTH + hostnameAndTagBytes.length];
+            System.arraycopy(pri, 0, buffer, 0, pri.length);
+            System.arraycopy(hostnameAndTagBytes, 0, buffer, pri.length + SyslogMillisecondsPrefix.TIMESTAMP_LENGTH,
+                    hostnameAndTagBytes.length);
+            return buffer;
+        }
+    }
 }
@@ -1,12 +1,10 @@
 package ch.admin.bag.covidcertificate.log.syslog.encoder;
 
 import ch.qos.logback.classic.pattern.SyslogStartConverter;
-import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.classic.util.LevelToSyslogSeverity;
-import ch.qos.logback.core.net.SyslogConstants;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -16,28 +14,34 @@ import java.util.Locale;
 /**
  * Modelled after {@link SyslogStartConverter}, but providing timestamps accurate to the millisecond. While not entirely
  * BSD syslog compliant, this format is supported by the log relay and ensures correct ordering of log entries in Splunk.
+ * <p>
+ * The timestamp is written in two parts: the second part (<code>MMM dd HH:mm:ss</code>), which only changes once per
+ * second and can thus be cached by the caller, and the milliseconds part (<code>.SSS</code>).
  */
 class SyslogMillisecondsPrefix {
 
-    private final DateTimeFormatter dateTimeFormatterDoubleDigitDay = DateTimeFormatter.ofPattern("MMM dd HH:mm:ss.SSS", Locale.US);
+    static final int SECOND_LENGTH = "MMM dd HH:mm:ss".length();
+    static final int MILLIS_LENGTH = ".SSS".length();
+    static final int TIMESTAMP_LENGTH = SECOND_LENGTH + MILLIS_LENGTH;
+
+    private final DateTimeFormatter dateTimeFormatterDoubleDigitDay = DateTimeFormatter.ofPattern("MMM dd HH:mm:ss", Locale.US);
     /**
      * <a href="https://datatracker.ietf.org/doc/html/rfc3164#page-10">rfc3164</a>:
      * "If the day of the month is less than 10, then it MUST be represented as a space and then the number."
      */
-    private final DateTimeFormatter dateTimeFormatterSingleDigitDay = DateTimeFormatter.ofPattern("MMM  d HH:mm:ss.SSS", Locale.US);
+    private final DateTimeFormatter dateTimeFormatterSingleDigitDay = DateTimeFormatter.ofPattern("MMM  d HH:mm:ss", Locale.US);
 
     private String localHostName;
+    private ZoneId zoneId;
 
     void start() {
         localHostName = getLocalHostname();
+        // Resolved once, changes of the JVM default time zone at runtime are not picked up
+        zoneId = ZoneId.systemDefault();
     }
 
-    String getPrefix(ILoggingEvent event) {
-        int pri = SyslogConstants.LOG_USER + LevelToSyslogSeverity.convert(event);
-
-        return "<" + pri + ">" +
-                computeTimeStampString(event.getTimeStamp()) +
-                ' ' + localHostName + ' ';
+    String getLocalHostName() {
+        return localHostName;
     }
 
     /**
@@ -56,10 +60,25 @@ class SyslogMillisecondsPrefix {
         }
     }
 
-    private String computeTimeStampString(long millis) {
-        LocalDateTime localDateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
-        return localDateTime.getDayOfMonth() < 10 ?
+    /**
+     * Writes the <code>MMM dd HH:mm:ss</code> part of the timestamp of the given epoch second.
+     */
+    void writeSecond(long epochSecond, byte[] destination, int offset) {
+        LocalDateTime localDateTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), zoneId);
+        String second = localDateTime.getDayOfMonth() < 10 ?
                 dateTimeFormatterSingleDigitDay.format(localDateTime) :
                 dateTimeFormatterDoubleDigitDay.format(localDateTime);
+        byte[] secondBytes = second.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(secondBytes, 0, destination, offset, SECOND_LENGTH);
+    }
+
+    /**
+     * Writes the <code>.SSS</code> part of the timestamp without allocating.
+     */
+    static void writeMillis(int millis, byte[] destination, int offset) {
+        destination[offset] = '.';
+        destination[offset + 1] = (byte) ('0' + millis / 100);
+        destination[offset + 2] = (byte) ('0' + millis / 10 % 10);
+        destination[offset + 3] = (byte) ('0' + millis % 10);
     }
 }
@@ -0,0 +1,20 @@
+package ch.admin.bag.covidcertificate.log.syslog.encoder;
+
+/**
+ * An encoder producing syslog messages consisting of a syslog header followed by a payload, i.e. a JSON document, which
+ * can be written as is to a fallback appender, without encoding the event again.
+ */
+public interface SyslogPayloadEncoder {
+
+    /**
+     * @return the offset of the payload relative to <code>offset</code>, or -1 if the message has no payload, i.e. as it
+     * has been truncated
+     */
+    int payloadOffset(byte[] message, int offset, int length);
+
+    /**
+     * Limits the encoded messages to <code>maxMessageSize</code> bytes, including their framing. Longer messages are
+     * truncated by cutting the payload, keeping the framing of the message consistent with the bytes sent.
+     */
+    void setMaxMessageSize(int maxMessageSize);
+}
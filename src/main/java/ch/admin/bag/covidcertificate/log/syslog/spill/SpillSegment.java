@@ -0,0 +1,179 @@
+package ch.admin.bag.covidcertificate.log.syslog.spill;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A memory-mapped segment file of the {@link SpillStore}. Frames are stored as
+ * <code>[int length][long spilledAtMillis][payload]</code>. A length of 0 marks the end of the written frames (the
+ * file is zero-filled when mapped), a negative length marks a frame that has already been replayed. The length is
+ * written last, so that a frame only becomes visible once it has been written completely.
+ * <p>
+ * The mapping is released when the segment is closed or deleted rather than when the buffer is garbage collected, so
+ * that deleted segment files do not keep occupying disk space (and cannot be deleted at all on Windows) while mapped.
+ * The segment must not be accessed afterwards.
+ * <p>
+ * Not thread-safe, access is synchronized by the {@link SpillStore}.
+ */
+class SpillSegment {
+
+    static final int FRAME_HEADER_BYTES = Integer.BYTES + Long.BYTES;
+    /**
+     * <code>sun.misc.Unsafe.invokeCleaner(ByteBuffer)</code>, null if not accessible
+     */
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    private int readPosition;
+    private int frames;
+    private long bytes;
+
+    private SpillSegment(Path file, FileChannel channel, MappedByteBuffer buffer) {
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    static SpillSegment create(Path file, int segmentBytes) throws IOException {
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new SpillSegment(file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+    }
+
+    /**
+     * Opens a segment file written by a previous run, skipping the frames that have already been replayed.
+     */
+    static SpillSegment recover(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        SpillSegment segment = new SpillSegment(file, channel,
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        segment.scan();
+        return segment;
+    }
+
+    private void scan() {
+        int position = 0;
+        boolean replayedPrefix = true;
+        while (position + FRAME_HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length == 0 || position + FRAME_HEADER_BYTES + Math.abs(length) > buffer.capacity()) {
+                break;
+            }
+            if (length > 0) {
+                replayedPrefix = false;
+                frames++;
+                bytes += length;
+            }
+            position += FRAME_HEADER_BYTES + Math.abs(length);
+            if (replayedPrefix) {
+                readPosition = position;
+            }
+        }
+        writePosition = position;
+    }
+
+    boolean hasRoom(int length) {
+        return writePosition + FRAME_HEADER_BYTES + length <= buffer.capacity();
+    }
+
+    void append(byte[] payload, int offset, int length, long spilledAtMillis) {
+        buffer.putLong(writePosition + Integer.BYTES, spilledAtMillis);
+        buffer.put(writePosition + FRAME_HEADER_BYTES, payload, offset, length);
+        buffer.putInt(writePosition, length);
+        writePosition += FRAME_HEADER_BYTES + length;
+        frames++;
+        bytes += length;
+    }
+
+    /**
+     * @return true if there is a frame to replay
+     */
+    boolean hasNext() {
+        skipReplayed();
+        return readPosition < writePosition;
+    }
+
+    int nextLength() {
+        return buffer.getInt(readPosition);
+    }
+
+    long nextSpilledAtMillis() {
+        return buffer.getLong(readPosition + Integer.BYTES);
+    }
+
+    void readNext(byte[] destination) {
+        buffer.get(readPosition + FRAME_HEADER_BYTES, destination, 0, nextLength());
+    }
+
+    /**
+     * Marks the next frame as replayed.
+     */
+    void commitNext() {
+        int length = nextLength();
+        buffer.putInt(readPosition, -length);
+        readPosition += FRAME_HEADER_BYTES + length;
+        frames--;
+        bytes -= length;
+    }
+
+    private void skipReplayed() {
+        while (readPosition < writePosition && buffer.getInt(readPosition) < 0) {
+            readPosition += FRAME_HEADER_BYTES - buffer.getInt(readPosition);
+        }
+    }
+
+    int frames() {
+        return frames;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    void close() throws IOException {
+        channel.close();
+        unmap(buffer);
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            // Unmapped once the buffer is garbage collected
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable e) {
+            // Unmapped once the buffer is garbage collected
+        }
+    }
+
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
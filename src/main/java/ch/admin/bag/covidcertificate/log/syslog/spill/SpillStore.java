@@ -0,0 +1,302 @@
+package ch.admin.bag.covidcertificate.log.syslog.spill;
+
+import ch.admin.bag.covidcertificate.log.metrics.LoggingMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Disk-backed queue of encoded syslog frames, made of memory-mapped segment files with a bounded total size. Holds
+ * frames that could not be transmitted to the syslog server (i.e. while the connection is down) so that they can be
+ * replayed once the connection has been re-established, instead of being logged to the fallback appender.
+ * <p>
+ * Segments are deleted once all of their frames have been replayed. Replayed frames are marked in the segment file,
+ * so that frames spilled by a previous run are replayed after a restart. The segment files are not forced to disk,
+ * i.e. frames survive a restart of the application but not necessarily a crash of the host.
+ * <p>
+ * Spill depth, bytes and replay lag (age of the oldest frame) are reported as metrics.
+ * <p>
+ * The store lock is not held while a replayed frame is transmitted, so that threads spilling frames do not wait for
+ * the network write of the replaying thread. Frames are replayed by a single thread at a time.
+ */
+public class SpillStore implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "spill-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final LongSupplier clock;
+    private final Deque<SpillSegment> segments = new ArrayDeque<>();
+    private long nextSegmentSequence;
+    private long frames;
+    private long bytes;
+    private byte[] replayBuffer = new byte[0];
+    private boolean closed;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Serializes replaying threads, guards the replay buffer
+    private final ReentrantLock replayLock = new ReentrantLock();
+
+    SpillStore(Path directory, long maxBytes, int segmentBytes, LongSupplier clock) {
+        if (segmentBytes <= SpillSegment.FRAME_HEADER_BYTES) {
+            throw new IllegalArgumentException("Spill segment size too small: " + segmentBytes);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(1, maxBytes / segmentBytes);
+        this.clock = clock;
+    }
+
+    /**
+     * Opens the spill store in the given directory, recovering the frames spilled by a previous run.
+     */
+    public static SpillStore open(Path directory, long maxBytes, int segmentBytes) throws IOException {
+        SpillStore store = new SpillStore(directory, maxBytes, segmentBytes, System::currentTimeMillis);
+        store.recover();
+        return store;
+    }
+
+    private void recover() throws IOException {
+        lock.lock();
+        try {
+            recoverSegments();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recoverSegments() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(directory)) {
+            list.filter(SpillStore::isSegmentFile).sorted().forEach(files::add);
+        }
+        for (Path file : files) {
+            SpillSegment segment = SpillSegment.recover(file);
+            if (segment.hasNext()) {
+                segments.add(segment);
+                frames += segment.frames();
+                bytes += segment.bytes();
+            } else {
+                segment.delete();
+            }
+            nextSegmentSequence = parseSequence(file) + 1;
+        }
+        updateMetrics();
+    }
+
+    /**
+     * Appends a frame to the store.
+     *
+     * @return false if the store is full, closed or the frame exceeds the segment size
+     */
+    public boolean offer(byte[] payload, int offset, int length) {
+        lock.lock();
+        try {
+            return append(payload, offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean append(byte[] payload, int offset, int length) {
+        if (closed || length <= 0 || length > segmentBytes - SpillSegment.FRAME_HEADER_BYTES) {
+            return false;
+        }
+        SpillSegment tail = segments.peekLast();
+        if (tail == null || !tail.hasRoom(length)) {
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            try {
+                tail = SpillSegment.create(segmentFile(nextSegmentSequence++), segmentBytes);
+            } catch (IOException ex) {
+                return false;
+            }
+            segments.add(tail);
+        }
+        tail.append(payload, offset, length, clock.getAsLong());
+        frames++;
+        bytes += length;
+        updateMetrics();
+        return true;
+    }
+
+    /**
+     * Hands the oldest frame over to the sink, and removes it from the store if the sink has accepted it. A frame
+     * accepted while the store is being closed is kept, and thus replayed again by the next run.
+     *
+     * @return true if a frame has been replayed, false if the store is empty or the sink did not accept the frame
+     */
+    public boolean replayNext(FrameSink sink) {
+        replayLock.lock();
+        try {
+            int length = readNext();
+            if (length < 0 || !sink.transmit(replayBuffer, 0, length)) {
+                return false;
+            }
+            return commitNext(length);
+        } finally {
+            replayLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the oldest frame into the replay buffer.
+     *
+     * @return the length of the frame, or -1 if the store is empty or closed
+     */
+    private int readNext() {
+        lock.lock();
+        try {
+            if (closed) {
+                return -1;
+            }
+            SpillSegment head = headWithFrames();
+            if (head == null) {
+                return -1;
+            }
+            int length = head.nextLength();
+            if (replayBuffer.length < length) {
+                replayBuffer = new byte[length];
+            }
+            head.readNext(replayBuffer);
+            return length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest frame, read by {@link #readNext()}. Frames are only appended by other threads meanwhile, the
+     * oldest frame is thus still the same unless the store has been closed.
+     */
+    private boolean commitNext(int length) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            segments.getFirst().commitNext();
+            frames--;
+            bytes -= length;
+            updateMetrics();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return getFrames() == 0;
+    }
+
+    public long getFrames() {
+        lock.lock();
+        try {
+            return frames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the segment files, keeping frames that have not been replayed for the next run.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            for (SpillSegment segment : segments) {
+                if (segment.hasNext()) {
+                    segment.close();
+                } else {
+                    segment.delete();
+                }
+            }
+            segments.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the oldest segment holding a frame to replay, deleting fully replayed segments on the way
+     */
+    private SpillSegment headWithFrames() {
+        SpillSegment head = segments.peekFirst();
+        while (head != null && !head.hasNext()) {
+            if (head == segments.peekLast()) {
+                // Keep the current tail segment to append to
+                return null;
+            }
+            segments.removeFirst();
+            deleteQuietly(head);
+            head = segments.peekFirst();
+        }
+        return head;
+    }
+
+    private void updateMetrics() {
+        SpillSegment head = headWithFrames();
+        long oldestSpilledAtMillis = head != null ? head.nextSpilledAtMillis() : 0;
+        LoggingMetrics.distributedLogSpill(frames, bytes, oldestSpilledAtMillis);
+    }
+
+    private Path segmentFile(long sequence) {
+        return directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    private static boolean isSegmentFile(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    private static long parseSequence(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static void deleteQuietly(SpillSegment segment) {
+        try {
+            segment.delete();
+        } catch (IOException ex) {
+            // Segment file is left behind and recovered as empty segment on the next start
+        }
+    }
+
+    /**
+     * Receives replayed frames, i.e. a {@link ch.admin.bag.covidcertificate.log.syslog.connection.SyslogConnection}.
+     */
+    @FunctionalInterface
+    public interface FrameSink {
+        /**
+         * @return true if the frame has been accepted
+         */
+        boolean transmit(byte[] buffer, int offset, int length);
+    }
+}
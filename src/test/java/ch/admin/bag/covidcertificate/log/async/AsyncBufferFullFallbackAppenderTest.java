@@ -0,0 +1,564 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.read.ListAppender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncBufferFullFallbackAppenderTest {
+
+    private final LoggerContext loggerContext = new LoggerContext();
+    private final EncodedListAppender fallbackAppender = new EncodedListAppender();
+    private final BlockingAppender downstreamAppender = new BlockingAppender();
+    private AsyncBufferFullFallbackAppender appender;
+
+    @ParameterizedTest
+    @EnumSource(AsyncBufferType.class)
+    void append_shouldAppendEachEventOnceToAppenderOrFallback(AsyncBufferType bufferType) {
+        appender.stop();
+        appender = createAppender(downstreamAppender);
+        appender.setBufferType(bufferType);
+        appender.start();
+        downstreamAppender.release.countDown();
+
+        for (int i = 0; i < 1000; i++) {
+            appender.doAppend(event("message " + i));
+        }
+        appender.stop();
+
+        List<String> messages = Stream.concat(downstreamAppender.events.stream(), fallbackAppender.list.stream())
+                .map(ILoggingEvent::getMessage)
+                .filter(message -> message.startsWith("message "))
+                .sorted(Comparator.comparing(message -> Integer.parseInt(message.substring(8))))
+                .toList();
+        assertEquals(IntStream.range(0, 1000).mapToObj(i -> "message " + i).toList(), messages);
+    }
+
+    @Test
+    void append_when_batchAppenderAttached_then_shouldPassDrainedEventsAsBatch() {
+        appender.stop();
+        BatchRecordingAppender batchAppender = new BatchRecordingAppender();
+        appender = createAppender(batchAppender);
+        appender.setQueueSize(100);
+        appender.setMaxBatchSize(10);
+        appender.setUseFallbackAppender(false);
+        appender.start();
+
+        for (int i = 0; i < 95; i++) {
+            appender.doAppend(event("message " + i));
+        }
+        appender.stop();
+
+        assertTrue(batchAppender.batches.stream().allMatch(batch -> batch.events().size() <= 10));
+        List<String> messages = batchAppender.batches.stream()
+                .flatMap(batch -> batch.events().stream())
+                .map(ILoggingEvent::getMessage)
+                .toList();
+        assertEquals(IntStream.range(0, 95).mapToObj(i -> "message " + i).toList(), messages);
+    }
+
+    @Test
+    void append_when_bufferNearlyFull_then_shouldAppendToFallbackAppender() {
+        // The worker takes the first event and blocks, the buffer (10 events, threshold 2) fills up with 8 events
+        for (int i = 0; i < 12; i++) {
+            appender.doAppend(event(Level.WARN, "message " + i));
+            awaitWorkerBlocked();
+        }
+
+        assertEquals(2, appender.getRemainingCapacity());
+        // Activation notice and 3 events
+        assertEquals(4, fallbackAppender.list.size());
+        assertEquals("message 11", fallbackAppender.list.get(3).getMessage());
+
+        downstreamAppender.release.countDown();
+        appender.stop();
+        assertEquals(9, downstreamAppender.events.size());
+    }
+
+    @Test
+    void append_when_reservedCapacityReached_then_shouldOnlyBufferPriorityEvents() {
+        // The worker takes the first event and blocks, INFO events fill the buffer until 2 + 1 reserved events remain
+        for (int i = 0; i < 8; i++) {
+            appender.doAppend(event(Level.INFO, "info " + i));
+            awaitWorkerBlocked();
+        }
+        assertEquals(3, appender.getRemainingCapacity());
+
+        appender.doAppend(event(Level.INFO, "info 8"));
+        appender.doAppend(event(Level.ERROR, "error"));
+        appender.doAppend(event(Level.INFO, "info 9"));
+
+        assertEquals(2, appender.getRemainingCapacity());
+        assertEquals(List.of("Activating fallback appender: Async buffer full", "info 8", "info 9"),
+                fallbackAppender.list.stream().map(ILoggingEvent::getMessage).toList());
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    void append_when_belowDiscardingThreshold_then_shouldDiscardInfoEvents() {
+        appender.stop();
+        downstreamAppender.release.countDown();
+        appender = createAppender(downstreamAppender);
+        // Always below the discarding threshold, the buffer never reaches the fallback threshold
+        appender.setDiscardingThreshold(11);
+        appender.setFallbackThreshold(0);
+        appender.setReservedCapacity(0);
+        appender.start();
+
+        appender.doAppend(event(Level.INFO, "info"));
+        appender.doAppend(event(Level.WARN, "warn"));
+        appender.stop();
+
+        assertEquals(List.of("warn"), downstreamAppender.events.stream().map(ILoggingEvent::getMessage).toList());
+        assertTrue(fallbackAppender.list.isEmpty());
+    }
+
+    @Test
+    void append_when_lowPriorityFallbackSampling_then_shouldDropSampledLowPriorityEvents() {
+        appender.stop();
+        downstreamAppender.release.countDown();
+        appender = createAppender(downstreamAppender);
+        // Always in fallback mode
+        appender.setFallbackThreshold(10);
+        appender.setReservedCapacity(0);
+        appender.setLowPriorityFallbackSampling(Integer.MAX_VALUE);
+        appender.start();
+
+        for (int i = 0; i < 100; i++) {
+            appender.doAppend(event(Level.DEBUG, "debug " + i));
+        }
+        appender.doAppend(event(Level.WARN, "warn"));
+
+        assertEquals(List.of("warn"), fallbackAppender.list.stream()
+                .map(ILoggingEvent::getMessage)
+                .filter(message -> !message.startsWith("Activating"))
+                .toList());
+    }
+
+    @Test
+    void append_when_sharded_then_shouldKeepOrderPerThreadAndShard() throws InterruptedException {
+        appender.stop();
+        BatchRecordingAppender batchAppender = new BatchRecordingAppender();
+        appender = createAppender(batchAppender);
+        appender.setShards(4);
+        appender.setQueueSize(64);
+        appender.setUseFallbackAppender(false);
+        appender.start();
+
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            String producerName = "producer-" + t;
+            producers.add(new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    appender.doAppend(event(Level.INFO, producerName + " " + i));
+                }
+            }));
+        }
+        producers.forEach(Thread::start);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        appender.stop();
+
+        Map<String, List<Integer>> sequencesByProducer = new HashMap<>();
+        Map<String, Set<Integer>> shardsByProducer = new HashMap<>();
+        for (ShardBatch batch : batchAppender.batches) {
+            for (ILoggingEvent event : batch.events()) {
+                String[] message = event.getMessage().split(" ");
+                sequencesByProducer.computeIfAbsent(message[0], p -> new ArrayList<>()).add(Integer.parseInt(message[1]));
+                shardsByProducer.computeIfAbsent(message[0], p -> new HashSet<>()).add(batch.shard());
+            }
+        }
+        assertEquals(8, sequencesByProducer.size());
+        sequencesByProducer.values().forEach(sequences ->
+                assertEquals(IntStream.range(0, 1000).boxed().toList(), sequences));
+        shardsByProducer.values().forEach(shards -> assertEquals(1, shards.size()));
+    }
+
+    @Test
+    void getRemainingCapacity_when_sharded_then_shouldSumCapacityOfAllShards() {
+        appender.stop();
+        appender = createAppender(downstreamAppender);
+        appender.setShards(3);
+        appender.start();
+        assertEquals(30, appender.getRemainingCapacity());
+
+        // The worker of the calling thread's shard takes the first event and blocks, the second stays queued
+        appender.doAppend(event(Level.INFO, "first"));
+        awaitWorkerBlocked();
+        appender.doAppend(event(Level.INFO, "second"));
+
+        int shard = (int) (Thread.currentThread().getId() % 3);
+        assertEquals(9, appender.getRemainingCapacity(shard));
+        assertEquals(10, appender.getRemainingCapacity((shard + 1) % 3));
+        assertEquals(29, appender.getRemainingCapacity());
+    }
+
+    @Test
+    void append_when_multipleShardsOverflow_then_shouldActivateFallbackOnce() throws InterruptedException {
+        appender.stop();
+        appender = createAppender(downstreamAppender);
+        appender.setShards(2);
+        appender.start();
+
+        // One producer per shard, both shards fill up while the downstream appender is blocked
+        List<Thread> producers = new ArrayList<>();
+        while (producers.size() < 2) {
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    appender.doAppend(event(Level.INFO, "message " + i));
+                }
+            });
+            if (producers.isEmpty() || producers.get(0).getId() % 2 != producer.getId() % 2) {
+                producers.add(producer);
+            }
+        }
+        producers.forEach(Thread::start);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        List<String> fallbackMessages = fallbackAppender.list.stream().map(ILoggingEvent::getMessage).toList();
+        assertEquals(1, fallbackMessages.stream().filter(message -> message.startsWith("Activating")).count());
+        assertTrue(fallbackMessages.stream().noneMatch(message -> message.startsWith("Switching back")));
+    }
+
+    @Test
+    void append_when_preEncodingAppenderAttached_then_shouldEncodeOnLoggingThread() {
+        appender.stop();
+        PreEncodingRecordingAppender preEncodingAppender = new PreEncodingRecordingAppender();
+        preEncodingAppender.release.countDown();
+        appender = createAppender(preEncodingAppender);
+        appender.setPreEncode(true);
+        appender.setUseFallbackAppender(false);
+        appender.start();
+
+        for (int i = 0; i < 50; i++) {
+            appender.doAppend(event("message " + i));
+        }
+        appender.stop();
+
+        assertEquals(IntStream.range(0, 50).mapToObj(i -> "message " + i).toList(), preEncodingAppender.messages);
+        assertEquals(Set.of(Thread.currentThread()), Set.copyOf(preEncodingAppender.encodingThreads));
+    }
+
+    @Test
+    void append_when_maxInFlightBytesExceeded_then_shouldAppendToFallbackAppender() {
+        appender.stop();
+        PreEncodingRecordingAppender preEncodingAppender = new PreEncodingRecordingAppender();
+        appender = createAppender(preEncodingAppender);
+        appender.setPreEncode(true);
+        appender.setQueueSize(100);
+        // Room for two encoded messages of 9 bytes
+        appender.setMaxInFlightBytes(20);
+        appender.start();
+
+        // The worker takes the first message and blocks, the second one is buffered, the third exceeds the budget
+        appender.doAppend(event("message 0"));
+        awaitBlocked(preEncodingAppender.blocked);
+        appender.doAppend(event("message 1"));
+        appender.doAppend(event("message 2"));
+
+        assertEquals(List.of("Activating fallback appender: Async buffer full", "message 2"),
+                fallbackAppender.list.stream().map(ILoggingEvent::getMessage).toList());
+        preEncodingAppender.release.countDown();
+        appender.stop();
+        assertEquals(List.of("message 0", "message 1"), preEncodingAppender.messages);
+    }
+
+    @Test
+    void append_when_arenaEnabled_then_shouldQueueEncodedMessagesOffHeap() {
+        appender.stop();
+        PreEncodingRecordingAppender preEncodingAppender = new PreEncodingRecordingAppender();
+        appender = createAppender(preEncodingAppender);
+        appender.setPreEncode(true);
+        appender.setArenaBytes(4096);
+        appender.start();
+
+        appender.doAppend(event("message 0"));
+        awaitBlocked(preEncodingAppender.blocked);
+        appender.doAppend(event("message 1"));
+        appender.doAppend(event("message 2"));
+
+        assertEquals(2L * EncodedEventArena.recordSize("message 1".length()), appender.getQueuedBytes());
+        assertEquals(0, appender.getNumberOfElementsInQueue());
+        preEncodingAppender.release.countDown();
+        appender.stop();
+        assertEquals(List.of("message 0", "message 1", "message 2"), preEncodingAppender.messages);
+        assertTrue(fallbackAppender.list.isEmpty());
+    }
+
+    @Test
+    void append_when_arenaNearlyFull_then_shouldAppendToFallbackAppender() {
+        appender.stop();
+        PreEncodingRecordingAppender preEncodingAppender = new PreEncodingRecordingAppender();
+        appender = createAppender(preEncodingAppender);
+        appender.setPreEncode(true);
+        appender.setArenaBytes(4096);
+        appender.start();
+
+        appender.doAppend(event("message 0"));
+        awaitBlocked(preEncodingAppender.blocked);
+        // Records of 128 bytes, the fallback is used once less than 30% of the arena is free
+        String padding = "-".repeat(98);
+        for (int i = 1; i <= 30; i++) {
+            appender.doAppend(event(String.format("message %02d", i) + padding));
+        }
+
+        List<String> fallbackMessages = fallbackAppender.list.stream().map(ILoggingEvent::getMessage).toList();
+        assertEquals("Activating fallback appender: Async buffer full", fallbackMessages.get(0));
+        preEncodingAppender.release.countDown();
+        appender.stop();
+        assertEquals(31, preEncodingAppender.messages.size() + fallbackMessages.size() - 1);
+        assertEquals(21, preEncodingAppender.messages.size());
+    }
+
+    @Test
+    void start_when_arenaEnabledAndFallbackAppenderNotEncoded_then_shouldNotStart() {
+        appender.stop();
+        appender = createAppender(new PreEncodingRecordingAppender());
+        appender.setPreEncode(true);
+        appender.setArenaBytes(4096);
+        FallbackAppenderRef fallback = new FallbackAppenderRef();
+        fallback.addAppender(new ListAppender<>());
+        appender.setFallback(fallback);
+
+        appender.start();
+
+        assertFalse(appender.isStarted());
+    }
+
+    @Test
+    void stop_when_flushTimeoutExceededWithArena_then_shouldAppendPayloadsToFallbackAppender() {
+        appender.stop();
+        PreEncodingRecordingAppender preEncodingAppender = new PreEncodingRecordingAppender();
+        appender = createAppender(preEncodingAppender);
+        appender.setPreEncode(true);
+        appender.setArenaBytes(4096);
+        appender.setMaxFlushTime(50);
+        appender.start();
+        appender.doAppend(event("message 0"));
+        awaitBlocked(preEncodingAppender.blocked);
+        for (int i = 1; i <= 3; i++) {
+            appender.doAppend(event("message " + i));
+        }
+
+        appender.stop();
+        preEncodingAppender.release.countDown();
+
+        assertEquals(List.of("message 1", "message 2", "message 3"), fallbackAppender.payloads);
+        assertEquals(3, appender.getShutdownSpilled());
+    }
+
+    @Test
+    void stop_when_flushTimeoutExceeded_then_shouldSpillRemainingEventsToFallbackAppender() {
+        appender.setMaxFlushTime(50);
+        appender.doAppend(event("message 0"));
+        awaitWorkerBlocked();
+        for (int i = 1; i <= 5; i++) {
+            appender.doAppend(event("message " + i));
+        }
+
+        appender.stop();
+
+        assertEquals(List.of("Activating fallback appender: Async buffer flush timeout",
+                        "message 1", "message 2", "message 3", "message 4", "message 5"),
+                fallbackAppender.list.stream().map(ILoggingEvent::getMessage).toList());
+        assertEquals(5, appender.getShutdownSpilled());
+        assertEquals(0, appender.getShutdownLost());
+    }
+
+    @Test
+    void stop_when_flushTimeoutExceededAndSpillDisabled_then_shouldCountRemainingEventsAsLost() {
+        appender.setMaxFlushTime(50);
+        appender.setSpillOnFlushTimeout(false);
+        appender.doAppend(event("message 0"));
+        awaitWorkerBlocked();
+        for (int i = 1; i <= 5; i++) {
+            appender.doAppend(event("message " + i));
+        }
+
+        appender.stop();
+
+        assertTrue(fallbackAppender.list.isEmpty());
+        assertEquals(0, appender.getShutdownSpilled());
+        assertEquals(5, appender.getShutdownLost());
+    }
+
+    @Test
+    void stop_when_workerNotBlocked_then_shouldDrainAllEventsWithinTimeout() {
+        downstreamAppender.release.countDown();
+        for (int i = 0; i < 5; i++) {
+            appender.doAppend(event("message " + i));
+        }
+
+        appender.stop();
+
+        assertEquals(5, downstreamAppender.events.size());
+        assertEquals(0, appender.getShutdownSpilled() + appender.getShutdownLost());
+    }
+
+    private void awaitWorkerBlocked() {
+        awaitBlocked(downstreamAppender.blocked);
+    }
+
+    private static void awaitBlocked(CountDownLatch blocked) {
+        try {
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private LoggingEvent event(String message) {
+        return event(Level.INFO, message);
+    }
+
+    private LoggingEvent event(Level level, String message) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerContext(loggerContext);
+        event.setLoggerName("test.Logger");
+        event.setLevel(level);
+        event.setMessage(message);
+        event.setTimeStamp(System.currentTimeMillis());
+        return event;
+    }
+
+    private AsyncBufferFullFallbackAppender createAppender(Appender<ILoggingEvent> downstream) {
+        downstream.setContext(loggerContext);
+        downstream.start();
+        FallbackAppenderRef fallback = new FallbackAppenderRef();
+        fallback.addAppender(fallbackAppender);
+        AsyncBufferFullFallbackAppender asyncAppender = new AsyncBufferFullFallbackAppender();
+        asyncAppender.setContext(loggerContext);
+        asyncAppender.setQueueSize(10);
+        asyncAppender.setFallback(fallback);
+        asyncAppender.addAppender(downstream);
+        return asyncAppender;
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        fallbackAppender.setContext(loggerContext);
+        appender = createAppender(downstreamAppender);
+        appender.start();
+    }
+
+    @AfterEach
+    void afterEach() {
+        downstreamAppender.release.countDown();
+        appender.stop();
+    }
+
+    private record ShardBatch(int shard, List<ILoggingEvent> events) {
+    }
+
+    private static class BatchRecordingAppender extends AppenderBase<ILoggingEvent> implements BatchAppender {
+        private final List<ShardBatch> batches = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void appendBatch(List<ILoggingEvent> events, int shard) {
+            batches.add(new ShardBatch(shard, List.copyOf(events)));
+        }
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            batches.add(new ShardBatch(-1, List.of(event)));
+        }
+    }
+
+    private static class PreEncodingRecordingAppender extends AppenderBase<ILoggingEvent> implements PreEncodingAppender {
+        private final List<Thread> encodingThreads = new CopyOnWriteArrayList<>();
+        private final List<String> messages = new CopyOnWriteArrayList<>();
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public boolean preEncode(ILoggingEvent event, EncodedEvent target) {
+            encodingThreads.add(Thread.currentThread());
+            target.write(event.getMessage().getBytes(StandardCharsets.UTF_8), 0, event.getMessage().length());
+            return true;
+        }
+
+        @Override
+        public void appendEncodedBatch(List<EncodedEvent> events, int shard) {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (EncodedEvent event : events) {
+                messages.add(new String(event.array(), 0, event.length(), StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        public int payloadOffset(byte[] message, int offset, int length) {
+            return offset;
+        }
+
+        @Override
+        public boolean isEncodedFallbackSupported() {
+            return true;
+        }
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            throw new IllegalStateException("Events are expected to be pre-encoded");
+        }
+    }
+
+    private static class EncodedListAppender extends ListAppender<ILoggingEvent> implements EncodedFallbackAppender {
+        private final List<String> payloads = new CopyOnWriteArrayList<>();
+
+        @Override
+        public boolean appendEncoded(ILoggingEvent event, byte[] payload, int offset, int length) {
+            payloads.add(new String(payload, offset, length, StandardCharsets.UTF_8));
+            return true;
+        }
+    }
+
+    private static class BlockingAppender extends AppenderBase<ILoggingEvent> {
+        private final List<ILoggingEvent> events = new CopyOnWriteArrayList<>();
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            events.add(event);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EncodedEventArenaTest {
+
+    @Test
+    void drain_when_recordsOffered_then_shouldPassRecordsInOrder() {
+        EncodedEventArena arena = new EncodedEventArena(256, ConsumerWaitStrategy.BLOCKING);
+
+        assertTrue(offer(arena, "first", 20000, 1L));
+        assertTrue(offer(arena, "second", 40000, 2L));
+        assertEquals(EncodedEventArena.recordSize(5) + EncodedEventArena.recordSize(6), arena.usedBytes());
+
+        List<String> records = new ArrayList<>();
+        arena.drain((level, timestamp, source, offset, length) ->
+                records.add(level + ":" + timestamp + ":" + payload(source, offset, length)), Integer.MAX_VALUE);
+
+        assertEquals(List.of("20000:1:first", "40000:2:second"), records);
+        assertTrue(arena.isEmpty());
+        assertEquals(256, arena.remainingBytes());
+    }
+
+    @Test
+    void offer_when_arenaFull_then_shouldRejectUntilDrained() {
+        EncodedEventArena arena = new EncodedEventArena(64, ConsumerWaitStrategy.BLOCKING);
+        String message = "x".repeat(12);
+
+        // Records of 32 bytes
+        assertTrue(offer(arena, message, 0, 0L));
+        assertTrue(offer(arena, message, 0, 0L));
+        assertFalse(offer(arena, message, 0, 0L));
+        assertFalse(offer(arena, "x".repeat(64), 0, 0L));
+
+        assertEquals(1, arena.drain((level, timestamp, source, offset, length) -> {
+        }, 1));
+        assertTrue(offer(arena, message, 0, 0L));
+    }
+
+    @Test
+    void offer_when_recordDoesNotFitUntilEnd_then_shouldWrapAroundUsingPadding() {
+        EncodedEventArena arena = new EncodedEventArena(128, ConsumerWaitStrategy.BLOCKING);
+        List<String> records = new ArrayList<>();
+        EncodedEventArena.RecordConsumer consumer = (level, timestamp, source, offset, length) ->
+                records.add(payload(source, offset, length));
+
+        for (int i = 0; i < 20; i++) {
+            // Records of 48 bytes, which do not evenly fit into the arena
+            assertTrue(offer(arena, "message " + i + "-".repeat(i < 10 ? 19 : 18), 0, 0L));
+            assertEquals(1, arena.drain(consumer, Integer.MAX_VALUE));
+        }
+
+        assertEquals(20, records.size());
+        assertEquals("message 19" + "-".repeat(18), records.get(19));
+        assertTrue(arena.isEmpty());
+    }
+
+    @Test
+    void offer_when_concurrentProducers_then_shouldKeepOrderPerProducer() throws InterruptedException {
+        EncodedEventArena arena = new EncodedEventArena(1024, ConsumerWaitStrategy.YIELDING);
+        int producers = 4;
+        int recordsPerProducer = 5000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < recordsPerProducer; i++) {
+                    while (!offer(arena, producer + ":" + i, producer, i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        Map<Integer, Long> lastTimestamps = new HashMap<>();
+        int drained = 0;
+        while (drained < producers * recordsPerProducer) {
+            drained += arena.drain((level, timestamp, source, offset, length) -> {
+                long expected = lastTimestamps.getOrDefault(level, -1L) + 1;
+                assertEquals(expected, timestamp);
+                assertEquals(level + ":" + timestamp, payload(source, offset, length));
+                lastTimestamps.put(level, timestamp);
+            }, 64);
+            Thread.yield();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(arena.isEmpty());
+    }
+
+    private static boolean offer(EncodedEventArena arena, String payload, int level, long timestamp) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        return arena.offer(level, timestamp, bytes, bytes.length);
+    }
+
+    private static String payload(ByteBuffer source, int offset, int length) {
+        byte[] bytes = new byte[length];
+        source.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,150 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FallbackAppenderRefTest {
+
+    private final LoggerContext loggerContext = new LoggerContext();
+    private final ListAppender<ILoggingEvent> fallbackAppender = new ListAppender<>();
+    private final AtomicLong nanoTime = new AtomicLong(1_000_000_000L);
+    private FallbackAppenderRef fallback;
+    // Runs once on the next read of the clock
+    private Runnable onClockRead;
+
+    @Test
+    void notifyFallbackDeactivated_when_recoveryThresholdAndMinDurationReached_then_shouldSwitchBackOnce() {
+        fallback.appendToFallbackAppender(event("message 0"), "test");
+        for (int i = 0; i < 10; i++) {
+            fallback.notifyFallbackDeactivated();
+        }
+        // Recovery threshold reached, but still within the minimum fallback duration
+        assertTrue(fallback.isFallbackActive());
+
+        advanceMillis(1000);
+        fallback.notifyFallbackDeactivated();
+        fallback.notifyFallbackDeactivated();
+
+        assertFalse(fallback.isFallbackActive());
+        assertEquals(List.of("Activating fallback appender: test", "message 0",
+                "Switching back from fallback to standard appender after 1000 ms"), messages());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), fallback.getTimeInFallbackNanos());
+    }
+
+    @Test
+    void notifyFallbackDeactivated_when_interruptedByFallbackAppend_then_shouldRestartRecovery() {
+        fallback.appendToFallbackAppender(event("message 0"), "test");
+        advanceMillis(2000);
+        for (int i = 0; i < 9; i++) {
+            fallback.notifyFallbackDeactivated();
+        }
+        fallback.appendToFallbackAppender(event("message 1"), "test");
+        for (int i = 0; i < 9; i++) {
+            fallback.notifyFallbackDeactivated();
+        }
+        assertTrue(fallback.isFallbackActive());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2000), fallback.getTimeInFallbackNanos());
+
+        fallback.notifyFallbackDeactivated();
+
+        assertFalse(fallback.isFallbackActive());
+        assertEquals(List.of("Activating fallback appender: test", "message 0", "message 1",
+                "Switching back from fallback to standard appender after 2000 ms"), messages());
+    }
+
+    @Test
+    void notifyFallbackDeactivated_when_fallbackAppendDuringRecoveryCheck_then_shouldStayActive() {
+        fallback.appendToFallbackAppender(event("message 0"), "test");
+        advanceMillis(2000);
+        for (int i = 0; i < 9; i++) {
+            fallback.notifyFallbackDeactivated();
+        }
+        // Another thread appends to the fallback after the threshold check, while the duration is checked
+        onClockRead = () -> fallback.appendToFallbackAppender(event("message 1"), "test");
+
+        fallback.notifyFallbackDeactivated();
+
+        assertTrue(fallback.isFallbackActive());
+        for (int i = 0; i < 9; i++) {
+            fallback.notifyFallbackDeactivated();
+        }
+        assertTrue(fallback.isFallbackActive());
+        fallback.notifyFallbackDeactivated();
+        assertFalse(fallback.isFallbackActive());
+        assertEquals(List.of("Activating fallback appender: test", "message 0", "message 1",
+                "Switching back from fallback to standard appender after 2000 ms"), messages());
+    }
+
+    @Test
+    void appendToFallbackAppender_when_concurrentlyActivatedAndDeactivated_then_shouldLogEachTransitionOnce()
+            throws InterruptedException {
+        fallback.setMinFallbackMillis(0);
+        fallback.setRecoveryThreshold(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    fallback.appendToFallbackAppender(event("message"), "test");
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < 100; i++) {
+            fallback.notifyFallbackDeactivated();
+        }
+
+        assertEquals(1, messages().stream().filter(message -> message.startsWith("Activating")).count());
+        assertEquals(1, messages().stream().filter(message -> message.startsWith("Switching back")).count());
+    }
+
+    private long readClock() {
+        Runnable action = onClockRead;
+        onClockRead = null;
+        if (action != null) {
+            action.run();
+        }
+        return nanoTime.get();
+    }
+
+    private void advanceMillis(long millis) {
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private List<String> messages() {
+        return fallbackAppender.list.stream().map(ILoggingEvent::getMessage).toList();
+    }
+
+    private LoggingEvent event(String message) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerContext(loggerContext);
+        event.setLoggerName("test.Logger");
+        event.setLevel(Level.INFO);
+        event.setMessage(message);
+        return event;
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        fallbackAppender.setContext(loggerContext);
+        fallback = new FallbackAppenderRef(this::readClock);
+        fallback.addAppender(fallbackAppender);
+        fallback.start();
+    }
+}
@@ -0,0 +1,198 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Slf4j
+class MpscRingBufferTest {
+
+    @Test
+    void offer_when_capacityReached_then_shouldRejectUntilDrained() {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(3, ConsumerWaitStrategy.BLOCKING);
+
+        assertTrue(buffer.offer(1));
+        assertTrue(buffer.offer(2));
+        assertTrue(buffer.offer(3));
+        assertFalse(buffer.offer(4));
+        assertEquals(0, buffer.remainingCapacity());
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(2, buffer.drain(drained::add, 2));
+        assertEquals(2, buffer.remainingCapacity());
+        assertTrue(buffer.offer(4));
+        buffer.drain(drained::add, Integer.MAX_VALUE);
+
+        assertEquals(List.of(1, 2, 3, 4), drained);
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    void awaitNotEmpty_when_blocking_then_shouldBeSignalledByProducer() throws InterruptedException {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(4, ConsumerWaitStrategy.BLOCKING);
+        CountDownLatch signalled = new CountDownLatch(1);
+        Thread consumer = new Thread(() -> {
+            if (buffer.awaitNotEmpty(TimeUnit.SECONDS.toNanos(30))) {
+                signalled.countDown();
+            }
+        });
+        consumer.start();
+
+        Thread.sleep(50);
+        buffer.offer(1);
+
+        assertTrue(signalled.await(5, TimeUnit.SECONDS));
+        consumer.join();
+    }
+
+    @Test
+    void awaitNotEmpty_when_wokenUp_then_shouldReturnBeforeTimeout() throws InterruptedException {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(4, ConsumerWaitStrategy.SLEEPING);
+        Thread consumer = new Thread(() -> buffer.awaitNotEmpty(TimeUnit.SECONDS.toNanos(30)));
+        consumer.start();
+
+        Thread.sleep(50);
+        buffer.wakeUpConsumer();
+
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+    }
+
+    @Test
+    void drain_when_concurrentProducers_then_shouldDeliverEachElementOnce() throws InterruptedException {
+        int producers = 8;
+        int elementsPerProducer = 50_000;
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(100, ConsumerWaitStrategy.YIELDING);
+        List<Thread> threads = startProducers(producers, producer -> {
+            for (int i = 0; i < elementsPerProducer; i++) {
+                while (!buffer.offer(producer * elementsPerProducer + i)) {
+                    Thread.yield();
+                }
+            }
+        });
+
+        boolean[] seen = new boolean[producers * elementsPerProducer];
+        int[] lastPerProducer = new int[producers];
+        Arrays.fill(lastPerProducer, -1);
+        int received = 0;
+        while (received < seen.length) {
+            received += buffer.drain(element -> {
+                assertFalse(seen[element]);
+                seen[element] = true;
+                // Elements of a single producer keep their order
+                int producer = element / elementsPerProducer;
+                assertTrue(element % elementsPerProducer > lastPerProducer[producer]);
+                lastPerProducer[producer] = element % elementsPerProducer;
+            }, 64);
+            buffer.awaitNotEmpty(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(buffer.isEmpty());
+    }
+
+    /**
+     * Compares the throughput of the ring buffer with the <code>ArrayBlockingQueue</code> used by logback's
+     * <code>AsyncAppenderBase</code>, with producers offering concurrently to a single consumer.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {8, 32, 128})
+    @Tag("benchmark")
+    void offer_contentionBenchmark(int producers) throws InterruptedException {
+        int elementsPerProducer = 1_000_000 / producers;
+
+        // Alternating rounds, the fastest round of each queue is reported
+        long blockingQueueNanos = Long.MAX_VALUE;
+        long ringBufferNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            blockingQueueNanos = Math.min(blockingQueueNanos, measureBlockingQueue(producers, elementsPerProducer));
+            ringBufferNanos = Math.min(ringBufferNanos, measureRingBuffer(producers, elementsPerProducer));
+        }
+
+        long elements = (long) producers * elementsPerProducer;
+        log.info("{} producers: ArrayBlockingQueue {} events/s, MpscRingBuffer {} events/s", producers,
+                elements * 1_000_000_000L / blockingQueueNanos, elements * 1_000_000_000L / ringBufferNanos);
+    }
+
+    private static long measureBlockingQueue(int producers, int elementsPerProducer) throws InterruptedException {
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(512);
+        Object element = new Object();
+        long start = System.nanoTime();
+        List<Thread> threads = startProducers(producers, producer -> {
+            for (int i = 0; i < elementsPerProducer; i++) {
+                try {
+                    queue.put(element);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        });
+        List<Object> drained = new ArrayList<>(512);
+        long remaining = (long) producers * elementsPerProducer;
+        while (remaining > 0) {
+            drained.add(queue.take());
+            remaining -= 1 + queue.drainTo(drained);
+            drained.clear();
+        }
+        long nanos = System.nanoTime() - start;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return nanos;
+    }
+
+    private static long measureRingBuffer(int producers, int elementsPerProducer) throws InterruptedException {
+        MpscRingBuffer<Object> buffer = new MpscRingBuffer<>(512, ConsumerWaitStrategy.BLOCKING);
+        Object element = new Object();
+        long start = System.nanoTime();
+        List<Thread> threads = startProducers(producers, producer -> {
+            for (int i = 0; i < elementsPerProducer; i++) {
+                while (!buffer.offer(element)) {
+                    Thread.yield();
+                }
+            }
+        });
+        long remaining = (long) producers * elementsPerProducer;
+        while (remaining > 0) {
+            int drained = buffer.drain(e -> {
+            }, 512);
+            if (drained == 0) {
+                buffer.awaitNotEmpty(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            remaining -= drained;
+        }
+        long nanos = System.nanoTime() - start;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return nanos;
+    }
+
+    private static List<Thread> startProducers(int producers, IntConsumer producer) {
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producerIndex = p;
+            Thread thread = new Thread(() -> producer.accept(producerIndex));
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+}
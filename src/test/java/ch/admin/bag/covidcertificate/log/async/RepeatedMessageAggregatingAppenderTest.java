@@ -0,0 +1,164 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import net.logstash.logback.marker.LogstashMarker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RepeatedMessageAggregatingAppenderTest {
+
+    private static final long WINDOW_MILLIS = 60_000;
+
+    private final LoggerContext loggerContext = new LoggerContext();
+    private final ListAppender<ILoggingEvent> listAppender = new ListAppender<>();
+    private RepeatedMessageAggregatingAppender appender;
+
+    @Test
+    void append_when_messageRepeatedWithinWindow_then_shouldAppendFirstAndSummary() {
+        appender.doAppend(event("Retrying connection {}", 1000L, "1"));
+        appender.doAppend(event("Retrying connection {}", 1500L, "2"));
+        appender.doAppend(event("Retrying connection {}", 2000L, "3"));
+
+        assertEquals(1, listAppender.list.size());
+
+        appender.flushExpiredWindows(1000L + WINDOW_MILLIS);
+
+        assertEquals(2, listAppender.list.size());
+        ILoggingEvent summary = listAppender.list.get(1);
+        assertEquals("Retrying connection 3", summary.getFormattedMessage());
+        assertEquals(2000L, summary.getTimeStamp());
+        String fields = summaryFields(summary);
+        assertTrue(fields.contains("repeat_count=2"), fields);
+        assertTrue(fields.contains("first_seen=1970-01-01T00:00:01Z"), fields);
+        assertTrue(fields.contains("last_seen=1970-01-01T00:00:02Z"), fields);
+    }
+
+    @Test
+    void append_when_differentTemplatesOrLevels_then_shouldNotAggregate() {
+        appender.doAppend(event("first {}", 1000L, "a"));
+        appender.doAppend(event("second {}", 1000L, "a"));
+        appender.doAppend(event(Level.ERROR, "first {}", 1000L, "a"));
+        appender.flushExpiredWindows(1000L + WINDOW_MILLIS);
+
+        assertEquals(3, listAppender.list.size());
+    }
+
+    @Test
+    void append_when_windowExpired_then_shouldAppendSummaryAndOpenNewWindow() {
+        appender.doAppend(event("Retrying", 1000L));
+        appender.doAppend(event("Retrying", 2000L));
+        appender.doAppend(event("Retrying", 1000L + WINDOW_MILLIS));
+
+        assertEquals(3, listAppender.list.size());
+        assertTrue(summaryFields(listAppender.list.get(1)).contains("repeat_count=1"));
+        assertEquals(1000L + WINDOW_MILLIS, listAppender.list.get(2).getTimeStamp());
+    }
+
+    @Test
+    void append_when_maxKeysReached_then_shouldPassThrough() {
+        appender.setMaxKeys(1);
+        appender.doAppend(event("first", 1000L));
+        appender.doAppend(event("second", 1000L));
+        appender.doAppend(event("second", 1000L));
+
+        assertEquals(3, listAppender.list.size());
+    }
+
+    @Test
+    void stop_shouldAppendPendingSummaries() {
+        appender.doAppend(event("Retrying", 1000L));
+        appender.doAppend(event("Retrying", 1001L));
+
+        appender.stop();
+
+        assertEquals(2, listAppender.list.size());
+    }
+
+    @Test
+    void append_when_concurrentRepeats_then_shouldCountEachRepeatOnce() throws InterruptedException {
+        int threads = 8;
+        int repeatsPerThread = 10_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> loggers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                awaitQuietly(start);
+                for (int i = 0; i < repeatsPerThread; i++) {
+                    appender.doAppend(event("Retrying", 1000L + i % 100));
+                }
+            });
+            thread.start();
+            loggers.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : loggers) {
+            thread.join();
+        }
+        appender.flushExpiredWindows(1000L + WINDOW_MILLIS);
+
+        assertEquals(2, listAppender.list.size());
+        assertTrue(summaryFields(listAppender.list.get(1)).contains("repeat_count=" + (threads * repeatsPerThread - 1)));
+    }
+
+    private static String summaryFields(ILoggingEvent summary) {
+        return summary.getMarkerList().stream()
+                .filter(LogstashMarker.class::isInstance)
+                .map(Object::toString)
+                .findFirst()
+                .orElse("");
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private LoggingEvent event(String message, long timestamp, Object... arguments) {
+        return event(Level.WARN, message, timestamp, arguments);
+    }
+
+    private LoggingEvent event(Level level, String message, long timestamp, Object... arguments) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerContext(loggerContext);
+        event.setLoggerName("test.Logger");
+        event.setLevel(level);
+        event.setThreadName("main");
+        event.setMessage(message);
+        event.setTimeStamp(timestamp);
+        if (arguments.length > 0) {
+            event.setArgumentArray(arguments);
+        }
+        return event;
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        listAppender.setContext(loggerContext);
+        listAppender.start();
+        appender = new RepeatedMessageAggregatingAppender();
+        appender.setContext(loggerContext);
+        appender.setWindowMillis(WINDOW_MILLIS);
+        appender.addAppender(listAppender);
+        appender.start();
+    }
+
+    @AfterEach
+    void afterEach() {
+        appender.stop();
+    }
+}
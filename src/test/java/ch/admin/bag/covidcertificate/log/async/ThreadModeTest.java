@@ -0,0 +1,136 @@
+package ch.admin.bag.covidcertificate.log.async;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+@Slf4j
+class ThreadModeTest {
+
+    private static final long SIMULATED_WRITE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    @Test
+    void newThread_when_platform_then_shouldCreateUnstartedDaemonThread() {
+        Thread thread = ThreadMode.PLATFORM.newThread("worker", () -> {
+        });
+
+        assertEquals("worker", thread.getName());
+        assertTrue(thread.isDaemon());
+        assertEquals(Thread.State.NEW, thread.getState());
+        assertFalse(isVirtual(thread));
+    }
+
+    @Test
+    void newThread_when_virtual_then_shouldCreateVirtualThreadIfSupported() throws InterruptedException {
+        List<String> names = new ArrayList<>();
+        Thread thread = ThreadMode.VIRTUAL.newThread("worker", () -> names.add(Thread.currentThread().getName()));
+        thread.start();
+        thread.join();
+
+        assertEquals(List.of("worker"), names);
+        assertTrue(thread.isDaemon());
+        assertEquals(ThreadMode.isVirtualThreadSupported(), isVirtual(thread));
+    }
+
+    /**
+     * Compares the throughput of the async appender with its shard workers running on platform or virtual threads,
+     * each batch being written to a simulated blocking socket.
+     */
+    @ParameterizedTest
+    @EnumSource(ThreadMode.class)
+    @Tag("benchmark")
+    void threadModeBenchmark(ThreadMode threadMode) throws InterruptedException {
+        assumeTrue(threadMode == ThreadMode.PLATFORM || ThreadMode.isVirtualThreadSupported(),
+                "Virtual threads are not supported by this Java runtime");
+        int shards = 16;
+        int eventsPerProducer = 2000;
+        LoggerContext loggerContext = new LoggerContext();
+        BlockingWriteAppender writer = new BlockingWriteAppender();
+        writer.setContext(loggerContext);
+        writer.start();
+        AsyncBufferFullFallbackAppender appender = new AsyncBufferFullFallbackAppender();
+        appender.setContext(loggerContext);
+        appender.setShards(shards);
+        appender.setThreadMode(threadMode);
+        appender.setUseFallbackAppender(false);
+        appender.setFallback(new FallbackAppenderRef());
+        appender.addAppender(writer);
+        appender.start();
+
+        long start = System.nanoTime();
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < shards; p++) {
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < eventsPerProducer; i++) {
+                    appender.doAppend(event(loggerContext, "message " + i));
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        appender.setMaxFlushTime(60_000);
+        appender.stop();
+        long nanos = System.nanoTime() - start;
+
+        long events = (long) shards * eventsPerProducer;
+        assertEquals(events, writer.events.get());
+        log.info("{} threads: {} events/s in batches of {} events", threadMode,
+                events * 1_000_000_000L / nanos, events / writer.batches.get());
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        try {
+            return (boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private static LoggingEvent event(LoggerContext loggerContext, String message) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerContext(loggerContext);
+        event.setLoggerName("test.Logger");
+        event.setLevel(Level.INFO);
+        event.setMessage(message);
+        event.setTimeStamp(System.currentTimeMillis());
+        return event;
+    }
+
+    private static class BlockingWriteAppender extends AppenderBase<ILoggingEvent> implements BatchAppender {
+        private final AtomicLong events = new AtomicLong();
+        private final AtomicLong batches = new AtomicLong();
+
+        @Override
+        public void appendBatch(List<ILoggingEvent> batch, int shard) {
+            LockSupport.parkNanos(SIMULATED_WRITE_NANOS);
+            events.addAndGet(batch.size());
+            batches.incrementAndGet();
+        }
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            appendBatch(List.of(event), 0);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ch.admin.bag.covidcertificate.log.json;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AbstractStaticFieldsJsonProviderTest {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Test
+    void writeTo_shouldWriteSameFieldsAsWritingThemDirectly() throws IOException {
+        StaticFieldsStub provider = new StaticFieldsStub();
+        provider.start();
+
+        String expected = render(generator -> {
+            generator.writeStringField("before", "x");
+            provider.writeStaticFields(generator);
+            generator.writeStringField("after", "y");
+        });
+        String actual = render(generator -> {
+            generator.writeStringField("before", "x");
+            provider.writeTo(generator, null);
+            generator.writeStringField("after", "y");
+        });
+
+        assertEquals(expected, actual);
+        assertEquals("{\"before\":\"x\",\"na\\\"me\":\"v\\u0001\\\"\u00e4\",\"nested\":{\"a\":1},\"after\":\"y\"}", actual);
+    }
+
+    @Test
+    void writeTo_asFirstField() throws IOException {
+        StaticFieldsStub provider = new StaticFieldsStub();
+        provider.start();
+
+        String actual = render(generator -> {
+            provider.writeTo(generator, null);
+            generator.writeStringField("after", "y");
+        });
+
+        assertEquals("{\"na\\\"me\":\"v\\u0001\\\"\u00e4\",\"nested\":{\"a\":1},\"after\":\"y\"}", actual);
+    }
+
+    @Test
+    void writeTo_whenNoFields_thenShouldWriteNothing() throws IOException {
+        StaticFieldJsonProvider provider = new StaticFieldJsonProvider();
+        provider.setFieldName("region");
+        provider.start();
+
+        String actual = render(generator -> {
+            provider.writeTo(generator, null);
+            generator.writeStringField("after", "y");
+        });
+
+        assertEquals("{\"after\":\"y\"}", actual);
+    }
+
+    @Test
+    void staticContextJsonProvider() throws IOException {
+        LoggerContext context = new LoggerContext();
+        context.putProperty("app", "test-app");
+        StaticContextJsonProvider provider = new StaticContextJsonProvider();
+        provider.setContext(context);
+        provider.start();
+        context.putProperty("late", "ignored");
+
+        assertEquals("{\"app\":\"test-app\"}", render(generator -> provider.writeTo(generator, null)));
+    }
+
+    private static String render(FieldsWriter fieldsWriter) throws IOException {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(json)) {
+            generator.writeStartObject();
+            fieldsWriter.write(generator);
+            generator.writeEndObject();
+        }
+        return json.toString();
+    }
+
+    private interface FieldsWriter {
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    private static class StaticFieldsStub extends AbstractStaticFieldsJsonProvider<ILoggingEvent> {
+        @Override
+        protected void writeStaticFields(JsonGenerator generator) throws IOException {
+            generator.writeStringField("na\"me", "v\u0001\"\u00e4");
+            generator.writeObjectFieldStart("nested");
+            generator.writeNumberField("a", 1);
+            generator.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ch.admin.bag.covidcertificate.log.json;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+class DeduplicatingStackTraceJsonProviderTest {
+
+    private final AtomicLong clock = new AtomicLong(1000);
+    private DeduplicatingStackTraceJsonProvider provider;
+
+    @BeforeEach
+    void beforeEach() {
+        provider = new DeduplicatingStackTraceJsonProvider();
+        provider.setWindowMillis(100);
+        provider.setClock(clock::get);
+        provider.start();
+    }
+
+    @Test
+    void writeTo_shouldWriteStackTraceOnlyOnFirstOccurrenceWithinWindow() throws IOException {
+        ILoggingEvent event = eventWithException(new IllegalStateException("failure"));
+
+        String first = render(event);
+        String second = render(event);
+        String third = render(event);
+
+        assertTrue(first.contains("\"exception\":\"java.lang.IllegalStateException: failure"), first);
+        assertFalse(first.contains("exception-occurrences"), first);
+        String hash = first.substring(first.indexOf("\"exception-hash\":\""), first.indexOf("\",") + 1);
+        assertEquals("{" + hash + ",\"exception-occurrences\":2}", second);
+        assertEquals("{" + hash + ",\"exception-occurrences\":3}", third);
+    }
+
+    @Test
+    void writeTo_whenWindowExpired_thenShouldWriteStackTraceAgain() throws IOException {
+        ILoggingEvent event = eventWithException(new IllegalStateException("failure"));
+        render(event);
+
+        clock.addAndGet(100);
+        String afterWindow = render(event);
+
+        assertTrue(afterWindow.contains("\"exception\":"), afterWindow);
+    }
+
+    @Test
+    void writeTo_differentStacks_shouldBeTrackedSeparately() throws IOException {
+        ILoggingEvent event = eventWithException(new IllegalStateException("failure"));
+        ILoggingEvent otherEvent = eventWithException(new IllegalArgumentException("other"));
+
+        render(event);
+        String other = render(otherEvent);
+
+        assertTrue(other.contains("\"exception\":\"java.lang.IllegalArgumentException: other"), other);
+    }
+
+    @Test
+    void writeTo_withoutException_shouldWriteNothing() throws IOException {
+        assertEquals("{}", render(mock(ILoggingEvent.class)));
+    }
+
+    @Test
+    void stackHashCache_shouldBeBoundedByReplacingSlots() {
+        StackHashCache cache = new StackHashCache(4, 1000);
+        for (int i = 0; i < 100; i++) {
+            cache.recordOccurrence("hash" + i, 0);
+        }
+
+        assertEquals(2, cache.recordOccurrence("hash99", 1));
+        // Hashes evicted by other hashes start over
+        long occurrences = 0;
+        for (int i = 0; i < 100; i++) {
+            occurrences += cache.recordOccurrence("hash" + i, 2) == 1 ? 1 : 0;
+        }
+        assertTrue(occurrences >= 96, "Expected most hashes to be evicted, got " + occurrences);
+    }
+
+    private String render(ILoggingEvent event) throws IOException {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = new JsonFactory().createGenerator(json)) {
+            generator.writeStartObject();
+            provider.writeTo(generator, event);
+            generator.writeEndObject();
+        }
+        return json.toString();
+    }
+
+    private static ILoggingEvent eventWithException(Throwable throwable) {
+        ILoggingEvent event = mock(ILoggingEvent.class);
+        doReturn(new ThrowableProxy(throwable)).when(event).getThrowableProxy();
+        return event;
+    }
+}
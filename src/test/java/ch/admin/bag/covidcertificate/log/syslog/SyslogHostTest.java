@@ -0,0 +1,41 @@
+package ch.admin.bag.covidcertificate.log.syslog;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SyslogHostTest {
+
+    private final List<String> errors = new ArrayList<>();
+
+    @Test
+    void parseList_shouldUseDefaultPortForEntriesWithoutPort() {
+        assertEquals(List.of(new SyslogHost("relay1", 1001), new SyslogHost("relay2", 6514)),
+                SyslogHost.parseList("relay1:1001, relay2,", 6514, errors::add));
+        assertEquals(List.of(), errors);
+    }
+
+    @Test
+    void parseList_when_ipv6Addresses_then_shouldParseBracketedHostAndPort() {
+        List<SyslogHost> hosts = SyslogHost.parseList("[::1]:1001, [fe80::1], 2001:db8::2", 6514, errors::add);
+
+        assertEquals(List.of(new SyslogHost("::1", 1001), new SyslogHost("fe80::1", 6514),
+                new SyslogHost("2001:db8::2", 6514)), hosts);
+        assertEquals("[::1]:1001", hosts.get(0).toString());
+        assertEquals(List.of(), errors);
+    }
+
+    @Test
+    void parseList_when_portMalformed_then_shouldReportErrorAndSkipEntry() {
+        List<SyslogHost> hosts = SyslogHost.parseList("relay1:abc, relay2:1002, relay3:70000, [::1]x", 6514,
+                errors::add);
+
+        assertEquals(List.of(new SyslogHost("relay2", 1002)), hosts);
+        assertEquals(3, errors.size());
+        assertTrue(errors.get(0).startsWith("Skipping syslogHosts entry [relay1:abc]"), errors.get(0));
+    }
+}
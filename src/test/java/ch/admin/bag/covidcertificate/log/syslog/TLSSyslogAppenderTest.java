@@ -1,24 +1,47 @@
 package ch.admin.bag.covidcertificate.log.syslog;
 
+import ch.admin.bag.covidcertificate.log.syslog.connection.RejectedFrameHandler;
 import ch.admin.bag.covidcertificate.log.syslog.connection.TLSSyslogConnection;
+import ch.admin.bag.covidcertificate.log.async.AsyncBufferFullFallbackAppender;
 import ch.admin.bag.covidcertificate.log.async.FallbackAppenderRef;
+import ch.admin.bag.covidcertificate.log.async.FallbackConsoleAppender;
+import ch.admin.bag.covidcertificate.log.syslog.encoder.SyslogPayloadEncoder;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.encoder.Encoder;
 import ch.qos.logback.core.encoder.EncoderBase;
 import ch.qos.logback.core.spi.ContextAware;
+import ch.qos.logback.core.status.Status;
+import net.logstash.logback.encoder.StreamingEncoder;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -34,6 +57,7 @@ class TLSSyslogAppenderTest {
     @Mock
     private ILoggingEvent loggingEvent;
     private final List<String> transmittedMessages = new ArrayList<>();
+    private final List<String> createdConnectionNames = new ArrayList<>();
 
     private TLSSyslogAppender tlsSyslogAppender;
 
@@ -59,9 +83,38 @@ class TLSSyslogAppenderTest {
         assertEquals(LOGGED_MESSAGE.substring(0, 3), transmittedMessages.get(0));
     }
 
+    @Test
+    void append_when_streamingEncoderExceedsMaxSize_then_shouldTruncateWhileEncoding() {
+        tlsSyslogAppender.stop();
+        tlsSyslogAppender.setEncoder(new StreamingEncoderStub());
+        tlsSyslogAppender.setMaxMessageSize(5);
+        tlsSyslogAppender.start();
+        stubSuccesfulSyslogConnectionTransmit();
+
+        tlsSyslogAppender.append(loggingEvent);
+        tlsSyslogAppender.append(loggingEvent);
+
+        assertEquals(List.of("<14>" + LOGGED_MESSAGE.charAt(0), "<14>" + LOGGED_MESSAGE.charAt(0)), transmittedMessages);
+    }
+
+    @Test
+    void append_when_messageExceedsBatchMaxBytes_then_shouldTransmitPreviousMessagesAndRetainMessage() {
+        tlsSyslogAppender.stop();
+        tlsSyslogAppender.setBatchMaxBytes(LOGGED_MESSAGE.length() * 2 + 1);
+        restartWithBatching(10, 60_000);
+        stubSuccesfulSyslogConnectionTransmit();
+
+        tlsSyslogAppender.append(loggingEvent);
+        tlsSyslogAppender.append(loggingEvent);
+        tlsSyslogAppender.append(loggingEvent);
+        tlsSyslogAppender.stop();
+
+        assertEquals(List.of(LOGGED_MESSAGE.repeat(2), LOGGED_MESSAGE), transmittedMessages);
+    }
+
     @Test
     void append_when_syslogTransmitFails_then_shouldSubmitLogEventToFallbackAppender() {
-        when(tlsSyslogConnection.transmit(any(byte[].class)))
+        when(tlsSyslogConnection.transmit(any(byte[].class), anyInt(), anyInt()))
                 .thenReturn(false);
 
         tlsSyslogAppender.append(loggingEvent);
@@ -69,10 +122,308 @@ class TLSSyslogAppenderTest {
         verify(fallbackAppender).doAppend(loggingEvent);
     }
 
+    @Test
+    void append_when_syslogTransmitFails_then_shouldWriteEncodedPayloadToFallbackConsole() {
+        ByteArrayOutputStream console = restartWithFallbackConsole();
+        when(tlsSyslogConnection.transmit(any(byte[].class), anyInt(), anyInt())).thenReturn(false);
+
+        tlsSyslogAppender.append(loggingEvent);
+
+        String output = console.toString(StandardCharsets.UTF_8);
+        assertTrue(output.endsWith("{\"msg\":\"" + LOGGED_MESSAGE + "\"}" + System.lineSeparator()), output);
+        assertFalse(output.contains("<14>"), output);
+    }
+
+    @Test
+    void append_when_messageOfMaxSizeNotTransmitted_then_shouldWriteEncodedPayloadToFallbackConsole() {
+        tlsSyslogAppender.setMaxMessageSize(new PrefixedEncoderStub().encode(loggingEvent).length);
+        ByteArrayOutputStream console = restartWithFallbackConsole();
+        when(tlsSyslogConnection.transmit(any(byte[].class), anyInt(), anyInt())).thenReturn(false);
+
+        tlsSyslogAppender.append(loggingEvent);
+
+        String output = console.toString(StandardCharsets.UTF_8);
+        assertTrue(output.endsWith("{\"msg\":\"" + LOGGED_MESSAGE + "\"}" + System.lineSeparator()), output);
+    }
+
+    @Test
+    void append_when_truncatedMessageNotTransmitted_then_shouldAppendEventToFallbackConsole() {
+        tlsSyslogAppender.setMaxMessageSize(new PrefixedEncoderStub().encode(loggingEvent).length - 1);
+        ByteArrayOutputStream console = restartWithFallbackConsole();
+        when(tlsSyslogConnection.transmit(any(byte[].class), anyInt(), anyInt())).thenReturn(false);
+
+        tlsSyslogAppender.append(loggingEvent);
+
+        String output = console.toString(StandardCharsets.UTF_8);
+        assertTrue(output.endsWith("re-encoded " + LOGGED_MESSAGE + System.lineSeparator()), output);
+    }
+
+    @Test
+    void append_when_transmittedMessageRejectedBySyslogServer_then_shouldAppendItToFallbackAppender() {
+        ArgumentCaptor<RejectedFrameHandler> handler = ArgumentCaptor.forClass(RejectedFrameHandler.class);
+        verify(tlsSyslogConnection).setRejectedFrameHandler(handler.capture());
+        stubSuccesfulSyslogConnectionTransmit();
+        tlsSyslogAppender.append(loggingEvent);
+        byte[] message = transmittedMessages.get(0).getBytes(StandardCharsets.UTF_8);
+
+        handler.getValue().onFrameRejected(message, 0, message.length, "RELP frame rejected: 500 invalid");
+
+        // The fallback activation and the rejected message
+        ArgumentCaptor<ILoggingEvent> event = ArgumentCaptor.forClass(ILoggingEvent.class);
+        verify(fallbackAppender, times(2)).doAppend(event.capture());
+        assertEquals(Level.WARN, event.getValue().getLevel());
+        assertEquals("RELP frame rejected: 500 invalid: " + LOGGED_MESSAGE, event.getValue().getFormattedMessage());
+    }
+
+    @Test
+    void append_when_batchIsFull_then_shouldTransmitBatchUsingSingleWrite() {
+        restartWithBatching(3, 60_000);
+        stubSuccesfulSyslogConnectionTransmit();
+
+        tlsSyslogAppender.append(loggingEvent);
+        tlsSyslogAppender.append(loggingEvent);
+        assertEquals(0, transmittedMessages.size());
+        tlsSyslogAppender.append(loggingEvent);
+
+        assertEquals(1, transmittedMessages.size());
+        assertEquals(LOGGED_MESSAGE.repeat(3), transmittedMessages.get(0));
+    }
+
+    @Test
+    void append_when_lingerTimeExpired_then_shouldTransmitIncompleteBatch() {
+        restartWithBatching(10, 10);
+        stubSuccesfulSyslogConnectionTransmit();
+
+        tlsSyslogAppender.append(loggingEvent);
+
+        verify(tlsSyslogConnection, timeout(1000)).transmit(any(byte[].class), eq(0), eq(LOGGED_MESSAGE.length()));
+        assertEquals(LOGGED_MESSAGE, transmittedMessages.get(0));
+    }
+
+    @Test
+    void append_when_batchTransmitFails_then_shouldSubmitAllBatchedLogEventsToFallbackAppender() {
+        restartWithBatching(2, 60_000);
+        when(tlsSyslogConnection.transmit(any(byte[].class), anyInt(), anyInt()))
+                .thenReturn(false);
+
+        tlsSyslogAppender.append(loggingEvent);
+        tlsSyslogAppender.append(loggingEvent);
+
+        verify(fallbackAppender, times(2)).doAppend(loggingEvent);
+    }
+
+    @Test
+    void appendBatch_shouldTransmitBatchUsingSingleWrite() {
+        stubSuccesfulSyslogConnectionTransmit();
+
+        tlsSyslogAppender.appendBatch(List.of(loggingEvent, loggingEvent, loggingEvent), 0);
+
+        assertEquals(List.of(LOGGED_MESSAGE.repeat(3)), transmittedMessages);
+    }
+
+    @Test
+    void appendBatch_when_batchExceedsBatchMaxBytes_then_shouldTransmitUsingMultipleWrites() {
+        tlsSyslogAppender.stop();
+        tlsSyslogAppender.setBatchMaxBytes(LOGGED_MESSAGE.length() * 2);
+        tlsSyslogAppender.start();
+        stubSuccesfulSyslogConnectionTransmit();
+
+        tlsSyslogAppender.appendBatch(List.of(loggingEvent, loggingEvent, loggingEvent), 0);
+
+        assertEquals(List.of(LOGGED_MESSAGE.repeat(2), LOGGED_MESSAGE), transmittedMessages);
+    }
+
+    @Test
+    void appendBatch_when_transmitFails_then_shouldSubmitAllEventsToFallbackAppender() {
+        when(tlsSyslogConnection.transmit(any(byte[].class), anyInt(), anyInt()))
+                .thenReturn(false);
+
+        tlsSyslogAppender.appendBatch(List.of(loggingEvent, loggingEvent), 0);
+
+        verify(tlsSyslogConnection).transmit(any(byte[].class), eq(0), eq(LOGGED_MESSAGE.length() * 2));
+        verify(fallbackAppender, times(2)).doAppend(loggingEvent);
+    }
+
+    @Test
+    void appendEncodedBatch_when_preEncodedByAsyncAppender_then_shouldTransmitMessagesEncodedByLoggingThread() {
+        List<Thread> encodingThreads = new ArrayList<>();
+        tlsSyslogAppender.stop();
+        tlsSyslogAppender.setEncoder(new EncoderStub() {
+            @Override
+            public byte[] encode(ILoggingEvent event) {
+                encodingThreads.add(Thread.currentThread());
+                return super.encode(event);
+            }
+        });
+        tlsSyslogAppender.start();
+        stubSuccesfulSyslogConnectionTransmit();
+        when(loggingEvent.getLevel()).thenReturn(Level.INFO);
+        AsyncBufferFullFallbackAppender asyncAppender = new AsyncBufferFullFallbackAppender();
+        asyncAppender.setContext(new LoggerContext());
+        asyncAppender.setPreEncode(true);
+        asyncAppender.setUseFallbackAppender(false);
+        asyncAppender.setFallback(new FallbackAppenderRef());
+        asyncAppender.addAppender(tlsSyslogAppender);
+        asyncAppender.start();
+
+        for (int i = 0; i < 3; i++) {
+            asyncAppender.doAppend(loggingEvent);
+        }
+        asyncAppender.stop();
+
+        assertEquals(LOGGED_MESSAGE.repeat(3), String.join("", transmittedMessages));
+        assertEquals(List.of(Thread.currentThread(), Thread.currentThread(), Thread.currentThread()), encodingThreads);
+    }
+
+    @Test
+    void start_when_multipleConnectionsConfigured_then_shouldConnectEachConnection() {
+        tlsSyslogAppender.stop();
+        createdConnectionNames.clear();
+        tlsSyslogAppender.setConnections(3);
+        tlsSyslogAppender.start();
+        stubSuccesfulSyslogConnectionTransmit();
+
+        tlsSyslogAppender.append(loggingEvent);
+
+        assertEquals(List.of("host:1234#0", "host:1234#1", "host:1234#2"), createdConnectionNames);
+        verify(tlsSyslogConnection, times(4)).attemptConnection();
+        assertEquals(1, transmittedMessages.size());
+    }
+
+    @Test
+    void append_when_multipleConnectionsConfigured_then_shouldStripeThreadsAndShardsOverConnections() {
+        List<TLSSyslogConnection> connections = new ArrayList<>();
+        tlsSyslogAppender.stop();
+        tlsSyslogAppender = new TLSSyslogAppender() {
+            @Override
+            protected TLSSyslogConnection createSyslogConnection(ContextAware contextAware, String connectionName,
+                                                                 String host, int port) {
+                TLSSyslogConnection connection = mock(TLSSyslogConnection.class);
+                when(connection.transmit(any(byte[].class), anyInt(), anyInt())).thenReturn(true);
+                connections.add(connection);
+                return connection;
+            }
+        };
+        tlsSyslogAppender.setSyslogHost("host");
+        tlsSyslogAppender.setConnections(3);
+        tlsSyslogAppender.setEncoder(new EncoderStub());
+        tlsSyslogAppender.setFallback(new FallbackAppenderRef());
+        tlsSyslogAppender.start();
+
+        // Events of a thread use the same connection, so that they are received in order
+        for (int i = 0; i < 3; i++) {
+            tlsSyslogAppender.append(loggingEvent);
+        }
+        for (int shard = 0; shard < 3; shard++) {
+            tlsSyslogAppender.appendBatch(List.of(loggingEvent, loggingEvent), shard);
+        }
+
+        assertEquals(3, connections.size());
+        TLSSyslogConnection threadConnection = connections.get((int) (Thread.currentThread().getId() % 3));
+        verify(threadConnection, times(3)).transmit(any(byte[].class), eq(0), eq(LOGGED_MESSAGE.length()));
+        for (TLSSyslogConnection connection : connections) {
+            verify(connection).transmit(any(byte[].class), eq(0), eq(LOGGED_MESSAGE.length() * 2));
+        }
+        tlsSyslogAppender.stop();
+    }
+
+    @Test
+    void start_when_multipleSyslogHostsConfigured_then_shouldConnectEachHost() {
+        tlsSyslogAppender.stop();
+        createdConnectionNames.clear();
+        tlsSyslogAppender.setSyslogHosts("relay1:1001, relay2");
+        tlsSyslogAppender.start();
+        when(tlsSyslogConnection.isConnected()).thenReturn(false);
+
+        tlsSyslogAppender.append(loggingEvent);
+
+        assertEquals(List.of("relay1:1001#0", "relay2:1234#0"), createdConnectionNames);
+        verify(tlsSyslogConnection, times(3)).attemptConnection();
+        verify(fallbackAppender).doAppend(loggingEvent);
+    }
+
+    @Test
+    void start_when_syslogHostsEntryMalformed_then_shouldReportErrorAndSkipEntry() {
+        tlsSyslogAppender.stop();
+        createdConnectionNames.clear();
+        LoggerContext context = new LoggerContext();
+        tlsSyslogAppender.setContext(context);
+        tlsSyslogAppender.setSyslogHosts("relay1:1001, relay2:port");
+        tlsSyslogAppender.start();
+        stubSuccesfulSyslogConnectionTransmit();
+
+        tlsSyslogAppender.append(loggingEvent);
+
+        assertEquals(List.of("relay1:1001#0"), createdConnectionNames);
+        assertEquals(List.of(LOGGED_MESSAGE), transmittedMessages);
+        assertTrue(context.getStatusManager().getCopyOfStatusList().stream()
+                .anyMatch(status -> status.getLevel() == Status.ERROR
+                        && status.getMessage().startsWith("Skipping syslogHosts entry [relay2:port]")));
+        tlsSyslogAppender.stop();
+    }
+
+    @Test
+    void append_when_spillDirectoryConfigured_then_shouldSpillAndReplayAfterReconnect(@TempDir Path spillDirectory) {
+        tlsSyslogAppender.stop();
+        tlsSyslogAppender.setSpillDirectory(spillDirectory.toString());
+        tlsSyslogAppender.start();
+        when(tlsSyslogConnection.transmit(any(byte[].class), anyInt(), anyInt())).thenReturn(false);
+
+        tlsSyslogAppender.append(loggingEvent);
+
+        verify(fallbackAppender, never()).doAppend(loggingEvent);
+
+        // Transmit succeeds before the replayer sees the connection as connected
+        stubSuccesfulSyslogConnectionTransmit();
+        when(tlsSyslogConnection.isConnected()).thenReturn(true);
+
+        // The failed transmit and the replay
+        verify(tlsSyslogConnection, timeout(1000).times(2))
+                .transmit(any(byte[].class), eq(0), eq(LOGGED_MESSAGE.length()));
+        assertEquals(List.of(LOGGED_MESSAGE), transmittedMessages);
+        tlsSyslogAppender.stop();
+    }
+
+    private void restartWithBatching(int batchMaxEvents, int batchLingerMillis) {
+        tlsSyslogAppender.stop();
+        tlsSyslogAppender.setBatchMaxEvents(batchMaxEvents);
+        tlsSyslogAppender.setBatchLingerMillis(batchLingerMillis);
+        tlsSyslogAppender.start();
+    }
+
+    /**
+     * Restarts the appender with a {@link PrefixedEncoderStub} and a fallback console writing to the returned stream
+     */
+    private ByteArrayOutputStream restartWithFallbackConsole() {
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        FallbackConsoleAppender consoleAppender = new FallbackConsoleAppender() {
+            @Override
+            public void start() {
+                super.start();
+                setOutputStream(console);
+            }
+        };
+        PatternLayoutEncoder consoleEncoder = new PatternLayoutEncoder();
+        LoggerContext loggerContext = new LoggerContext();
+        consoleEncoder.setContext(loggerContext);
+        consoleEncoder.setPattern("re-encoded %msg%n");
+        consoleEncoder.start();
+        consoleAppender.setContext(loggerContext);
+        consoleAppender.setEncoder(consoleEncoder);
+        FallbackAppenderRef fallback = new FallbackAppenderRef();
+        fallback.addAppender(consoleAppender);
+        fallback.start();
+        tlsSyslogAppender.stop();
+        tlsSyslogAppender.setEncoder(new PrefixedEncoderStub());
+        tlsSyslogAppender.setFallback(fallback);
+        tlsSyslogAppender.start();
+        return console;
+    }
+
     private void stubSuccesfulSyslogConnectionTransmit() {
-        when(tlsSyslogConnection.transmit(any(byte[].class)))
-                .thenAnswer(invocation ->
-                        transmittedMessages.add(new String(invocation.getArgument(0), StandardCharsets.UTF_8)));
+        when(tlsSyslogConnection.transmit(any(byte[].class), anyInt(), anyInt()))
+                .thenAnswer(invocation -> transmittedMessages.add(new String(invocation.getArgument(0),
+                        invocation.<Integer>getArgument(1), invocation.<Integer>getArgument(2), StandardCharsets.UTF_8)));
     }
 
     @BeforeEach
@@ -83,7 +434,9 @@ class TLSSyslogAppenderTest {
 
         tlsSyslogAppender = new TLSSyslogAppender() {
             @Override
-            protected TLSSyslogConnection createSyslogConnection(ContextAware contextAware) {
+            protected TLSSyslogConnection createSyslogConnection(ContextAware contextAware, String connectionName,
+                                                                 String host, int port) {
+                createdConnectionNames.add(connectionName);
                 return tlsSyslogConnection;
             }
         };
@@ -95,6 +448,32 @@ class TLSSyslogAppenderTest {
         when(loggingEvent.getFormattedMessage()).thenReturn(LOGGED_MESSAGE);
     }
 
+    private static class StreamingEncoderStub extends EncoderStub implements StreamingEncoder<ILoggingEvent> {
+        @Override
+        public void encode(ILoggingEvent event, OutputStream outputStream) throws IOException {
+            outputStream.write("<14>".getBytes(StandardCharsets.US_ASCII));
+            outputStream.write(encode(event));
+            outputStream.write('\n');
+        }
+    }
+
+    private static class PrefixedEncoderStub extends EncoderStub implements SyslogPayloadEncoder {
+        @Override
+        public byte[] encode(ILoggingEvent event) {
+            return ("<14>host app: {\"msg\":\"" + event.getFormattedMessage() + "\"}").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int payloadOffset(byte[] message, int offset, int length) {
+            return "<14>host app: ".length();
+        }
+
+        @Override
+        public void setMaxMessageSize(int maxMessageSize) {
+            // Truncated by the appender's buffer
+        }
+    }
+
     private static class EncoderStub extends EncoderBase<ILoggingEvent> {
         @Override
         public byte[] encode(ILoggingEvent event) {
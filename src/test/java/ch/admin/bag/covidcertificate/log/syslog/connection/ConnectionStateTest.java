@@ -65,4 +65,25 @@ class ConnectionStateTest {
                 ExponentialBackOff.DEFAULT_INITIAL_INTERVAL * ExponentialBackOff.DEFAULT_MULTIPLIER) + ONE_MS_ROUNDING_ERROR;
         assertTrue(connectionState.shouldReconnect(), "Should reconnect after 1.5*interval after second error ");
     }
+
+    @Test
+    void connectionState_halfOpenProbe() {
+        Supplier<Long> clock = () -> now;
+        ConnectionState connectionState = new ConnectionState(clock);
+        now = 1;
+        assertTrue(connectionState.startProbe(), "Should probe initially");
+        assertTrue(connectionState.isHalfOpen());
+        assertFalse(connectionState.isConnected(), "Half-open connection should not be used for transmitting");
+        assertFalse(connectionState.startProbe(), "Should not start a second probe while probing");
+
+        connectionState.notifyError();
+        assertFalse(connectionState.isHalfOpen(), "Failed probe should disconnect");
+        assertFalse(connectionState.startProbe(), "Should not probe before back off has expired");
+
+        now += ExponentialBackOff.DEFAULT_INITIAL_INTERVAL + ONE_MS_ROUNDING_ERROR;
+        assertTrue(connectionState.startProbe(), "Should probe after back off has expired");
+        connectionState.notifyConnected();
+        assertTrue(connectionState.isConnected());
+        assertFalse(connectionState.isHalfOpen());
+    }
 }
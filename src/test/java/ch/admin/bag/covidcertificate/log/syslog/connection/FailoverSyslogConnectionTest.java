@@ -0,0 +1,165 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.stubbing.Answer;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class FailoverSyslogConnectionTest {
+
+    private static final byte[] MESSAGE = "message".getBytes();
+
+    @Mock
+    private SyslogConnection primary;
+    @Mock
+    private SyslogConnection secondary;
+
+    @Test
+    void transmit_when_primaryConnected_then_shouldUsePrimary() {
+        when(primary.isConnected()).thenReturn(true);
+        when(primary.transmit(any(byte[].class), anyInt(), anyInt())).thenReturn(true);
+        FailoverSyslogConnection connection = failover(SyslogConnectionSelector.primarySecondary());
+
+        assertTrue(connection.transmit(MESSAGE));
+
+        verify(secondary, never()).transmit(any(byte[].class), anyInt(), anyInt());
+    }
+
+    @Test
+    void transmit_when_primaryNotConnected_then_shouldUseSecondary() {
+        when(primary.isConnected()).thenReturn(false);
+        when(secondary.isConnected()).thenReturn(true);
+        when(secondary.transmit(any(byte[].class), anyInt(), anyInt())).thenReturn(true);
+        FailoverSyslogConnection connection = failover(SyslogConnectionSelector.primarySecondary());
+
+        assertTrue(connection.transmit(MESSAGE));
+
+        verify(primary, never()).transmit(any(byte[].class), anyInt(), anyInt());
+    }
+
+    @Test
+    void transmit_when_primaryTransmitFails_then_shouldFailOverToSecondary() {
+        when(primary.isConnected()).thenReturn(true);
+        when(primary.transmit(any(byte[].class), anyInt(), anyInt())).thenReturn(false);
+        when(secondary.isConnected()).thenReturn(true);
+        when(secondary.transmit(any(byte[].class), anyInt(), anyInt())).thenReturn(true);
+        FailoverSyslogConnection connection = failover(SyslogConnectionSelector.primarySecondary());
+
+        assertTrue(connection.transmit(MESSAGE));
+    }
+
+    @Test
+    void transmit_when_noHostConnected_then_shouldFail() {
+        when(primary.getLastTransmitError()).thenReturn("Connection refused");
+        FailoverSyslogConnection connection = failover(SyslogConnectionSelector.primarySecondary());
+
+        assertFalse(connection.transmit(MESSAGE));
+
+        assertEquals("Not connected to any syslog host: Connection refused", connection.getLastTransmitError());
+    }
+
+    @Test
+    void attemptConnection_shouldConnectToAllHostsInParallel() {
+        CountDownLatch attempting = new CountDownLatch(2);
+        Answer<Void> awaitOtherAttempt = invocation -> {
+            attempting.countDown();
+            // Only completes if the other host is being connected at the same time
+            assertTrue(attempting.await(5, TimeUnit.SECONDS));
+            return null;
+        };
+        doAnswer(awaitOtherAttempt).when(primary).attemptConnection();
+        doAnswer(awaitOtherAttempt).when(secondary).attemptConnection();
+        FailoverSyslogConnection connection = failover(SyslogConnectionSelector.primarySecondary());
+
+        connection.attemptConnection();
+
+        assertEquals(0, attempting.getCount());
+        verify(primary).attemptConnection();
+        verify(secondary).attemptConnection();
+    }
+
+    @Test
+    void select_roundRobin() {
+        when(primary.isConnected()).thenReturn(true);
+        when(secondary.isConnected()).thenReturn(true);
+        SyslogConnection[] connections = {primary, secondary};
+        SyslogConnectionSelector selector = SyslogConnectionSelector.roundRobin();
+
+        assertEquals(0, selector.select(connections));
+        assertEquals(1, selector.select(connections));
+        assertEquals(0, selector.select(connections));
+    }
+
+    @Test
+    void select_leastLatency() {
+        ConnectionHealth slow = new ConnectionHealth();
+        slow.recordTransmitTime(2_000_000);
+        ConnectionHealth fast = new ConnectionHealth();
+        fast.recordTransmitTime(1_000_000);
+        when(primary.isConnected()).thenReturn(true);
+        when(primary.getHealth()).thenReturn(slow);
+        when(secondary.isConnected()).thenReturn(true);
+        when(secondary.getHealth()).thenReturn(fast);
+        SyslogConnection[] connections = {primary, secondary};
+
+        assertEquals(1, SyslogConnectionSelector.leastLatency().select(connections));
+
+        // Primary has recovered, its transmit time has not been measured yet
+        slow.reset();
+        assertEquals(0, SyslogConnectionSelector.leastLatency().select(connections));
+    }
+
+    @Test
+    void select_primarySecondary_when_primaryRecovers_then_shouldReturnToPrimary() {
+        lenient().when(secondary.isConnected()).thenReturn(true);
+        when(primary.isConnected()).thenReturn(false, true);
+        SyslogConnection[] connections = {primary, secondary};
+        SyslogConnectionSelector selector = SyslogConnectionSelector.primarySecondary();
+
+        assertEquals(1, selector.select(connections));
+        assertEquals(0, selector.select(connections));
+    }
+
+    @Test
+    void connectionHealth_movingAverage() {
+        ConnectionHealth health = new ConnectionHealth();
+        health.recordTransmitTime(1000);
+        health.recordTransmitTime(2000);
+
+        assertEquals(1200, health.getAverageTransmitNanos());
+    }
+
+    @Test
+    void connectionHealth_when_transmitPending_then_shouldReportTimeSinceTransmitStarted() throws InterruptedException {
+        ConnectionHealth health = new ConnectionHealth();
+        health.recordTransmitTime(1000);
+
+        health.transmitStarted();
+        Thread.sleep(5);
+
+        assertTrue(health.getAverageTransmitNanos() >= 5_000_000);
+        long nanos = health.transmitCompleted();
+        assertEquals((long) (0.2 * nanos + 0.8 * 1000), health.getAverageTransmitNanos());
+    }
+
+    private FailoverSyslogConnection failover(SyslogConnectionSelector selector) {
+        return new FailoverSyslogConnection("failover#0", List.of(primary, secondary), selector);
+    }
+}
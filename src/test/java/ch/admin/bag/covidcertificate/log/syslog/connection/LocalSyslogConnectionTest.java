@@ -0,0 +1,116 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LocalSyslogConnectionTest {
+
+    private static final String MESSAGE = "<14>message\n";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void transmit_when_unixDomainSocket_then_shouldWriteMessage() throws IOException {
+        Path socketPath = directory.resolve("relay.sock");
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            LocalSyslogConnection connection = LocalSyslogConnection.unixDomainSocket("unix#0", socketPath.toString(),
+                    1000);
+            connection.attemptConnection();
+
+            try (SocketChannel accepted = server.accept()) {
+                assertTrue(connection.transmit(MESSAGE.getBytes(StandardCharsets.UTF_8)));
+
+                ByteBuffer received = ByteBuffer.allocate(MESSAGE.length());
+                while (received.hasRemaining() && accepted.read(received) >= 0) {
+                    // read until complete
+                }
+                assertEquals(MESSAGE, new String(received.array(), StandardCharsets.UTF_8));
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Test
+    void transmit_when_tcp_then_shouldWriteMessage() throws IOException {
+        try (ServerSocket server = new ServerSocket(0)) {
+            LocalSyslogConnection connection = LocalSyslogConnection.tcp("tcp#0", "localhost", server.getLocalPort(), 1000);
+            connection.attemptConnection();
+
+            try (Socket accepted = server.accept()) {
+                assertTrue(connection.transmit(MESSAGE.getBytes(StandardCharsets.UTF_8)));
+
+                InputStream in = accepted.getInputStream();
+                assertEquals(MESSAGE, new String(in.readNBytes(MESSAGE.length()), StandardCharsets.UTF_8));
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Test
+    void transmit_when_relayNotRunning_then_shouldFail() {
+        LocalSyslogConnection connection = LocalSyslogConnection.unixDomainSocket("unix#0",
+                directory.resolve("missing.sock").toString(), 1000);
+        connection.attemptConnection();
+
+        assertFalse(connection.transmit(MESSAGE.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(connection.getLastTransmitError().startsWith("Not connected"));
+        connection.disconnect();
+    }
+
+    @Test
+    void transmit_when_relayDoesNotRead_then_shouldFailAfterWriteDeadline() throws IOException {
+        Path socketPath = directory.resolve("relay.sock");
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            LocalSyslogConnection connection = LocalSyslogConnection.unixDomainSocket("unix#0", socketPath.toString(),
+                    200);
+            connection.attemptConnection();
+
+            try (SocketChannel ignored = server.accept()) {
+                byte[] chunk = new byte[64 * 1024];
+                long start = System.currentTimeMillis();
+                boolean transmitted = true;
+                for (int i = 0; i < 1000 && transmitted; i++) {
+                    transmitted = connection.transmit(chunk);
+                }
+
+                assertFalse(transmitted);
+                assertEquals("Write deadline of 200ms exceeded", connection.getLastTransmitError());
+                assertTrue(System.currentTimeMillis() - start < 5000);
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Test
+    void attemptConnection_when_tcpHostNotLoopback_then_shouldNotConnect() {
+        LocalSyslogConnection connection = LocalSyslogConnection.tcp("tcp#0", "192.0.2.1", 514, 1000);
+        connection.attemptConnection();
+
+        assertFalse(connection.isConnected());
+        assertTrue(connection.getLastTransmitError().startsWith(
+                "Not connected: TCP transport is unencrypted and only connects to loopback addresses"));
+        connection.disconnect();
+    }
+}
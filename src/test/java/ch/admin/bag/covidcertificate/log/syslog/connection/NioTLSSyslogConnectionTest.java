@@ -0,0 +1,165 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NioTLSSyslogConnectionTest {
+
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private TlsStandInServer server;
+    private NioTLSSyslogConnection connection;
+
+    @Test
+    void attemptConnection_shouldCompleteHandshakeAndTransmitMessages() throws Exception {
+        connect(new TlsStandInServer(), 64 * 1024);
+
+        assertTrue(connection.transmit(bytes("first\nsecond\n")));
+
+        awaitTrue(() -> server.getMessages().size() == 2);
+        assertEquals(List.of("first", "second"), server.getMessages());
+    }
+
+    @Test
+    void transmit_when_serverStopsReading_then_shouldApplyBackpressureAndDeliverAcceptedMessagesInOrder()
+            throws Exception {
+        connect(new TlsStandInServer(), 64 * 1024);
+        server.setPaused(true);
+
+        // Fills the socket buffers, so that the selector thread is left with partially written TLS records
+        int accepted = 0;
+        long rejectedSince = 0;
+        while (rejectedSince == 0 || System.currentTimeMillis() - rejectedSince < 200) {
+            if (connection.transmit(bytes(message(accepted)))) {
+                accepted++;
+                rejectedSince = 0;
+            } else if (rejectedSince == 0) {
+                rejectedSince = System.currentTimeMillis();
+            } else {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals("Outbound buffer full, syslog server does not keep up", connection.getLastTransmitError());
+        assertTrue(connection.isConnected());
+
+        server.setPaused(false);
+
+        int expected = accepted;
+        awaitTrue(() -> server.getMessages().size() == expected);
+        List<String> messages = server.getMessages();
+        for (int i = 0; i < expected; i++) {
+            assertEquals(message(i).strip(), messages.get(i));
+        }
+        assertEquals(1, server.getSessions());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"TLSv1.2", "TLSv1.3"})
+    void transmit_when_serverStartsNewHandshake_then_shouldContinueInSameSession(String protocol) throws Exception {
+        connect(new TlsStandInServer(protocol), 64 * 1024);
+        assertTrue(connection.transmit(bytes("before\n")));
+        awaitTrue(() -> server.getMessages().size() == 1);
+
+        server.renegotiate();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(connection.transmit(bytes("after " + i + "\n")));
+        }
+
+        awaitTrue(() -> server.getMessages().size() == 101);
+        assertEquals("after 99", server.getMessages().get(100));
+        assertEquals(1, server.getSessions());
+    }
+
+    @Test
+    void transmit_when_serverClosedSession_then_shouldReconnectInBackground() throws Exception {
+        connect(new TlsStandInServer(), 64 * 1024);
+        assertTrue(connection.transmit(bytes("first\n")));
+        awaitTrue(() -> server.getMessages().size() == 1);
+
+        server.closeSession();
+
+        awaitTrue(() -> server.getSessions() == 2 && connection.isConnected());
+        assertTrue(connection.transmit(bytes("second\n")));
+        awaitTrue(() -> server.getMessages().size() == 2);
+        assertEquals(List.of("first", "second"), server.getMessages());
+    }
+
+    @Test
+    void transmit_when_connectionReset_then_shouldReconnectInBackground() throws Exception {
+        connect(new TlsStandInServer(), 64 * 1024);
+        assertTrue(connection.transmit(bytes("first\n")));
+        awaitTrue(() -> server.getMessages().size() == 1);
+
+        server.resetSession();
+
+        awaitTrue(() -> server.getSessions() == 2 && connection.isConnected());
+        assertTrue(connection.transmit(bytes("second\n")));
+        awaitTrue(() -> server.getMessages().size() == 2);
+        assertEquals("second", server.getMessages().get(1));
+    }
+
+    @Test
+    void transmit_when_disconnected_then_shouldFail() throws Exception {
+        connect(new TlsStandInServer(), 64 * 1024);
+
+        connection.disconnect();
+
+        assertFalse(connection.isConnected());
+        assertFalse(connection.transmit(bytes("message\n")));
+    }
+
+    private void connect(TlsStandInServer tlsServer, int outboundBufferSize)
+            throws IOException, GeneralSecurityException {
+        server = tlsServer;
+        connection = new NioTLSSyslogConnection("nio#0", "127.0.0.1", server.getPort(),
+                TlsStandInServer.clientContext(), TlsStandInServer.clientParameters(), TIMEOUT_MILLIS,
+                outboundBufferSize);
+        connection.attemptConnection();
+        assertTrue(connection.isConnected(), connection.getLastTransmitError());
+    }
+
+    private static String message(int index) {
+        return "message " + index + " " + "x".repeat(1000) + "\n";
+    }
+
+    private static byte[] bytes(String messages) {
+        return messages.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Condition not met within 10s");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        if (connection != null) {
+            connection.disconnect();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import ch.admin.bag.covidcertificate.log.syslog.connection.RelpFrames.RelpFrame;
+
+import javax.net.ServerSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Minimal RELP server for tests, using plain TCP or the server sockets of the given factory (i.e. TLS). Records
+ * received syslog messages and acknowledges them if {@link #setAcknowledge(boolean) acknowledging} is enabled.
+ * Messages containing the {@link #setRejectedContent(String) rejected content} are rejected with status 500.
+ */
+class RelpStandInServer implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+    private final Thread acceptor;
+    private volatile boolean acknowledge = true;
+    private volatile String rejectedContent;
+    private volatile Socket clientSocket;
+    private volatile int sessions;
+
+    RelpStandInServer() throws IOException {
+        this(ServerSocketFactory.getDefault());
+    }
+
+    RelpStandInServer(ServerSocketFactory serverSocketFactory) throws IOException {
+        serverSocket = serverSocketFactory.createServerSocket(0);
+        acceptor = new Thread(this::accept, "relp-stand-in-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    List<String> getMessages() {
+        return messages;
+    }
+
+    int getSessions() {
+        return sessions;
+    }
+
+    void setAcknowledge(boolean acknowledge) {
+        this.acknowledge = acknowledge;
+    }
+
+    void setRejectedContent(String rejectedContent) {
+        this.rejectedContent = rejectedContent;
+    }
+
+    /**
+     * Drops the current client connection without acknowledging pending frames
+     */
+    void dropConnection() throws IOException {
+        clientSocket.close();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                clientSocket = socket;
+                serve(socket);
+            } catch (IOException ex) {
+                // Next session
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        while (true) {
+            RelpFrame frame = RelpFrames.read(in);
+            switch (frame.command()) {
+                case "open" -> {
+                    sessions++;
+                    RelpFrames.write(out, frame.txnr(), "rsp", "200 OK\n" + frame.dataAsString());
+                }
+                case "syslog" -> {
+                    String message = frame.dataAsString();
+                    messages.add(message);
+                    String rejected = rejectedContent;
+                    if (rejected != null && message.contains(rejected)) {
+                        RelpFrames.write(out, frame.txnr(), "rsp", "500 rejected");
+                    } else if (acknowledge) {
+                        RelpFrames.write(out, frame.txnr(), "rsp", "200 OK");
+                    }
+                }
+                case "close" -> {
+                    RelpFrames.write(out, frame.txnr(), "rsp", "");
+                    out.flush();
+                    return;
+                }
+                default -> RelpFrames.write(out, frame.txnr(), "rsp", "500 unsupported command");
+            }
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        if (clientSocket != null) {
+            clientSocket.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RelpSyslogConnectionTest {
+
+    private RelpStandInServer server;
+    private RelpSyslogConnection connection;
+
+    @Test
+    void transmit_shouldSendEachMessageAsAcknowledgedFrame() {
+        connect(16);
+
+        assertTrue(connection.transmit(bytes("first\nsecond\n")));
+
+        awaitTrue(() -> connection.getWindowOccupancy() == 0);
+        assertEquals(List.of("first", "second"), server.getMessages());
+    }
+
+    @Test
+    void transmit_when_connectionLostBeforeAcknowledgement_then_shouldRetransmitAfterReconnect() throws IOException {
+        connect(16);
+        server.setAcknowledge(false);
+
+        assertTrue(connection.transmit(bytes("message\n")));
+        awaitTrue(() -> server.getMessages().size() == 1);
+        assertEquals(1, connection.getWindowOccupancy());
+
+        server.setAcknowledge(true);
+        server.dropConnection();
+
+        awaitTrue(() -> server.getSessions() == 2 && connection.getWindowOccupancy() == 0);
+        assertEquals(List.of("message", "message"), server.getMessages());
+    }
+
+    @Test
+    void transmit_when_windowFull_then_shouldFail() {
+        connect(2);
+        server.setAcknowledge(false);
+
+        assertTrue(connection.transmit(bytes("first\nsecond\n")));
+        assertFalse(connection.transmit(bytes("third\n")));
+
+        assertTrue(connection.getLastTransmitError().startsWith("RELP window of 2 frames not acknowledged"));
+    }
+
+    @Test
+    void transmit_when_messagesOctetCounted_then_shouldSplitByOctetCount() {
+        connect(16);
+
+        assertTrue(connection.transmit(bytes("11 line1\nline2" + "7 second\n" + "5 third")));
+
+        awaitTrue(() -> connection.getWindowOccupancy() == 0 && server.getMessages().size() == 3);
+        assertEquals(List.of("line1\nline2", "second", "third"), server.getMessages());
+    }
+
+    @Test
+    void transmit_when_frameRejected_then_shouldPassMessageToRejectedFrameHandler() {
+        List<String> rejected = new CopyOnWriteArrayList<>();
+        connection = new RelpSyslogConnection("relp#0", "localhost", server.getPort(), SocketFactory.getDefault(),
+                null, 200, 16);
+        connection.setRejectedFrameHandler((message, offset, length, reason) ->
+                rejected.add(new String(message, offset, length, StandardCharsets.UTF_8) + "|" + reason));
+        connection.attemptConnection();
+        server.setRejectedContent("invalid");
+
+        assertTrue(connection.transmit(bytes("valid\ninvalid\n")));
+
+        awaitTrue(() -> connection.getWindowOccupancy() == 0 && rejected.size() == 1);
+        assertEquals(List.of("invalid\n|RELP frame rejected: 500 rejected"), rejected);
+    }
+
+    @Test
+    void transmit_when_waitingForAcknowledgement_then_shouldNotBlockSessionLossAndReconnect() throws Exception {
+        connection = new RelpSyslogConnection("relp#0", "localhost", server.getPort(), SocketFactory.getDefault(),
+                null, 5000, 1);
+        connection.attemptConnection();
+        server.setAcknowledge(false);
+        assertTrue(connection.transmit(bytes("first\n")));
+        awaitTrue(() -> server.getMessages().size() == 1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waitingTransmit = executor.submit(() -> connection.transmit(bytes("second\n")));
+            Thread.sleep(100);
+            server.setAcknowledge(true);
+            server.dropConnection();
+
+            // Fails as soon as the session loss has been noticed rather than after the 5s timeout
+            assertFalse(waitingTransmit.get(2, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        awaitTrue(() -> server.getSessions() == 2 && connection.getWindowOccupancy() == 0);
+        assertEquals(List.of("first", "first"), server.getMessages());
+    }
+
+    @Test
+    void transmit_when_tls_then_shouldSendAcknowledgedFrames() throws Exception {
+        server.close();
+        server = new RelpStandInServer(TlsStandInServer.serverContext().getServerSocketFactory());
+        connection = new RelpSyslogConnection("relp#0", "localhost", server.getPort(),
+                TlsStandInServer.clientContext().getSocketFactory(), TlsStandInServer.clientParameters(), 5000, 16);
+        connection.attemptConnection();
+        assertTrue(connection.isConnected(), connection.getLastTransmitError());
+
+        assertTrue(connection.transmit(bytes("first\nsecond\n")));
+
+        awaitTrue(() -> connection.getWindowOccupancy() == 0 && server.getMessages().size() == 2);
+        assertEquals(List.of("first", "second"), server.getMessages());
+    }
+
+    @Test
+    void transmit_when_notConnected_then_shouldFail() throws IOException {
+        server.close();
+        connection = new RelpSyslogConnection("relp#0", "localhost", server.getPort(), SocketFactory.getDefault(),
+                null, 200, 16);
+        connection.attemptConnection();
+
+        assertFalse(connection.transmit(bytes("message\n")));
+        assertTrue(connection.getLastTransmitError().startsWith("Not connected"));
+    }
+
+    private void connect(int windowSize) {
+        connection = new RelpSyslogConnection("relp#0", "localhost", server.getPort(), SocketFactory.getDefault(),
+                null, 200, windowSize);
+        connection.attemptConnection();
+        assertTrue(connection.isConnected());
+    }
+
+    private static byte[] bytes(String messages) {
+        return messages.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Condition not met within 5s");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new RelpStandInServer();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        if (connection != null) {
+            connection.disconnect();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,93 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TLSSyslogConnectionTest {
+
+    private TlsStandInServer server;
+    private TLSSyslogConnection connection;
+
+    @Test
+    void transmit_when_connected_then_shouldWriteMessages() throws Exception {
+        connect();
+
+        assertTrue(connection.transmit(bytes("first\nsecond\n")));
+
+        awaitTrue(() -> server.getMessages().size() == 2);
+        assertEquals(List.of("first", "second"), server.getMessages());
+    }
+
+    @Test
+    void transmit_when_connectionReset_then_shouldFailAndReconnectInBackground() throws Exception {
+        connect();
+        assertTrue(connection.transmit(bytes("first\n")));
+        awaitTrue(() -> server.getMessages().size() == 1);
+
+        server.resetSession();
+
+        // The reset is only noticed by a subsequent write
+        awaitTrue(() -> !connection.transmit(bytes("lost\n")));
+        awaitTrue(() -> server.getSessions() == 2 && connection.isConnected());
+        assertTrue(connection.transmit(bytes("second\n")));
+        awaitTrue(() -> server.getMessages().size() == 2);
+        assertEquals("second", server.getMessages().get(1));
+    }
+
+    @Test
+    void transmit_when_disconnected_then_shouldFail() throws Exception {
+        connect();
+
+        connection.disconnect();
+
+        assertFalse(connection.isConnected());
+        assertFalse(connection.transmit(bytes("message\n")));
+    }
+
+    private void connect() throws IOException, GeneralSecurityException {
+        server = new TlsStandInServer();
+        connection = new TLSSyslogConnection("tls#0", "127.0.0.1", server.getPort(),
+                TlsStandInServer.clientContext(), TlsStandInServer.clientParameters(), 5000);
+        connection.attemptConnection();
+        assertTrue(connection.isConnected(), connection.getLastTransmitError());
+    }
+
+    private static byte[] bytes(String messages) {
+        return messages.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Condition not met within 10s");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        if (connection != null) {
+            connection.disconnect();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package ch.admin.bag.covidcertificate.log.syslog.connection;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.net.ssl.SSLParametersConfiguration;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Minimal TLS syslog server for tests, using the self-signed <code>localhost</code> certificate of
+ * <code>syslog-test-keystore.p12</code>. Records the received line feed terminated messages. Reading can be paused to
+ * fill the socket buffers, and the current session can be closed, reset or renegotiated by the server.
+ */
+class TlsStandInServer implements AutoCloseable {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private final ServerSocket serverSocket;
+    private final SSLSocketFactory socketFactory;
+    private final String[] protocols;
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+    private volatile Socket rawSocket;
+    private volatile SSLSocket clientSocket;
+    private volatile boolean paused;
+    private volatile int sessions;
+
+    /**
+     * @param protocols the TLS protocols enabled by the server, all supported protocols if none
+     */
+    TlsStandInServer(String... protocols) throws IOException, GeneralSecurityException {
+        socketFactory = serverContext().getSocketFactory();
+        this.protocols = protocols;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "tls-stand-in-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return a server context using the <code>localhost</code> certificate
+     */
+    static SSLContext serverContext() throws IOException, GeneralSecurityException {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore(), PASSWORD);
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    /**
+     * @return a client context trusting the certificate of the server
+     */
+    static SSLContext clientContext() throws IOException, GeneralSecurityException {
+        TrustManagerFactory trustManagerFactory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    static SSLParametersConfiguration clientParameters() {
+        SSLParametersConfiguration parameters = new SSLParametersConfiguration();
+        parameters.setContext(new LoggerContext());
+        return parameters;
+    }
+
+    private static KeyStore keyStore() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = TlsStandInServer.class.getResourceAsStream("/syslog-test-keystore.p12")) {
+            keyStore.load(in, PASSWORD);
+        }
+        return keyStore;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    List<String> getMessages() {
+        return messages;
+    }
+
+    int getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Stops reading from the current session, so that the socket buffers fill up
+     */
+    void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * Closes the current session gracefully, sending a <code>close_notify</code> alert
+     */
+    void closeSession() throws IOException {
+        clientSocket.close();
+    }
+
+    /**
+     * Resets the TCP connection of the current session without closing the TLS session
+     */
+    void resetSession() throws IOException {
+        rawSocket.setSoLinger(true, 0);
+        rawSocket.close();
+    }
+
+    /**
+     * Starts a new handshake in the current session: a renegotiation with TLS 1.2, a key update with TLS 1.3
+     */
+    void renegotiate() throws IOException {
+        clientSocket.startHandshake();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try (Socket raw = serverSocket.accept();
+                 SSLSocket socket = (SSLSocket) socketFactory.createSocket(raw, null, raw.getPort(), true)) {
+                socket.setUseClientMode(false);
+                if (protocols.length > 0) {
+                    socket.setEnabledProtocols(protocols);
+                }
+                rawSocket = raw;
+                clientSocket = socket;
+                sessions++;
+                serve(socket);
+            } catch (IOException ex) {
+                // Next session
+            }
+        }
+    }
+
+    private void serve(SSLSocket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.UTF_8));
+        while (true) {
+            while (paused) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            String line = reader.readLine();
+            if (line == null) {
+                return;
+            }
+            messages.add(line);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        if (clientSocket != null) {
+            clientSocket.close();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package ch.admin.bag.covidcertificate.log.syslog.encoder;
+
+import ch.admin.bag.covidcertificate.log.cloudfoundry.CloudFoundryAttributeProvider;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.core.encoder.Encoder;
+import lombok.extern.slf4j.Slf4j;
+import net.logstash.logback.composite.ContextJsonProvider;
+import net.logstash.logback.composite.SequenceJsonProvider;
+import net.logstash.logback.composite.loggingevent.ArgumentsJsonProvider;
+import net.logstash.logback.composite.loggingevent.LogLevelJsonProvider;
+import net.logstash.logback.composite.loggingevent.LoggerNameJsonProvider;
+import net.logstash.logback.composite.loggingevent.LoggingEventFormattedTimestampJsonProvider;
+import net.logstash.logback.composite.loggingevent.LoggingEventJsonProviders;
+import net.logstash.logback.composite.loggingevent.LoggingEventNestedJsonProvider;
+import net.logstash.logback.composite.loggingevent.LogstashMarkersJsonProvider;
+import net.logstash.logback.composite.loggingevent.MdcJsonProvider;
+import net.logstash.logback.composite.loggingevent.MessageJsonProvider;
+import net.logstash.logback.composite.loggingevent.StackHashJsonProvider;
+import net.logstash.logback.composite.loggingevent.StackTraceJsonProvider;
+import net.logstash.logback.composite.loggingevent.TagsJsonProvider;
+import net.logstash.logback.composite.loggingevent.ThreadNameJsonProvider;
+import net.logstash.logback.encoder.LoggingEventCompositeJsonEncoder;
+import net.logstash.logback.stacktrace.ShortenedThrowableConverter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MarkerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+import static net.logstash.logback.marker.Markers.append;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Slf4j
+class LogRelayJsonEncoderTest {
+
+    private final LoggerContext loggerContext = new LoggerContext();
+
+    @BeforeEach
+    void beforeEach() {
+        loggerContext.putProperty("app", "test-app");
+    }
+
+    @Test
+    void encode_shouldBeByteIdenticalToCompositeEncoder() {
+        LoggingEventCompositeJsonEncoder compositeEncoder = compositeEncoder();
+        LogRelayJsonEncoder encoder = startedEncoder();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 5_000; i++) {
+            ILoggingEvent event = randomEvent(random, i);
+
+            String expected = new String(compositeEncoder.encode(event), StandardCharsets.UTF_8);
+            assertEquals(expected, new String(encoder.encode(event), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void encode_streamingIsIdenticalToByteArray() throws IOException {
+        LogRelayJsonEncoder encoder = startedEncoder();
+        LogRelayJsonEncoder streamingEncoder = startedEncoder();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 1_000; i++) {
+            ILoggingEvent event = randomEvent(random, i);
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+            streamingEncoder.encode(event, stream);
+
+            assertArrayEquals(encoder.encode(event), stream.toByteArray());
+        }
+    }
+
+    @Test
+    void encode_withPrefix() {
+        LogRelayJsonEncoder encoder = new LogRelayJsonEncoder();
+        encoder.setContext(loggerContext);
+        encoder.setPrefix(new SyslogMessagePrefixEncoder());
+        encoder.setLineSeparator("\n");
+        encoder.start();
+
+        String message = new String(encoder.encode(event(Level.INFO, "test.Logger", 1000L, "hello")),
+                StandardCharsets.UTF_8);
+
+        assertTrue(message.matches("<14>.* doppler\\[\\d+]: \\{\"msg\":\\{\"@timestamp\":.*\"message\":\"hello\"}}\n"),
+                message);
+    }
+
+    @Test
+    void encode_when_messageExceedsMaxMessageSize_then_shouldTruncateAndKeepLineSeparator() throws IOException {
+        LogRelayJsonEncoder encoder = new LogRelayJsonEncoder();
+        encoder.setContext(loggerContext);
+        encoder.setPrefix(new SyslogMessagePrefixEncoder());
+        encoder.setLineSeparator("\n");
+        encoder.setMaxMessageSize(200);
+        encoder.start();
+        ILoggingEvent event = event(Level.INFO, "test.Logger", 1000L, "x".repeat(1000));
+
+        byte[] message = encoder.encode(event);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        encoder.encode(event, stream);
+
+        assertEquals(200, message.length);
+        assertTrue(new String(message, StandardCharsets.UTF_8).startsWith("<14>"));
+        assertEquals('\n', message[199]);
+        assertEquals(200, stream.size());
+    }
+
+    @Test
+    void payloadOffset_shouldSkipPrefix() {
+        LogRelayJsonEncoder encoder = new LogRelayJsonEncoder();
+        encoder.setContext(loggerContext);
+        encoder.setPrefix(new SyslogMessagePrefixEncoder());
+        encoder.start();
+        byte[] message = encoder.encode(event(Level.INFO, "test.Logger", 1000L, "hello"));
+
+        int offset = encoder.payloadOffset(message, 0, message.length);
+
+        assertTrue(new String(message, offset, message.length - offset, StandardCharsets.UTF_8)
+                .startsWith("{\"msg\":{\"@timestamp\":"));
+        assertEquals(0, startedEncoder().payloadOffset(message, offset, message.length - offset));
+    }
+
+    /**
+     * Compares the throughput of the fixed-layout encoder with the composite encoder configured like the
+     * <code>LOGRELAY</code> appender.
+     */
+    @Test
+    @Tag("benchmark")
+    void encode_throughputComparison() {
+        LoggingEventCompositeJsonEncoder compositeEncoder = compositeEncoder();
+        LogRelayJsonEncoder encoder = startedEncoder();
+        long start = System.currentTimeMillis();
+        ILoggingEvent[] events = new ILoggingEvent[1000];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = event(i % 10 == 0 ? Level.WARN : Level.INFO, "ch.admin.bag.covidcertificate.Service" + i % 20,
+                    start + i * 3L, "Processed request " + i);
+        }
+        int iterations = 200_000;
+
+        // Alternating rounds, the fastest round of each encoder is reported
+        long compositeNanos = Long.MAX_VALUE;
+        long fixedLayoutNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 6; round++) {
+            compositeNanos = Math.min(compositeNanos, measure(compositeEncoder, events, iterations));
+            fixedLayoutNanos = Math.min(fixedLayoutNanos, measure(encoder, events, iterations));
+        }
+
+        log.info("Encoded {} events: composite encoder {} events/s, fixed-layout encoder {} events/s", iterations,
+                iterations * 1_000_000_000L / compositeNanos, iterations * 1_000_000_000L / fixedLayoutNanos);
+    }
+
+    private static long measure(Encoder<ILoggingEvent> encoder, ILoggingEvent[] events, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            encoder.encode(events[i % events.length]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private ILoggingEvent randomEvent(Random random, int i) {
+        Level[] levels = {Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR};
+        String[] loggers = {"ch.admin.bag.covidcertificate.log.rest.RestRequestLogger", "Root", "a.b.C", "x"};
+        // Includes timestamps at full seconds and with trailing zeros in the fraction
+        long precision = new long[]{1, 10, 100, 1000}[random.nextInt(4)];
+        long timestamp = random.nextLong(Duration.ofDays(4 * 365).toMillis()) / precision * precision;
+        LoggingEvent event = event(levels[random.nextInt(levels.length)], loggers[random.nextInt(loggers.length)],
+                timestamp, "Message {} with \"quotes\" and \u00fcmlauts");
+        if (i % 6 != 2) {
+            event.setArgumentArray(new Object[]{"arg"});
+        }
+        switch (i % 6) {
+            case 1 -> event.setMDCPropertyMap(Map.of("traceId", "abc" + i, "spanId", "def"));
+            case 2 -> event.setArgumentArray(new Object[]{kv("method", "POST"), kv("result", 202)});
+            case 3 -> event.addMarker(append("uri", "https://example.com/test?a=" + i));
+            case 4 -> event.addMarker(MarkerFactory.getMarker("SECURITY"));
+            case 5 -> event.setThrowableProxy(new ThrowableProxy(
+                    new IllegalStateException("failure " + i % 3, new IllegalArgumentException("cause"))));
+            default -> {
+            }
+        }
+        return event;
+    }
+
+    private LoggingEvent event(Level level, String loggerName, long timestamp, String message) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerContext(loggerContext);
+        event.setLoggerName(loggerName);
+        event.setLevel(level);
+        event.setTimeStamp(timestamp);
+        event.setThreadName("main");
+        event.setMessage(message);
+        return event;
+    }
+
+    private LogRelayJsonEncoder startedEncoder() {
+        LogRelayJsonEncoder encoder = new LogRelayJsonEncoder();
+        encoder.setContext(loggerContext);
+        encoder.start();
+        return encoder;
+    }
+
+    /**
+     * The encoder of the <code>LOGRELAY</code> appender in <code>logback-spring.xml</code>, without prefix
+     */
+    private LoggingEventCompositeJsonEncoder compositeEncoder() {
+        LoggingEventJsonProviders msgProviders = new LoggingEventJsonProviders();
+        msgProviders.addTimestamp(new LoggingEventFormattedTimestampJsonProvider());
+        msgProviders.addContext(new ContextJsonProvider<>());
+        LoggerNameJsonProvider loggerName = new LoggerNameJsonProvider();
+        loggerName.setFieldName("logger");
+        loggerName.setShortenedLoggerNameLength(20);
+        msgProviders.addLoggerName(loggerName);
+        msgProviders.addLogLevel(new LogLevelJsonProvider());
+        msgProviders.addTags(new TagsJsonProvider());
+        msgProviders.addThreadName(new ThreadNameJsonProvider());
+        msgProviders.addMdc(new MdcJsonProvider());
+        msgProviders.addArguments(new ArgumentsJsonProvider());
+        msgProviders.addSequence(new SequenceJsonProvider<>());
+        msgProviders.addLogstashMarkers(new LogstashMarkersJsonProvider());
+        StackHashJsonProvider stackHash = new StackHashJsonProvider();
+        stackHash.setFieldName("exception-hash");
+        msgProviders.addStackHash(stackHash);
+        StackTraceJsonProvider stackTrace = new StackTraceJsonProvider();
+        stackTrace.setFieldName("exception");
+        ShortenedThrowableConverter converter = new ShortenedThrowableConverter();
+        converter.setMaxDepthPerThrowable(40);
+        converter.setMaxLength(4096);
+        converter.setShortenedClassNameLength(20);
+        converter.setRootCauseFirst(true);
+        converter.addExclude("sun\\.reflect\\..*\\.invoke.*");
+        stackTrace.setThrowableConverter(converter);
+        msgProviders.addStackTrace(stackTrace);
+        msgProviders.addMessage(new MessageJsonProvider());
+
+        // Joran sets the context of every configured provider
+        msgProviders.setContext(loggerContext);
+        LoggingEventNestedJsonProvider msg = new LoggingEventNestedJsonProvider();
+        msg.setFieldName("msg");
+        msg.setProviders(msgProviders);
+        LoggingEventCompositeJsonEncoder encoder = new LoggingEventCompositeJsonEncoder();
+        encoder.setContext(loggerContext);
+        encoder.getProviders().addProvider(new CloudFoundryAttributeProvider());
+        encoder.getProviders().addProvider(msg);
+        encoder.start();
+        return encoder;
+    }
+}
@@ -0,0 +1,178 @@
+package ch.admin.bag.covidcertificate.log.syslog.encoder;
+
+import ch.admin.bag.covidcertificate.log.cloudfoundry.CloudFoundryCoordinates;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.EncoderBase;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+class Rfc5424SyslogEncoderTest {
+
+    private static final CloudFoundryCoordinates COORDINATES = new CloudFoundryCoordinates(
+            "space-guid", "dev", "org-guid", "bag", "app-guid", "my-app", "instance-guid", "0");
+
+    @Test
+    void encode_octetCounted() {
+        Rfc5424SyslogEncoder encoder = startedEncoder(true);
+        ILoggingEvent event = event(Level.WARN, 1_700_000_000_042L, Map.of("traceId", "abc", "spanId", "def"));
+
+        String frame = new String(encoder.encode(event), StandardCharsets.UTF_8);
+
+        int space = frame.indexOf(' ');
+        String message = frame.substring(space + 1);
+        assertEquals(Integer.parseInt(frame.substring(0, space)), message.getBytes(StandardCharsets.UTF_8).length);
+        assertTrue(message.matches("<12>1 2023-11-14T22:13:20\\.042Z \\S+ my-app \\d+ - " +
+                "\\[cf@32473 app_id=\"app-guid\" app_name=\"my-app\" space_id=\"space-guid\" space_name=\"dev\" " +
+                "org_id=\"org-guid\" org_name=\"bag\" instance_id=\"instance-guid\" source_instance=\"0\"]" +
+                "\\[log@32473 level=\"WARN\" logger=\"test.Logger\" trace_id=\"abc\" span_id=\"def\"] " +
+                "\\{\"message\":\"hello\"}"), message);
+    }
+
+    @Test
+    void encode_lineFeedTerminatedWithoutOctetCounting() {
+        Rfc5424SyslogEncoder encoder = startedEncoder(false);
+        encoder.setCloudFoundryCoordinates(null);
+
+        String message = new String(encoder.encode(event(Level.INFO, 0L, Map.of())), StandardCharsets.UTF_8);
+
+        assertTrue(message.startsWith("<14>1 1970-01-01T00:00:00.000Z "), message);
+        assertTrue(message.endsWith("[log@32473 level=\"INFO\" logger=\"test.Logger\"] {\"message\":\"hello\"}\n"), message);
+    }
+
+    @Test
+    void encode_when_octetCountedMessageExceedsMaxMessageSize_then_shouldCountTruncatedMessage() throws IOException {
+        Rfc5424SyslogEncoder encoder = startedEncoder(true);
+        encoder.setMaxMessageSize(102);
+        ILoggingEvent event = event(Level.WARN, 1_700_000_000_042L, Map.of());
+
+        byte[] frame = encoder.encode(event);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        encoder.encode(event, stream);
+
+        String frameString = new String(frame, StandardCharsets.US_ASCII);
+        assertEquals(102, frame.length);
+        assertEquals("99 <12>1 2023-11-14T22:13:20.042Z", frameString.substring(0, 33));
+        assertArrayEquals(frame, stream.toByteArray());
+    }
+
+    @Test
+    void encode_when_lineFeedTerminatedMessageExceedsMaxMessageSize_then_shouldKeepLineFeed() {
+        Rfc5424SyslogEncoder encoder = startedEncoder(false);
+        encoder.setMaxMessageSize(100);
+
+        byte[] message = encoder.encode(event(Level.INFO, 0L, Map.of()));
+
+        assertEquals(100, message.length);
+        assertEquals('\n', message[99]);
+        assertEquals(1, new String(message, StandardCharsets.US_ASCII).chars().filter(c -> c == '\n').count());
+    }
+
+    @Test
+    void maxOctetCountedLength_shouldLeaveRoomForLengthAndSpace() {
+        assertEquals(9, Rfc5424SyslogEncoder.maxOctetCountedLength(11));
+        assertEquals(9, Rfc5424SyslogEncoder.maxOctetCountedLength(12));
+        assertEquals(10, Rfc5424SyslogEncoder.maxOctetCountedLength(13));
+        assertEquals(99, Rfc5424SyslogEncoder.maxOctetCountedLength(102));
+        assertEquals(100, Rfc5424SyslogEncoder.maxOctetCountedLength(104));
+    }
+
+    @Test
+    @Tag("benchmark")
+    void encode_streamingIsIdenticalToByteArray() throws IOException {
+        Rfc5424SyslogEncoder encoder = startedEncoder(true);
+        for (int i = 0; i < 3000; i++) {
+            ILoggingEvent event = event(Level.ERROR, i * 7L, Map.of("traceId", "t" + i));
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+            encoder.encode(event, stream);
+
+            assertArrayEquals(encoder.encode(event), stream.toByteArray());
+        }
+    }
+
+    @Test
+    void encode_escapesParamValues() {
+        Rfc5424SyslogEncoder encoder = startedEncoder(true);
+
+        String frame = new String(encoder.encode(event(Level.INFO, 0L, Map.of("traceId", "a\"b]c\\"))),
+                StandardCharsets.UTF_8);
+
+        assertTrue(frame.contains("trace_id=\"a\\\"b\\]c\\\\\""), frame);
+        assertEquals("x\\]y", Rfc5424SyslogEncoder.escapeParamValue("x]y"));
+    }
+
+    @Test
+    void payloadOffset_shouldSkipHeaderAndStructuredData() {
+        for (boolean octetCounting : new boolean[]{true, false}) {
+            Rfc5424SyslogEncoder encoder = startedEncoder(octetCounting);
+            byte[] message = encoder.encode(event(Level.INFO, 0L, Map.of("traceId", "a\"b] c\\")));
+            byte[] framed = new byte[message.length + 3];
+            System.arraycopy(message, 0, framed, 3, message.length);
+
+            int offset = encoder.payloadOffset(framed, 3, message.length);
+
+            assertEquals("{\"message\":\"hello\"}",
+                    new String(framed, 3 + offset, message.length - offset, StandardCharsets.UTF_8).strip());
+        }
+    }
+
+    @Test
+    void start_withoutBodyEncoder() {
+        Rfc5424SyslogEncoder encoder = new Rfc5424SyslogEncoder();
+        encoder.setContext(new LoggerContext());
+
+        encoder.start();
+
+        assertFalse(encoder.isStarted());
+    }
+
+    private static Rfc5424SyslogEncoder startedEncoder(boolean octetCounting) {
+        Rfc5424SyslogEncoder encoder = new Rfc5424SyslogEncoder();
+        encoder.setBody(new MessageJsonEncoder());
+        encoder.setCloudFoundryCoordinates(COORDINATES);
+        encoder.setOctetCounting(octetCounting);
+        encoder.start();
+        return encoder;
+    }
+
+    private static ILoggingEvent event(Level level, long timestamp, Map<String, String> mdc) {
+        ILoggingEvent event = mock(ILoggingEvent.class);
+        doReturn(level).when(event).getLevel();
+        doReturn(timestamp).when(event).getTimeStamp();
+        doReturn("test.Logger").when(event).getLoggerName();
+        doReturn(mdc).when(event).getMDCPropertyMap();
+        return event;
+    }
+
+    private static class MessageJsonEncoder extends EncoderBase<ILoggingEvent> {
+
+        @Override
+        public byte[] headerBytes() {
+            return null;
+        }
+
+        @Override
+        public byte[] encode(ILoggingEvent event) {
+            return "{\"message\":\"hello\"}\n".getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public byte[] footerBytes() {
+            return null;
+        }
+    }
+}
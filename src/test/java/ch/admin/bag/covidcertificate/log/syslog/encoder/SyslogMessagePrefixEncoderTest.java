@@ -2,12 +2,28 @@ package ch.admin.bag.covidcertificate.log.syslog.encoder;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LevelToSyslogSeverity;
+import ch.qos.logback.core.net.SyslogConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
@@ -43,4 +59,102 @@ class SyslogMessagePrefixEncoderTest {
         String str = new String(result, StandardCharsets.UTF_8);
         assertTrue(str.matches("<14>Jan 16 \\d\\d:\\d\\d:\\d\\d\\.\\d\\d\\d .*? doppler\\[\\d+]:.*"), str);
     }
+
+    @Test
+    void encode_shouldBeByteIdenticalToFormattedPrefix() throws UnknownHostException {
+        SyslogMessagePrefixEncoder encoder = new SyslogMessagePrefixEncoder();
+        encoder.start();
+        Random random = new Random(42);
+        Level[] levels = {Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR};
+        String hostname = InetAddress.getLocalHost().getHostName();
+
+        for (int i = 0; i < 10_000; i++) {
+            // Timestamps within the same second as the previous event are likely, to exercise the cached second
+            long timestamp = i % 3 == 0 ?
+                    random.nextLong(Duration.ofDays(4 * 365).toMillis()) :
+                    timestampInSameSecond(random, i);
+            LoggingEvent event = event(levels[random.nextInt(levels.length)], timestamp);
+
+            String expected = formattedPrefix(event, hostname);
+            assertEquals(expected, new String(encoder.encode(event), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void encode_shouldReturnCopyNotReusedForNextEvent() {
+        SyslogMessagePrefixEncoder encoder = new SyslogMessagePrefixEncoder();
+        encoder.start();
+        long second = System.currentTimeMillis() / 1000 * 1000;
+
+        byte[] first = encoder.encode(event(Level.INFO, second + 1));
+        String firstPrefix = new String(first, StandardCharsets.UTF_8);
+        byte[] secondPrefix = encoder.encode(event(Level.INFO, second + 2));
+
+        assertEquals(firstPrefix, new String(first, StandardCharsets.UTF_8));
+        assertNotSame(first, secondPrefix);
+    }
+
+    private long lastTimestamp;
+
+    private long timestampInSameSecond(Random random, int i) {
+        lastTimestamp = lastTimestamp / 1000 * 1000 + random.nextInt(1000);
+        return lastTimestamp;
+    }
+
+    /**
+     * Streaming a prefix must not allocate once the thread's prefix buffers have been initialized and the second has
+     * been cached.
+     */
+    @Test
+    void encodeToStream_shouldNotAllocate() throws IOException {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        SyslogMessagePrefixEncoder encoder = new SyslogMessagePrefixEncoder();
+        encoder.start();
+        // Events are created up front, as setting the timestamp of a logging event allocates
+        long second = System.currentTimeMillis() / 1000 * 1000;
+        LoggingEvent[] secondEvents = new LoggingEvent[1000];
+        for (int i = 0; i < secondEvents.length; i++) {
+            secondEvents[i] = event(Level.INFO, second + i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        int events = 1_000_000;
+        for (int i = 0; i < events; i++) {
+            out.reset();
+            encoder.encode(secondEvents[i % secondEvents.length], out);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            out.reset();
+            encoder.encode(secondEvents[i % secondEvents.length], out);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        log.info("Encoded {} syslog prefixes in {}ms, {} bytes allocated", events, elapsedNanos / 1_000_000, allocated);
+        // Allow for the allocation of the measurement itself
+        assertTrue(allocated < 1024, "Allocated " + allocated + " bytes");
+    }
+
+    private static LoggingEvent event(Level level, long timestamp) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLevel(level);
+        event.setTimeStamp(timestamp);
+        return event;
+    }
+
+    /**
+     * Prefix as formatted by the previous, allocating implementation
+     */
+    private static String formattedPrefix(ILoggingEvent event, String hostname) {
+        int pri = SyslogConstants.LOG_USER + LevelToSyslogSeverity.convert(event);
+        LocalDateTime localDateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(event.getTimeStamp()), ZoneId.systemDefault());
+        String timestamp = localDateTime.getDayOfMonth() < 10 ?
+                DateTimeFormatter.ofPattern("MMM  d HH:mm:ss.SSS", Locale.US).format(localDateTime) :
+                DateTimeFormatter.ofPattern("MMM dd HH:mm:ss.SSS", Locale.US).format(localDateTime);
+        return "<" + pri + ">" + timestamp + ' ' + hostname + ' ' +
+                "doppler[" + ProcessHandle.current().pid() + "]:" + " ";
+    }
 }
@@ -0,0 +1,156 @@
+package ch.admin.bag.covidcertificate.log.syslog.spill;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpillStoreTest {
+
+    private static final int SEGMENT_BYTES = 64;
+
+    @TempDir
+    Path directory;
+
+    private final List<String> replayed = new ArrayList<>();
+
+    @Test
+    void replayNext_shouldReplayFramesInOrder() throws IOException {
+        SpillStore store = SpillStore.open(directory, 1024, SEGMENT_BYTES);
+        offer(store, "first");
+        offer(store, "second");
+
+        assertEquals(2, store.getFrames());
+        assertEquals(11, store.getBytes());
+        assertTrue(store.replayNext(this::accept));
+        assertTrue(store.replayNext(this::accept));
+        assertFalse(store.replayNext(this::accept));
+
+        assertEquals(List.of("first", "second"), replayed);
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    void replayNext_when_sinkRejectsFrame_then_shouldKeepFrame() throws IOException {
+        SpillStore store = SpillStore.open(directory, 1024, SEGMENT_BYTES);
+        offer(store, "frame");
+
+        assertFalse(store.replayNext((buffer, offset, length) -> false));
+        assertTrue(store.replayNext(this::accept));
+
+        assertEquals(List.of("frame"), replayed);
+    }
+
+    @Test
+    void offer_when_frameBeingReplayed_then_shouldNotWaitForSink() throws Exception {
+        SpillStore store = SpillStore.open(directory, 1024, SEGMENT_BYTES);
+        offer(store, "first");
+        CompletableFuture<Boolean> spilled = new CompletableFuture<>();
+
+        assertTrue(store.replayNext((buffer, offset, length) -> {
+            // A logging thread spilling while the replaying thread transmits
+            new Thread(() -> spilled.complete(offer(store, "second"))).start();
+            try {
+                return spilled.get(5, TimeUnit.SECONDS) && accept(buffer, offset, length);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }));
+        assertTrue(store.replayNext(this::accept));
+
+        assertEquals(List.of("first", "second"), replayed);
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    void offer_when_storeFull_then_shouldRejectFrame() throws IOException {
+        // Two segments holding two 20 byte frames each
+        SpillStore store = SpillStore.open(directory, 2 * SEGMENT_BYTES, SEGMENT_BYTES);
+        String frame = "x".repeat(20);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(offer(store, frame));
+        }
+
+        assertFalse(offer(store, frame));
+        assertFalse(offer(store, "y".repeat(SEGMENT_BYTES)));
+
+        store.replayNext(this::accept);
+        store.replayNext(this::accept);
+        assertTrue(store.replayNext(this::accept));
+        assertEquals(1, segmentFiles());
+        assertTrue(offer(store, frame));
+    }
+
+    @Test
+    void open_shouldRecoverFramesNotReplayedByPreviousRun() throws IOException {
+        SpillStore store = SpillStore.open(directory, 1024, SEGMENT_BYTES);
+        offer(store, "replayed");
+        offer(store, "pending-1");
+        offer(store, "pending-2");
+        store.replayNext(this::accept);
+        store.close();
+        replayed.clear();
+
+        SpillStore recovered = SpillStore.open(directory, 1024, SEGMENT_BYTES);
+        assertEquals(2, recovered.getFrames());
+        while (recovered.replayNext(this::accept)) {
+            // replay all
+        }
+
+        assertEquals(List.of("pending-1", "pending-2"), replayed);
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void close_shouldUnmapSegmentFiles() throws IOException {
+        SpillStore store = SpillStore.open(directory, 2 * SEGMENT_BYTES, SEGMENT_BYTES);
+        String frame = "x".repeat(20);
+        for (int i = 0; i < 4; i++) {
+            offer(store, frame);
+        }
+        // Deletes the first segment
+        for (int i = 0; i < 3; i++) {
+            store.replayNext(this::accept);
+        }
+        assertEquals(1, mappedSegments());
+
+        store.close();
+
+        assertEquals(0, mappedSegments());
+    }
+
+    private boolean offer(SpillStore store, String frame) {
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        return store.offer(bytes, 0, bytes.length);
+    }
+
+    private boolean accept(byte[] buffer, int offset, int length) {
+        return replayed.add(new String(buffer, offset, length, StandardCharsets.UTF_8));
+    }
+
+    private long mappedSegments() throws IOException {
+        return Files.readAllLines(Path.of("/proc/self/maps")).stream()
+                .filter(mapping -> mapping.contains(directory.toString()))
+                .count();
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}